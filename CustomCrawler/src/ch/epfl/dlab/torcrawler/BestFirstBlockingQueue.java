@@ -0,0 +1,722 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.squareup.tape2.ObjectQueue;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Thread safe, persistent, best-first blocking frontier. Each url is
+ *         scored with the link evidence gathered by the fetcher threads: the
+ *         number of distinct domains linking to it, its depth from the seeds and
+ *         whether its domain has never been fetched. take() returns a url with
+ *         the highest score, urls with the same score are returned in FIFO order.
+ *
+ *         PRIORITY STRUCTURE: the scores are small integers, there is one
+ *         persistent FIFO bucket per score. The buckets are stored in a tiered
+ *         SubqueueStorage, so that the hot ends of the buckets are in memory and
+ *         the rest spills to disk. When a url gains a referring domain, a copy
+ *         is appended to its new bucket and the old copy becomes stale: an
+ *         in-memory index of the pending urls records the bucket of the live
+ *         copy of each url and take() skips the stale copies. As a domain is
+ *         only new until its first fetch, the score of a url is checked again
+ *         when it is taken and the url is moved to a lower bucket if needed.
+ *
+ *         CAVEATS: - the index keeps the evidence of every pending url in memory
+ *         - the referring domains are not persisted, only their number is, so a
+ *         referring domain seen before a restore can be counted twice - the
+ *         depth of a url is only known if its referring page was taken from
+ *         this queue, it defaults to 1
+ */
+public final class BestFirstBlockingQueue implements Frontier {
+
+	public static final String DEFAULT_FOLDER_NAME = "data/persistentBestFirstQueue";
+	public static final String BUCKET_NAME_PREFIX = "score-";
+	public static final String DISCOVERED_DOMAINS_NAME = "discoveredDomains";
+	public static final String FETCHED_DOMAINS_NAME = "fetchedDomains";
+	public static final int REFERRER_WEIGHT = 2;// Score of each distinct referring domain
+	public static final int MAX_REFERRERS = 8;// Referring domains above this number do not increase the score
+	public static final int NEW_DOMAIN_BONUS = 8;// Score of a url whose domain has never been fetched
+	public static final int MAX_DEPTH = 10;// Each level of depth costs 1, up to MAX_DEPTH
+	public static final int BUCKET_COUNT = REFERRER_WEIGHT * MAX_REFERRERS + NEW_DOMAIN_BONUS + MAX_DEPTH + 1;
+
+	private final SubqueueStorage storage;
+	private final List<ObjectQueue<String>> buckets;// Bucket i holds the urls of score i
+	private final Map<String, Evidence> pending;// Pending url to its evidence, guarded by lock
+	private final Map<String, Integer> pendingPerDomain;// Number of pending urls of each domain, guarded by lock
+	private final Set<String> discoveredDomains;// Guarded by lock
+	private final Set<String> fetchedDomains;// Guarded by lock
+	private final ObjectQueue<String> discoveredDomainsLog;// Persists discoveredDomains
+	private final ObjectQueue<String> fetchedDomainsLog;// Persists fetchedDomains
+	private final Map<String, Integer> inFlightDepth;// Depth of the urls taken and not reported yet
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+
+	/**
+	 * The link evidence of a pending url
+	 */
+	private static final class Evidence {
+		int depth;
+		int referrers;// Number of distinct referring domains
+		Set<String> referringDomains;// Referring domains seen since the queue was opened, null if none
+		int bucket;// Bucket of the live copy of the url
+
+		Evidence(int depth, int referrers) {
+			this.depth = depth;
+			this.referrers = referrers;
+			this.referringDomains = null;
+			this.bucket = -1;
+		}
+	}
+
+	private BestFirstBlockingQueue(SubqueueStorage storage) throws IOException {
+		assert (storage != null);
+
+		this.storage = storage;
+		buckets = new ArrayList<>(BUCKET_COUNT);
+		pending = new HashMap<>();
+		pendingPerDomain = new HashMap<>();
+		discoveredDomains = new HashSet<>();
+		fetchedDomains = new HashSet<>();
+		inFlightDepth = new ConcurrentHashMap<>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+
+		for (int score = 0; score < BUCKET_COUNT; ++score) {
+			buckets.add(openQueue(storage, bucketName(score)));
+		}
+		discoveredDomainsLog = openQueue(storage, DISCOVERED_DOMAINS_NAME);
+		fetchedDomainsLog = openQueue(storage, FETCHED_DOMAINS_NAME);
+	}
+
+	/**
+	 * Creates a new best-first queue in the following folder IMPORTANT: all queue
+	 * files stored in this folder will be deleted
+	 *
+	 * @param folder
+	 * @param mode:  how the buckets are persisted
+	 * @return a new best-first queue
+	 */
+	public static BestFirstBlockingQueue create(String folder, SubqueueStorage.Mode mode) {
+		File dir = new File(folder);
+		dir.mkdirs();
+		for (File file : dir.listFiles()) {
+			if (!file.isDirectory() && (file.getPath().endsWith(TapeSubqueueStorage.QUEUE_FILE_SUFFIX)
+					|| file.getPath().endsWith(TapeSubqueueStorage.MAPPED_QUEUE_FILE_SUFFIX)
+					|| file.getPath().endsWith(SegmentedLogStorage.SEGMENT_FILE_SUFFIX)
+					|| file.getName().equals(TieredSubqueueStorage.JOURNAL_FILE_NAME))) {
+				file.delete();
+			}
+		}
+		try {
+			return new BestFirstBlockingQueue(SubqueueStorage.open(folder, mode, true));
+		} catch (IOException e) {
+			System.err.println("Could not create the best-first queue");
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates a new best-first queue in the default folder IMPORTANT: all queue
+	 * files stored in this folder will be deleted
+	 *
+	 * @return a new best-first queue
+	 */
+	public static BestFirstBlockingQueue create() {
+		return create(DEFAULT_FOLDER_NAME, SubqueueStorage.Mode.TAPE);
+	}
+
+	/**
+	 * Restores a best-first queue from the files left by a previous queue
+	 *
+	 * @param folder: the folder where the previous queue was persisted
+	 * @return the restored queue
+	 */
+	public static BestFirstBlockingQueue restore(String folder) {
+		try {
+			SubqueueStorage storage = SubqueueStorage.open(folder, SubqueueStorage.detect(folder), true);
+			BestFirstBlockingQueue queue = new BestFirstBlockingQueue(storage);
+			queue.rebuildIndex();
+			return queue;
+		} catch (IOException e) {
+			System.err.println("Could not restore the best-first queue");
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Restores a best-first queue from the default folder
+	 *
+	 * @return the restored queue
+	 */
+	public static BestFirstBlockingQueue restore() {
+		return restore(DEFAULT_FOLDER_NAME);
+	}
+
+	private static ObjectQueue<String> openQueue(SubqueueStorage storage, String name) throws IOException {
+		ObjectQueue<String> queue = storage.restoreQueue(name);
+		return queue != null ? queue : storage.createQueue(name);
+	}
+
+	private static String bucketName(int score) {
+		return BUCKET_NAME_PREFIX + String.format("%02d", score);
+	}
+
+	/**
+	 * Rebuilds the in-memory index from the persisted buckets, the highest copy of
+	 * a url is its live copy
+	 *
+	 * @throws IOException
+	 */
+	private void rebuildIndex() throws IOException {
+		discoveredDomains.addAll(discoveredDomainsLog.asList());
+		fetchedDomains.addAll(fetchedDomainsLog.asList());
+
+		for (int score = BUCKET_COUNT - 1; score >= 0; --score) {
+			for (String entry : buckets.get(score)) {
+				String[] fields = entry.split(" ", 3);
+				String url = fields[2];
+				if (pending.containsKey(url)) {
+					continue;// Stale copy
+				}
+				Evidence evidence = new Evidence(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+				evidence.bucket = score;
+				pending.put(url, evidence);
+				pendingPerDomain.merge(domainOf(url), 1, Integer::sum);
+			}
+		}
+	}
+
+	/**
+	 * Returns the score of a url given its link evidence
+	 *
+	 * @param depth:     number of links from the seeds
+	 * @param referrers: number of distinct domains linking to the url
+	 * @param newDomain: whether the domain of the url has never been fetched
+	 * @return a score between 0 and BUCKET_COUNT - 1
+	 */
+	public static int score(int depth, int referrers, boolean newDomain) {
+		return REFERRER_WEIGHT * Math.min(referrers, MAX_REFERRERS) + (newDomain ? NEW_DOMAIN_BONUS : 0)
+				+ MAX_DEPTH - Math.min(depth, MAX_DEPTH);
+	}
+
+	private String domainOf(String url) {
+		String domain = Fetcher.getDomain(url);
+		if (domain == null) {
+			return "undefined";// Will place all not found domains there
+		}
+		return domain;
+	}
+
+	/**
+	 * Returns the current score of a pending url. Assumes that the calling thread
+	 * has the lock
+	 */
+	private int score(String url, Evidence evidence) {
+		return score(evidence.depth, evidence.referrers, !fetchedDomains.contains(domainOf(url)));
+	}
+
+	/**
+	 * Appends the live copy of the url to the bucket of its current score.
+	 * Assumes that the calling thread has the lock
+	 */
+	private void enqueue(String url, Evidence evidence, int score) throws IOException {
+		buckets.get(score).add(evidence.depth + " " + evidence.referrers + " " + url);
+		evidence.bucket = score;
+	}
+
+	/**
+	 * Adds a url that is not pending yet. Assumes that the calling thread has the
+	 * lock
+	 *
+	 * @return true if the url has been added
+	 */
+	private boolean insert(String url, int depth, String referringDomain) throws IOException {
+		if (pending.containsKey(url)) {
+			return false;
+		}
+		String domain = domainOf(url);
+		boolean external = referringDomain != null && !referringDomain.equals(domain);
+		Evidence evidence = new Evidence(depth, external ? 1 : 0);
+		if (external) {
+			evidence.referringDomains = new HashSet<>();
+			evidence.referringDomains.add(referringDomain);
+		}
+		enqueue(url, evidence, score(url, evidence));
+		pending.put(url, evidence);
+		pendingPerDomain.merge(domain, 1, Integer::sum);
+		if (discoveredDomains.add(domain)) {
+			discoveredDomainsLog.add(domain);
+		}
+		return true;
+	}
+
+	/**
+	 * Counts a new referring domain of a pending url and moves the url to its new
+	 * bucket. Assumes that the calling thread has the lock
+	 */
+	private void addReferrer(String url, Evidence evidence, String referringDomain) throws IOException {
+		if (referringDomain.equals(domainOf(url)) || evidence.referrers >= MAX_REFERRERS) {
+			return;
+		}
+		if (evidence.referringDomains == null) {
+			evidence.referringDomains = new HashSet<>();
+		}
+		if (!evidence.referringDomains.add(referringDomain)) {
+			return;
+		}
+		evidence.referrers++;
+		int score = score(url, evidence);
+		if (score > evidence.bucket) {
+			enqueue(url, evidence, score);// The previous copy becomes stale
+		}
+	}
+
+	@Override
+	public boolean add(String url) {
+		if (url == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			boolean wasEmpty = pending.isEmpty();
+			boolean added = insert(url, 0, null);// Added without referrer: a seed
+			if (added && wasEmpty) {
+				notEmpty.signal();
+			}
+			return added;
+		} catch (IOException e) {
+			System.err.println("Could not add url" + url + "to the best-first queue");
+			e.printStackTrace();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(String url) {
+		return add(url);// There is no capacity restriction
+	}
+
+	@Override
+	public void put(String url) throws InterruptedException {
+		add(url);// There is no capacity restriction
+	}
+
+	@Override
+	public boolean offer(String url, long timeout, TimeUnit unit) throws InterruptedException {
+		return add(url);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends String> collection) {
+		if (collection == null) {
+			throw new NullPointerException();
+		}
+
+		boolean changed = false;
+		for (String url : collection) {
+			if (add(url)) {
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Scores the new urls from the depth of the referring page and counts the
+	 * referring domain of the links that are still pending
+	 */
+	@Override
+	public void addLinks(String referringURL, Collection<String> newURLs, Collection<String> links) {
+		Integer referringDepth = inFlightDepth.remove(referringURL);
+		int depth = referringDepth == null ? 1 : referringDepth + 1;
+		String referringDomain = domainOf(referringURL);
+
+		lock.lock();
+		try {
+			boolean wasEmpty = pending.isEmpty();
+			for (String link : links) {
+				Evidence evidence = pending.get(link);
+				if (evidence != null) {
+					addReferrer(link, evidence, referringDomain);
+				}
+			}
+			for (String url : newURLs) {
+				insert(url, depth, referringDomain);
+			}
+			if (wasEmpty && !pending.isEmpty()) {
+				notEmpty.signal();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not add the links of " + referringURL + " to the best-first queue");
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the new urls at the max depth and without referrer, so that they get
+	 * the lowest score of their domain. A near duplicate page is not counted as a
+	 * referring domain of the links that are still pending.
+	 */
+	@Override
+	public void addDuplicateLinks(String referringURL, Collection<String> newURLs, Collection<String> links) {
+		inFlightDepth.remove(referringURL);
+
+		lock.lock();
+		try {
+			boolean wasEmpty = pending.isEmpty();
+			for (String url : newURLs) {
+				insert(url, MAX_DEPTH, null);
+			}
+			if (wasEmpty && !pending.isEmpty()) {
+				notEmpty.signal();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not add the links of " + referringURL + " to the best-first queue");
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void reportFetch(String url, long latencyMillis, boolean success) {
+		if (!success) {
+			inFlightDepth.remove(url);// No links will be reported
+		}
+	}
+
+	/**
+	 * Returns the highest non-empty bucket whose head is the live copy of a url
+	 * with an up-to-date score, removing the stale copies and moving the urls
+	 * whose domain has been fetched in the meantime. Assumes that the calling
+	 * thread has the lock and that the queue is not empty
+	 *
+	 * @return the score of the bucket whose head is the best url
+	 */
+	private int bestBucket() throws IOException {
+		assert (!pending.isEmpty());
+		int score = BUCKET_COUNT - 1;
+		while (true) {
+			ObjectQueue<String> bucket = buckets.get(score);
+			if (bucket.isEmpty()) {
+				score--;
+				continue;
+			}
+
+			String url = bucket.peek().split(" ", 3)[2];
+			Evidence evidence = pending.get(url);
+			if (evidence == null || evidence.bucket != score) {
+				bucket.remove();// Stale copy
+				continue;
+			}
+
+			int currentScore = score(url, evidence);
+			if (currentScore < score) {// Its domain has been fetched since it was scored
+				bucket.remove();
+				enqueue(url, evidence, currentScore);
+				continue;
+			}
+			return score;
+		}
+	}
+
+	/**
+	 * Removes and returns a url with the highest score. Assumes that the calling
+	 * thread has the lock and that the queue is not empty
+	 *
+	 * @return the url with the highest score
+	 */
+	private String retrieveBest() {
+		try {
+			ObjectQueue<String> bucket = buckets.get(bestBucket());
+			String url = bucket.peek().split(" ", 3)[2];
+			bucket.remove();
+
+			Evidence evidence = pending.remove(url);
+			String domain = domainOf(url);
+			pendingPerDomain.computeIfPresent(domain, (key, count) -> count > 1 ? count - 1 : null);
+			if (fetchedDomains.add(domain)) {
+				fetchedDomainsLog.add(domain);
+			}
+			inFlightDepth.put(url, evidence.depth);
+			if (!pending.isEmpty()) {
+				notEmpty.signal();// Cascade the signal to another waiting consumer
+			}
+			return url;
+		} catch (IOException e) {
+			System.err.println("Could not peek or remove from a bucket");
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (pending.isEmpty()) {
+				notEmpty.await();
+			}
+			return retrieveBest();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long timeoutNanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (pending.isEmpty()) {
+				if (timeoutNanos <= 0) {
+					return null;
+				}
+				timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+			}
+			return retrieveBest();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String poll() {
+		lock.lock();
+		try {
+			return pending.isEmpty() ? null : retrieveBest();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String remove() {
+		String url = poll();
+		if (url == null) {
+			throw new NoSuchElementException();
+		}
+		return url;
+	}
+
+	/**
+	 * Returns the url with the highest score without removing it, the url that
+	 * the next take() returns unless the queue changes in between. Like take(), it
+	 * drops the stale copies it meets at the head of the buckets
+	 */
+	@Override
+	public String peek() {
+		lock.lock();
+		try {
+			if (pending.isEmpty()) {
+				return null;
+			}
+			return buckets.get(bestBucket()).peek().split(" ", 3)[2];
+		} catch (IOException e) {
+			System.err.println("Could not peek or remove from a bucket");
+			throw new IllegalStateException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String element() {
+		String url = peek();
+		if (url == null) {
+			throw new NoSuchElementException();
+		}
+		return url;
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;// There is no limit to capacity
+	}
+
+	@Override
+	public int domainsDiscovered() {
+		lock.lock();
+		try {
+			return discoveredDomains.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public double subqueueUtilization() {
+		lock.lock();
+		try {
+			if (discoveredDomains.isEmpty()) {
+				return 1;
+			}
+			return ((double) pendingPerDomain.size()) / discoveredDomains.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		lock.lock();
+		try {
+			return pending.containsKey(o);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Object[] toArray() {
+		lock.lock();
+		try {
+			return pending.keySet().toArray();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public <T> T[] toArray(T[] array) {
+		lock.lock();
+		try {
+			return pending.keySet().toArray(array);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> collection, int maxElements) {
+		if (collection == null) {
+			throw new NullPointerException();
+		}
+		if (collection == this) {
+			throw new IllegalArgumentException();
+		}
+
+		lock.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && !pending.isEmpty()) {
+				collection.add(retrieveBest());
+				drained++;
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			for (ObjectQueue<String> bucket : buckets) {
+				bucket.clear();
+			}
+			pending.clear();
+			pendingPerDomain.clear();
+		} catch (IOException e) {
+			System.err.println("Could not clear a bucket");
+			throw new IllegalStateException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			for (ObjectQueue<String> bucket : buckets) {
+				bucket.close();
+			}
+			discoveredDomainsLog.close();
+			fetchedDomainsLog.close();
+			storage.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -1,12 +1,12 @@
 package ch.epfl.dlab.torcrawler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
@@ -27,8 +27,14 @@ import com.squareup.tape2.QueueFile;
  * @author Antoine Masanet
  *
  *         FIFO thread safe concurrent persistent queue using square/tape
- *         persistent ObjectQueue
+ *         persistent ObjectQueue, or a MappedObjectQueue when created from a
+ *         MappedQueueFile
  * 
+ *         The fingerprints of the elements, computed on their serialized form,
+ *         are kept in a FingerprintIndex so that contains does not read the
+ *         queue file. The index is built from the file when the queue is
+ *         created.
+ *
  *         CAVEATS: - A queue with no capacity provided will
  *         still have a max capacity of Integer.MAX_VALUE
  *         -I/O exception are thrown as unchecked exception to satisfy the blocking queue specifications
@@ -38,19 +44,26 @@ import com.squareup.tape2.QueueFile;
 public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 
 	private final ObjectQueue<E> queue;
+	private final Converter<E> converter;// Serializes the elements to compute their fingerprint
+	private final FingerprintIndex index;// Guarded by the lock
 
 	private final int capacity;
 	private final Lock lock = new ReentrantLock();// Lock that won't fail if acquired multiple times by same thread
 	private final Condition notEmpty = lock.newCondition(); // Used to signal that the queue is not empty
 	private final Condition notFull = lock.newCondition(); // Used to signal that the queue is not full
 
-	private BlockingObjectQueue(ObjectQueue<E> queue, int capacity) {
+	private BlockingObjectQueue(ObjectQueue<E> queue, Converter<E> converter, int capacity) {
 		if (capacity < 0 || queue == null) {
 			throw new IllegalArgumentException();
 		}
 
 		this.queue = queue;
+		this.converter = converter;
 		this.capacity = capacity;
+		this.index = new FingerprintIndex();
+		for (E element : queue) {// The file may hold the elements of a previous queue
+			index.add(fingerprint(element));
+		}
 	}
 
 	/**
@@ -58,15 +71,15 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 	 * 
 	 * @param queue
 	 */
-	private BlockingObjectQueue(ObjectQueue<E> queue) {
-		this(queue, Integer.MAX_VALUE);
+	private BlockingObjectQueue(ObjectQueue<E> queue, Converter<E> converter) {
+		this(queue, converter, Integer.MAX_VALUE);
 	}
 
 	public static <T> BlockingObjectQueue<T> create(QueueFile queueFile, Converter<T> converter) {
 		if (converter == null || queueFile == null) {
 			throw new IllegalArgumentException();
 		}
-		return new BlockingObjectQueue<>(ObjectQueue.create(queueFile, converter));
+		return new BlockingObjectQueue<>(ObjectQueue.create(queueFile, converter), converter);
 	}
 
 	public static <T> BlockingObjectQueue<T> create(QueueFile queueFile, Converter<T> converter, int capacity) {
@@ -74,7 +87,70 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			throw new IllegalArgumentException();
 		}
 
-		return new BlockingObjectQueue<>(ObjectQueue.create(queueFile, converter), capacity);
+		return new BlockingObjectQueue<>(ObjectQueue.create(queueFile, converter), converter, capacity);
+	}
+
+	/**
+	 * Creates a queue stored in a memory-mapped file instead of a tape QueueFile
+	 * 
+	 * @param queueFile
+	 * @param converter
+	 * @return the queue
+	 */
+	public static <T> BlockingObjectQueue<T> create(MappedQueueFile queueFile, Converter<T> converter) {
+		if (converter == null || queueFile == null) {
+			throw new IllegalArgumentException();
+		}
+		return new BlockingObjectQueue<>(new MappedObjectQueue<>(queueFile, converter), converter);
+	}
+
+	public static <T> BlockingObjectQueue<T> create(MappedQueueFile queueFile, Converter<T> converter, int capacity) {
+		if (converter == null || queueFile == null) {
+			throw new IllegalArgumentException();
+		}
+		return new BlockingObjectQueue<>(new MappedObjectQueue<>(queueFile, converter), converter, capacity);
+	}
+
+	/**
+	 * Returns the fingerprint of the serialized element
+	 * 
+	 * @param element
+	 * @return the fingerprint of the element
+	 */
+	private long fingerprint(E element) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			converter.toStream(element, bytes);
+		} catch (IOException e) {
+			throw getSneakyThrowable(e);
+		}
+		return FingerprintIndex.fingerprint(bytes.toByteArray());
+	}
+
+	/**
+	 * Appends the element to the queue and to the index. Assumes that the calling
+	 * thread holds the lock
+	 * 
+	 * @param element
+	 * @throws IOException
+	 */
+	private void enqueue(E element) throws IOException {
+		queue.add(element);
+		index.add(fingerprint(element));
+	}
+
+	/**
+	 * Removes the head of the queue from the queue and from the index. Assumes
+	 * that the calling thread holds the lock and that the queue is not empty
+	 * 
+	 * @return the head of the queue
+	 * @throws IOException
+	 */
+	private E dequeue() throws IOException {
+		E element = queue.peek();
+		queue.remove();
+		index.remove(fingerprint(element));
+		return element;
 	}
 
 	/**
@@ -93,7 +169,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			if (isFull()) {
 				throw new IllegalStateException();
 			}
-			queue.add(element);
+			enqueue(element);
 			notEmpty.signal();// Signal a consumer thread to wake him up if it is sleeping
 			return true;
 		} catch (IOException e) {
@@ -111,7 +187,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			if (isFull()) {
 				return false;
 			}
-			queue.add(element);
+			enqueue(element);
 			notEmpty.signal();// Signal a consumer thread to wake him up if it is sleeping
 			return true;
 		} catch (IOException e) {
@@ -129,7 +205,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			while (isFull()) {
 				notFull.await();// Wait for a signal emitted by an adding function
 			}
-			queue.add(element);
+			enqueue(element);
 			notEmpty.signal();// Signal a consumer thread to wake him up if it is sleeping
 		} catch (IOException e) {
 			throw getSneakyThrowable(e);
@@ -145,10 +221,9 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			while (queue.isEmpty()) {
 				notEmpty.await();// Wait for a signal emitted by an adding function
 			}
-			E peek = queue.peek();
-			queue.remove();
+			E element = dequeue();
 			notFull.signal();
-			return peek;
+			return element;
 		} catch (IOException e) {
 			throw getSneakyThrowable(e);
 		} finally {
@@ -163,8 +238,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			if (queue.isEmpty()) {
 				throw new NoSuchElementException();
 			}
-			E element = queue.peek();
-			queue.remove();
+			E element = dequeue();
 			notFull.signal();// Signal a producer thread to wake him up if it is sleeping
 			return element;
 		} catch (IOException e) {
@@ -181,8 +255,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			if (queue.isEmpty()) {
 				return null;
 			}
-			E element = queue.peek();
-			queue.remove();
+			E element = dequeue();
 			notFull.signal();
 			return element;
 		} catch (IOException e) {
@@ -264,9 +337,39 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 		}
 	}
 
+	/**
+	 * Iterates over the elements of the file, an element removed through the
+	 * iterator is also removed from the index
+	 */
 	@Override
 	public Iterator<E> iterator() {
-		return queue.iterator();
+		Iterator<E> it = queue.iterator();
+		return new Iterator<E>() {
+			private E last;
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public E next() {
+				last = it.next();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				lock.lock();
+				try {
+					it.remove();
+					index.remove(fingerprint(last));
+					notFull.signal();
+				} finally {
+					lock.unlock();
+				}
+			}
+		};
 	}
 
 	@Override
@@ -274,6 +377,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 		lock.lock();
 		try {
 			queue.clear();
+			index.clear();
 		} catch (IOException e) {
 			throw getSneakyThrowable(e);
 		} finally {
@@ -338,8 +442,8 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 		try {
 			try {
 				E peek = queue.peek();
-				if(peek.equals(o)) {
-					queue.remove();
+				if(peek != null && peek.equals(o)) {
+					dequeue();
 					return true;
 				}
 			} catch (IOException e) {
@@ -351,16 +455,24 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 		return false;
 	}
 
+	/**
+	 * Looks the fingerprint of the element up in the index, in O(1)
+	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public boolean contains(Object o) {
+		if (o == null) {
+			return false;
+		}
+		long fingerprint;
+		try {
+			fingerprint = fingerprint((E) o);
+		} catch (ClassCastException e) {
+			return false;// Not an element of this queue
+		}
 		lock.lock();
 		try {
-			for (E entry : queue) {
-				if (Objects.deepEquals(entry, o)) {
-					return true;
-				}
-			}
-			return false;
+			return index.contains(fingerprint);
 		} finally {
 			lock.unlock();
 		}
@@ -405,13 +517,12 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			while (queue.isEmpty() && timeoutNanos > 0) {
 				timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
 			}
-			E peek = queue.peek();
-			if (peek == null) {
+			if (queue.isEmpty()) {
 				return null;
 			}
-			queue.remove();
+			E element = dequeue();
 			notFull.signal();
-			return peek;
+			return element;
 		} catch (IOException e) {
 			throw getSneakyThrowable(e);
 		} finally {
@@ -438,8 +549,10 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 			Iterator<E> it = queue.iterator();
 			int i = 0;
 			while (it.hasNext() && i < maxElements) {
-				collection.add(it.next());
+				E element = it.next();
+				collection.add(element);
 				it.remove();
+				index.remove(fingerprint(element));
 				i++;
 			}
 			notFull.signalAll();
@@ -457,7 +570,7 @@ public class BlockingObjectQueue<E> implements BlockingQueue<E>, Closeable {
 		lock.lock();
 		try {
 			for (E e : c) {
-				queue.add(e);
+				enqueue(e);
 			}
 			notEmpty.signalAll();// Signal all consumer thread to wake them up if they are waiting on this signal
 			return true;
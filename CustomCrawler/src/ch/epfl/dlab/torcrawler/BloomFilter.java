@@ -0,0 +1,288 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Probabilistic set of 64-bit fingerprints (see
+ *         FingerprintIndex.fingerprint): mightContain never misses a
+ *         fingerprint that has been added, and wrongly answers true for about
+ *         falsePositiveRate of the others, so that a caller can skip an exact
+ *         lookup for the fingerprints that are definitely new.
+ *
+ *         BLOCKED: the bits of a fingerprint all fall in one block of 512 bits
+ *         (a cache line), so that a lookup costs a single cache miss.
+ *
+ *         SCALABLE: the filter is sized from the expected number of
+ *         fingerprints. Once it holds that many, a new filter twice as large and
+ *         with half the false positive rate is chained after it, so that the
+ *         overall false positive rate stays below the target whatever the
+ *         number of fingerprints. The fingerprints are added to the last filter
+ *         and looked up in all of them.
+ *
+ *         The bits are set with compare-and-set, the filter is thread safe.
+ */
+public final class BloomFilter {
+
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	private static final int BLOCK_BITS = 512;// One cache line
+	private static final int BLOCK_WORDS = BLOCK_BITS / Long.SIZE;
+	private static final int BIT_SHIFT = Long.SIZE - 9;// Keeps the 9 bits that index a bit of a block
+	private static final int MAX_HASH_COUNT = 16;
+	private static final double BLOCKING_OVERHEAD = 1.2;// Blocks fill unevenly, they need more bits for the same rate
+	private static final int MAGIC = 0x424c4f4d;// "BLOM", marks a persisted filter
+
+	private final double falsePositiveRate;
+	private volatile Filter[] filters;// Replaced as a whole when the filter grows
+
+	/**
+	 * One filter of the chain
+	 */
+	private static final class Filter {
+		final long capacity;// Number of fingerprints it is sized for
+		final int hashCount;
+		final int blockCount;
+		final int seed;// Makes the filters of the chain use different bits
+		final AtomicLongArray words;
+		final AtomicLong count;// Number of fingerprints that set at least one bit
+
+		Filter(long capacity, double falsePositiveRate, int seed) {
+			double bits = BLOCKING_OVERHEAD * -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+			this.capacity = capacity;
+			this.blockCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCK_WORDS, Math.ceil(bits / BLOCK_BITS)));
+			this.hashCount = (int) Math.max(1,
+					Math.min(MAX_HASH_COUNT, Math.round(-Math.log(falsePositiveRate) / Math.log(2))));
+			this.seed = seed;
+			this.words = new AtomicLongArray(blockCount * BLOCK_WORDS);
+			this.count = new AtomicLong(0);
+		}
+
+		Filter(long capacity, int hashCount, int blockCount, int seed, long count) {
+			this.capacity = capacity;
+			this.hashCount = hashCount;
+			this.blockCount = blockCount;
+			this.seed = seed;
+			this.words = new AtomicLongArray(blockCount * BLOCK_WORDS);
+			this.count = new AtomicLong(count);
+		}
+
+		/**
+		 * Returns the index of the first word of the block of the hash
+		 */
+		int block(long hash) {
+			return (int) (((hash >>> 32) * blockCount) >>> 32) * BLOCK_WORDS;
+		}
+
+		long hash(long fingerprint) {
+			long hash = fingerprint + seed * 0x9e3779b97f4a7c15L;
+			hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+			hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+			return hash ^ (hash >>> 33);
+		}
+
+		/**
+		 * Derives the hash of the next bit, the bit is given by the high bits
+		 */
+		static long nextHash(long hash) {
+			return hash * 0x5851f42d4c957f2dL + 0x14057b7ef767814fL;
+		}
+
+		boolean mightContain(long fingerprint) {
+			long hash = hash(fingerprint);
+			int block = block(hash);
+			for (int i = 0; i < hashCount; ++i) {
+				hash = nextHash(hash);
+				int bit = (int) (hash >>> BIT_SHIFT);
+				if ((words.get(block + (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return whether a bit has been set
+		 */
+		boolean add(long fingerprint) {
+			long hash = hash(fingerprint);
+			int block = block(hash);
+			boolean changed = false;
+			for (int i = 0; i < hashCount; ++i) {
+				hash = nextHash(hash);
+				int bit = (int) (hash >>> BIT_SHIFT);
+				int word = block + (bit >>> 6);
+				long mask = 1L << bit;
+				long value = words.get(word);
+				while ((value & mask) == 0) {
+					if (words.compareAndSet(word, value, value | mask)) {
+						changed = true;
+						break;
+					}
+					value = words.get(word);
+				}
+			}
+			if (changed) {
+				count.incrementAndGet();
+			}
+			return changed;
+		}
+	}
+
+	/**
+	 * @param expectedFingerprints: the number of fingerprints the first filter
+	 *                              is sized for
+	 * @param falsePositiveRate:    the target rate of wrong positive answers
+	 */
+	public BloomFilter(long expectedFingerprints, double falsePositiveRate) {
+		if (expectedFingerprints < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException();
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		// The rates of the chained filters (1/2, 1/4, 1/8... of the target) sum to at most the target
+		this.filters = new Filter[] { new Filter(expectedFingerprints, falsePositiveRate / 2, 0) };
+	}
+
+	public BloomFilter(long expectedFingerprints) {
+		this(expectedFingerprints, DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	private BloomFilter(double falsePositiveRate, Filter[] filters) {
+		this.falsePositiveRate = falsePositiveRate;
+		this.filters = filters;
+	}
+
+	/**
+	 * Tells whether the fingerprint may have been added
+	 *
+	 * @param fingerprint
+	 * @return false if the fingerprint has definitely never been added
+	 */
+	public boolean mightContain(long fingerprint) {
+		for (Filter filter : filters) {
+			if (filter.mightContain(fingerprint)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the fingerprint, a new filter is chained if the last one is full
+	 *
+	 * @param fingerprint
+	 */
+	public void add(long fingerprint) {
+		Filter[] current = filters;
+		Filter last = current[current.length - 1];
+		if (last.add(fingerprint) && last.count.get() >= last.capacity) {
+			grow(current);
+		}
+	}
+
+	private synchronized void grow(Filter[] full) {
+		if (filters != full) {
+			return;// Grown by another thread
+		}
+		Filter last = full[full.length - 1];
+		double rate = falsePositiveRate / (2L << full.length);
+		Filter[] grown = Arrays.copyOf(full, full.length + 1);
+		grown[full.length] = new Filter(last.capacity * 2, rate, full.length);
+		filters = grown;
+	}
+
+	/**
+	 * Returns the number of fingerprints added, fingerprints taken for false
+	 * positives are not counted
+	 *
+	 * @return the approximate number of fingerprints in the filter
+	 */
+	public long count() {
+		long count = 0;
+		for (Filter filter : filters) {
+			count += filter.count.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the memory used by the bits of the filter
+	 *
+	 * @return the size of the filter in bytes
+	 */
+	public long sizeInBytes() {
+		long size = 0;
+		for (Filter filter : filters) {
+			size += (long) filter.words.length() * Long.BYTES;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the filter, in one sequential write. The bits set during the write
+	 * may or may not be written.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream output) throws IOException {
+		Filter[] current = filters;
+		output.writeInt(MAGIC);
+		output.writeDouble(falsePositiveRate);
+		output.writeInt(current.length);
+		for (Filter filter : current) {
+			output.writeLong(filter.capacity);
+			output.writeInt(filter.hashCount);
+			output.writeInt(filter.blockCount);
+			output.writeInt(filter.seed);
+			output.writeLong(filter.count.get());
+			for (int i = 0; i < filter.words.length(); ++i) {
+				output.writeLong(filter.words.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Reads a filter written by writeTo
+	 *
+	 * @param input
+	 * @return the filter read
+	 * @throws IOException if the input does not hold a filter
+	 */
+	public static BloomFilter readFrom(DataInputStream input) throws IOException {
+		if (input.readInt() != MAGIC) {
+			throw new IOException("Not a bloom filter");
+		}
+		double falsePositiveRate = input.readDouble();
+		Filter[] filters = new Filter[input.readInt()];
+		if (filters.length < 1) {
+			throw new IOException("Bloom filter without filter");
+		}
+		for (int i = 0; i < filters.length; ++i) {
+			long capacity = input.readLong();
+			int hashCount = input.readInt();
+			int blockCount = input.readInt();
+			int seed = input.readInt();
+			long count = input.readLong();
+			if (capacity < 1 || hashCount < 1 || hashCount > MAX_HASH_COUNT || blockCount < 1
+					|| blockCount > Integer.MAX_VALUE / BLOCK_WORDS) {
+				throw new IOException("Corrupted bloom filter");
+			}
+			filters[i] = new Filter(capacity, hashCount, blockCount, seed, count);
+			for (int j = 0; j < filters[i].words.length(); ++j) {
+				filters[i].words.set(j, input.readLong());
+			}
+		}
+		return new BloomFilter(falsePositiveRate, filters);
+	}
+
+	@Override
+	public String toString() {
+		return "BloomFilter{filters=" + filters.length + ", count=" + count() + ", sizeInBytes=" + sizeInBytes() + "}";
+	}
+}
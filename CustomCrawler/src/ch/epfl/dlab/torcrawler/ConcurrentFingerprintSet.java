@@ -0,0 +1,323 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Thread safe set of 64-bit fingerprints (see
+ *         FingerprintIndex.fingerprint), so that a set of urls costs about 16
+ *         bytes per url instead of a String and a hash map node.
+ *
+ *         The fingerprints are spread over 2^SEGMENT_BITS segments by their high
+ *         bits. A segment is an open addressing table of primitive longs with
+ *         linear probing. Fingerprints are never removed, so the probe sequence
+ *         of a fingerprint only ever grows: a fingerprint is inserted by
+ *         compare-and-set in the first free slot of its sequence, and two threads
+ *         inserting the same fingerprint race for the same slot.
+ *
+ *         LOCKING: the inserts of a segment share its StampedLock in read mode,
+ *         the segment is resized holding it exclusively once it is MAX_LOAD full.
+ *         The lookups do not lock, they validate an optimistic stamp and retry
+ *         if the segment was resized meanwhile.
+ *
+ *         CAVEATS: - two urls with the same fingerprint are confused - clear must
+ *         not run concurrently with the other operations
+ */
+public final class ConcurrentFingerprintSet {
+
+	public static final int SEGMENT_BITS = 6;// The set has 2^SEGMENT_BITS segments
+	private static final int INITIAL_SEGMENT_CAPACITY = 1 << 10;// Must be a power of 2, leaves room for the racing inserts
+	private static final double MAX_LOAD = 0.66;
+	private static final long EMPTY = 0;// Marks a free slot, FingerprintIndex.fingerprint never returns 0
+	private static final int MAGIC = 0x46505354;// "FPST", marks a persisted set
+
+	private final Segment[] segments;
+
+	private static final class Segment {
+		final StampedLock lock;
+		volatile AtomicLongArray table;// Replaced as a whole when the segment is resized
+		final AtomicInteger count;
+
+		Segment() {
+			lock = new StampedLock();
+			table = new AtomicLongArray(INITIAL_SEGMENT_CAPACITY);
+			count = new AtomicInteger(0);
+		}
+
+		boolean full(AtomicLongArray table) {
+			return count.get() >= MAX_LOAD * table.length();
+		}
+
+		/**
+		 * Doubles the table, unless another thread did it meanwhile
+		 */
+		void resize(AtomicLongArray full) {
+			long stamp = lock.writeLock();
+			try {
+				if (table != full) {
+					return;
+				}
+				AtomicLongArray resized = new AtomicLongArray(full.length() * 2);
+				for (int i = 0; i < full.length(); ++i) {
+					long fingerprint = full.get(i);
+					if (fingerprint != EMPTY) {
+						resized.set(free(resized, fingerprint), fingerprint);
+					}
+				}
+				table = resized;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * Returns the free slot of a fingerprint not in the table, the table must
+		 * not be full
+		 */
+		static int free(AtomicLongArray table, long fingerprint) {
+			int mask = table.length() - 1;
+			int slot = (int) fingerprint & mask;
+			while (table.get(slot) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		static boolean contains(AtomicLongArray table, long fingerprint) {
+			int mask = table.length() - 1;
+			int slot = (int) fingerprint & mask;
+			for (int probes = 0; probes <= mask; ++probes) {
+				long value = table.get(slot);
+				if (value == fingerprint) {
+					return true;
+				}
+				if (value == EMPTY) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+	}
+
+	public ConcurrentFingerprintSet() {
+		segments = new Segment[1 << SEGMENT_BITS];
+		for (int i = 0; i < segments.length; ++i) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private Segment segment(long fingerprint) {
+		return segments[(int) (fingerprint >>> (Long.SIZE - SEGMENT_BITS))];
+	}
+
+	/**
+	 * Tells whether the fingerprint is in the set, without locking
+	 *
+	 * @param fingerprint: a fingerprint returned by FingerprintIndex.fingerprint
+	 * @return whether the fingerprint has been added
+	 */
+	public boolean contains(long fingerprint) {
+		Segment segment = segment(fingerprint);
+		long stamp = segment.lock.tryOptimisticRead();
+		boolean contains = Segment.contains(segment.table, fingerprint);
+		if (segment.lock.validate(stamp)) {
+			return contains;
+		}
+		stamp = segment.lock.readLock();// Resized meanwhile
+		try {
+			return Segment.contains(segment.table, fingerprint);
+		} finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Adds the fingerprint, atomically: if several threads add the same
+	 * fingerprint, exactly one of them gets true
+	 *
+	 * @param fingerprint: a fingerprint returned by FingerprintIndex.fingerprint
+	 * @return true if the fingerprint was not in the set
+	 */
+	public boolean addIfAbsent(long fingerprint) {
+		return addIfAbsent(fingerprint, value -> false);
+	}
+
+	/**
+	 * Adds the fingerprint unless it is in the set or known elsewhere. The
+	 * predicate is tested once the fingerprint is known not to be in the set
+	 * and before it is inserted, so that the caller can look it up in another
+	 * tier: if several threads add the same fingerprint, at most one of them
+	 * gets true.
+	 *
+	 * @param fingerprint: a fingerprint returned by FingerprintIndex.fingerprint
+	 * @param elsewhere:   tells whether the fingerprint is known elsewhere
+	 * @return true if the fingerprint was added
+	 */
+	public boolean addIfAbsent(long fingerprint, LongPredicate elsewhere) {
+		if (fingerprint == EMPTY) {
+			throw new IllegalArgumentException("0 is not a fingerprint");
+		}
+		Segment segment = segment(fingerprint);
+		boolean tested = false;
+		while (true) {
+			AtomicLongArray table = segment.table;
+			if (segment.full(table)) {
+				segment.resize(table);
+				continue;
+			}
+			long stamp = segment.lock.readLock();
+			try {
+				table = segment.table;
+				int mask = table.length() - 1;
+				int slot = (int) fingerprint & mask;
+				for (int probes = 0; probes <= mask; ++probes) {
+					long value = table.get(slot);
+					if (value == fingerprint) {
+						return false;
+					}
+					if (value == EMPTY) {
+						if (!tested) {
+							if (elsewhere.test(fingerprint)) {
+								return false;
+							}
+							tested = true;
+						}
+						if (table.compareAndSet(slot, EMPTY, fingerprint)) {
+							segment.count.incrementAndGet();
+							return true;
+						}
+						continue;// Taken meanwhile, look at the slot again
+					}
+					slot = (slot + 1) & mask;
+				}
+			} finally {
+				segment.lock.unlockRead(stamp);
+			}
+			segment.resize(table);// Filled by the racing inserts
+		}
+	}
+
+	/**
+	 * Returns the number of fingerprints of the set
+	 *
+	 * @return the size of the set
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.count.get();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the memory used by the tables of the set
+	 *
+	 * @return the size of the tables in bytes
+	 */
+	public long sizeInBytes() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += (long) segment.table.length() * Long.BYTES;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the fingerprints of the set, in no particular order. The
+	 * fingerprints added concurrently may or may not be returned.
+	 *
+	 * @return an array of the fingerprints
+	 */
+	public long[] toArray() {
+		AtomicLongArray[] tables = new AtomicLongArray[segments.length];
+		int length = 0;
+		for (int i = 0; i < segments.length; ++i) {
+			long stamp = segments[i].lock.readLock();
+			try {
+				tables[i] = segments[i].table;
+				length += segments[i].count.get();
+			} finally {
+				segments[i].lock.unlockRead(stamp);
+			}
+		}
+		long[] array = new long[length];
+		int i = 0;
+		for (AtomicLongArray table : tables) {
+			for (int slot = 0; slot < table.length() && i < length; ++slot) {
+				long fingerprint = table.get(slot);
+				if (fingerprint != EMPTY) {
+					array[i++] = fingerprint;
+				}
+			}
+		}
+		return i == length ? array : Arrays.copyOf(array, i);
+	}
+
+	/**
+	 * Empties the set and shrinks its tables, must not run concurrently with the
+	 * other operations
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.table = new AtomicLongArray(INITIAL_SEGMENT_CAPACITY);
+			segment.count.set(0);
+		}
+	}
+
+	/**
+	 * Writes the fingerprints of the set, in one sequential write. The
+	 * fingerprints added during the write may or may not be written.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream output) throws IOException {
+		long[] fingerprints = toArray();
+		output.writeInt(MAGIC);
+		output.writeInt(fingerprints.length);
+		for (long fingerprint : fingerprints) {
+			output.writeLong(fingerprint);
+		}
+	}
+
+	/**
+	 * Reads a set written by writeTo
+	 *
+	 * @param input
+	 * @return the set read
+	 * @throws IOException if the input does not hold a set
+	 */
+	public static ConcurrentFingerprintSet readFrom(DataInputStream input) throws IOException {
+		if (input.readInt() != MAGIC) {
+			throw new IOException("Not a fingerprint set");
+		}
+		int length = input.readInt();
+		if (length < 0) {
+			throw new IOException("Corrupted fingerprint set");
+		}
+		ConcurrentFingerprintSet set = new ConcurrentFingerprintSet();
+		for (int i = 0; i < length; ++i) {
+			long fingerprint = input.readLong();
+			if (fingerprint == EMPTY) {
+				throw new IOException("Corrupted fingerprint set");
+			}
+			set.addIfAbsent(fingerprint);
+		}
+		return set;
+	}
+
+	@Override
+	public String toString() {
+		return "ConcurrentFingerprintSet{size=" + size() + ", sizeInBytes=" + sizeInBytes() + "}";
+	}
+}
@@ -0,0 +1,82 @@
+package ch.epfl.dlab.torcrawler;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Limits on what the crawl may spend on a domain: the number of urls
+ *         enqueued, the number of pages fetched and the number of bytes of
+ *         page content stored. Once one of them is reached, the new urls of the
+ *         domain are dropped by the frontier. The usage of each domain is
+ *         counted in its DomainStatistics.
+ *
+ *         Budgets are read from json, a missing limit is unlimited:
+ *         {"maxEnqueued": 10000, "maxFetched": 5000, "maxStoredBytes": 100000000}
+ */
+public final class CrawlBudget {
+
+	public static final String DEFAULT_DOMAIN = "*";// Key of the budget of the domains without their own budget
+	public static final long UNLIMITED = Long.MAX_VALUE;
+	public static final CrawlBudget NONE = new CrawlBudget();// No limit at all
+
+	// Not final so that they can be read from json
+	private long maxEnqueued;
+	private long maxFetched;
+	private long maxStoredBytes;
+
+	/**
+	 * Unlimited budget
+	 */
+	public CrawlBudget() {
+		this(UNLIMITED, UNLIMITED, UNLIMITED);
+	}
+
+	/**
+	 * @param maxEnqueued:    max number of urls enqueued for the domain
+	 * @param maxFetched:     max number of fetches of the domain
+	 * @param maxStoredBytes: max number of bytes of page content stored for the
+	 *                        domain
+	 */
+	public CrawlBudget(long maxEnqueued, long maxFetched, long maxStoredBytes) {
+		if (maxEnqueued < 0 || maxFetched < 0 || maxStoredBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxEnqueued = maxEnqueued;
+		this.maxFetched = maxFetched;
+		this.maxStoredBytes = maxStoredBytes;
+	}
+
+	/**
+	 * Returns how many urls of the domain may still be enqueued, 0 once the fetch
+	 * or storage budget of the domain is spent
+	 *
+	 * @param statistics: the usage of the domain, null if it has never been seen
+	 * @return the number of urls that may still be enqueued
+	 */
+	public long remainingEnqueues(DomainStatistics statistics) {
+		if (statistics == null) {
+			return maxFetched > 0 && maxStoredBytes > 0 ? maxEnqueued : 0;
+		}
+		if (statistics.getFetchCount() >= maxFetched || statistics.getStoredBytes() >= maxStoredBytes) {
+			return 0;
+		}
+		return Math.max(0, maxEnqueued - statistics.getEnqueuedCount());
+	}
+
+	public long getMaxEnqueued() {
+		return maxEnqueued;
+	}
+
+	public long getMaxFetched() {
+		return maxFetched;
+	}
+
+	public long getMaxStoredBytes() {
+		return maxStoredBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "CrawlBudget{maxEnqueued=" + maxEnqueued + ", maxFetched=" + maxFetched + ", maxStoredBytes="
+				+ maxStoredBytes + "}";
+	}
+}
@@ -8,7 +8,9 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.gson.annotations.Expose;
 
@@ -26,21 +28,26 @@ public final class CrawlerStatistics{
 	@Expose private AtomicInteger pagesCorrectlyFetched;
 	@Expose private AtomicInteger pagesFetchError;
 	@Expose private AtomicInteger validUrlsDiscovered;
-	private RoundRobinBlockingQueue queue;
+	@Expose private AtomicInteger nearDuplicatePages;
+	@Expose private AtomicLong nearDuplicateLinks;// New urls found on near duplicate pages
+	@Expose private AtomicLong nearDuplicateBytes;// Content of the near duplicate pages
+	private Frontier queue;
 	@Expose private AtomicInteger[] pagesCorrectlyFetchedPerThread;
 	@Expose private AtomicInteger[] pagesFetchErrorPerThread;
 	@Expose private int threadCount;
 	private long crawlStart;
 
 	private static CrawlerStatistics INSTANCE = null;
+	public static final int MAX_BUDGET_HITS_PRINTED = 10;// Number of domains listed in the status by budget hits
 
-	private CrawlerStatistics(RoundRobinBlockingQueue queue, int threadCount) {
+	private CrawlerStatistics(Frontier queue, int threadCount) {
 		
 		this.threadCount = threadCount;
 		crawlStart = System.currentTimeMillis();
 		pagesFetchError = new AtomicInteger(0);
 		validUrlsDiscovered = new AtomicInteger(0);
 		pagesCorrectlyFetched = new AtomicInteger(0);
+		initializeNearDuplicateCounters();
 		this.queue = queue;
 		pagesCorrectlyFetchedPerThread = new AtomicInteger[threadCount];
 		for (int i = 0; i < threadCount; ++i) {
@@ -59,7 +66,7 @@ public final class CrawlerStatistics{
 	 * @param threadCount
 	 * @return true if the initialization modified the singleton
 	 */
-	public synchronized static boolean initialize(RoundRobinBlockingQueue queue, int threadCount) {
+	public synchronized static boolean initialize(Frontier queue, int threadCount) {
 		if (queue == null || threadCount < 1) {
 			throw new IllegalArgumentException();
 		}
@@ -89,13 +96,29 @@ public final class CrawlerStatistics{
 	 * Set the crawler statistics queue
 	 * @param queue
 	 */
-	public synchronized void setQueue(RoundRobinBlockingQueue queue) { 
+	public synchronized void setQueue(Frontier queue) { 
 		if(queue==null) {
 			throw new IllegalArgumentException("The queue should not be null");
 		}
 		this.queue=queue;
 	}
 	
+	/**
+	 * Creates the near duplicate counters missing from a statistics file saved
+	 * before they existed
+	 */
+	private void initializeNearDuplicateCounters() {
+		if (nearDuplicatePages == null) {
+			nearDuplicatePages = new AtomicInteger(0);
+		}
+		if (nearDuplicateLinks == null) {
+			nearDuplicateLinks = new AtomicLong(0);
+		}
+		if (nearDuplicateBytes == null) {
+			nearDuplicateBytes = new AtomicLong(0);
+		}
+	}
+
 	/**
 	 * Sets the crawl start time to the current time
 	 */
@@ -111,7 +134,7 @@ public final class CrawlerStatistics{
 	 * @param filePath: the path of the recovery file
 	 * @return true if the singleton instance has been properly initialized from the file
 	 */
-	public synchronized static boolean restore(RoundRobinBlockingQueue queue) throws FileNotFoundException{
+	public synchronized static boolean restore(Frontier queue) throws FileNotFoundException{
 		return restore(queue,FileUtility.DATA_FOLDER, FileUtility.RECOVERY_FILE_NAME);
 	}
 	
@@ -123,7 +146,7 @@ public final class CrawlerStatistics{
 	 * @param filePath: the path of the recovery file
 	 * @return true if the singleton instance has been properly initialized from the file
 	 */
-	public synchronized static boolean restore(RoundRobinBlockingQueue queue, String directory,String fileName) throws FileNotFoundException{
+	public synchronized static boolean restore(Frontier queue, String directory,String fileName) throws FileNotFoundException{
 
 		if (queue == null ||directory==null || fileName == null) {
 			throw new IllegalArgumentException("Argument should not be null");
@@ -133,6 +156,7 @@ public final class CrawlerStatistics{
 		}
 		
 		INSTANCE = FileUtility.loadCrawlerStatistics(directory, fileName);
+		INSTANCE.initializeNearDuplicateCounters();
 		INSTANCE.resetCrawlTime();
 		INSTANCE.setQueue(queue);
 		
@@ -256,6 +280,58 @@ public final class CrawlerStatistics{
 		validUrlsDiscovered.incrementAndGet();
 	}
 
+	/**
+	 * Returns the number of fetched pages that nearly duplicate a page fetched
+	 * before
+	 * @return the number of near duplicate pages
+	 */
+	public int getNearDuplicatePages() {
+		return nearDuplicatePages.get();
+	}
+
+	/**
+	 * Counts a near duplicate page
+	 * @param bytes: the size of its content
+	 */
+	public void incrementNearDuplicatePages(long bytes) {
+		nearDuplicatePages.incrementAndGet();
+		nearDuplicateBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Returns the size of the content of the near duplicate pages, not stored
+	 * unless FetcherThread.STORE_NEAR_DUPLICATES
+	 * @return the bytes of near duplicate content
+	 */
+	public long getNearDuplicateBytes() {
+		return nearDuplicateBytes.get();
+	}
+
+	/**
+	 * Returns the number of new urls found on near duplicate pages, deprioritised
+	 * by the frontier
+	 * @return the number of links of near duplicate pages
+	 */
+	public long getNearDuplicateLinks() {
+		return nearDuplicateLinks.get();
+	}
+
+	/**
+	 * Adds the new urls found on a near duplicate page
+	 * @param count: the number of new urls of the page
+	 */
+	public void addNearDuplicateLinks(int count) {
+		nearDuplicateLinks.addAndGet(count);
+	}
+
+	/**
+	 * Adds the valid urls discovered on a page to the total, once per page
+	 * @param count: the number of new urls of the page
+	 */
+	public void addValidUrlsDiscovered(int count) {
+		validUrlsDiscovered.addAndGet(count);
+	}
+
 	/**
 	 * Returns in ms the time elapsed from the beginning of the crawl. This time is
 	 * recorded from the moment this class is instantiated.
@@ -274,6 +350,40 @@ public final class CrawlerStatistics{
 		return queue.subqueueUtilization();
 	}
 
+	/**
+	 * Return the fraction of the capacity of the queue in use, above 1 when urls
+	 * have been spilled
+	 * @return the pressure on the queue
+	 */
+	public double getFrontierPressure() {
+		return queue.pressure();
+	}
+
+	/**
+	 * Return the fraction of the persisted queue loaded so far after a restore
+	 * @return the restore progress of the queue
+	 */
+	public double getFrontierRestoreProgress() {
+		return queue.restoreProgress();
+	}
+
+	/**
+	 * Return the number of urls dropped by the crawl budget of each domain that
+	 * hit its budget
+	 * @return domain to number of urls dropped
+	 */
+	public Map<String, Long> getBudgetHits() {
+		return queue.budgetHits();
+	}
+
+	/**
+	 * Return the number of domains parked by their circuit breaker
+	 * @return the number of parked domains
+	 */
+	public int getParkedDomains() {
+		return queue.parkedCount();
+	}
+
 	/**
 	 * Return the total number of urls in the queue
 	 * @return the total number of urls in the queue
@@ -306,6 +416,32 @@ public final class CrawlerStatistics{
 		sb.append("Domain discovered: " + getDomainsDiscovered() + "\n");
 		sb.append("Valid urls discovered: " + validUrlsDiscovered.get() + "\n");
 		sb.append("Percentage of non empty subqueues: " + 100 * getSubqueueUtilization() + "%\n");
+		sb.append("Frontier pressure: " + 100 * getFrontierPressure() + "%\n");
+		sb.append("Frontier restored: " + 100 * getFrontierRestoreProgress() + "%\n");
+		Map<String, Long> budgetHits = getBudgetHits();
+		long droppedByBudgets = budgetHits.values().stream().mapToLong(Long::longValue).sum();
+		sb.append("Urls dropped by domain budgets: " + droppedByBudgets + " (" + budgetHits.size() + " domains)\n");
+		budgetHits.entrySet().stream()
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+				.limit(MAX_BUDGET_HITS_PRINTED)
+				.forEach(entry -> sb.append("  " + entry.getKey() + ": " + entry.getValue() + " urls dropped\n"));
+		sb.append("Domains parked by circuit breakers: " + getParkedDomains() + "\n");
+		int fetched = pagesCorrectlyFetched.get();
+		sb.append("Near duplicate pages: " + nearDuplicatePages.get() + " ("
+				+ (fetched == 0 ? 0 : 100.0 * nearDuplicatePages.get() / fetched) + "% of the pages fetched)\n");
+		sb.append("Urls of near duplicate pages deprioritised: " + nearDuplicateLinks.get() + "\n");
+		sb.append("Bytes of near duplicate content" + (FetcherThread.STORE_NEAR_DUPLICATES ? "" : " not stored")
+				+ ": " + nearDuplicateBytes.get() + "\n");
+		long canonicalized = URLCanonicalizer.canonicalizedCount();
+		long rewritten = URLCanonicalizer.rewrittenCount();
+		sb.append("Urls rewritten by canonicalization: " + rewritten + " ("
+				+ (canonicalized == 0 ? 0 : 100.0 * rewritten / canonicalized) + "% of the urls found)\n");
+		sb.append("Duplicate urls removed by canonicalization: " + URLCanonicalizer.duplicatesRemovedCount() + "\n");
+		URLCanonicalizer.rewriteCounts().forEach((rewrite, count) -> {
+			if (count > 0) {
+				sb.append("  " + rewrite + ": " + count + " urls\n");
+			}
+		});
 		for (int i = 0; i < pagesCorrectlyFetchedPerThread.length; ++i) {
 			sb.append("Thread " + i + " fetched:" + pagesCorrectlyFetchedPerThread[i].get() + " pages\n");
 		}
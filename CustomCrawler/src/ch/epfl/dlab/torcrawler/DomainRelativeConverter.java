@@ -0,0 +1,83 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.squareup.tape2.ObjectQueue.Converter;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Converter of the urls of a domain subqueue. Every url of a subqueue
+ *         shares the scheme and the host of the subqueue domain, so only the
+ *         part of the url that follows them (port, path, query...) is stored,
+ *         after a tag byte and a byte telling which prefix was removed. A url
+ *         that does not start with the prefix of the domain (or a url of a
+ *         queue that is not a domain subqueue, such as the current round) is
+ *         stored in full as UTF-8, exactly as StringConverter does.
+ *
+ *         Plain UTF-8 urls never start with the TAG control character, so the
+ *         queue files written by StringConverter stay readable and a running
+ *         crawl migrates as its subqueues are rewritten.
+ *
+ *         Encoded: [TAG][prefix][UTF-8 of the rest of the url], the storages
+ *         already frame each element with its length.
+ */
+public final class DomainRelativeConverter implements Converter<String> {
+
+	public static final byte TAG = 0x01;// Marks an encoded url, never the first byte of a plain url
+	private static final String[] PREFIXES = { "http://", "https://", "http://www.", "https://www." };
+
+	private final String[] domainPrefixes;// Scheme and host of each prefix code
+
+	/**
+	 * @param domain: the domain of the subqueue, as returned by Fetcher.getDomain
+	 */
+	public DomainRelativeConverter(String domain) {
+		assert (domain != null);
+		domainPrefixes = new String[PREFIXES.length];
+		for (int i = 0; i < PREFIXES.length; ++i) {
+			domainPrefixes[i] = PREFIXES[i] + domain;
+		}
+	}
+
+	@Override
+	public String from(byte[] bytes) throws IOException {
+		if (bytes.length < 2 || bytes[0] != TAG) {
+			return new String(bytes, StandardCharsets.UTF_8);// Plain url
+		}
+		int code = bytes[1];
+		if (code < 0 || code >= domainPrefixes.length) {
+			throw new IOException("Unknown url prefix code " + code);
+		}
+		return domainPrefixes[code] + new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void toStream(String url, OutputStream outputStream) throws IOException {
+		int code = prefixCode(url);
+		if (code < 0) {
+			outputStream.write(url.getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		outputStream.write(TAG);
+		outputStream.write(code);
+		outputStream.write(url.substring(domainPrefixes[code].length()).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns the code of the longest prefix of the domain the url starts with
+	 *
+	 * @param url
+	 * @return the prefix code or -1 if the url does not start with the domain
+	 */
+	private int prefixCode(String url) {
+		for (int i = domainPrefixes.length - 1; i >= 0; --i) {
+			if (url.startsWith(domainPrefixes[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,240 @@
+package ch.epfl.dlab.torcrawler;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Responsiveness of a domain as observed by the fetcher threads: an
+ *         exponentially weighted moving average of the fetch latency and of the
+ *         success rate, as well as the number of consecutive fetch failures.
+ *         It also counts what the crawl spent on the domain (urls enqueued,
+ *         bytes stored) and the urls dropped by its CrawlBudget.
+ *
+ *         CIRCUIT BREAKER: after a given number of consecutive failures the
+ *         breaker of the domain opens and the domain is parked until
+ *         parkedUntil, then a single probe url is handed out: the breaker
+ *         closes if the probe succeeds and opens again for twice as long if it
+ *         fails. parkedUntil is a wall clock time, so that the state outlives a
+ *         restart. Thread safe.
+ */
+public final class DomainStatistics {
+
+	public static final double SMOOTHING_FACTOR = 0.2;// Weight of the last fetch in the moving averages
+
+	private double latency;// Average fetch latency in ms
+	private double successRate;// Average fraction of successful fetches
+	private int fetchCount;
+	private int consecutiveFailures;
+	private long enqueuedCount;// Number of urls enqueued in the subqueue of the domain
+	private long storedBytes;// Bytes of page content stored for the domain
+	private long budgetHits;// Number of distinct urls dropped because the budget of the domain was spent
+	private int breakerTrips;// Number of times the breaker opened since the last success, 0 if closed
+	private long parkedUntil;// System.currentTimeMillis() until which the domain is parked, 0 if never parked
+	private boolean probing;// Whether a probe url has been handed out since the breaker last opened
+
+	public DomainStatistics() {
+		latency = 0;
+		successRate = 1;
+		fetchCount = 0;
+		consecutiveFailures = 0;
+		enqueuedCount = 0;
+		storedBytes = 0;
+		budgetHits = 0;
+		breakerTrips = 0;
+		parkedUntil = 0;
+		probing = false;
+	}
+
+	/**
+	 * Returns a copy of these statistics, consistent even if fetches are being
+	 * recorded
+	 *
+	 * @return a copy of the statistics
+	 */
+	public synchronized DomainStatistics copy() {
+		DomainStatistics copy = new DomainStatistics();
+		copy.latency = latency;
+		copy.successRate = successRate;
+		copy.fetchCount = fetchCount;
+		copy.consecutiveFailures = consecutiveFailures;
+		copy.enqueuedCount = enqueuedCount;
+		copy.storedBytes = storedBytes;
+		copy.budgetHits = budgetHits;
+		copy.breakerTrips = breakerTrips;
+		copy.parkedUntil = parkedUntil;
+		copy.probing = probing;
+		return copy;
+	}
+
+	/**
+	 * Updates the statistics with the outcome of a fetch
+	 *
+	 * @param latencyMillis: the time the fetch took in ms
+	 * @param success:       whether the page could be fetched
+	 */
+	public synchronized void recordFetch(long latencyMillis, boolean success) {
+		if (fetchCount == 0) {
+			latency = latencyMillis;
+			successRate = success ? 1 : 0;
+		} else {
+			latency = SMOOTHING_FACTOR * latencyMillis + (1 - SMOOTHING_FACTOR) * latency;
+			successRate = SMOOTHING_FACTOR * (success ? 1 : 0) + (1 - SMOOTHING_FACTOR) * successRate;
+		}
+		fetchCount++;
+		consecutiveFailures = success ? 0 : consecutiveFailures + 1;
+	}
+
+	/**
+	 * Counts urls enqueued in the subqueue of the domain
+	 *
+	 * @param count: the number of urls enqueued
+	 */
+	public synchronized void recordEnqueued(long count) {
+		enqueuedCount += count;
+	}
+
+	/**
+	 * Counts the bytes of a page of the domain that has been stored
+	 *
+	 * @param bytes
+	 */
+	public synchronized void recordStored(long bytes) {
+		storedBytes += bytes;
+	}
+
+	/**
+	 * Counts urls dropped because the budget of the domain was spent
+	 *
+	 * @param count: the number of urls dropped
+	 */
+	public synchronized void recordBudgetHits(long count) {
+		budgetHits += count;
+	}
+
+	/**
+	 * Opens the breaker if the domain failed threshold times in a row while it
+	 * was closed, or if a probe url failed while it was open. The domain is
+	 * parked for baseBackoff ms, doubled each time the breaker opens again
+	 * without a success in between. The failures of the urls handed out before
+	 * the breaker opened do not reopen it.
+	 *
+	 * @param threshold:   the number of consecutive failures that opens a closed
+	 *                     breaker
+	 * @param now:         System.currentTimeMillis()
+	 * @param baseBackoff: the time in ms the domain is parked the first time
+	 * @param maxBackoff:  the max time in ms the domain is parked
+	 * @return whether the breaker has been opened
+	 */
+	public synchronized boolean tripBreaker(int threshold, long now, long baseBackoff, long maxBackoff) {
+		if (breakerTrips == 0 ? consecutiveFailures < threshold : !probing) {
+			return false;
+		}
+		long backoff = Math.min(baseBackoff, maxBackoff);
+		for (int i = 0; i < breakerTrips && backoff < maxBackoff; ++i) {
+			backoff = Math.min(maxBackoff, 2 * backoff);
+		}
+		breakerTrips++;
+		probing = false;
+		parkedUntil = now + backoff;
+		return true;
+	}
+
+	/**
+	 * Closes the breaker after a successful fetch
+	 *
+	 * @return whether the breaker was open
+	 */
+	public synchronized boolean closeBreaker() {
+		if (breakerTrips == 0) {
+			return false;
+		}
+		breakerTrips = 0;
+		parkedUntil = 0;
+		probing = false;
+		return true;
+	}
+
+	/**
+	 * Records that a probe url has been handed out, the domain is parked until
+	 * the outcome of the probe is reported or until the timeout
+	 *
+	 * @param until: System.currentTimeMillis() after which the domain is probed
+	 *               again if the outcome has not been reported
+	 */
+	public synchronized void startProbe(long until) {
+		probing = true;
+		parkedUntil = until;
+	}
+
+	/**
+	 * Returns whether the breaker of the domain is open or half open
+	 *
+	 * @return whether the breaker is not closed
+	 */
+	public synchronized boolean isBreakerOpen() {
+		return breakerTrips > 0;
+	}
+
+	/**
+	 * Returns until when the domain is parked, the domain may be probed once this
+	 * time has passed if its breaker is still open
+	 *
+	 * @return System.currentTimeMillis() until which the domain is parked, 0 if
+	 *         its breaker is closed
+	 */
+	public synchronized long getParkedUntil() {
+		return breakerTrips > 0 ? parkedUntil : 0;
+	}
+
+	public synchronized int getBreakerTrips() {
+		return breakerTrips;
+	}
+
+	/**
+	 * Returns the average fetch latency in ms, 0 if no fetch has been recorded
+	 *
+	 * @return the average fetch latency
+	 */
+	public synchronized double getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns the average fraction of successful fetches, 1 if no fetch has been
+	 * recorded
+	 *
+	 * @return the success rate
+	 */
+	public synchronized double getSuccessRate() {
+		return successRate;
+	}
+
+	/**
+	 * Returns the number of fetches recorded
+	 *
+	 * @return the number of fetches
+	 */
+	public synchronized int getFetchCount() {
+		return fetchCount;
+	}
+
+	/**
+	 * Returns the number of fetch failures since the last successful fetch
+	 *
+	 * @return the number of consecutive failures
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	public synchronized long getEnqueuedCount() {
+		return enqueuedCount;
+	}
+
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	public synchronized long getBudgetHits() {
+		return budgetHits;
+	}
+}
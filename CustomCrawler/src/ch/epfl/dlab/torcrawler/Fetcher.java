@@ -16,7 +16,6 @@ import org.jsoup.Connection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 /**
  * Static class that provides utility functions to connect to websites and fetch
@@ -56,18 +55,12 @@ public final class Fetcher {
 		}
 
 		if (doc != null) {
-			Set<String> links = new HashSet<>();
 			String title = doc.title();
 			String content = "";
 			if(doc.body()!=null) {
 				content = doc.body().text();
 			}
-			Elements elements = doc.select("a[href]");
-
-			for (Element element : elements) {
-				links.add(normalizeURL(element.absUrl("href")));
-			}
-
+			Set<String> links = extractLinks(doc);
 			pageContent = new PageContent(url, title, content, links);
 		}
 
@@ -97,25 +90,25 @@ public final class Fetcher {
 		 	Set<String> links=null;
 		 	
 			if(doc!=null) {
-				Elements elements = doc.select("a[href]");
-				links = new HashSet<>();
-
-				for (Element element : elements) {
-					links.add(normalizeURL(element.absUrl("href")));
-				}
+				links = extractLinks(doc);
 			}
 			
 		return links;
 	}
 
 	/**
-	 * Removes extra border space of the url and replace intra space with corresponding character (%20)
-	 * @param url: the url to normalize
-	 * @return the normalized url
+	 * Returns the links of the document rewritten to their canonical form before they are filtered and deduplicated,
+	 * each distinct spelling is canonicalized once
+	 * @param doc: the document
+	 * @return the set of canonical links of the document
+	 * @see URLCanonicalizer
 	 */
-	private static String normalizeURL(String url) {
-
-		return url.trim().replaceAll("\\s", "%20");// Remove extra white space+ replace space with %20
+	private static Set<String> extractLinks(Document doc) {
+		Set<String> spellings = new HashSet<>();
+		for (Element element : doc.select("a[href]")) {
+			spellings.add(element.absUrl("href"));
+		}
+		return URLCanonicalizer.canonicalizeAll(spellings);
 	}
 
 	/**
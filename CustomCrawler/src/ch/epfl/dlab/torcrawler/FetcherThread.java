@@ -1,9 +1,11 @@
 package ch.epfl.dlab.torcrawler;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.stream.Collectors;
 
 /**
@@ -12,32 +14,43 @@ import java.util.stream.Collectors;
  *         This class represents a Thread that fetches pages on the web by
  *         pulling the url from a queue shared amongst all threads and storing
  *         the content of this page in a compressed file. Each thread writes to
- *         its own file.
+ *         its own file. The urls are taken by batches of urls of distinct
+ *         domains and buffered locally, so that the threads contend less for
+ *         the queue lock. The pages that nearly duplicate a page fetched before
+ *         are flagged, their links are deprioritised and their content is not
+ *         stored unless STORE_NEAR_DUPLICATES. CAVEAT: the buffered urls are
+ *         lost if the crawler crashes.
  *
  */
 public class FetcherThread extends Thread {
 
 	public final static String DATA_FOLDER = "data/pages";
 	public final static String FETCH_ERROR_FOLDER = "data/urlFetchError";
+	public final static int TAKE_BATCH_SIZE = 4;// Max number of urls taken from the queue at once
+	public final static boolean STORE_NEAR_DUPLICATES = false;// Whether the content of the near duplicate pages is stored, their url, title and links are always stored
 
-	private BlockingQueue<String> urlsToFetch;// Concurrent Blocking Queue shared amongst all threads
-	private Set<String> processedURLs;// Concurrent Set shared amongst all threads containing all URL that are in or
-										// have been pushed to the queue
+	private Frontier urlsToFetch;// Concurrent Blocking Queue shared amongst all threads
+	private LinkEnqueuer linkEnqueuer;// Records the new links in the store shared amongst all threads and enqueues them
+	private NearDuplicateIndex nearDuplicates;// Index shared amongst all threads of the content of the pages fetched
 	private Map<String,Map<String,String>> cookies;//Map of domain name to cookies
+	private Queue<String> takenURLs;// Urls taken from the queue and not fetched yet
 	
 	CompressedFileWriter pageWriter;
 	CompressedFileWriter urlFetchErrorWriter;
 
 	public final int id;
 
-	public FetcherThread(int id, BlockingQueue<String> urlToFetch, Set<String> processedURLs, Map<String,Map<String,String>> cookies) {
+	public FetcherThread(int id, Frontier urlToFetch, SeenURLStore processedURLs, NearDuplicateIndex nearDuplicates,
+			Map<String,Map<String,String>> cookies) {
 
 		assert (urlToFetch != null);
 		assert (processedURLs != null);
 		this.id = id;
 		this.urlsToFetch = urlToFetch;
-		this.processedURLs = processedURLs;
+		this.linkEnqueuer = new LinkEnqueuer(processedURLs, urlToFetch);
+		this.nearDuplicates = nearDuplicates;
 		this.cookies=cookies;
+		this.takenURLs = new ArrayDeque<>(TAKE_BATCH_SIZE);
 		try {
 			pageWriter = new CompressedFileWriter(DATA_FOLDER);
 		} catch (IOException e) {
@@ -65,8 +78,13 @@ public class FetcherThread extends Thread {
 				String urlToFetch = null;
 				PageContent page = null;
 				try {
-					urlToFetch = urlsToFetch.take();
+					if (takenURLs.isEmpty()) {
+						takenURLs.addAll(urlsToFetch.takeBatch(TAKE_BATCH_SIZE));
+					}
+					urlToFetch = takenURLs.poll();
+					long fetchStart = System.currentTimeMillis();
 					page = Fetcher.fetchPage(urlToFetch,cookies);
+					urlsToFetch.reportFetch(urlToFetch, System.currentTimeMillis() - fetchStart, page != null);
 				} catch (InterruptedException e1) {
 					System.out.println("Interrupt when taking url from queue");
 					e1.printStackTrace();
@@ -91,10 +109,20 @@ public class FetcherThread extends Thread {
 					System.out.println("Thread " + id + " fetched " + urls.size() + " urls");
 					System.out.println("Queue size is " + urlsToFetch.size() + " urls");
 	
-					enqueueURLs(urls);
+					int contentBytes = page.content.getBytes(StandardCharsets.UTF_8).length;
+					boolean nearDuplicate = nearDuplicates.checkAndAdd(page.content);
+					if (nearDuplicate) {
+						CrawlerStatistics.getInstance().incrementNearDuplicatePages(contentBytes);
+						if (!STORE_NEAR_DUPLICATES) {
+							page = new PageContent(page.pageUrl, page.title, "", page.linkURLs);
+							contentBytes = 0;
+						}
+					}
+					linkEnqueuer.enqueue(urlToFetch, urls, nearDuplicate);
 	
 					try {
 						pageWriter.save(page);
+						urlsToFetch.reportStored(urlToFetch, contentBytes);
 					} catch (IOException e) {
 						System.err.println("Fetcher Thread :" + id + "could not save page in file");
 						e.printStackTrace();
@@ -107,25 +135,4 @@ public class FetcherThread extends Thread {
 			 return;
 		}
 	}
-
-	/**
-	 * Add each new url to the fetch queue
-	 * 
-	 * @param urls: a set of url to add to the queue
-	 */
-	private void enqueueURLs(Set<String> urls) {
-		
-		urls.forEach(url -> {
-			try {
-				if (!processedURLs.contains(url)) {
-					urlsToFetch.put(url);
-					processedURLs.add(url);
-					CrawlerStatistics.getInstance().incrementValidUrlsDiscovered();
-				}
-			} catch (InterruptedException e) {
-				System.err.println("Error while putting url in the urlToFetch queue");
-				e.printStackTrace();
-			}
-		});
-	}
 }
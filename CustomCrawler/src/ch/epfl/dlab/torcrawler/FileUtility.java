@@ -19,6 +19,7 @@ import java.util.Map;
 import java.util.Set;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 
@@ -34,6 +35,9 @@ public final class FileUtility {
 	public final static String RESOURCES_FOLDER = "src/resources";
 	public final static String SEEDS_FILE = "seeds.json";
 	public final static String COOKIES_FILE = "cookies.json";
+	public final static String BUDGETS_FILE = "budgets.json";
+	public final static String CANONICALIZATION_FILE = "canonicalization.json";
+	public final static String FRONTIER_FILE = "frontier.json";
 	
 	
 	private FileUtility() {}
@@ -57,15 +61,6 @@ public final class FileUtility {
 		return loadSet(DATA_FOLDER, DISCOVERED_URLS_FILE_NAME); 
 	}
 	
-	/**
-	 * Stores in the discovered url file this set of urls (will overwrite the file if it exists)
-	 * @param discoveredUrls : the set of urls to store
-	 * @throws IOException
-	 */
-	public static void saveDiscoveredURLs(Set<String> discoveredUrls) throws IOException{
-		saveSet(DATA_FOLDER, DISCOVERED_URLS_FILE_NAME, discoveredUrls);
-	}
-	
 	/**
 	 * Returns the map of cookies stored in the cookies file.
 	 * @throws FileNotFoundException if the file cannot be found
@@ -75,6 +70,72 @@ public final class FileUtility {
 		return loadMap(RESOURCES_FOLDER, COOKIES_FILE);
 	}
 	
+	/**
+	 * Returns the crawl budgets stored in the budgets file, the budget of the key
+	 * CrawlBudget.DEFAULT_DOMAIN applies to the domains without their own budget
+	 * @return the map of domain to budget, empty if there is no budgets file or it
+	 *         cannot be parsed
+	 */
+	public static Map<String,CrawlBudget> fetchBudgets() {
+		File file = new File(RESOURCES_FOLDER, BUDGETS_FILE);
+		if (!file.exists()) {
+			return Collections.emptyMap();
+		}
+		Type type = new TypeToken<Map<String, CrawlBudget>>() {}.getType();
+		try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			Map<String, CrawlBudget> budgets = new Gson().fromJson(reader, type);
+			return budgets != null ? budgets : Collections.emptyMap();
+		} catch (IOException | JsonParseException e) {
+			System.err.println("Could not read the budgets file " + file.getPath() + ", the domains have no budget");
+			e.printStackTrace();
+			return Collections.emptyMap();
+		}
+	}
+	
+	/**
+	 * Returns the query parameters stripped by the url canonicalizer stored in the
+	 * canonicalization file, the parameters of the key URLCanonicalizer.DEFAULT_DOMAIN
+	 * are stripped from every domain
+	 * @return the map of domain to parameter names, empty if there is no canonicalization file
+	 *         or it cannot be parsed
+	 */
+	public static Map<String,List<String>> fetchStrippedParameters() {
+		File file = new File(RESOURCES_FOLDER, CANONICALIZATION_FILE);
+		if (!file.exists()) {
+			return Collections.emptyMap();
+		}
+		Type type = new TypeToken<Map<String, List<String>>>() {}.getType();
+		try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			Map<String, List<String>> parameters = new Gson().fromJson(reader, type);
+			return parameters != null ? parameters : Collections.emptyMap();
+		} catch (IOException | JsonParseException e) {
+			System.err.println("Could not read the canonicalization file " + file.getPath()
+					+ ", only the session parameters are stripped");
+			e.printStackTrace();
+			return Collections.emptyMap();
+		}
+	}
+	
+	/**
+	 * Returns the launch options of the frontier stored in the frontier file
+	 * @return the options of the frontier, the default options if there is no frontier file
+	 *         or it cannot be parsed
+	 */
+	public static FrontierConfig fetchFrontierConfig() {
+		File file = new File(RESOURCES_FOLDER, FRONTIER_FILE);
+		if (!file.exists()) {
+			return new FrontierConfig();
+		}
+		try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			FrontierConfig config = new Gson().fromJson(reader, FrontierConfig.class);
+			return config != null ? config : new FrontierConfig();
+		} catch (IOException | JsonParseException e) {
+			System.err.println("Could not read the frontier file " + file.getPath() + ", the frontier uses its default options");
+			e.printStackTrace();
+			return new FrontierConfig();
+		}
+	}
+	
 	/**
 	 * Saves the map of cookies to the cookie file
 	 * @param cookies: the map of cookies to save
@@ -0,0 +1,220 @@
+package ch.epfl.dlab.torcrawler;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Counting set of 64-bit fingerprints kept beside a persistent queue,
+ *         so that the queue can tell whether it holds an element without
+ *         reading its file. A fingerprint is counted as many times as it has
+ *         been added, as a queue may hold the same element several times.
+ *
+ *         The fingerprints are stored in an open addressing table of primitive
+ *         longs with linear probing, removals shift the following entries back
+ *         so that no tombstone is left.
+ *
+ *         CAVEATS: - two elements with the same fingerprint are confused, with
+ *         64-bit fingerprints the probability is negligible for the size of a
+ *         crawl - not thread safe, guarded by the lock of its queue
+ */
+public final class FingerprintIndex {
+
+	private static final int INITIAL_CAPACITY = 16;// Must be a power of 2
+	private static final double MAX_LOAD = 0.66;
+	private static final long EMPTY = 0;// Marks a free slot, the fingerprint 0 is stored as 1
+
+	private long[] fingerprints;
+	private int[] counts;
+	private int distinctCount;// Number of used slots
+	private int size;// Number of elements, counting duplicates
+
+	public FingerprintIndex() {
+		fingerprints = new long[INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+		distinctCount = 0;
+		size = 0;
+	}
+
+	/**
+	 * Builds the index of the elements of a queue
+	 *
+	 * @param urls: the elements of the queue
+	 * @return the index of the elements
+	 */
+	public static FingerprintIndex of(Iterable<String> urls) {
+		FingerprintIndex index = new FingerprintIndex();
+		for (String url : urls) {
+			index.add(url);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the 64-bit fingerprint of a string: FNV-1a over its chars followed
+	 * by the murmur3 finalizer, without allocating
+	 *
+	 * @param string
+	 * @return the fingerprint of the string
+	 */
+	public static long fingerprint(String string) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < string.length(); ++i) {
+			hash ^= string.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Returns the 64-bit fingerprint of a serialized element
+	 *
+	 * @param bytes
+	 * @return the fingerprint of the bytes
+	 */
+	public static long fingerprint(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == EMPTY ? 1 : hash;
+	}
+
+	public void add(String url) {
+		add(fingerprint(url));
+	}
+
+	public void remove(String url) {
+		remove(fingerprint(url));
+	}
+
+	public boolean contains(String url) {
+		return contains(fingerprint(url));
+	}
+
+	/**
+	 * Counts the fingerprint once more
+	 *
+	 * @param fingerprint: a fingerprint returned by fingerprint()
+	 */
+	public void add(long fingerprint) {
+		int slot = slot(fingerprint);
+		if (fingerprints[slot] == EMPTY) {
+			fingerprints[slot] = fingerprint;
+			distinctCount++;
+		}
+		counts[slot]++;
+		size++;
+		if (distinctCount > MAX_LOAD * fingerprints.length) {
+			resize(fingerprints.length * 2);
+		}
+	}
+
+	/**
+	 * Counts the fingerprint once less, nothing happens if it is not in the index
+	 *
+	 * @param fingerprint: a fingerprint returned by fingerprint()
+	 */
+	public void remove(long fingerprint) {
+		int slot = slot(fingerprint);
+		if (fingerprints[slot] == EMPTY) {
+			return;
+		}
+		size--;
+		if (--counts[slot] > 0) {
+			return;
+		}
+		distinctCount--;
+
+		// Shift back the entries of the probe sequence so that no lookup stops at the freed slot
+		int mask = fingerprints.length - 1;
+		int free = slot;
+		int next = (free + 1) & mask;
+		while (fingerprints[next] != EMPTY) {
+			int home = home(fingerprints[next]);
+			if (((next - home) & mask) >= ((next - free) & mask)) {// The entry may move back to the free slot
+				fingerprints[free] = fingerprints[next];
+				counts[free] = counts[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		fingerprints[free] = EMPTY;
+		counts[free] = 0;
+	}
+
+	public boolean contains(long fingerprint) {
+		return fingerprints[slot(fingerprint)] != EMPTY;
+	}
+
+	/**
+	 * Returns the number of elements of the index, counting duplicates
+	 *
+	 * @return the size of the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the distinct fingerprints of the index, in no particular order
+	 *
+	 * @return an array of the fingerprints
+	 */
+	public long[] toArray() {
+		long[] array = new long[distinctCount];
+		int i = 0;
+		for (long fingerprint : fingerprints) {
+			if (fingerprint != EMPTY) {
+				array[i++] = fingerprint;
+			}
+		}
+		return array;
+	}
+
+	public void clear() {
+		fingerprints = new long[INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+		distinctCount = 0;
+		size = 0;
+	}
+
+	private int home(long fingerprint) {
+		return (int) fingerprint & (fingerprints.length - 1);
+	}
+
+	/**
+	 * Returns the slot holding the fingerprint or the free slot where it would be
+	 * inserted
+	 */
+	private int slot(long fingerprint) {
+		int mask = fingerprints.length - 1;
+		int slot = home(fingerprint);
+		while (fingerprints[slot] != EMPTY && fingerprints[slot] != fingerprint) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void resize(int capacity) {
+		long[] oldFingerprints = fingerprints;
+		int[] oldCounts = counts;
+		fingerprints = new long[capacity];
+		counts = new int[capacity];
+		for (int i = 0; i < oldFingerprints.length; ++i) {
+			if (oldFingerprints[i] != EMPTY) {
+				int slot = slot(oldFingerprints[i]);
+				fingerprints[slot] = oldFingerprints[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+}
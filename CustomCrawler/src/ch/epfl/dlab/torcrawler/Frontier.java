@@ -0,0 +1,247 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Persistent blocking queue of the urls to fetch, shared by all the
+ *         fetcher threads. The implementations differ in the order in which
+ *         they hand out the urls.
+ */
+public interface Frontier extends BlockingQueue<String>, Closeable {
+
+	/**
+	 * The available frontiers, selectable at launch
+	 */
+	enum Mode {
+		ROUND_ROBIN, // RoundRobinBlockingQueue: one url per domain and per round
+		WEIGHTED_ROUND_ROBIN, // RoundRobinBlockingQueue: more urls per round for the responsive domains
+		POLITENESS, // PolitenessBlockingQueue: per domain minimal delay between two fetches
+		BEST_FIRST // BestFirstBlockingQueue: highest link evidence score first
+	}
+
+	/**
+	 * Creates a new frontier of the given mode in its default folder, with the
+	 * default options. IMPORTANT: the queue previously stored in this folder will
+	 * be deleted
+	 *
+	 * @param mode
+	 * @return a new frontier
+	 */
+	static Frontier create(Mode mode) {
+		return create(mode, new FrontierConfig());
+	}
+
+	/**
+	 * Creates a new frontier of the given mode in its default folder. IMPORTANT:
+	 * the queue previously stored in this folder will be deleted
+	 *
+	 * @param mode
+	 * @param config: how the subqueues of the round robin frontiers are persisted
+	 * @return a new frontier
+	 */
+	static Frontier create(Mode mode, FrontierConfig config) {
+		switch (mode) {
+		case POLITENESS:
+			return PolitenessBlockingQueue.create();
+		case BEST_FIRST:
+			return BestFirstBlockingQueue.create();
+		case WEIGHTED_ROUND_ROBIN:
+			RoundRobinBlockingQueue weightedQueue = RoundRobinBlockingQueue.create(config);
+			weightedQueue.setWeighted(true);
+			return weightedQueue;
+		case ROUND_ROBIN:
+		default:
+			return RoundRobinBlockingQueue.create(config);
+		}
+	}
+
+	/**
+	 * Restores the frontier of the given mode left in its default folder by a
+	 * previous crawl
+	 *
+	 * @param mode
+	 * @return the restored frontier
+	 */
+	static Frontier restore(Mode mode) {
+		switch (mode) {
+		case POLITENESS:
+			return PolitenessBlockingQueue.restore();
+		case BEST_FIRST:
+			return BestFirstBlockingQueue.restore();
+		case WEIGHTED_ROUND_ROBIN:
+			RoundRobinBlockingQueue weightedQueue = RoundRobinBlockingQueue.restore();
+			weightedQueue.setWeighted(true);
+			return weightedQueue;
+		case ROUND_ROBIN:
+		default:
+			return RoundRobinBlockingQueue.restore();
+		}
+	}
+
+	/**
+	 * Removes at most maxElements urls of distinct domains, waiting if necessary
+	 * until at least one url is available. By default a single url is taken.
+	 *
+	 * @param maxElements: the max number of urls to remove
+	 * @return the removed urls, never empty
+	 * @throws InterruptedException
+	 */
+	default List<String> takeBatch(int maxElements) throws InterruptedException {
+		List<String> batch = new ArrayList<>(1);
+		batch.add(take());
+		return batch;
+	}
+
+	/**
+	 * Returns the number of domains discovered since the creation of the frontier
+	 *
+	 * @return the number of domains discovered
+	 */
+	int domainsDiscovered();
+
+	/**
+	 * Returns the fraction of domains that have urls left to fetch
+	 *
+	 * @return the fraction of non empty subqueues
+	 */
+	double subqueueUtilization();
+
+	/**
+	 * Returns the fraction of the capacity of the frontier in use, 0 if the
+	 * frontier is unbounded
+	 *
+	 * @return the pressure on the frontier
+	 */
+	default double pressure() {
+		return 0;
+	}
+
+	/**
+	 * Returns the fraction of the persisted frontier loaded so far by a restore,
+	 * 1 once the frontier is fully loaded. By default restore loads everything
+	 * before returning.
+	 *
+	 * @return the restore progress between 0 and 1
+	 */
+	default double restoreProgress() {
+		return 1;
+	}
+
+	/**
+	 * Reports the outcome of the fetch of a url taken from this frontier, so that
+	 * the frontier can adapt to the responsiveness of its domain. Ignored by
+	 * default.
+	 *
+	 * @param url:           the fetched url
+	 * @param latencyMillis: the time the fetch took in ms
+	 * @param success:       whether the page could be fetched
+	 */
+	default void reportFetch(String url, long latencyMillis, boolean success) {
+	}
+
+	/**
+	 * Reports the number of bytes of page content stored for a fetched url, spent
+	 * from the storage budget of its domain. Ignored by default.
+	 *
+	 * @param url:   the fetched url
+	 * @param bytes: the bytes stored
+	 */
+	default void reportStored(String url, long bytes) {
+	}
+
+	/**
+	 * Applies the limits of the launch options (capacity, overflow policy...),
+	 * the storage options only apply on create. Ignored by default.
+	 *
+	 * @param config
+	 */
+	default void setLimits(FrontierConfig config) {
+	}
+
+	/**
+	 * Sets the crawl budgets of the domains, the budget stored under
+	 * CrawlBudget.DEFAULT_DOMAIN applies to the domains without their own. Budgets
+	 * are ignored by default.
+	 *
+	 * @param budgets: domain to budget
+	 */
+	default void setBudgets(Map<String, CrawlBudget> budgets) {
+	}
+
+	/**
+	 * Tells whether the domain of the url may still receive urls, so that a url
+	 * over budget can be dropped before being recorded anywhere. A url that is
+	 * not within budget is counted as a budget hit of its domain. Always true by
+	 * default.
+	 *
+	 * @param url
+	 * @return whether the url would be accepted by the budget of its domain
+	 */
+	default boolean withinBudget(String url) {
+		return true;
+	}
+
+	/**
+	 * Returns the number of urls dropped by the budget of each domain that hit its
+	 * budget
+	 *
+	 * @return domain to number of urls dropped
+	 */
+	default Map<String, Long> budgetHits() {
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * Returns the number of domains taken out of the rounds because their fetches
+	 * keep failing, 0 by default
+	 *
+	 * @return the number of parked domains
+	 */
+	default int parkedCount() {
+		return 0;
+	}
+
+	/**
+	 * Adds the urls discovered on a fetched page. By default only the new urls
+	 * are added, as a single batch.
+	 *
+	 * @param referringURL: the fetched page
+	 * @param newURLs:      the links of the page never seen before
+	 * @param links:        all the links of the page, new or not
+	 */
+	default void addLinks(String referringURL, Collection<String> newURLs, Collection<String> links) {
+		addAll(newURLs);
+	}
+
+	/**
+	 * Adds the urls discovered on a page that nearly duplicates a page fetched
+	 * before, a mirror whose links are mostly copies of links already found. The
+	 * frontiers that order their urls rank them below the others, by default they
+	 * are added as any other link.
+	 *
+	 * @param referringURL: the fetched page
+	 * @param newURLs:      the links of the page never seen before
+	 * @param links:        all the links of the page, new or not
+	 */
+	default void addDuplicateLinks(String referringURL, Collection<String> newURLs, Collection<String> links) {
+		addLinks(referringURL, newURLs, links);
+	}
+
+	/**
+	 * Persists the state of the frontier that is not written on each operation,
+	 * called periodically by the PersistenceThread. Nothing to do by default.
+	 *
+	 * @throws IOException
+	 */
+	default void checkpoint() throws IOException {
+	}
+}
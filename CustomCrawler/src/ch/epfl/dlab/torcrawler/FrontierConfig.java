@@ -0,0 +1,83 @@
+package ch.epfl.dlab.torcrawler;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Launch options of the round robin frontiers: how their subqueues are
+ *         persisted, which a restored frontier infers from its files, and the
+ *         limits of the queue (see RoundRobinBlockingQueue.setCapacity and
+ *         setSpillCapacity), applied on create and on restore.
+ *
+ *         Options are read from json, a missing option keeps its default:
+ *         {"storage": "SEGMENTED_LOG", "tiered": true, "capacity": 1000000,
+ *         "domainCapacity": 10000, "overflowPolicy": "SPILL",
+ *         "spillCapacity": 10000000}
+ */
+public final class FrontierConfig {
+
+	public static final SubqueueStorage.Mode DEFAULT_STORAGE = SubqueueStorage.Mode.SEGMENTED_LOG;
+	public static final boolean DEFAULT_TIERED = true;
+
+	// Not final so that they can be read from json
+	private SubqueueStorage.Mode storage;
+	private boolean tiered;
+	private int capacity;// Integer.MAX_VALUE if unbounded
+	private int domainCapacity;
+	private RoundRobinBlockingQueue.OverflowPolicy overflowPolicy;
+	private int spillCapacity;
+
+	/**
+	 * Default options
+	 */
+	public FrontierConfig() {
+		this(DEFAULT_STORAGE, DEFAULT_TIERED);
+	}
+
+	/**
+	 * @param storage: how the subqueues are persisted
+	 * @param tiered:  whether the subqueues are buffered in memory (see
+	 *                 TieredSubqueueStorage)
+	 */
+	public FrontierConfig(SubqueueStorage.Mode storage, boolean tiered) {
+		if (storage == null) {
+			throw new IllegalArgumentException();
+		}
+		this.storage = storage;
+		this.tiered = tiered;
+		this.capacity = Integer.MAX_VALUE;
+		this.domainCapacity = Integer.MAX_VALUE;
+		this.overflowPolicy = RoundRobinBlockingQueue.OverflowPolicy.BLOCK;
+		this.spillCapacity = RoundRobinBlockingQueue.SPILL_CAPACITY;
+	}
+
+	public SubqueueStorage.Mode getStorage() {
+		return storage != null ? storage : DEFAULT_STORAGE;// null if the json names an unknown mode
+	}
+
+	public boolean isTiered() {
+		return tiered;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getDomainCapacity() {
+		return domainCapacity;
+	}
+
+	public RoundRobinBlockingQueue.OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy != null ? overflowPolicy : RoundRobinBlockingQueue.OverflowPolicy.BLOCK;
+	}
+
+	public int getSpillCapacity() {
+		return spillCapacity;
+	}
+
+	@Override
+	public String toString() {
+		return "FrontierConfig{storage=" + getStorage() + ", tiered=" + tiered + ", capacity=" + capacity
+				+ ", domainCapacity=" + domainCapacity + ", overflowPolicy=" + getOverflowPolicy() + ", spillCapacity="
+				+ spillCapacity + "}";
+	}
+}
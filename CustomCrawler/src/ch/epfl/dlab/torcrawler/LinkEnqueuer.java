@@ -0,0 +1,94 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Stage between the fetch of a page and the frontier: takes the
+ *         filtered links of a page, records the new ones in the seen url
+ *         store and enqueues them, each step once per page rather than once
+ *         per url. Thread safe, each fetcher thread has its own.
+ *
+ *         The fingerprint of each link is computed once. The links already
+ *         seen or over the budget of their domain are dropped first, the others
+ *         are added to the store in one pass with addAllIfAbsent, so that a url
+ *         found by several threads at once is accepted by exactly one of them.
+ *         The accepted urls are enqueued as a single batch and counted in the
+ *         statistics once, the links of a near duplicate page are handed to
+ *         the frontier to be deprioritised.
+ */
+public final class LinkEnqueuer {
+
+	private final SeenURLStore seenURLs;
+	private final Frontier frontier;
+
+	public LinkEnqueuer(SeenURLStore seenURLs, Frontier frontier) {
+		if (seenURLs == null || frontier == null) {
+			throw new IllegalArgumentException();
+		}
+		this.seenURLs = seenURLs;
+		this.frontier = frontier;
+	}
+
+	/**
+	 * Records and enqueues the links of a page never seen before
+	 *
+	 * @param referringURL: the page the links were found on
+	 * @param links:        the filtered links of the page
+	 * @return the links that were enqueued
+	 */
+	public List<String> enqueue(String referringURL, Collection<String> links) {
+		return enqueue(referringURL, links, false);
+	}
+
+	/**
+	 * Records and enqueues the links of a page never seen before, the links of a
+	 * near duplicate page are deprioritised by the frontier
+	 *
+	 * @param referringURL:  the page the links were found on
+	 * @param links:         the filtered links of the page
+	 * @param nearDuplicate: whether the page nearly duplicates a page fetched
+	 *                       before
+	 * @return the links that were enqueued
+	 */
+	public List<String> enqueue(String referringURL, Collection<String> links, boolean nearDuplicate) {
+		List<String> candidates = new ArrayList<>(links.size());
+		long[] fingerprints = new long[links.size()];
+		for (String url : links) {
+			long fingerprint = FingerprintIndex.fingerprint(url);
+			if (!seenURLs.contains(fingerprint) && frontier.withinBudget(url)) {// Budget hits are not recorded as seen
+				fingerprints[candidates.size()] = fingerprint;
+				candidates.add(url);
+			}
+		}
+
+		List<String> newURLs = new ArrayList<>(candidates.size());
+		if (!candidates.isEmpty()) {
+			long[] candidateFingerprints = fingerprints.length == candidates.size() ? fingerprints
+					: Arrays.copyOf(fingerprints, candidates.size());
+			boolean[] added = seenURLs.addAllIfAbsent(candidateFingerprints);
+			for (int i = 0; i < added.length; ++i) {
+				if (added[i]) {
+					newURLs.add(candidates.get(i));
+				}
+			}
+		}
+
+		if (nearDuplicate) {
+			frontier.addDuplicateLinks(referringURL, newURLs, links);
+		} else {
+			frontier.addLinks(referringURL, newURLs, links);
+		}
+		if (!newURLs.isEmpty()) {
+			CrawlerStatistics.getInstance().addValidUrlsDiscovered(newURLs.size());
+			if (nearDuplicate) {
+				CrawlerStatistics.getInstance().addNearDuplicateLinks(newURLs.size());
+			}
+		}
+		return newURLs;
+	}
+}
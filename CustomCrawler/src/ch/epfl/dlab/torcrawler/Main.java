@@ -4,7 +4,6 @@
 package ch.epfl.dlab.torcrawler;
 
 import java.io.FileNotFoundException;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -30,32 +29,36 @@ public class Main {
 	 * @param args: 2 options
 	 * 1st: "create" + "true/false" (use of cookies) + threadCount
 	 * 2nd: "restore" (threadCount will be infered from the restore file) + "true/false" (use of cookies)
+	 * Both options take an optional last argument: the frontier mode (ROUND_ROBIN by default, WEIGHTED_ROUND_ROBIN, POLITENESS or BEST_FIRST),
+	 * a crawl must be restored with the mode it was created with
 	 * @throws InterruptedException 
 	 */
 	public static void main(String[] args) throws InterruptedException {
 		
 		
-		if (args.length<2 || args.length>3) {
-			throw new IllegalArgumentException("At least 2 arguments and most 3 arguments are required, see the list of required arguments in the Javadoc");
+		if (args.length<2 || args.length>4) {
+			throw new IllegalArgumentException("At least 2 arguments and most 4 arguments are required, see the list of required arguments in the Javadoc");
 		}
 		
-		RoundRobinBlockingQueue urlsToFetch = null;
-		Set<String> discoveredURLs=ConcurrentHashMap.newKeySet();
+		Frontier urlsToFetch = null;
+		SeenURLStore discoveredURLs = null;
+		FrontierConfig frontierConfig = FileUtility.fetchFrontierConfig();//Optional storage options and limits of the frontier
 		
 		
 		if(args[0].equals("restore")) {
-			System.out.println("Trying to restore roundRobinQueue");
-			if(args.length!=2) {
-				throw new IllegalArgumentException("Calling the crawler in restore mode should take 2 arguments");
+			System.out.println("Trying to restore the frontier");
+			if(args.length!=2 && args.length!=3) {
+				throw new IllegalArgumentException("Calling the crawler in restore mode should take 2 or 3 arguments");
 			}
 			
-			urlsToFetch = RoundRobinBlockingQueue.restore();
-			Set<String> recoveredURLs = null;
-			try {
-				recoveredURLs = FileUtility.fetchDiscoveredURLs();
-				discoveredURLs.addAll(recoveredURLs);
-			} catch (FileNotFoundException e) {
-				throw new IllegalStateException("The discovered urls file could not be found");
+			urlsToFetch = Frontier.restore(parseFrontierMode(args, 2));
+			discoveredURLs = SeenURLStore.restore();
+			if (discoveredURLs.size() == 0) {//Crawl persisted before the seen url store existed
+				try {
+					FileUtility.fetchDiscoveredURLs().forEach(discoveredURLs::addIfAbsent);
+				} catch (FileNotFoundException e) {
+					throw new IllegalStateException("The discovered urls file could not be found");
+				}
 			}
 			
 			try {
@@ -69,8 +72,8 @@ public class Main {
 		}
 		
 		else if(args[0].equals("create")) {
-			if(args.length!=3) {
-				throw new IllegalArgumentException("Calling the crawler in create mode should take 3 arguments");
+			if(args.length!=3 && args.length!=4) {
+				throw new IllegalArgumentException("Calling the crawler in create mode should take 3 or 4 arguments");
 			}
 			try {
 				threadCount = Integer.parseInt(args[2]);
@@ -81,10 +84,15 @@ public class Main {
 				throw new IllegalArgumentException("The second argument should be an integer");
 			}
 			
-			urlsToFetch = RoundRobinBlockingQueue.create();
+			urlsToFetch = Frontier.create(parseFrontierMode(args, 3), frontierConfig);
+			discoveredURLs = SeenURLStore.create();
 			CrawlerStatistics.initialize(urlsToFetch, threadCount);
 		}
 		
+		urlsToFetch.setLimits(frontierConfig);
+		urlsToFetch.setBudgets(FileUtility.fetchBudgets());//Optional per domain crawl budgets
+		URLCanonicalizer.setStrippedParameters(FileUtility.fetchStrippedParameters());//Optional per domain stripped parameters
+		
 		Map<String,Map<String,String>> cookies=null;//Map<domain,Map<cookieName,cookie>>
 		
 		if(args[1].equals("true")) { 
@@ -103,21 +111,23 @@ public class Main {
 		
 		try {
 			
-			PersistenceThread persistenceThread = new PersistenceThread(discoveredURLs);
+			PersistenceThread persistenceThread = new PersistenceThread(discoveredURLs, urlsToFetch);
 			persistenceThread.start();//Saves the status of the crawler, the recovery file for this status and the discovered urls
 			
 			Set<String> seedURLs = FileUtility.fetchSeedURLs()
 									.stream()
+									.map(URLCanonicalizer::canonicalize)//Same form as the links found on the pages
 									.filter(url -> URLFilter.filterURL(url))
 									.collect(Collectors.toSet());
 	
 			urlsToFetch.addAll(seedURLs);
-			discoveredURLs.addAll(seedURLs);
+			seedURLs.forEach(discoveredURLs::addIfAbsent);
 			
 			List<FetcherThread> fetcherThreads = new LinkedList<>();
+			NearDuplicateIndex nearDuplicates = new NearDuplicateIndex();//Shared by all threads, empty after a restore
 			
 			for(int i=0; i<threadCount; ++i) {
-				FetcherThread fetcherThread = new FetcherThread(i,urlsToFetch,discoveredURLs,cookies);
+				FetcherThread fetcherThread = new FetcherThread(i,urlsToFetch,discoveredURLs,nearDuplicates,cookies);
 	 			fetcherThreads.add(fetcherThread);
 	 			fetcherThread.start();
 			}
@@ -128,4 +138,21 @@ public class Main {
 			  System.exit(1);
 		}
 	}
+	
+	/**
+	 * Reads the optional frontier mode argument
+	 * @param args: the arguments of the crawler
+	 * @param index: the position of the frontier mode argument
+	 * @return the frontier mode, ROUND_ROBIN if the argument is missing
+	 */
+	private static Frontier.Mode parseFrontierMode(String[] args, int index) {
+		if(args.length<=index) {
+			return Frontier.Mode.ROUND_ROBIN;
+		}
+		try {
+			return Frontier.Mode.valueOf(args[index]);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("The frontier mode should be ROUND_ROBIN, WEIGHTED_ROUND_ROBIN, POLITENESS or BEST_FIRST");
+		}
+	}
 }
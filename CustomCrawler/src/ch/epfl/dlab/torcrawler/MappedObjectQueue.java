@@ -0,0 +1,125 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Persistent ObjectQueue storing its elements in a MappedQueueFile,
+ *         serialized with a Converter like the ObjectQueues of square/tape, so
+ *         that it can replace them wherever an ObjectQueue is expected.
+ *
+ *         CAVEAT: not thread safe, as the tape ObjectQueues
+ *
+ * @param <T>
+ */
+public final class MappedObjectQueue<T> extends ObjectQueue<T> {
+
+	private final MappedQueueFile queueFile;
+	private final Converter<T> converter;
+	private final DirectByteArrayOutputStream bytes = new DirectByteArrayOutputStream();
+
+	/**
+	 * @param queueFile: where the elements are stored
+	 * @param converter: serializes the elements
+	 */
+	public MappedObjectQueue(MappedQueueFile queueFile, Converter<T> converter) {
+		if (queueFile == null || converter == null) {
+			throw new IllegalArgumentException();
+		}
+		this.queueFile = queueFile;
+		this.converter = converter;
+	}
+
+	/**
+	 * Output stream whose buffer is written to the file without being copied
+	 */
+	private static final class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * The elements are not stored in a tape QueueFile
+	 */
+	@Override
+	public QueueFile file() {
+		return null;
+	}
+
+	public MappedQueueFile mappedFile() {
+		return queueFile;
+	}
+
+	@Override
+	public int size() {
+		return queueFile.size();
+	}
+
+	@Override
+	public void add(T element) throws IOException {
+		bytes.reset();
+		converter.toStream(element, bytes);
+		queueFile.add(bytes.array(), 0, bytes.size());
+	}
+
+	@Override
+	public T peek() throws IOException {
+		byte[] head = queueFile.peek();
+		return head == null ? null : converter.from(head);
+	}
+
+	@Override
+	public void remove(int n) throws IOException {
+		queueFile.remove(n);
+	}
+
+	@Override
+	public void clear() throws IOException {
+		queueFile.clear();
+	}
+
+	/**
+	 * Only the head can be removed through the iterator
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		Iterator<byte[]> iterator = queueFile.iterator();
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public T next() {
+				try {
+					return converter.from(iterator.next());
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public void remove() {
+				iterator.remove();
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		queueFile.close();
+	}
+
+	@Override
+	public String toString() {
+		return "MappedObjectQueue{queueFile=" + queueFile + "}";
+	}
+}
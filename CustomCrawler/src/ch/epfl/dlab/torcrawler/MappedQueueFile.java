@@ -0,0 +1,509 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Persistent FIFO queue of byte arrays stored in a memory-mapped file,
+ *         an alternative to the tape QueueFile that reads and writes the file
+ *         through the mapping instead of a RandomAccessFile (see
+ *         MappedObjectQueue to store objects in it).
+ *
+ *         LAYOUT: the file starts with two header slots followed by a ring of
+ *         records, the records wrap around the end of the file like in a tape
+ *         QueueFile. When the ring is full the file is doubled and the wrapped
+ *         part of the ring is moved after the old end.
+ *
+ *         Header slot: [int magic][int crc32][long sequence][int length][int
+ *         head][int tail][int count] Record: [int length][int crc32][bytes]
+ *
+ *         COMMIT: an operation first writes its records, then writes the header
+ *         to the slot that does not hold the last header, with a higher
+ *         sequence number. A header torn by a crash fails its checksum and the
+ *         other slot is used, so an operation is either fully applied or not at
+ *         all. When the file is opened, the records of the ring are checked
+ *         against their checksum and the queue is cut before the first corrupted
+ *         record.
+ *
+ *         SYNC POLICY: with ALWAYS, the mapping is forced to disk after every
+ *         operation, as tape does. With EXPLICIT, it is only forced by sync()
+ *         and close(): a killed process loses nothing as the mapped pages belong
+ *         to the OS, but a power loss may lose the operations since the last
+ *         sync.
+ *
+ *         CAVEATS: - not thread safe - the file is at most MAX_LENGTH bytes, as
+ *         it is mapped with a single buffer - the file never shrinks, even when
+ *         cleared - a mapping is only released when its buffer is garbage
+ *         collected, closing the file only closes its channel
+ */
+public final class MappedQueueFile implements Closeable, Iterable<byte[]> {
+
+	/**
+	 * When the mapping is forced to disk
+	 */
+	public enum SyncPolicy {
+		ALWAYS, // After every operation
+		EXPLICIT // On sync() and close() only
+	}
+
+	public static final int HEADER_LENGTH = 64;// Two header slots
+	public static final int RECORD_HEADER_LENGTH = 8;// length + crc
+	public static final int INITIAL_LENGTH = 4096;// in bytes
+	public static final int MAX_LENGTH = Integer.MAX_VALUE;// in bytes, max size of a mapping
+	private static final int MAGIC = 0x4d515546;
+	private static final int SLOT_LENGTH = 32;
+	private static final int SLOT_CHECKED_OFFSET = 8;// The crc covers the slot from this offset
+
+	private final File file;
+	private final SyncPolicy syncPolicy;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+	private final byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+	private final ByteBuffer recordHeaderBuffer = ByteBuffer.wrap(recordHeader);
+
+	private long sequence;// Sequence number of the last written header
+	private int length;// Length of the file used by the ring
+	private int head;// Position of the first record
+	private int tail;// Position after the last record
+	private int count;// Number of records
+	private int modCount;// Incremented when records are removed or moved, to invalidate the iterators
+
+	/**
+	 * Opens the queue stored in the file, or creates it if the file does not
+	 * exist, the operations are forced to disk with the ALWAYS policy
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedQueueFile(File file) throws IOException {
+		this(file, SyncPolicy.ALWAYS);
+	}
+
+	/**
+	 * Opens the queue stored in the file, or creates it if the file does not
+	 * exist, and drops the records corrupted by a crash
+	 *
+	 * @param file
+	 * @param syncPolicy: when the operations are forced to disk
+	 * @throws IOException
+	 */
+	public MappedQueueFile(File file, SyncPolicy syncPolicy) throws IOException {
+		assert (file != null && syncPolicy != null);
+		this.file = file;
+		this.syncPolicy = syncPolicy;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		try {
+			if (raf.length() < INITIAL_LENGTH) {// New file or file created by a crashed process
+				raf.setLength(INITIAL_LENGTH);
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_LENGTH);
+				sequence = 0;
+				length = INITIAL_LENGTH;
+				head = HEADER_LENGTH;
+				tail = HEADER_LENGTH;
+				count = 0;
+				commit();
+				buffer.force();
+			} else {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(raf.length(), MAX_LENGTH));
+				readHeader();
+				recover();
+			}
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Loads the valid header slot with the highest sequence number
+	 */
+	private void readHeader() throws IOException {
+		boolean found = false;
+		for (int slot = 0; slot < 2; ++slot) {
+			int offset = slot * SLOT_LENGTH;
+			if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + 4) != slotChecksum(offset)) {
+				continue;
+			}
+			long slotSequence = buffer.getLong(offset + SLOT_CHECKED_OFFSET);
+			int slotLength = buffer.getInt(offset + 16);
+			if ((found && slotSequence <= sequence) || slotLength < INITIAL_LENGTH || slotLength > buffer.capacity()) {
+				continue;
+			}
+			found = true;
+			sequence = slotSequence;
+			length = slotLength;
+			head = buffer.getInt(offset + 20);
+			tail = buffer.getInt(offset + 24);
+			count = buffer.getInt(offset + 28);
+		}
+		if (!found || head < HEADER_LENGTH || head >= length || tail < HEADER_LENGTH || tail >= length
+				|| count < 0) {
+			throw new IOException("Corrupted queue file header " + file);
+		}
+	}
+
+	/**
+	 * Checks every record of the ring and cuts the queue before the first
+	 * corrupted one
+	 */
+	private void recover() throws IOException {
+		int position = head;
+		long remaining = usedBytes();
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < count; ++i) {
+			int recordLength = remaining < RECORD_HEADER_LENGTH ? -1 : readInt(position);
+			if (recordLength < 0 || RECORD_HEADER_LENGTH + (long) recordLength > remaining) {
+				cut(i, position);
+				return;
+			}
+			byte[] bytes = new byte[recordLength];
+			read(wrap(position + 8L), bytes, 0, recordLength);
+			crc.reset();
+			crc.update(bytes, 0, recordLength);
+			if ((int) crc.getValue() != readInt(wrap(position + 4L))) {
+				cut(i, position);
+				return;
+			}
+			position = wrap((long) position + RECORD_HEADER_LENGTH + recordLength);
+			remaining -= RECORD_HEADER_LENGTH + recordLength;
+		}
+	}
+
+	private void cut(int validCount, int position) throws IOException {
+		System.err.println("Dropping " + (count - validCount) + " corrupted records of the queue file " + file);
+		count = validCount;
+		tail = count == 0 ? head : position;
+		commit();
+	}
+
+	/**
+	 * Returns the checksum of the fields of a header slot
+	 */
+	private int slotChecksum(int offset) {
+		CRC32 crc = new CRC32();
+		for (int i = offset + SLOT_CHECKED_OFFSET; i < offset + SLOT_LENGTH; ++i) {
+			crc.update(buffer.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes the state of the queue to the next header slot, which applies the
+	 * operation, and forces the mapping to disk if the policy requires it
+	 */
+	private void commit() {
+		sequence++;
+		int offset = (int) (sequence & 1) * SLOT_LENGTH;
+		buffer.putLong(offset + SLOT_CHECKED_OFFSET, sequence);
+		buffer.putInt(offset + 16, length);
+		buffer.putInt(offset + 20, head);
+		buffer.putInt(offset + 24, tail);
+		buffer.putInt(offset + 28, count);
+		buffer.putInt(offset + 4, slotChecksum(offset));
+		buffer.putInt(offset, MAGIC);
+		if (syncPolicy == SyncPolicy.ALWAYS) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Returns the position in the ring of a position that may be past the end of
+	 * the file
+	 */
+	private int wrap(long position) {
+		return (int) (position < length ? position : HEADER_LENGTH + position - length);
+	}
+
+	private void write(int position, byte[] bytes, int offset, int count) {
+		int firstPart = Math.min(count, length - position);
+		buffer.position(position);
+		buffer.put(bytes, offset, firstPart);
+		if (firstPart < count) {
+			buffer.position(HEADER_LENGTH);
+			buffer.put(bytes, offset + firstPart, count - firstPart);
+		}
+	}
+
+	private void read(int position, byte[] bytes, int offset, int count) {
+		int firstPart = Math.min(count, length - position);
+		buffer.position(position);
+		buffer.get(bytes, offset, firstPart);
+		if (firstPart < count) {
+			buffer.position(HEADER_LENGTH);
+			buffer.get(bytes, offset + firstPart, count - firstPart);
+		}
+	}
+
+	private int readInt(int position) {
+		read(position, recordHeader, 0, 4);
+		return recordHeaderBuffer.getInt(0);
+	}
+
+	/**
+	 * Returns the number of bytes of the ring used by the records
+	 *
+	 * @return the used bytes
+	 */
+	public long usedBytes() {
+		if (count == 0) {
+			return 0;
+		}
+		return tail > head ? tail - head : (long) length - HEADER_LENGTH - (head - tail);
+	}
+
+	/**
+	 * Doubles the file until the ring can hold the following number of bytes more
+	 */
+	private void expandIfNecessary(long needed) throws IOException {
+		long free = (long) length - HEADER_LENGTH - usedBytes();
+		if (needed <= free) {
+			return;
+		}
+		long newLength = length;
+		while (newLength - HEADER_LENGTH - usedBytes() < needed) {
+			newLength *= 2;
+		}
+		if (newLength > MAX_LENGTH) {
+			throw new IOException("The queue file " + file + " cannot grow over " + MAX_LENGTH + " bytes");
+		}
+
+		raf.setLength(newLength);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newLength);
+		if (count > 0 && tail <= head) {// Moves the wrapped part of the ring after the old end
+			ByteBuffer wrapped = buffer.duplicate();
+			wrapped.position(HEADER_LENGTH);
+			wrapped.limit(tail);
+			ByteBuffer destination = buffer.duplicate();
+			destination.position(length);
+			destination.put(wrapped);
+			tail = length + tail - HEADER_LENGTH;
+			modCount++;// The records of the iterators moved
+		}
+		length = (int) newLength;
+		commit();
+	}
+
+	/**
+	 * Appends a record at the end of the queue
+	 *
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public void add(byte[] bytes) throws IOException {
+		add(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Appends a record at the end of the queue
+	 *
+	 * @param bytes
+	 * @param offset: offset of the record in bytes
+	 * @param count:  length of the record
+	 * @throws IOException
+	 */
+	public void add(byte[] bytes, int offset, int count) throws IOException {
+		if (offset < 0 || count < 0 || offset + count > bytes.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		expandIfNecessary(RECORD_HEADER_LENGTH + (long) count);
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, count);
+		recordHeaderBuffer.putInt(0, count);
+		recordHeaderBuffer.putInt(4, (int) crc.getValue());
+		write(tail, recordHeader, 0, RECORD_HEADER_LENGTH);
+		write(wrap(tail + 8L), bytes, offset, count);
+
+		tail = wrap((long) tail + RECORD_HEADER_LENGTH + count);
+		this.count++;
+		commit();
+	}
+
+	/**
+	 * Reads the record at the following position of the ring
+	 */
+	private byte[] readRecord(int position) {
+		byte[] bytes = new byte[readInt(position)];
+		read(wrap(position + 8L), bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Returns the position of the record following the record at the position
+	 */
+	private int nextPosition(int position) {
+		return wrap((long) position + RECORD_HEADER_LENGTH + readInt(position));
+	}
+
+	/**
+	 * Reads the head of the queue
+	 *
+	 * @return the first record or null if the queue is empty
+	 */
+	public byte[] peek() {
+		return count == 0 ? null : readRecord(head);
+	}
+
+	/**
+	 * Removes the head of the queue
+	 *
+	 * @throws IOException
+	 */
+	public void remove() throws IOException {
+		remove(1);
+	}
+
+	/**
+	 * Removes the n first records of the queue
+	 *
+	 * @param n
+	 * @throws IOException
+	 */
+	public void remove(int n) throws IOException {
+		if (n < 0 || n > count) {
+			throw new NoSuchElementException();
+		}
+		if (n == 0) {
+			return;
+		}
+		if (n == count) {
+			clear();
+			return;
+		}
+		int position = head;
+		for (int i = 0; i < n; ++i) {
+			position = nextPosition(position);
+		}
+		head = position;
+		count -= n;
+		modCount++;
+		commit();
+	}
+
+	/**
+	 * Removes every record, the length of the file is kept
+	 *
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		head = HEADER_LENGTH;
+		tail = HEADER_LENGTH;
+		count = 0;
+		modCount++;
+		commit();
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public File file() {
+		return file;
+	}
+
+	/**
+	 * Returns the length of the file used by the queue
+	 *
+	 * @return the length in bytes
+	 */
+	public long fileLength() {
+		return length;
+	}
+
+	/**
+	 * Forces the mapping to disk
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		buffer.force();
+	}
+
+	/**
+	 * Iterates over the records from head to tail, only the head can be removed
+	 * through the iterator
+	 */
+	@Override
+	public Iterator<byte[]> iterator() {
+		return new Iterator<byte[]>() {
+			private int position = head;
+			private int index = 0;// Number of records returned since the last removal
+			private int remaining = count;
+			private int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				checkForComodification();
+				return remaining > 0;
+			}
+
+			@Override
+			public byte[] next() {
+				checkForComodification();
+				if (remaining == 0) {
+					throw new NoSuchElementException();
+				}
+				byte[] bytes = readRecord(position);
+				position = nextPosition(position);
+				remaining--;
+				index++;
+				return bytes;
+			}
+
+			@Override
+			public void remove() {
+				checkForComodification();
+				if (index != 1) {
+					throw new UnsupportedOperationException("Removal is only permitted from the head.");
+				}
+				try {
+					MappedQueueFile.this.remove();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				index = 0;
+				expectedModCount = modCount;
+			}
+
+			private void checkForComodification() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Forces the mapping to disk and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MappedQueueFile{file=" + file + ", size=" + count + ", length=" + length + "}";
+	}
+}
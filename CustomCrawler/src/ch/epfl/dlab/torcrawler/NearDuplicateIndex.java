@@ -0,0 +1,159 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         In-memory index of the SimHash of the pages fetched, so that a page
+ *         whose text nearly duplicates a page fetched before (a mirror or a
+ *         clone under another .onion address) can be flagged.
+ *
+ *         SIMHASH: the text is split into lowercase words, each word is hashed
+ *         to 64 bits and votes +1 or -1 for each bit, the SimHash keeps the
+ *         bits with a positive total. Similar texts get SimHashes that differ
+ *         by a few bits: two pages are near duplicates if their SimHashes differ
+ *         by at most MAX_DISTANCE bits.
+ *
+ *         LSH: the 64 bits are cut into BANDS bands of 16 bits. Two SimHashes
+ *         at most MAX_DISTANCE < BANDS bits apart have at least one identical
+ *         band, so a page is only compared with the pages of the buckets of
+ *         its bands. Only the pages that are not near duplicates are indexed.
+ *
+ *         CAVEATS: - the texts of less than MIN_WORDS words are never flagged,
+ *         their SimHash is not significant - the index is not persisted, it is
+ *         empty after a restore - the index keeps BANDS longs per distinct page
+ *         in memory
+ */
+public final class NearDuplicateIndex {
+
+	public static final int MAX_DISTANCE = 3;// Max number of differing bits of two near duplicates
+	public static final int MIN_WORDS = 50;// Number of words below which a text is not fingerprinted
+	private static final int BANDS = 4;// Must be greater than MAX_DISTANCE
+	private static final int BAND_BITS = Long.SIZE / BANDS;
+	private static final int INITIAL_BUCKET_CAPACITY = 2;
+	public static final long NO_SIMHASH = 0;// Returned for the texts that are too short
+
+	private final long[][][] buckets;// Band to band value to the SimHashes, guarded by lock
+	private final int[][] bucketSizes;// Guarded by lock
+	private int size;// Number of pages indexed, guarded by lock
+	private final ReentrantLock lock;
+
+	public NearDuplicateIndex() {
+		buckets = new long[BANDS][1 << BAND_BITS][];
+		bucketSizes = new int[BANDS][1 << BAND_BITS];
+		size = 0;
+		lock = new ReentrantLock();
+	}
+
+	/**
+	 * Returns the SimHash of a text, computed without splitting the string
+	 *
+	 * @param text
+	 * @return the SimHash of the text or NO_SIMHASH if it has less than MIN_WORDS
+	 *         words
+	 */
+	public static long simHash(String text) {
+		int[] votes = new int[Long.SIZE];
+		int words = 0;
+		long hash = 0xcbf29ce484222325L;
+		boolean inWord = false;
+		for (int i = 0; i <= text.length(); ++i) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				hash ^= Character.toLowerCase(c);
+				hash *= 0x100000001b3L;
+				inWord = true;
+			} else if (inWord) {
+				long wordHash = mix(hash);
+				for (int bit = 0; bit < Long.SIZE; ++bit) {
+					votes[bit] += ((wordHash >>> bit) & 1) == 1 ? 1 : -1;
+				}
+				words++;
+				hash = 0xcbf29ce484222325L;
+				inWord = false;
+			}
+		}
+		if (words < MIN_WORDS) {
+			return NO_SIMHASH;
+		}
+		long simHash = 0;
+		for (int bit = 0; bit < Long.SIZE; ++bit) {
+			if (votes[bit] > 0) {
+				simHash |= 1L << bit;
+			}
+		}
+		return simHash == NO_SIMHASH ? 1 : simHash;
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static int band(long simHash, int band) {
+		return (int) (simHash >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+	}
+
+	/**
+	 * Tells whether the text nearly duplicates a text indexed before, the text
+	 * is indexed if it does not, atomically
+	 *
+	 * @param text: the content of a page
+	 * @return true if the text is a near duplicate
+	 */
+	public boolean checkAndAdd(String text) {
+		long simHash = simHash(text);
+		if (simHash == NO_SIMHASH) {
+			return false;
+		}
+		lock.lock();
+		try {
+			for (int band = 0; band < BANDS; ++band) {
+				int value = band(simHash, band);
+				long[] bucket = buckets[band][value];
+				for (int i = 0; i < bucketSizes[band][value]; ++i) {
+					if (Long.bitCount(bucket[i] ^ simHash) <= MAX_DISTANCE) {
+						return true;
+					}
+				}
+			}
+			for (int band = 0; band < BANDS; ++band) {
+				int value = band(simHash, band);
+				long[] bucket = buckets[band][value];
+				int bucketSize = bucketSizes[band][value];
+				if (bucket == null) {
+					bucket = new long[INITIAL_BUCKET_CAPACITY];
+				} else if (bucketSize == bucket.length) {
+					bucket = Arrays.copyOf(bucket, bucket.length * 2);
+				}
+				bucket[bucketSize] = simHash;
+				buckets[band][value] = bucket;
+				bucketSizes[band][value] = bucketSize + 1;
+			}
+			size++;
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of pages indexed, the near duplicates are not indexed
+	 *
+	 * @return the size of the index
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
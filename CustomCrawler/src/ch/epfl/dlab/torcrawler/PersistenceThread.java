@@ -3,7 +3,6 @@ package ch.epfl.dlab.torcrawler;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Set;
 
 /**
  * @author Antoine Masanet
@@ -20,11 +19,13 @@ public final class PersistenceThread extends Thread {
 	public static final String STATUS_FILE_NAME = "crawlStatus.txt";
 	
 	private File statusFile;// File used to monitor the crawl
-	private Set<String> discoveredUrls;
+	private SeenURLStore discoveredUrls;
+	private Frontier frontier;
 
-	public PersistenceThread(Set<String> discoveredUrls) {
+	public PersistenceThread(SeenURLStore discoveredUrls, Frontier frontier) {
 		statusFile = new File(FileUtility.DATA_FOLDER, STATUS_FILE_NAME);
 		this.discoveredUrls = discoveredUrls;
+		this.frontier = frontier;
 	}
 
 	@Override
@@ -40,7 +41,8 @@ public final class PersistenceThread extends Thread {
 					statusFileWriter.write(CrawlerStatistics.getInstance().toString());
 
 					FileUtility.saveCrawlerStatistics();
-					FileUtility.saveDiscoveredURLs(discoveredUrls);//File might get big
+					discoveredUrls.checkpoint();//Only the urls added since the last checkpoint are written
+					frontier.checkpoint();
 						
 
 				} catch (IOException e1) {
@@ -0,0 +1,675 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.squareup.tape2.ObjectQueue;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Thread safe, persistent blocking frontier enforcing a minimal delay
+ *         between two fetches of the same domain. As in RoundRobinBlockingQueue,
+ *         the urls are stored in persistent subqueues with 1 subqueue per
+ *         domain. Each domain with urls left has a next eligible fetch time and
+ *         the domains are kept in a heap ordered by this time: take() returns the
+ *         head url of the domain that became eligible the earliest, waiting
+ *         until it is eligible if needed. Once a url is taken, its domain is
+ *         eligible again after its politeness delay.
+ *
+ *         The politeness delay of a domain is the maximum of the configured
+ *         minimal delay and LATENCY_FACTOR times its observed fetch latency
+ *         (reported with reportFetch), bounded by MAX_DELAY. Slow hidden
+ *         services are therefore hit less often while responsive ones keep a
+ *         high throughput.
+ *
+ *         LOCKING: the heap is guarded by the takeLock and the subqueues by
+ *         striped locks, a thread never acquires the takeLock while holding a
+ *         stripe lock.
+ *
+ *         CAVEATS: - as in DelayQueue, poll() returns null when no domain is
+ *         eligible even if the queue is not empty - the eligible times and
+ *         latencies are not persisted, restored domains are eligible at once
+ */
+public final class PolitenessBlockingQueue implements Frontier {
+
+	public static final String DEFAULT_FOLDER_NAME = "data/persistentPolitenessQueue";
+	public static final long DEFAULT_MIN_DELAY = 10_000;// in ms
+	public static final long MAX_DELAY = 300_000;// in ms
+	public static final double LATENCY_FACTOR = 2;// Wait at least twice the time the domain took to answer
+	public static final int SUBQUEUE_LOCK_STRIPES = 64;// Must be a power of 2
+
+	private final Map<String, Subqueue> domainToQueue;// Concurrent Map
+	private final PriorityQueue<Subqueue> eligibleHeap;// Scheduled subqueues ordered by next eligible time
+	private final AtomicInteger queueSize;
+	private final AtomicInteger scheduledCount;// Number of subqueues which are scheduled
+	private final ReentrantLock takeLock;// Guards eligibleHeap
+	private final Condition available;// Signaled when a domain is scheduled
+	private final Lock[] subqueueLocks;
+	private final SubqueueStorage storage;
+	private final long minDelay;// in ms
+
+	/**
+	 * A domain subqueue and its scheduling state. The queue and scheduled fields
+	 * are guarded by the stripe lock of the domain, nextEligible by the takeLock
+	 */
+	private static final class Subqueue {
+		final String domain;
+		final ObjectQueue<String> queue;
+		final DomainStatistics statistics;
+		boolean scheduled;// Whether the subqueue is in (or being inserted in) the heap
+		long nextEligible;// System.nanoTime() after which the domain can be fetched
+
+		Subqueue(String domain, ObjectQueue<String> queue) {
+			this.domain = domain;
+			this.queue = queue;
+			this.statistics = new DomainStatistics();
+			this.scheduled = false;
+			this.nextEligible = System.nanoTime();
+		}
+	}
+
+	private PolitenessBlockingQueue(SubqueueStorage storage, long minDelay) {
+		assert (storage != null);
+		assert (minDelay >= 0);
+
+		domainToQueue = new ConcurrentHashMap<>();
+		eligibleHeap = new PriorityQueue<>((a, b) -> Long.compare(a.nextEligible - b.nextEligible, 0));
+		queueSize = new AtomicInteger(0);
+		scheduledCount = new AtomicInteger(0);
+		takeLock = new ReentrantLock();
+		available = takeLock.newCondition();
+		subqueueLocks = new Lock[SUBQUEUE_LOCK_STRIPES];
+		for (int i = 0; i < SUBQUEUE_LOCK_STRIPES; ++i) {
+			subqueueLocks[i] = new ReentrantLock();
+		}
+		this.storage = storage;
+		this.minDelay = minDelay;
+	}
+
+	/**
+	 * Creates a new politeness queue in the following folder IMPORTANT: all queue
+	 * files stored in this folder will be deleted
+	 *
+	 * @param folder
+	 * @param mode:     how the subqueues are persisted
+	 * @param minDelay: minimal delay in ms between two fetches of a domain
+	 * @return a new politeness queue
+	 */
+	public static PolitenessBlockingQueue create(String folder, SubqueueStorage.Mode mode, long minDelay) {
+		File dir = new File(folder);
+		dir.mkdirs();
+		for (File file : dir.listFiles()) {
+			if (!file.isDirectory() && (file.getPath().endsWith(TapeSubqueueStorage.QUEUE_FILE_SUFFIX)
+					|| file.getPath().endsWith(TapeSubqueueStorage.MAPPED_QUEUE_FILE_SUFFIX)
+					|| file.getPath().endsWith(SegmentedLogStorage.SEGMENT_FILE_SUFFIX))) {
+				file.delete();
+			}
+		}
+		return new PolitenessBlockingQueue(openStorage(folder, mode), minDelay);
+	}
+
+	/**
+	 * Creates a new politeness queue in the default folder with the default
+	 * minimal delay IMPORTANT: all queue files stored in this folder will be
+	 * deleted
+	 *
+	 * @return a new politeness queue
+	 */
+	public static PolitenessBlockingQueue create() {
+		return create(DEFAULT_FOLDER_NAME, SubqueueStorage.Mode.TAPE, DEFAULT_MIN_DELAY);
+	}
+
+	/**
+	 * Restores a politeness queue from the files left by a previous queue, all the
+	 * restored domains are eligible immediately
+	 *
+	 * @param folder:   the folder where the previous queue was persisted
+	 * @param minDelay: minimal delay in ms between two fetches of a domain
+	 * @return the restored queue
+	 */
+	public static PolitenessBlockingQueue restore(String folder, long minDelay) {
+		SubqueueStorage storage = openStorage(folder, SubqueueStorage.detect(folder));
+		PolitenessBlockingQueue queue = new PolitenessBlockingQueue(storage, minDelay);
+
+		for (String domain : storage.queueNames()) {
+			try {
+				ObjectQueue<String> restored = storage.restoreQueue(domain);
+				Subqueue subqueue = new Subqueue(domain, restored);
+				queue.domainToQueue.put(domain, subqueue);
+				queue.queueSize.addAndGet(restored.size());
+				if (!restored.isEmpty()) {
+					subqueue.scheduled = true;
+					queue.scheduledCount.getAndIncrement();
+					queue.eligibleHeap.add(subqueue);
+				}
+			} catch (IOException e) {
+				System.err.println("Could not restore subqueue of domain " + domain);
+				e.printStackTrace();
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Restores a politeness queue from the default folder with the default
+	 * minimal delay
+	 *
+	 * @return the restored queue
+	 */
+	public static PolitenessBlockingQueue restore() {
+		return restore(DEFAULT_FOLDER_NAME, DEFAULT_MIN_DELAY);
+	}
+
+	private static SubqueueStorage openStorage(String folderName, SubqueueStorage.Mode mode) {
+		try {
+			return SubqueueStorage.open(folderName, mode);
+		} catch (IOException e) {
+			System.err.println("Could not open the subqueue storage");
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Maps a url to the domain of its subqueue
+	 */
+	private String stringMapper(String url) {
+		String domain = Fetcher.getDomain(url);
+		if (domain == null) {
+			return "undefined";// Will place all not found domains there
+		}
+		return domain;
+	}
+
+	private Lock subqueueLock(String domain) {
+		int hash = domain.hashCode();
+		hash ^= (hash >>> 16);// Spread the high bits as in HashMap
+		return subqueueLocks[hash & (SUBQUEUE_LOCK_STRIPES - 1)];
+	}
+
+	private void fullyLock() {
+		takeLock.lock();
+		for (Lock stripe : subqueueLocks) {
+			stripe.lock();
+		}
+	}
+
+	private void fullyUnlock() {
+		for (int i = subqueueLocks.length - 1; i >= 0; --i) {
+			subqueueLocks[i].unlock();
+		}
+		takeLock.unlock();
+	}
+
+	/**
+	 * Returns the delay in ms to wait before fetching again from the domain of the
+	 * subqueue
+	 *
+	 * @param subqueue
+	 * @return the politeness delay of the domain
+	 */
+	private long politenessDelay(Subqueue subqueue) {
+		long latencyDelay = (long) (LATENCY_FACTOR * subqueue.statistics.getLatency());
+		return Math.min(MAX_DELAY, Math.max(minDelay, latencyDelay));
+	}
+
+	@Override
+	public boolean add(String url) {
+		if (url == null) {
+			throw new NullPointerException();
+		}
+
+		String domain = stringMapper(url);
+		Subqueue toSchedule = null;
+
+		Lock subqueueLock = subqueueLock(domain);
+		subqueueLock.lock();
+		try {
+			Subqueue subqueue = domainToQueue.get(domain);
+			if (subqueue == null) {// This is a new domain=> create new queue
+				subqueue = new Subqueue(domain, storage.createQueue(domain));
+				domainToQueue.put(domain, subqueue);
+			}
+
+			subqueue.queue.add(url);
+			queueSize.getAndIncrement();
+			if (!subqueue.scheduled) {
+				subqueue.scheduled = true;
+				scheduledCount.getAndIncrement();
+				toSchedule = subqueue;
+			}
+		} catch (IOException e) {
+			System.err.println("Could not add url" + url + "to subqueue");
+			e.printStackTrace();
+			return false;
+		} finally {
+			subqueueLock.unlock();
+		}
+
+		if (toSchedule != null) {// Insert in the heap once the stripe lock is released
+			takeLock.lock();
+			try {
+				eligibleHeap.add(toSchedule);
+				available.signal();
+			} finally {
+				takeLock.unlock();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean offer(String url) {
+		return add(url);// There is no capacity restriction
+	}
+
+	@Override
+	public void put(String url) throws InterruptedException {
+		add(url);// There is no capacity restriction
+	}
+
+	@Override
+	public boolean offer(String url, long timeout, TimeUnit unit) throws InterruptedException {
+		return add(url);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends String> collection) {
+		if (collection == null) {
+			throw new NullPointerException();
+		}
+
+		boolean changed = false;
+		for (String url : collection) {
+			if (add(url)) {
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes the head url of the first domain of the heap and reschedules the
+	 * domain after its politeness delay. Assumes that the calling thread has the
+	 * takeLock and that the first domain of the heap is eligible
+	 *
+	 * @return the head url of the first domain of the heap
+	 */
+	private String retrieveFromEligibleDomain() {
+		Subqueue subqueue = eligibleHeap.poll();
+		assert (subqueue != null);
+
+		Lock subqueueLock = subqueueLock(subqueue.domain);
+		subqueueLock.lock();
+		try {
+			String url = subqueue.queue.peek();
+			if (url != null) {
+				subqueue.queue.remove();
+				queueSize.getAndDecrement();
+			}
+
+			// Also set when the subqueue becomes empty so that a url added later waits too
+			subqueue.nextEligible = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(politenessDelay(subqueue));
+			if (subqueue.queue.isEmpty()) {
+				subqueue.scheduled = false;
+				scheduledCount.getAndDecrement();
+			} else {
+				eligibleHeap.add(subqueue);
+			}
+
+			if (!eligibleHeap.isEmpty()) {
+				available.signal();// Another consumer may wait for the next domain
+			}
+			return url;
+		} catch (IOException e) {
+			System.err.println("Could not peek or remove from subqueue");
+			throw new IllegalStateException(e);
+		} finally {
+			subqueueLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time in ns before the first domain of the heap is eligible, 0
+	 * if it is already eligible. Assumes that the calling thread has the takeLock
+	 * and that the heap is not empty
+	 */
+	private long nanosBeforeEligible() {
+		return Math.max(0, eligibleHeap.peek().nextEligible - System.nanoTime());
+	}
+
+	@Override
+	public String take() throws InterruptedException {
+		takeLock.lock();
+		try {
+			while (true) {
+				if (eligibleHeap.isEmpty()) {
+					available.await();// Wait for a domain to be scheduled
+					continue;
+				}
+				long delay = nanosBeforeEligible();
+				if (delay > 0) {
+					available.awaitNanos(delay);// Woken up earlier if a sooner domain is scheduled
+					continue;
+				}
+
+				String url = retrieveFromEligibleDomain();
+				if (url != null) {
+					return url;
+				}
+			}
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a url then the urls of the other eligible domains under the same lock
+	 * acquisition, a domain is never eligible twice in a batch
+	 */
+	@Override
+	public List<String> takeBatch(int maxElements) throws InterruptedException {
+		if (maxElements < 1) {
+			throw new IllegalArgumentException();
+		}
+		List<String> batch = new ArrayList<>(maxElements);
+		takeLock.lock();
+		try {
+			batch.add(take());// The takeLock is reentrant
+			String url;
+			while (batch.size() < maxElements && (url = poll()) != null) {
+				batch.add(url);
+			}
+			return batch;
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	@Override
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long timeoutNanos = unit.toNanos(timeout);
+		takeLock.lock();
+		try {
+			while (true) {
+				long delay = eligibleHeap.isEmpty() ? Long.MAX_VALUE : nanosBeforeEligible();
+				if (delay == 0) {
+					String url = retrieveFromEligibleDomain();
+					if (url != null) {
+						return url;
+					}
+					continue;
+				}
+				if (timeoutNanos <= 0) {
+					return null;
+				}
+				timeoutNanos = available.awaitNanos(Math.min(delay, timeoutNanos));
+			}
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the head url of the earliest eligible domain, or null if no domain
+	 * is eligible yet
+	 */
+	@Override
+	public String poll() {
+		takeLock.lock();
+		try {
+			while (!eligibleHeap.isEmpty() && nanosBeforeEligible() == 0) {
+				String url = retrieveFromEligibleDomain();
+				if (url != null) {
+					return url;
+				}
+			}
+			return null;
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	@Override
+	public String remove() {
+		String url = poll();
+		if (url == null) {
+			throw new NoSuchElementException();
+		}
+		return url;
+	}
+
+	/**
+	 * Returns the head url of the domain that will be eligible the earliest,
+	 * without waiting for it to be eligible
+	 */
+	@Override
+	public String peek() {
+		takeLock.lock();
+		try {
+			Subqueue subqueue = eligibleHeap.peek();
+			if (subqueue == null) {
+				return null;
+			}
+			Lock subqueueLock = subqueueLock(subqueue.domain);
+			subqueueLock.lock();
+			try {
+				return subqueue.queue.peek();
+			} finally {
+				subqueueLock.unlock();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not peek from subqueue");
+			throw new IllegalStateException(e);
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	@Override
+	public String element() {
+		String url = peek();
+		if (url == null) {
+			throw new NoSuchElementException();
+		}
+		return url;
+	}
+
+	@Override
+	public void reportFetch(String url, long latencyMillis, boolean success) {
+		Subqueue subqueue = domainToQueue.get(stringMapper(url));
+		if (subqueue != null) {
+			subqueue.statistics.recordFetch(latencyMillis, success);
+		}
+	}
+
+	@Override
+	public int size() {
+		return queueSize.get();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return queueSize.get() == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;// There is no limit to capacity
+	}
+
+	@Override
+	public int domainsDiscovered() {
+		return domainToQueue.size();
+	}
+
+	@Override
+	public double subqueueUtilization() {
+		int subqueueCount = domainToQueue.size();
+		if (subqueueCount == 0) {
+			return 1;
+		}
+		return ((double) scheduledCount.get()) / subqueueCount;
+	}
+
+	/**
+	 * Returns all the urls of the queue. Assumes that the calling thread holds all
+	 * the locks
+	 */
+	private List<String> allURLs() {
+		List<String> urls = new ArrayList<>(queueSize.get());
+		try {
+			for (Subqueue subqueue : domainToQueue.values()) {
+				urls.addAll(subqueue.queue.peek(subqueue.queue.size()));
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot peek from a subqueue");
+			throw new IllegalStateException(e);
+		}
+		return urls;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (o == null) {
+			return false;
+		}
+		fullyLock();
+		try {
+			return allURLs().contains(o);
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	@Override
+	public Object[] toArray() {
+		fullyLock();
+		try {
+			return allURLs().toArray();
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	@Override
+	public <T> T[] toArray(T[] array) {
+		fullyLock();
+		try {
+			return allURLs().toArray(array);
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	/**
+	 * Removes at most maxElements urls of the eligible domains
+	 */
+	@Override
+	public int drainTo(Collection<? super String> collection, int maxElements) {
+		if (collection == null) {
+			throw new NullPointerException();
+		}
+		if (collection == this) {
+			throw new IllegalArgumentException();
+		}
+
+		int drained = 0;
+		String url;
+		while (drained < maxElements && (url = poll()) != null) {
+			collection.add(url);
+			drained++;
+		}
+		return drained;
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void clear() {
+		fullyLock();
+		try {
+			for (Subqueue subqueue : domainToQueue.values()) {
+				subqueue.queue.clear();
+				subqueue.scheduled = false;
+			}
+			eligibleHeap.clear();
+			scheduledCount.set(0);
+			queueSize.set(0);
+		} catch (IOException e) {
+			System.err.println("Could not clear a subqueue");
+			throw new IllegalStateException(e);
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		fullyLock();
+		try {
+			for (Subqueue subqueue : domainToQueue.values()) {
+				subqueue.queue.close();
+			}
+			storage.close();
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Unsupported Operation
+	 */
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -1,33 +1,43 @@
 package ch.epfl.dlab.torcrawler;
 
-import java.io.Closeable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import com.squareup.tape2.ObjectQueue;
-import com.squareup.tape2.QueueFile;
 
 /*Room for improvement: 
- * - implement capacity restriction
  * - find a better way to deal with I/O exceptions
- * - have one lock per subqueue
  *
  */
 
@@ -38,18 +48,29 @@ import com.squareup.tape2.QueueFile;
 /**
  * @author Antoine Masanet
  * 
- *         Round Robin, thread safe, concurrent, persistent blocking queue using
- *         square/tape persistent ObjectQueue. This class enables the storage of
- *         urls in persistent subqueues with 1 subqueue per url domain. To
- *         enforce balanced querying of url, the fetching mechanism happens in
- *         round. At the start of a round, one url is picked from each domain
- *         subqueue and stored is the urlsRound queue. When a thread fetches a
- *         url from the queue, this urls is picked at the top of the linked
- *         list. When a thread puts a url in the queue, this url is added to the
- *         corresponding subqueue according to its domain As it is a blocking
- *         queue, whenever there is no url left to pick, the fetching thread
- *         waits until another thread puts a new url in the queue
+ *         Round Robin, thread safe, concurrent, persistent blocking queue of
+ *         urls with 1 subqueue per url domain. To enforce balanced querying of
+ *         url, the fetching mechanism happens in round. At the start of a
+ *         round, one url is picked from each active domain subqueue and stored
+ *         in the urlsRound queue. When a thread fetches a url from the queue,
+ *         this url is picked at the head of the current round. When a thread
+ *         puts a url in the queue, this url is added to the corresponding
+ *         subqueue according to its domain. As it is a blocking queue, whenever
+ *         there is no url left to pick, the fetching thread waits until another
+ *         thread puts a new url in the queue. The subqueues are persisted by a
+ *         SubqueueStorage (see SubqueueStorage.Mode and TieredSubqueueStorage).
  *
+ *         Besides the plain rounds, the adds are written in batches (addAll),
+ *         the queue may be bounded (setCapacity), weight its rounds
+ *         (setWeighted), enforce crawl budgets (setBudgets) and park failing
+ *         domains (setCircuitBreaker). restore loads the domains in the
+ *         background and a compactor retires the drained subqueues (compact).
+ *
+ *         LOCKING: as in LinkedBlockingQueue, consumers and producers use
+ *         different locks. Locks are acquired in this order: compactionLock,
+ *         flushLock, takeLock, then the stripes in index order. commitLock,
+ *         fullLock and spillLock are leaf locks: no other lock is acquired while
+ *         one of them is held.
  *
  *         CAVEATS: - in the java implementations, lock are lockedInterruptibly:
  *         http://fuseyism.com/classpath/doc/java/util/concurrent/LinkedBlockingQueue-source.html
@@ -57,73 +78,323 @@ import com.squareup.tape2.QueueFile;
  *         InterruptedException. We do not deal with this particular case in
  *         this implementation. - I/O exceptions will crash the program
  * 
- *         REMARKS: the method domainDiscovered is only valid if all domains are in the domainsToQueue map 
- *         CrawlerStatistics Capacity is infinite so adding threads can always
- *         add
+ *         REMARKS: the method domainDiscovered counts the domains of domainToQueue, the domains not restored yet
+ *         and the retired domains
  */
 
-public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable {
+public class RoundRobinBlockingQueue implements Frontier {
 
 	public static final String DEFAULT_FOLDER_NAME = "data/persistentRoundRobinQueue";
-	public static final String SUBQUEUE_FILE_SUFFIX = ".queue";
-	public static final String CURRENT_ROUND_QUEUE_NAME = "currentRound" + SUBQUEUE_FILE_SUFFIX;
+	public static final String SUBQUEUE_FILE_SUFFIX = TapeSubqueueStorage.QUEUE_FILE_SUFFIX;
+	public static final String CURRENT_ROUND_NAME = "currentRound";
+	public static final String CURRENT_ROUND_QUEUE_NAME = CURRENT_ROUND_NAME + SUBQUEUE_FILE_SUFFIX;
+	public static final int SUBQUEUE_LOCK_STRIPES = 64;// Must be a power of 2
+	public static final long COMMIT_WINDOW = 10;// Max time in ms a url added with addAll waits before being written
+	public static final int COMMIT_BATCH_SIZE = 1_000;// Number of pending urls that triggers a commit
+	public static final int MAX_PENDING = 10_000;// Number of pending urls above which addAll waits for a commit
+	public static final String OVERFLOW_FOLDER_NAME = "overflow";// Subfolder of the spilled urls
+	public static final String SPILL_QUEUE_NAME = "spill";
+	public static final int SPILL_CAPACITY = 10_000_000;// Default max number of spilled urls
+	public static final int SPILL_REFILL_BATCH = 1_000;// Max number of spilled urls moved back at each round
+	public static final int SPILL_REFILL_BACKOFF = 16;// Rounds without refill when most spilled urls are still full
+	public static final String WEIGHTS_FILE_NAME = "domainWeights.json";
+	public static final double REFERENCE_LATENCY = 1_000;// in ms, a domain always answering in this time gets 1 url per round
+	public static final double MIN_QUANTUM = 0.05;// A failing domain still gets a url every 1/MIN_QUANTUM rounds
+	public static final double MAX_QUANTUM = 4;// Max number of urls a domain earns per round
+	public static final int RESTORE_FIRST_SLICE = 1_000;// Domains loaded before restore returns
+	public static final int RESTORE_CHUNK_SIZE = 256;// Domains loaded by each background restore task
+	public static final String RETIRED_FILE_NAME = "retiredDomains.json";
+	public static final long COMPACTION_INTERVAL = 60_000;// Time between two compaction passes in ms
+	public static final long RETIRE_GRACE_PERIOD = 600_000;// Time in ms a subqueue stays drained before being retired
+	public static final long EXPECTED_BUDGET_HITS = 1_000_000;// Dropped urls the filter of the budget hits is first sized for, it grows past it
+	public static final int BREAKER_THRESHOLD = 5;// Consecutive fetch failures that park a domain, 0 disables the breakers
+	public static final long BREAKER_BASE_BACKOFF = 300_000;// Time in ms a domain is parked the first time its breaker opens
+	public static final long BREAKER_MAX_BACKOFF = 21_600_000;// Max time in ms a domain is parked
+	public static final long PROBE_TIMEOUT = 300_000;// Time in ms before an unreported probe is retried, above the fetch timeout
+	public static final long PARK_CHECK_INTERVAL = 1_000;// Max time in ms a consumer waits before checking the parked subqueues
+
+	/**
+	 * What put and offer do when the whole queue is full
+	 */
+	public enum OverflowPolicy {
+		BLOCK, // Wait for room, offer returns false
+		SPILL // Spill the url to the overflow queue
+	}
+
+	/**
+	 * Outcome of the insertion of a url in its subqueue
+	 */
+	private enum InsertResult {
+		INSERTED, QUEUE_FULL, DOMAIN_FULL, OVER_BUDGET, FAILED
+	}
 	
 
-	private Map<String, ObjectQueue<String>> domainToQueue;//Concurrent Map
+	private Map<String, Subqueue> domainToQueue;//Concurrent Map
+	/**
+	 * Subqueues that are not empty, in round order. A round only visits the
+	 * domains of the ring, so its cost is proportional to the number of active
+	 * domains and not to the number of domains ever discovered. A domain leaves
+	 * the ring when its subqueue is drained and rejoins it as soon as a url is
+	 * added to its subqueue.
+	 */
+	private final Queue<Subqueue> activeRing;
+	private final AtomicInteger activeCount;// Number of subqueues in the active ring
 	private AtomicInteger queueSize;
 	private ObjectQueue<String> urlsRound;
-	private final Lock lock;
+	private FingerprintIndex roundIndex;// Guarded by the takeLock, null until first needed after a restore
+	private final ReentrantLock takeLock;// Guards urlsRound
 	// Used to signal that the queue is not empty=> signal when add an elements
 	private final Condition notEmpty;
-	// Used to signal that the queue is not full (infinite capacity => not used) =>
-	// signal when remove an element
-	private final Condition notFull;
+	/**
+	 * Striped locks guarding the domain subqueues, a domain always maps to the
+	 * same stripe, so that producers adding to different domains do not block
+	 * each other and never block consumers taking from the current round. A
+	 * producer only takes the takeLock to wake up consumers when the queue goes
+	 * from empty to non empty.
+	 */
+	private final Lock[] subqueueLocks;
 	private String folderName;// Name of the folder where the queue will be stored, relative to project path
+	private final SubqueueStorage storage;// Persists the subqueues and the current round queue
+	private final ReentrantLock commitLock;// Guards the pending batch and the commit window, leaf lock
+	private final Condition commitNeeded;// Signaled when the committer thread should check the pending batch
+	private final ReentrantLock flushLock;// Serializes the commits so that batches are written in order
+	private final Condition commitDone;// Signaled when the pending batch is taken and when it is written
+	private Map<String, PendingURLs> pendingURLs;// Domain to urls added with addAll and not written yet
+	private final FingerprintIndex pendingIndex;// Urls pending or being written, guarded by commitLock
+	private volatile int pendingCount;// Written under commitLock, read without it by the capacity check
+	private long pendingSince;// System.nanoTime() when the first pending url was added
+	private long pendingBatch;// Number of the batch the urls added now join, guarded by commitLock
+	private long committedBatch;// Number of the last batch written and synced, guarded by commitLock
+	private long commitWindow;// in ms
+	private int commitBatchSize;
+	private boolean closed;// Guarded by commitLock, stops the committer thread
+	private volatile int capacity;// Integer.MAX_VALUE if unbounded
+	private volatile int domainCapacity;// Max size of a domain subqueue
+	private volatile int spillCapacity;// Max size of the overflow queue
+	private volatile OverflowPolicy overflowPolicy;
+	private final ReentrantLock fullLock;// Only used to wait for room, leaf lock
+	private final Condition notFull;// Signaled when a url leaves a bounded queue
+	private final ReentrantLock spillLock;// Guards spilledURLs, leaf lock
+	private final SubqueueStorage overflowStorage;
+	private ObjectQueue<String> spilledURLs;// Cold overflow queue
+	private FingerprintIndex spilledIndex;// Urls of spilledURLs, guarded by spillLock, null until first needed after a restore
+	private final AtomicInteger spilledCount;
+	private final AtomicInteger droppedCount;// Number of urls that did not fit in the overflow queue
+	private int refillBackoff;// Guarded by the takeLock, number of rounds to start without refill
+	private volatile boolean weighted;// Whether the rounds follow a deficit round robin
+	private final Set<String> pendingRestore;// Persisted domains that are not loaded yet
+	private Map<String, DomainStatistics> restoredWeights;// Weights read by restore, kept for the domains not loaded yet
+	private ExecutorService restorer;// Loads the persisted domains in the background, null if not restored
+	private volatile boolean restoreCancelled;
+	private volatile int restoreTotal;// Number of persisted domains to load
+	private final AtomicInteger restoredCount;
+	private long restoreStart;// System.nanoTime() when the restore started
+	private final Map<String, DomainStatistics> retiredDomains;// Concurrent Map, domains whose drained subqueue was deleted
+	private final ReentrantLock compactionLock;// Held during a compaction pass, never acquired with other locks held
+	private final Condition compactionStopped;// Signaled on close
+	private long compactionInterval;// Guarded by the compactionLock, in ms
+	private volatile long retireGracePeriod;// in ms
+	private boolean compactionClosed;// Guarded by the compactionLock, stops the compactor thread
+	private volatile Map<String, CrawlBudget> budgets;// Domain to budget, replaced as a whole by setBudgets
+	private final BloomFilter budgetHitFilter;// Thread safe, urls already counted as budget hits since the queue was opened
+	private final Set<Subqueue> parkedSubqueues;// Concurrent Set, subqueues whose breaker is open
+	private final AtomicInteger parkedBacklog;// Number of parked subqueues out of the ring that still hold urls
+	private final AtomicLong nextUnpark;// System.currentTimeMillis() when the first parked subqueue may be probed
+	private volatile int breakerThreshold;
+	private volatile long breakerBaseBackoff;// in ms
+	private volatile long breakerMaxBackoff;// in ms
+
+	/**
+	 * A domain subqueue and its round bookkeeping. The fields are guarded by the
+	 * stripe lock of the domain
+	 */
+	private static final class Subqueue {
+		final String domain;
+		final ObjectQueue<String> queue;
+		final DomainStatistics statistics;// Thread safe, reported by the fetcher threads
+		boolean active;// Whether the subqueue is in the active ring
+		long drainedSince;// System.nanoTime() when the subqueue was last found empty
+		FingerprintIndex index;// Urls of the subqueue, null until first needed after a restore
+		double deficit;// Number of urls the domain may still give in weighted rounds, guarded by the takeLock
+		boolean parked;// Out of the rounds because its breaker is open, may stay in the ring until the next round
+		boolean inParkedBacklog;// Whether the subqueue is counted by parkedBacklog
+
+		Subqueue(String domain, ObjectQueue<String> queue) {
+			this(domain, queue, new DomainStatistics());
+		}
+
+		Subqueue(String domain, ObjectQueue<String> queue, DomainStatistics statistics) {
+			this.domain = domain;
+			this.queue = queue;
+			this.statistics = statistics;
+			this.active = false;
+			this.deficit = 0;
+			this.parked = false;
+			this.drainedSince = System.nanoTime();
+			this.index = null;
+		}
+	}
+
+	/**
+	 * Urls of a domain waiting for the next commit, in order
+	 */
+	private static final class PendingURLs {
+		final List<String> admitted = new ArrayList<>();// Already admitted by withinBudget, never dropped
+		final List<String> unchecked = new ArrayList<>();// Checked against the budget of the domain at commit
+	}
 
 	/**
 	 * Create a round robin blocking queue in the specified folder. IMPORTANT:
 	 * urlsRound is not initialized
 	 * 
 	 * @param folder: Where the subqueues should be stored
+	 * @param storage: the storage of the subqueues, opened in the same folder
 	 */
-	private RoundRobinBlockingQueue(String folder) {
+	private RoundRobinBlockingQueue(String folder, SubqueueStorage storage) {
 
 		assert (folder != null);
+		assert (storage != null);
 
 		domainToQueue = new ConcurrentHashMap<>();
+		activeRing = new ConcurrentLinkedQueue<>();
+		activeCount = new AtomicInteger(0);
 		queueSize = new AtomicInteger(0);
 		urlsRound = null;// IMPORTANT: the create or restore function must initialise this field
-		lock = new ReentrantLock();// Lock that won't fail if acquired multiple times by same thread
-		notEmpty = lock.newCondition();
-		notFull = lock.newCondition();
+		roundIndex = null;
+		takeLock = new ReentrantLock();// Lock that won't fail if acquired multiple times by same thread
+		notEmpty = takeLock.newCondition();
+		subqueueLocks = new Lock[SUBQUEUE_LOCK_STRIPES];
+		for (int i = 0; i < SUBQUEUE_LOCK_STRIPES; ++i) {
+			subqueueLocks[i] = new ReentrantLock();
+		}
 		this.folderName = folder;
+		this.storage = storage;
+		commitLock = new ReentrantLock();
+		commitNeeded = commitLock.newCondition();
+		commitDone = commitLock.newCondition();
+		flushLock = new ReentrantLock();
+		pendingURLs = new HashMap<>();
+		pendingIndex = new FingerprintIndex();
+		pendingCount = 0;
+		pendingBatch = 1;
+		committedBatch = 0;
+		commitWindow = COMMIT_WINDOW;
+		commitBatchSize = COMMIT_BATCH_SIZE;
+		closed = false;
+		capacity = Integer.MAX_VALUE;
+		domainCapacity = Integer.MAX_VALUE;
+		spillCapacity = SPILL_CAPACITY;
+		overflowPolicy = OverflowPolicy.BLOCK;
+		fullLock = new ReentrantLock();
+		notFull = fullLock.newCondition();
+		spillLock = new ReentrantLock();
+		overflowStorage = new TapeSubqueueStorage(new File(folder, OVERFLOW_FOLDER_NAME).getPath());
+		spilledURLs = null;// IMPORTANT: the create or restore function must initialise this field
+		spilledIndex = null;
+		spilledCount = new AtomicInteger(0);
+		droppedCount = new AtomicInteger(0);
+		refillBackoff = 0;
+		weighted = false;
+		pendingRestore = ConcurrentHashMap.newKeySet();
+		restoredWeights = new HashMap<>();
+		restorer = null;
+		restoreCancelled = false;
+		restoreTotal = 0;
+		restoredCount = new AtomicInteger(0);
+		retiredDomains = new ConcurrentHashMap<>();
+		compactionLock = new ReentrantLock();
+		compactionStopped = compactionLock.newCondition();
+		compactionInterval = COMPACTION_INTERVAL;
+		retireGracePeriod = RETIRE_GRACE_PERIOD;
+		compactionClosed = false;
+		budgets = Collections.emptyMap();
+		budgetHitFilter = new BloomFilter(EXPECTED_BUDGET_HITS);
+		parkedSubqueues = ConcurrentHashMap.newKeySet();
+		parkedBacklog = new AtomicInteger(0);
+		nextUnpark = new AtomicLong(Long.MAX_VALUE);
+		breakerThreshold = BREAKER_THRESHOLD;
+		breakerBaseBackoff = BREAKER_BASE_BACKOFF;
+		breakerMaxBackoff = BREAKER_MAX_BACKOFF;
+
+		// Not interrupted on close: an interrupt during a write would close the file channels
+		Thread committer = new Thread() {
+			@Override
+			public void run() {
+				while (awaitCommit()) {
+					flush();
+				}
+			}
+		};
+		committer.setDaemon(true);
+		committer.start();
+
+		Thread compactor = new Thread() {
+			@Override
+			public void run() {
+				while (awaitCompaction()) {
+					compact();
+				}
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
 	}
 
 	/**
-	 * Create a round robin blocking queue in the default folder. IMPORTANT:
-	 * urlsRound is not initialized
+	 * Creates a new RoundRobinQueue in the following folder whose subqueues share
+	 * a segmented log, so that a batch of addAll is forced with a single fsync
+	 * IMPORTANT: all queue files (.queue, .mqueue and .segment) and queues stored
+	 * in this folder will be deleted
+	 * 
+	 * @param folder
+	 * @return a new Round Robin blocking queue
 	 */
-	private RoundRobinBlockingQueue() {
-		this(DEFAULT_FOLDER_NAME);
+	public static RoundRobinBlockingQueue create(String folder) {
+		return create(folder, SubqueueStorage.Mode.SEGMENTED_LOG);
 	}
 
 	/**
-	 * Creates a new RoundRobinQueue in the following folder IMPORTANT: all queue
-	 * files (.queue) and queues stored in this folder will be deleted
+	 * Creates a new RoundRobinQueue in the following folder whose subqueues are
+	 * persisted with the given storage mode IMPORTANT: all queue files (.queue,
+	 * .mqueue and .segment) and queues stored in this folder will be deleted
 	 * 
 	 * @param folder
+	 * @param mode: how the subqueues are persisted
 	 * @return a new Round Robin blocking queue
 	 */
-	public static RoundRobinBlockingQueue create(String folder) {
+	public static RoundRobinBlockingQueue create(String folder, SubqueueStorage.Mode mode) {
+		return create(folder, mode, false);
+	}
+
+	/**
+	 * Creates a new RoundRobinQueue in the following folder whose subqueues are
+	 * persisted with the given storage mode, optionally with in-memory head and
+	 * tail buffers over the persisted subqueues (see TieredSubqueueStorage)
+	 * IMPORTANT: all queue files (.queue, .mqueue, .segment and journal) and
+	 * queues stored in this folder will be deleted
+	 * 
+	 * @param folder
+	 * @param mode:   how the subqueues are persisted
+	 * @param tiered: whether the subqueues are buffered in memory
+	 * @return a new Round Robin blocking queue
+	 */
+	public static RoundRobinBlockingQueue create(String folder, SubqueueStorage.Mode mode, boolean tiered) {
 
 		File dir = new File(folder);
+		dir.mkdirs();
 		for (File file : dir.listFiles()) {
-			if (!file.isDirectory() && file.getPath().endsWith(SUBQUEUE_FILE_SUFFIX)) {
+			if (!file.isDirectory() && (file.getPath().endsWith(SUBQUEUE_FILE_SUFFIX)
+					|| file.getPath().endsWith(TapeSubqueueStorage.MAPPED_QUEUE_FILE_SUFFIX)
+					|| file.getPath().endsWith(SegmentedLogStorage.SEGMENT_FILE_SUFFIX)
+					|| file.getName().equals(TieredSubqueueStorage.JOURNAL_FILE_NAME))) {
 				file.delete();
 			}
 		}
-		RoundRobinBlockingQueue queue = new RoundRobinBlockingQueue(folder);
-		queue.urlsRound = createNewQueue(folder, CURRENT_ROUND_QUEUE_NAME);
+		RoundRobinBlockingQueue queue = new RoundRobinBlockingQueue(folder, openStorage(folder, mode, tiered));
+		queue.urlsRound = createNewQueue(queue.storage, CURRENT_ROUND_NAME);
+		queue.roundIndex = new FingerprintIndex();
+		queue.spilledURLs = createNewQueue(queue.overflowStorage, SPILL_QUEUE_NAME);
+		queue.spilledIndex = new FingerprintIndex();
 
 		return queue;
 	}
@@ -140,33 +411,184 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	}
 
 	/**
-	 * Restore a roundRobinBlockingQueue from the .queue files left by a previous
-	 * round robin blocking queue
+	 * Creates a new RoundRobinQueue in the default folder with the following
+	 * launch options IMPORTANT: all queue files and queues stored in this folder
+	 * will be deleted
+	 * 
+	 * @param config: how the subqueues are persisted
+	 * @return a new Round Robin blocking queue
+	 */
+	public static RoundRobinBlockingQueue create(FrontierConfig config) {
+		return create(DEFAULT_FOLDER_NAME, config.getStorage(), config.isTiered());
+	}
+
+	/**
+	 * Restore a roundRobinBlockingQueue from the files left by a previous round
+	 * robin blocking queue, the storage mode (and whether it was tiered) is
+	 * inferred from the files of the folder. Loads the current round and a first
+	 * slice of RESTORE_FIRST_SLICE domains, then returns while the other domains
+	 * are loaded in the background by a pool of one thread per core. A domain
+	 * that receives a url before being loaded is loaded at once, so that its
+	 * persisted urls are never overwritten. The operations on the whole queue
+	 * (clear, toArray...) wait for the restore to complete.
 	 * 
 	 * @param folder: the folder where the previous queue was persisted
 	 * @return the restored round robin queue
 	 */
 	public static RoundRobinBlockingQueue restore(String folder) {
-		RoundRobinBlockingQueue queue = new RoundRobinBlockingQueue(folder);
+		SubqueueStorage storage = openStorage(folder, SubqueueStorage.detect(folder),
+				TieredSubqueueStorage.isTiered(folder));
+		RoundRobinBlockingQueue queue = new RoundRobinBlockingQueue(folder, storage);
 
-		String[] queueNames = new File(folder).list();// All the files in the folder
-
-		queue.urlsRound = restoreQueue(folder, CURRENT_ROUND_QUEUE_NAME);
+		queue.urlsRound = restoreQueue(storage, CURRENT_ROUND_NAME);
 		queue.queueSize.addAndGet(queue.urlsRound.size());
+		queue.spilledURLs = restoreQueue(queue.overflowStorage, SPILL_QUEUE_NAME);
+		if (queue.spilledURLs == null) {// Persisted before the overflow queue existed
+			queue.spilledURLs = createNewQueue(queue.overflowStorage, SPILL_QUEUE_NAME);
+		}
+		queue.spilledCount.set(queue.spilledURLs.size());
+		queue.restoredWeights = loadWeights(folder);
+
+		List<String> domains = storage.queueNames();
+		domains.remove(CURRENT_ROUND_NAME);
+		Set<String> persisted = new HashSet<>(domains);
+		for (String domain : loadRetiredDomains(folder)) {
+			if (!persisted.contains(domain)) {
+				DomainStatistics statistics = queue.restoredWeights.get(domain);
+				queue.retiredDomains.put(domain, statistics != null ? statistics : new DomainStatistics());
+			}
+		}
+		queue.startRestore(domains);
+
+		return queue;
+	}
 
-		for (int i = 0; i < queueNames.length; ++i) {
-			String fileName = queueNames[i];
-			if (!fileName.equals(CURRENT_ROUND_QUEUE_NAME) && fileName.endsWith(SUBQUEUE_FILE_SUFFIX)) {
+	/**
+	 * Loads the domains in parallel: waits for the first slice, the others are
+	 * loaded in the background
+	 * 
+	 * @param domains: the persisted domains
+	 */
+	private void startRestore(List<String> domains) {
+		restoreStart = System.nanoTime();
+		restoreTotal = domains.size();
+		pendingRestore.addAll(domains);
+		if (domains.isEmpty()) {
+			return;
+		}
 
-				ObjectQueue<String> subqueue = restoreQueue(folder, fileName);
-				assert (subqueue != null);
-				String domain = fileName.substring(0, fileName.lastIndexOf('.'));// Remove suffix
-				queue.domainToQueue.put(domain, subqueue);
-				queue.queueSize.addAndGet(subqueue.size());
+		restorer = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+		int firstSlice = Math.min(RESTORE_FIRST_SLICE, domains.size());
+		List<Future<?>> firstTasks = new ArrayList<>();
+		for (int start = 0; start < domains.size(); start += RESTORE_CHUNK_SIZE) {
+			List<String> chunk = domains.subList(start, Math.min(start + RESTORE_CHUNK_SIZE, domains.size()));
+			Future<?> task = restorer.submit(() -> {
+				for (String domain : chunk) {
+					if (restoreCancelled) {
+						return;
+					}
+					restoreDomain(domain);
+				}
+			});
+			if (start < firstSlice) {
+				firstTasks.add(task);
 			}
 		}
+		restorer.shutdown();// The submitted tasks still run
 
-		return queue;
+		for (Future<?> task : firstTasks) {
+			try {
+				task.get();
+			} catch (Exception e) {
+				System.err.println("Could not restore the first domains");
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Loads the subqueue of the domain if it has been persisted by a previous
+	 * queue and has not been loaded yet. Takes the stripe lock of the domain then
+	 * the takeLock, one after the other: must not be called with a stripe lock
+	 * or a leaf lock held, the takeLock may be held.
+	 * 
+	 * @param domain
+	 */
+	private void restoreDomain(String domain) {
+		if (!pendingRestore.contains(domain)) {
+			return;
+		}
+
+		boolean wasEmpty = false;
+		Lock subqueueLock = subqueueLock(domain);
+		subqueueLock.lock();
+		try {
+			if (!pendingRestore.remove(domain)) {
+				return;// Loaded by another thread
+			}
+			ObjectQueue<String> subqueue = restoreQueue(storage, domain);
+			if (subqueue != null) {
+				DomainStatistics statistics = restoredWeights.get(domain);
+				Subqueue restored = statistics != null ? new Subqueue(domain, subqueue, statistics)
+						: new Subqueue(domain, subqueue);
+				domainToQueue.put(domain, restored);
+				if (!subqueue.isEmpty()) {
+					activateOrPark(restored);
+					// Incremented last so that a consumer seeing the new size finds the domain in the ring
+					wasEmpty = queueSize.getAndAdd(subqueue.size()) == 0;
+				}
+			}
+		} finally {
+			subqueueLock.unlock();
+		}
+
+		if (restoredCount.incrementAndGet() == restoreTotal) {
+			System.out.println("Restored " + restoreTotal + " subqueues in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - restoreStart) + " ms");
+		}
+		if (wasEmpty) {
+			signalNotEmpty();
+		}
+	}
+
+	/**
+	 * Waits until the background restore is over, either completed or cancelled
+	 * by close
+	 */
+	public void awaitRestore() {
+		ExecutorService restorer = this.restorer;
+		if (restorer == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (restorer.awaitTermination(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the fraction of the persisted domains loaded by restore, 1 if the
+	 * queue has been created
+	 */
+	@Override
+	public double restoreProgress() {
+		if (restoreTotal == 0) {
+			return 1;
+		}
+		return ((double) restoredCount.get()) / restoreTotal;
 	}
 
 	/**
@@ -197,6 +619,53 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 		 //return url.substring(0, 1);//for testing purposes
 	}
 
+	/**
+	 * Returns the lock guarding the subqueue of the following domain
+	 * 
+	 * @param domain
+	 * @return the stripe lock of the domain
+	 */
+	private Lock subqueueLock(String domain) {
+		int hash = domain.hashCode();
+		hash ^= (hash >>> 16);// Spread the high bits as in HashMap
+		return subqueueLocks[hash & (SUBQUEUE_LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Locks to prevent both takes and puts, the locks are always acquired in the
+	 * same order to avoid deadlocks
+	 */
+	private void fullyLock() {
+		awaitRestore();// The restorer takes the stripe locks
+		takeLock.lock();
+		for (Lock stripe : subqueueLocks) {
+			stripe.lock();
+		}
+	}
+
+	/**
+	 * Unlocks to allow both takes and puts
+	 */
+	private void fullyUnlock() {
+		for (int i = subqueueLocks.length - 1; i >= 0; --i) {
+			subqueueLocks[i].unlock();
+		}
+		takeLock.unlock();
+	}
+
+	/**
+	 * Signals a waiting take. Called only from add (which does not otherwise
+	 * lock takeLock), when the queue goes from empty to non empty
+	 */
+	private void signalNotEmpty() {
+		takeLock.lock();
+		try {
+			notEmpty.signal();
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
 	/**
 	 * Create a subqueue with the following domain as identifier, if a queue with
 	 * the same domain name already exists, it will be erased
@@ -205,155 +674,1294 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	 * @return a new subqueue
 	 */
 	private ObjectQueue<String> createSubqueue(String domain) {
+		return createNewQueue(storage, domain);
+	}
+
+	/**
+	 * Creates the subqueue of a domain that has no subqueue, a retired domain gets
+	 * back its statistics. Assumes that the calling thread has the stripe lock of
+	 * the domain
+	 * 
+	 * @param domain
+	 * @return a new empty subqueue
+	 */
+	private Subqueue newSubqueue(String domain) {
+		ObjectQueue<String> queue = createSubqueue(domain);
+		DomainStatistics statistics = retiredDomains.remove(domain);
+		Subqueue subqueue = statistics != null ? new Subqueue(domain, queue, statistics) : new Subqueue(domain, queue);
+		subqueue.index = new FingerprintIndex();
+		return subqueue;
+	}
+
+	/**
+	 * Returns the index of the subqueue, built from its file the first time it is
+	 * needed after a restore. Assumes that the calling thread has the stripe lock
+	 * of the domain
+	 * 
+	 * @param subqueue
+	 * @return the index of the urls of the subqueue
+	 */
+	private static FingerprintIndex index(Subqueue subqueue) {
+		if (subqueue.index == null) {
+			subqueue.index = FingerprintIndex.of(subqueue.queue);
+		}
+		return subqueue.index;
+	}
+
+	/**
+	 * Returns the index of the current round queue, built from its file the first
+	 * time it is needed after a restore. Assumes that the calling thread has the
+	 * takeLock
+	 * 
+	 * @return the index of the urls of the current round
+	 */
+	private FingerprintIndex roundIndex() {
+		if (roundIndex == null) {
+			roundIndex = FingerprintIndex.of(urlsRound);
+		}
+		return roundIndex;
+	}
+
+	/**
+	 * Returns the index of the overflow queue, built from its file the first time
+	 * it is needed after a restore. Assumes that the calling thread has the
+	 * spillLock
+	 * 
+	 * @return the index of the spilled urls
+	 */
+	private FingerprintIndex spilledIndex() {
+		if (spilledIndex == null) {
+			spilledIndex = FingerprintIndex.of(spilledURLs);
+		}
+		return spilledIndex;
+	}
 
-		String queueName = domain + SUBQUEUE_FILE_SUFFIX;
-		return createNewQueue(folderName, queueName);
+	/**
+	 * Opens the subqueue storage of the following mode in the following folder,
+	 * the program should crash if the storage cannot be opened
+	 * 
+	 * @param folderName: where the subqueues are stored
+	 * @param mode:       the storage backend
+	 * @param tiered:     whether the subqueues are buffered in memory
+	 * @return the opened storage
+	 */
+	private static SubqueueStorage openStorage(String folderName, SubqueueStorage.Mode mode, boolean tiered) {
+		try {
+			return SubqueueStorage.open(folderName, mode, tiered);
+		} catch (IOException e) {
+			System.err.println("Could not open the subqueue storage");
+			throw new IllegalStateException(e);
+		}
 	}
 
 	/**
-	 * Creates a queue in the following folder with the following queueName
-	 * IMPORTANT: if a queue in the same folder with the same name already exists,
-	 * it will be erased
+	 * Creates a queue in the storage with the following queueName IMPORTANT: if a
+	 * queue with the same name already exists, it will be erased
 	 * 
-	 * @param folderName:    where to save the queue
-	 * @param queueFileName: name of the queue
+	 * @param storage:   where to save the queue
+	 * @param queueName: name of the queue
 	 * @return a new ObjectQueue for urls
 	 */
-	private static ObjectQueue<String> createNewQueue(String folderName, String queueFileName) {
-		QueueFile queueFile = null;
+	private static ObjectQueue<String> createNewQueue(SubqueueStorage storage, String queueName) {
 		try {
-			File file = new File(folderName, queueFileName);
-			Files.deleteIfExists(file.toPath());// To make sure we always create a new file
-			queueFile = new QueueFile.Builder(new File(folderName, queueFileName)).build();
+			return storage.createQueue(queueName);
 		} catch (IOException e) {
-			System.err.println("Could not create queueFile");
+			System.err.println("Could not create queue");
 			e.printStackTrace();
 			return null;
 		}
-		return ObjectQueue.create(queueFile, new StringConverter());
 	}
 
 	/**
-	 * Restores queue from an existing queue file, returns null if file does not
-	 * exist
+	 * Restores queue from the storage, returns null if the queue does not exist
 	 * 
-	 * @param folderName:    where the queue is stored
-	 * @param queueFileName: the name of the file
+	 * @param storage:   where the queue is stored
+	 * @param queueName: the name of the queue
 	 * @return the restored queue
 	 */
-	private static ObjectQueue<String> restoreQueue(String folderName, String queueFileName) {
-		QueueFile queueFile = null;
+	private static ObjectQueue<String> restoreQueue(SubqueueStorage storage, String queueName) {
 		try {
-			File file = new File(folderName, queueFileName);
-			if (!file.exists()) {
+			ObjectQueue<String> queue = storage.restoreQueue(queueName);
+			if (queue == null) {
 				System.err.println("Cannot restore queue from non existing file");
-				return null;
 			}
-			queueFile = new QueueFile.Builder(new File(folderName, queueFileName)).build();
+			return queue;
 		} catch (IOException e) {
-			System.err.println("Could not create queueFile");
+			System.err.println("Could not restore queue");
 			e.printStackTrace();
 			return null;
 		}
-		return ObjectQueue.create(queueFile, new StringConverter());
 	}
 
 	/**
-	 * If the current round queue is empty, refills it by taking a url from each
-	 * subqueue IMPORTANT: Assumes the calling thread has the lock so no one can
-	 * access the queue
+	 * Adds the subqueue at the end of the active ring. Assumes that the calling
+	 * thread has the stripe lock of the subqueue domain
 	 * 
-	 * @return true if a new round with at least one item has been generated
+	 * @param subqueue: an inactive subqueue which is not empty
 	 */
-	private boolean optionallyGenerateNewRound() {
-		if (!urlsRound.isEmpty()) {
-			return false;
+	private void activate(Subqueue subqueue) {
+		assert (!subqueue.active);
+		subqueue.active = true;
+		activeCount.getAndIncrement();
+		activeRing.add(subqueue);
+		updateParkedBacklog(subqueue);
+	}
+
+	/**
+	 * Takes the subqueue out of the active ring count, the caller has already
+	 * polled it from the ring. Assumes that the calling thread holds the takeLock
+	 * and the stripe lock of the subqueue
+	 */
+	private void deactivate(Subqueue subqueue) {
+		assert (subqueue.active);
+		subqueue.active = false;
+		activeCount.getAndDecrement();
+		updateParkedBacklog(subqueue);
+	}
+
+	/**
+	 * Counts the subqueue in parkedBacklog while it is parked out of the ring and
+	 * still holds urls. Assumes that the calling thread holds the stripe lock of
+	 * the subqueue
+	 */
+	private void updateParkedBacklog(Subqueue subqueue) {
+		boolean backlog = subqueue.parked && !subqueue.active && !subqueue.queue.isEmpty();
+		if (backlog != subqueue.inParkedBacklog) {
+			subqueue.inParkedBacklog = backlog;
+			parkedBacklog.getAndAdd(backlog ? 1 : -1);
 		}
+	}
 
-		if (isEmpty()) {
-			System.out.println("There are no more threads in the queue, cannot generate a new round");
+	/**
+	 * Adds the subqueue at the end of the active ring, or parks it if the breaker
+	 * of its domain is open and its backoff has not elapsed. Assumes that the
+	 * calling thread has the stripe lock of the subqueue domain
+	 * 
+	 * @param subqueue: an inactive subqueue which is not empty
+	 */
+	private void activateOrPark(Subqueue subqueue) {
+		if (subqueue.parked) {
+			updateParkedBacklog(subqueue);// Got urls while parked
+			return;// Activated when unparked
+		}
+		long parkedUntil = subqueue.statistics.getParkedUntil();
+		if (parkedUntil > System.currentTimeMillis()) {
+			park(subqueue, parkedUntil);
+		} else {
+			activate(subqueue);
+		}
+	}
+
+	/**
+	 * Takes the subqueue out of the rounds until the following time. A subqueue
+	 * in the active ring is only dropped from it by the next round. Assumes that
+	 * the calling thread has the stripe lock of the subqueue domain
+	 * 
+	 * @param subqueue
+	 * @param until:    System.currentTimeMillis() when the subqueue may be
+	 *                  unparked
+	 */
+	private void park(Subqueue subqueue, long until) {
+		subqueue.parked = true;
+		parkedSubqueues.add(subqueue);
+		nextUnpark.accumulateAndGet(until, Math::min);
+		updateParkedBacklog(subqueue);
+	}
+
+	/**
+	 * Puts a parked subqueue back in the rounds. Assumes that the calling thread
+	 * has the stripe lock of the subqueue domain
+	 * 
+	 * @param subqueue
+	 * @return whether the subqueue joined the active ring
+	 */
+	private boolean unpark(Subqueue subqueue) {
+		subqueue.parked = false;
+		parkedSubqueues.remove(subqueue);
+		updateParkedBacklog(subqueue);
+		if (subqueue.active || subqueue.queue.isEmpty()) {
 			return false;
 		}
+		activate(subqueue);
+		return true;
+	}
 
-		for (ObjectQueue<String> queue : domainToQueue.values()) {
-			String url = null;
+	/**
+	 * Unparks the subqueues whose backoff has elapsed, their domain is probed by
+	 * the next round. IMPORTANT: Assumes the calling thread has the takeLock,
+	 * the parked subqueues are only visited once the first backoff has elapsed.
+	 */
+	private void unparkDue() {
+		long now = System.currentTimeMillis();
+		if (now < nextUnpark.get()) {
+			return;
+		}
+		nextUnpark.set(Long.MAX_VALUE);
+		for (Subqueue subqueue : parkedSubqueues) {
+			Lock subqueueLock = subqueueLock(subqueue.domain);
+			subqueueLock.lock();
 			try {
-				url = queue.peek();
-				if (url != null) {
-					urlsRound.add(url);
-					queue.remove();
+				long parkedUntil = subqueue.statistics.getParkedUntil();
+				if (!subqueue.parked) {
+					parkedSubqueues.remove(subqueue);
+				} else if (parkedUntil > now) {
+					nextUnpark.accumulateAndGet(parkedUntil, Math::min);
+				} else {
+					unpark(subqueue);
 				}
-			} catch (IOException e) {
-				System.err.println("Cannot peek or remove elements from a subqueue");
-				e.printStackTrace();
+			} finally {
+				subqueueLock.unlock();
 			}
 		}
+	}
 
-		if (urlsRound.isEmpty()) {// Should never happen, if it happens, the program should crash
-			throw new IllegalStateException();
+	/**
+	 * Called when a url of the subqueue has been moved to the round queue: if the
+	 * breaker of the domain is half open, the url is its probe and the subqueue
+	 * is parked until the probe is reported. Assumes that the calling thread has
+	 * the stripe lock of the subqueue domain
+	 * 
+	 * @param subqueue
+	 */
+	private void parkAfterProbe(Subqueue subqueue) {
+		if (subqueue.parked || !subqueue.statistics.isBreakerOpen()) {
+			return;// Closed, or opened while the round was generated
 		}
+		long until = System.currentTimeMillis() + PROBE_TIMEOUT;
+		subqueue.statistics.startProbe(until);
+		park(subqueue, until);
+	}
 
-		return true;
+	/**
+	 * Returns how long a consumer may wait before a parked subqueue may be
+	 * unparked, at most PARK_CHECK_INTERVAL ms
+	 * 
+	 * @return the time to wait in ns, Long.MAX_VALUE if no subqueue is parked
+	 */
+	private long parkedWaitNanos() {
+		if (parkedSubqueues.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		long delay = Math.min(nextUnpark.get() - System.currentTimeMillis(), PARK_CHECK_INTERVAL);
+		return TimeUnit.MILLISECONDS.toNanos(Math.max(1, delay));
 	}
 
-	@Override
-	public boolean add(String url) {
-		if (url == null) {
-			throw new NullPointerException();
+	/**
+	 * Assumes the calling thread has the takeLock. Makes sure the current round
+	 * queue holds a url if one can be handed out: moves spilled urls back and
+	 * generates a new round if needed.
+	 * 
+	 * @return false if the queue is empty or if every url left is in a parked
+	 *         subqueue
+	 */
+	private boolean prepareRound() {
+		if (isEmpty() && !refillFromSpill()) {
+			return false;
 		}
+		optionallyGenerateNewRound();
+		return !urlsRound.isEmpty();
+	}
 
-		String domain = stringMapper(url);
+	/**
+	 * If the current round queue is empty, refills it by taking a url from each
+	 * subqueue of the active ring IMPORTANT: Assumes the calling thread has the
+	 * takeLock, each subqueue is locked only while its url is moved. The
+	 * subqueues that are still not empty are put back at the end of the ring
+	 * for the next round.
+	 * 
+	 * @return true if a new round with at least one item has been generated
+	 */
+	private boolean optionallyGenerateNewRound() {
+		if (!urlsRound.isEmpty()) {
+			return false;
+		}
 
-		if (domain == null) {
-			System.err.println("Could not extract domain from url using stringMapper");
+		if (refillBackoff > 0) {
+			refillBackoff--;
+		} else {
+			refillFromSpill();
+		}
+		unparkDue();
+		if (isEmpty()) {
+			System.out.println("There are no more threads in the queue, cannot generate a new round");
 			return false;
 		}
+		if (activeCount.get() == 0 && !parkedSubqueues.isEmpty()) {
+			return false;// Every url left is in a parked subqueue
+		}
 
-		lock.lock();
-		try {
-			ObjectQueue<String> subqueue = domainToQueue.get(domain);
+		if (weighted) {
+			generateWeightedRound();
+			return !urlsRound.isEmpty();
+		}
 
-			if (subqueue == null) {// This is a new domain=> create new queue
-				subqueue = createSubqueue(domain);
-				domainToQueue.put(domain, subqueue);
+		int roundLength = activeCount.get();// Domains activated during the round wait for the next one
+		for (int i = 0; i < roundLength; ++i) {
+			Subqueue subqueue = activeRing.poll();
+			if (subqueue == null) {
+				break;
 			}
 
+			Lock subqueueLock = subqueueLock(subqueue.domain);
+			subqueueLock.lock();
 			try {
-				subqueue.add(url);
-				queueSize.getAndIncrement();
-				notEmpty.signalAll();// Signal a consumer thread to wake him up if it is sleeping
-				return true;
+				if (subqueue.parked) {// Parked since it joined the ring
+					deactivate(subqueue);
+					continue;
+				}
+
+				String url = subqueue.queue.peek();
+				if (url != null) {
+					urlsRound.add(url);
+					subqueue.queue.remove();
+					if (roundIndex != null) {
+						roundIndex.add(url);
+					}
+					if (subqueue.index != null) {
+						subqueue.index.remove(url);
+					}
+					parkAfterProbe(subqueue);
+				}
 
+				if (subqueue.queue.isEmpty()) {
+					subqueue.drainedSince = System.nanoTime();
+					deactivate(subqueue);
+				} else if (subqueue.parked) {
+					deactivate(subqueue);
+				} else {
+					activeRing.add(subqueue);
+				}
 			} catch (IOException e) {
-				System.err.println("Could not add url" + url + "to subqueue");
+				System.err.println("Cannot peek or remove elements from a subqueue");
 				e.printStackTrace();
-				return false;
+			} finally {
+				subqueueLock.unlock();
 			}
-
-		} finally {
-			lock.unlock();
 		}
-	}
 
-	@Override
-	public boolean offer(String url) {
-		return add(url);// There is no capacity restriction
-	}
+		if (urlsRound.isEmpty()) {
+			if (!parkedSubqueues.isEmpty()) {
+				return false;// The ring only held parked subqueues
+			}
+			throw new IllegalStateException();// Should never happen, if it happens, the program should crash
+		}
 
-	@Override
-	public void put(String url) throws InterruptedException {
-		add(url);// There is no capacity restriction
+		return true;
+	}
+
+	/**
+	 * Fills the current round queue following a deficit round robin: each domain
+	 * of the active ring earns its quantum and gives as many urls as its deficit
+	 * allows. If no domain has earned a url, the ring is visited again.
+	 * IMPORTANT: Assumes the calling thread has the takeLock and that the queue
+	 * is not empty. The urls are written to the round queue before being removed
+	 * from their subqueue: a crash in between duplicates urls but loses none.
+	 */
+	private void generateWeightedRound() {
+		List<Subqueue> visited = new ArrayList<>();
+		List<List<String>> picked = new ArrayList<>();// Urls given by each visited subqueue
+		int pickedCount = 0;
+		int maxPasses = (int) Math.ceil(1 / MIN_QUANTUM) + 1;// Every domain earns a url within this number of passes
+
+		for (int pass = 0; pass < maxPasses && pickedCount == 0; ++pass) {
+			int roundLength = activeCount.get();// Domains activated during the round wait for the next one
+			for (int i = 0; i < roundLength; ++i) {
+				Subqueue subqueue = activeRing.poll();
+				if (subqueue == null) {
+					break;
+				}
+
+				Lock subqueueLock = subqueueLock(subqueue.domain);
+				subqueueLock.lock();
+				try {
+					if (subqueue.parked) {// Parked since it joined the ring
+						subqueue.deficit = 0;
+						deactivate(subqueue);
+						continue;
+					}
+
+					subqueue.deficit = Math.min(subqueue.deficit + quantum(subqueue.statistics), MAX_QUANTUM);
+					int count = (int) Math.min(subqueue.deficit, subqueue.queue.size());
+					if (subqueue.statistics.isBreakerOpen()) {
+						count = Math.min(count, 1);// A single probe url
+					}
+					List<String> urls = count > 0 ? subqueue.queue.peek(count) : new ArrayList<>();
+					visited.add(subqueue);
+					picked.add(urls);
+					pickedCount += urls.size();
+				} catch (IOException e) {
+					System.err.println("Cannot peek elements from a subqueue");
+					e.printStackTrace();
+					visited.add(subqueue);
+					picked.add(new ArrayList<>());
+				} finally {
+					subqueueLock.unlock();
+				}
+			}
+
+			if (pickedCount == 0) {// Nobody earned a url, the domains keep their deficit for the next pass
+				activeRing.addAll(visited);
+				visited.clear();
+				picked.clear();
+			}
+		}
+
+		if (pickedCount == 0) {
+			if (!parkedSubqueues.isEmpty()) {
+				return;// The ring only held parked subqueues
+			}
+			throw new IllegalStateException();// Should never happen, if it happens, the program should crash
+		}
+
+		try {
+			for (int rank = 0; rank < MAX_QUANTUM; ++rank) {// Interleaves the urls of the domains
+				for (List<String> urls : picked) {
+					if (rank < urls.size()) {
+						urlsRound.add(urls.get(rank));
+						if (roundIndex != null) {
+							roundIndex.add(urls.get(rank));
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot add elements to the round queue");
+			throw new IllegalStateException(e);
+		}
+
+		for (int i = 0; i < visited.size(); ++i) {
+			Subqueue subqueue = visited.get(i);
+			int count = picked.get(i).size();
+			Lock subqueueLock = subqueueLock(subqueue.domain);
+			subqueueLock.lock();
+			try {
+				subqueue.queue.remove(count);
+				if (subqueue.index != null) {
+					for (String url : picked.get(i)) {
+						subqueue.index.remove(url);
+					}
+				}
+				subqueue.deficit -= count;
+				if (count > 0) {
+					parkAfterProbe(subqueue);
+				}
+				if (subqueue.queue.isEmpty()) {
+					subqueue.drainedSince = System.nanoTime();
+					subqueue.deficit = 0;// An idle domain does not accumulate credit
+					deactivate(subqueue);
+				} else if (subqueue.parked) {// Probed or parked during the round
+					subqueue.deficit = 0;
+					deactivate(subqueue);
+				} else {
+					activeRing.add(subqueue);
+				}
+			} catch (IOException e) {
+				System.err.println("Cannot remove elements from a subqueue");
+				e.printStackTrace();
+				activeRing.add(subqueue);
+			} finally {
+				subqueueLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of urls a domain earns at each weighted round: the
+	 * number of successful fetches it serves in REFERENCE_LATENCY ms
+	 * 
+	 * @param statistics: the responsiveness of the domain
+	 * @return a quantum between MIN_QUANTUM and MAX_QUANTUM, 1 if the domain has
+	 *         never been fetched
+	 */
+	private static double quantum(DomainStatistics statistics) {
+		if (statistics.getFetchCount() == 0) {
+			return 1;
+		}
+		double quantum = statistics.getSuccessRate() * REFERENCE_LATENCY / Math.max(statistics.getLatency(), 1);
+		return Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, quantum));
+	}
+
+	/**
+	 * Switches between uniform rounds (one url per domain) and weighted rounds,
+	 * the current round is left untouched. Weighted rounds follow a deficit round
+	 * robin: at each round a domain earns a quantum computed from the success
+	 * rate and the latency reported by reportFetch and gives as many urls as its
+	 * accumulated deficit allows, so that fast domains get several urls per round
+	 * and slow or failing domains one url every few rounds. The urls of a round
+	 * are interleaved by domain. The domain statistics are saved on each
+	 * checkpoint and reloaded by restore.
+	 * 
+	 * @param weighted
+	 */
+	public void setWeighted(boolean weighted) {
+		this.weighted = weighted;
+	}
+
+	/**
+	 * Records the outcome of the fetch in the statistics of the domain, used by
+	 * the weighted rounds, and parks or unparks the subqueue of the domain if its
+	 * circuit breaker opens or closes
+	 */
+	@Override
+	public void reportFetch(String url, long latencyMillis, boolean success) {
+		String domain = stringMapper(url);
+		DomainStatistics statistics = statistics(domain);
+		if (statistics == null) {
+			return;
+		}
+		statistics.recordFetch(latencyMillis, success);
+		if (breakerThreshold == 0) {
+			return;
+		}
+		boolean changed = success ? statistics.closeBreaker()
+				: statistics.tripBreaker(breakerThreshold, System.currentTimeMillis(), breakerBaseBackoff,
+						breakerMaxBackoff);
+		if (changed) {
+			updateParking(domain);
+		}
+	}
+
+	/**
+	 * Parks or unparks the subqueue of the domain after its breaker changed.
+	 * Must not be called with a lock of the queue held.
+	 * 
+	 * @param domain
+	 */
+	private void updateParking(String domain) {
+		boolean unparked = false;
+		Lock subqueueLock = subqueueLock(domain);
+		subqueueLock.lock();
+		try {
+			Subqueue subqueue = domainToQueue.get(domain);
+			if (subqueue == null) {
+				return;// Parked when it gets a url, from its statistics
+			}
+			long parkedUntil = subqueue.statistics.getParkedUntil();
+			if (parkedUntil > System.currentTimeMillis()) {
+				park(subqueue, parkedUntil);
+			} else if (subqueue.parked) {
+				unparked = unpark(subqueue);
+			}
+		} finally {
+			subqueueLock.unlock();
+		}
+
+		if (unparked) {
+			signalNotEmpty();// Consumers may be waiting while every url left was parked
+		}
+	}
+
+	/**
+	 * Sets the circuit breakers of the domains, see BREAKER_THRESHOLD. The
+	 * breakers already open keep their current backoff. After threshold
+	 * consecutive failures the subqueue of a domain is parked: no round visits
+	 * it, so that the urls of an offline hidden service stop tying up fetcher
+	 * threads. Once its backoff has elapsed, a round hands out a single probe url
+	 * and parks the domain again until the probe is reported: a success puts it
+	 * back in the ring, a failure parks it for twice as long. Parked urls are
+	 * still counted by size, take waits while every url left is parked.
+	 * 
+	 * @param threshold:          consecutive fetch failures that park a domain, 0
+	 *                            disables the breakers
+	 * @param baseBackoffMillis: time in ms a domain is parked the first time its
+	 *                            breaker opens, doubled each time it opens again
+	 * @param maxBackoffMillis:  max time in ms a domain is parked
+	 */
+	public void setCircuitBreaker(int threshold, long baseBackoffMillis, long maxBackoffMillis) {
+		if (threshold < 0 || baseBackoffMillis < 0 || maxBackoffMillis < baseBackoffMillis) {
+			throw new IllegalArgumentException();
+		}
+		breakerThreshold = threshold;
+		breakerBaseBackoff = baseBackoffMillis;
+		breakerMaxBackoff = maxBackoffMillis;
+	}
+
+	/**
+	 * Returns the number of domains whose subqueue is parked by its circuit
+	 * breaker
+	 * 
+	 * @return the number of parked subqueues
+	 */
+	@Override
+	public int parkedCount() {
+		return parkedSubqueues.size();
+	}
+
+	/**
+	 * Records the bytes stored in the statistics of the domain, spent from its
+	 * budget
+	 */
+	@Override
+	public void reportStored(String url, long bytes) {
+		DomainStatistics statistics = statistics(stringMapper(url));
+		if (statistics != null) {
+			statistics.recordStored(bytes);
+		}
+	}
+
+	/**
+	 * Returns the statistics of a domain, whether its subqueue is live, retired
+	 * or not restored yet
+	 * 
+	 * @param domain
+	 * @return the statistics of the domain or null if the domain is unknown
+	 */
+	private DomainStatistics statistics(String domain) {
+		if (domain == null) {
+			return null;
+		}
+		Subqueue subqueue = domainToQueue.get(domain);
+		if (subqueue != null) {
+			return subqueue.statistics;
+		}
+		DomainStatistics statistics = retiredDomains.get(domain);
+		return statistics != null ? statistics : restoredWeights.get(domain);
+	}
+
+	/**
+	 * Replaces the budgets of the domains, the budgets apply to the usage already
+	 * counted. Once a limit of its budget is reached, the new urls of a domain
+	 * are dropped at add time, before they reach the overflow queue or the
+	 * storage, and counted by budgetHits. The urls already enqueued are still
+	 * handed out.
+	 * 
+	 * @param budgets: domain to budget, CrawlBudget.DEFAULT_DOMAIN for the
+	 *                 domains without their own budget
+	 */
+	@Override
+	public void setBudgets(Map<String, CrawlBudget> budgets) {
+		this.budgets = new HashMap<>(budgets);
+	}
+
+	/**
+	 * Returns how many urls of the domain may still be enqueued
+	 * 
+	 * @param domain
+	 * @param statistics: the statistics of the domain, null if it is unknown
+	 * @return the number of urls that may still be enqueued
+	 */
+	private long remainingEnqueues(String domain, DomainStatistics statistics) {
+		Map<String, CrawlBudget> budgets = this.budgets;
+		if (budgets.isEmpty()) {
+			return CrawlBudget.UNLIMITED;
+		}
+		CrawlBudget budget = budgets.get(domain);
+		if (budget == null) {
+			budget = budgets.getOrDefault(CrawlBudget.DEFAULT_DOMAIN, CrawlBudget.NONE);
+		}
+		return budget.remainingEnqueues(statistics);
+	}
+
+	/**
+	 * Tells whether the domain of the url may still receive a url, and counts a
+	 * budget hit if it may not. Lock free, the count is only checked exactly when
+	 * the url is inserted.
+	 * 
+	 * @param domain: the domain of the url
+	 * @param url
+	 * @return whether a url of the domain would be accepted
+	 */
+	private boolean withinDomainBudget(String domain, String url) {
+		if (budgets.isEmpty()) {
+			return true;
+		}
+		DomainStatistics statistics = statistics(domain);
+		if (remainingEnqueues(domain, statistics) > 0) {
+			return true;
+		}
+		recordBudgetHit(statistics, url);
+		return false;
+	}
+
+	/**
+	 * Counts a budget hit of the url in the statistics of its domain, unless it
+	 * was already counted: the dropped urls are not recorded as seen, so the same
+	 * link is dropped again each time it is found. A url whose fingerprint is a
+	 * false positive of the filter is not counted, a url dropped again after a
+	 * restore is counted again.
+	 */
+	private void recordBudgetHit(DomainStatistics statistics, String url) {
+		if (statistics == null) {
+			return;
+		}
+		long fingerprint = FingerprintIndex.fingerprint(url);
+		if (!budgetHitFilter.mightContain(fingerprint)) {
+			budgetHitFilter.add(fingerprint);
+			statistics.recordBudgetHits(1);
+		}
+	}
+
+	@Override
+	public boolean withinBudget(String url) {
+		if (budgets.isEmpty()) {
+			return true;// The domain is only parsed once, by addAll
+		}
+		String domain = stringMapper(url);
+		return domain == null || withinDomainBudget(domain, url);
+	}
+
+	@Override
+	public Map<String, Long> budgetHits() {
+		Map<String, Long> hits = new HashMap<>();
+		for (Subqueue subqueue : domainToQueue.values()) {
+			long count = subqueue.statistics.getBudgetHits();
+			if (count > 0) {
+				hits.put(subqueue.domain, count);
+			}
+		}
+		for (Map.Entry<String, DomainStatistics> entry : retiredDomains.entrySet()) {
+			long count = entry.getValue().getBudgetHits();
+			if (count > 0) {
+				hits.put(entry.getKey(), count);
+			}
+		}
+		for (String domain : pendingRestore) {
+			DomainStatistics statistics = restoredWeights.get(domain);
+			if (statistics != null && statistics.getBudgetHits() > 0) {
+				hits.put(domain, statistics.getBudgetHits());
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Saves the statistics of the fetched or enqueued domains and the retired
+	 * domains in the queue folder, the files are replaced atomically
+	 */
+	@Override
+	public void checkpoint() throws IOException {
+		Map<String, DomainStatistics> weights = new HashMap<>();
+		for (Subqueue subqueue : domainToQueue.values()) {
+			DomainStatistics statistics = subqueue.statistics.copy();
+			if (statistics.getFetchCount() > 0 || statistics.getEnqueuedCount() > 0) {
+				weights.put(subqueue.domain, statistics);
+			}
+		}
+		for (String domain : pendingRestore) {// Not loaded yet, their weights are kept
+			DomainStatistics statistics = restoredWeights.get(domain);
+			if (statistics != null) {
+				weights.put(domain, statistics);
+			}
+		}
+		List<String> retired = new ArrayList<>();
+		for (Map.Entry<String, DomainStatistics> entry : retiredDomains.entrySet()) {
+			retired.add(entry.getKey());
+			DomainStatistics statistics = entry.getValue().copy();
+			if (statistics.getFetchCount() > 0 || statistics.getEnqueuedCount() > 0) {
+				weights.put(entry.getKey(), statistics);
+			}
+		}
+
+		saveJson(WEIGHTS_FILE_NAME, weights);
+		saveJson(RETIRED_FILE_NAME, retired);
+	}
+
+	/**
+	 * Writes the object as json to the following file of the queue folder, the
+	 * file is replaced atomically
+	 * 
+	 * @param fileName
+	 * @param object
+	 * @throws IOException
+	 */
+	private void saveJson(String fileName, Object object) throws IOException {
+		File file = new File(folderName, fileName);
+		File temporaryFile = new File(folderName, fileName + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+			new Gson().toJson(object, writer);
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the domain statistics saved in the folder, an empty map if there are
+	 * none
+	 * 
+	 * @param folder: the queue folder
+	 * @return the statistics of each domain
+	 */
+	private static Map<String, DomainStatistics> loadWeights(String folder) {
+		File file = new File(folder, WEIGHTS_FILE_NAME);
+		if (!file.exists()) {
+			return new HashMap<>();
+		}
+		Type type = new TypeToken<Map<String, DomainStatistics>>() {
+		}.getType();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			Map<String, DomainStatistics> weights = new Gson().fromJson(reader, type);
+			return weights != null ? weights : new HashMap<>();
+		} catch (IOException e) {
+			System.err.println("Could not load the domain weights, the domains start unweighted");
+			e.printStackTrace();
+			return new HashMap<>();
+		}
+	}
+
+	/**
+	 * Loads the names of the retired domains saved in the folder, an empty list if
+	 * there are none
+	 * 
+	 * @param folder: the queue folder
+	 * @return the retired domains
+	 */
+	private static List<String> loadRetiredDomains(String folder) {
+		File file = new File(folder, RETIRED_FILE_NAME);
+		if (!file.exists()) {
+			return new ArrayList<>();
+		}
+		Type type = new TypeToken<List<String>>() {
+		}.getType();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			List<String> retired = new Gson().fromJson(reader, type);
+			return retired != null ? retired : new ArrayList<>();
+		} catch (IOException e) {
+			System.err.println("Could not load the retired domains, they are no longer counted as discovered");
+			e.printStackTrace();
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Sets the capacity of the queue, the subqueues and the overflow queue are
+	 * left untouched if they already exceed the new capacity. A url of a full
+	 * domain is spilled to the overflow queue, moved back at the start of a round
+	 * when there is room. With the BLOCK policy, only the urls of a full domain
+	 * are spilled. The global capacity is a soft limit: concurrent producers of
+	 * different domains may exceed it by a few urls, which are written rather
+	 * than spilled under the BLOCK policy.
+	 * 
+	 * @param capacity:       max number of urls in the queue, Integer.MAX_VALUE if
+	 *                        unbounded
+	 * @param domainCapacity: max number of urls in a domain subqueue, the urls of
+	 *                        a full domain are spilled
+	 * @param policy:         what put and offer do when the whole queue is full
+	 */
+	public void setCapacity(int capacity, int domainCapacity, OverflowPolicy policy) {
+		if (capacity < 1 || domainCapacity < 1 || policy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		this.domainCapacity = domainCapacity;
+		this.overflowPolicy = policy;
+		signalNotFull();
+	}
+
+	/**
+	 * Bounds the number of subqueue files kept open at once, the files of the
+	 * least recently used subqueues are closed and reopened on their next access
+	 * (only the TAPE storage keeps one file per subqueue)
+	 * 
+	 * @param maxOpenFiles
+	 */
+	public void setMaxOpenFiles(int maxOpenFiles) {
+		try {
+			storage.setMaxOpenFiles(maxOpenFiles);
+		} catch (IOException e) {
+			System.err.println("Could not close the subqueue files above the new limit");
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void setLimits(FrontierConfig config) {
+		setCapacity(config.getCapacity(), config.getDomainCapacity(), config.getOverflowPolicy());
+		setSpillCapacity(config.getSpillCapacity());
+	}
+
+	/**
+	 * Sets the max number of spilled urls, the urls spilled to a full overflow
+	 * queue are dropped
+	 * 
+	 * @param spillCapacity
+	 */
+	public void setSpillCapacity(int spillCapacity) {
+		if (spillCapacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.spillCapacity = spillCapacity;
+	}
+
+	/**
+	 * Sets how often the compaction runs and how long a drained subqueue is kept
+	 * before being retired
+	 * 
+	 * @param intervalMillis:    time between two compaction passes in ms
+	 * @param gracePeriodMillis: time in ms a subqueue stays drained before being
+	 *                           retired
+	 */
+	public void setCompaction(long intervalMillis, long gracePeriodMillis) {
+		if (intervalMillis < 1 || gracePeriodMillis < 0) {
+			throw new IllegalArgumentException();
+		}
+		retireGracePeriod = gracePeriodMillis;
+		compactionLock.lock();
+		try {
+			compactionInterval = intervalMillis;
+			compactionStopped.signal();
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks the compactor thread until the next compaction pass
+	 * 
+	 * @return false if the queue has been closed
+	 */
+	private boolean awaitCompaction() {
+		compactionLock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(compactionInterval);
+			while (!compactionClosed && remaining > 0) {
+				try {
+					remaining = compactionStopped.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					System.err.println("Compactor thread interrupted while waiting for the next pass");
+				}
+			}
+			return !compactionClosed;
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs a compaction pass: deletes the subqueues drained for longer than the
+	 * grace period and shrinks the oversized files of the other queues. Each
+	 * subqueue is only locked while it is compacted. Called periodically by the
+	 * background compactor. A retired domain keeps its name and statistics, so
+	 * that it is still counted by domainsDiscovered and gets its statistics back
+	 * when it receives a url again.
+	 */
+	public void compact() {
+		compactionLock.lock();
+		try {
+			if (compactionClosed) {
+				return;
+			}
+
+			int retired = 0;
+			int shrunk = 0;
+			long now = System.nanoTime();
+			long gracePeriod = TimeUnit.MILLISECONDS.toNanos(retireGracePeriod);
+			for (Subqueue subqueue : domainToQueue.values()) {
+				Lock subqueueLock = subqueueLock(subqueue.domain);
+				subqueueLock.lock();
+				try {
+					if (domainToQueue.get(subqueue.domain) != subqueue) {
+						continue;// Retired by a previous pass
+					}
+					if (subqueue.active || !subqueue.queue.isEmpty()) {
+						if (storage.shrinkQueue(subqueue.queue)) {
+							shrunk++;
+						}
+					} else if (now - subqueue.drainedSince >= gracePeriod) {
+						storage.deleteQueue(subqueue.queue);
+						// Counted as retired before leaving the map, so that the domain is never missed
+						retiredDomains.put(subqueue.domain, subqueue.statistics);
+						domainToQueue.remove(subqueue.domain);
+						parkedSubqueues.remove(subqueue);// Parked again from its statistics if it gets a url
+						retired++;
+					}
+				} catch (IOException e) {
+					System.err.println("Could not compact subqueue " + subqueue.domain);
+					e.printStackTrace();
+				} finally {
+					subqueueLock.unlock();
+				}
+			}
+
+			takeLock.lock();
+			try {
+				if (storage.shrinkQueue(urlsRound)) {
+					shrunk++;
+				}
+			} catch (IOException e) {
+				System.err.println("Could not shrink the current round queue");
+				e.printStackTrace();
+			} finally {
+				takeLock.unlock();
+			}
+
+			spillLock.lock();
+			try {
+				if (overflowStorage.shrinkQueue(spilledURLs)) {
+					shrunk++;
+				}
+			} catch (IOException e) {
+				System.err.println("Could not shrink the overflow queue");
+				e.printStackTrace();
+			} finally {
+				spillLock.unlock();
+			}
+
+			if (retired > 0 || shrunk > 0) {
+				System.out.println("Compaction retired " + retired + " subqueues and shrank " + shrunk + " files");
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean add(String url) {
+		switch (insert(url)) {
+		case INSERTED:
+			return true;
+		case QUEUE_FULL:
+			if (overflowPolicy == OverflowPolicy.BLOCK) {
+				throw new IllegalStateException("Queue full");
+			}
+			return spill(url);
+		case DOMAIN_FULL:
+			return spill(url);
+		case OVER_BUDGET:
+		case FAILED:
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Adds the url to the subqueue of its domain if there is room for it
+	 * 
+	 * @param url
+	 * @return whether the url has been added or why it has not been
+	 */
+	private InsertResult insert(String url) {
+		if (url == null) {
+			throw new NullPointerException();
+		}
+
+		String domain = stringMapper(url);
+
+		if (domain == null) {
+			System.err.println("Could not extract domain from url using stringMapper");
+			return InsertResult.FAILED;
+		}
+
+		if (!withinDomainBudget(domain, url)) {// Dropped before being spilled or written
+			return InsertResult.OVER_BUDGET;
+		}
+
+		if (queueSize.get() >= capacity) {
+			return InsertResult.QUEUE_FULL;
+		}
+
+		restoreDomain(domain);// Its persisted urls must be loaded before the subqueue is used
+
+		int previousSize;
+		Lock subqueueLock = subqueueLock(domain);
+		subqueueLock.lock();
+		try {
+			Subqueue subqueue = domainToQueue.get(domain);
+
+			DomainStatistics statistics = subqueue != null ? subqueue.statistics : retiredDomains.get(domain);
+			if (remainingEnqueues(domain, statistics) == 0) {// Spent by a concurrent producer
+				recordBudgetHit(statistics, url);
+				return InsertResult.OVER_BUDGET;
+			}
+
+			if (subqueue == null) {// This is a new domain=> create new queue
+				subqueue = newSubqueue(domain);
+				domainToQueue.put(domain, subqueue);
+			}
+
+			if (subqueue.queue.size() >= domainCapacity) {
+				return InsertResult.DOMAIN_FULL;
+			}
+
+			try {
+				subqueue.queue.add(url);
+				subqueue.statistics.recordEnqueued(1);
+				if (subqueue.index != null) {
+					subqueue.index.add(url);
+				}
+				if (!subqueue.active) {// The domain rejoins the ring
+					activateOrPark(subqueue);
+				}
+				// Incremented last so that a consumer seeing the new size finds the domain in the ring
+				previousSize = queueSize.getAndIncrement();
+
+			} catch (IOException e) {
+				System.err.println("Could not add url" + url + "to subqueue");
+				e.printStackTrace();
+				return InsertResult.FAILED;
+			}
+
+		} finally {
+			subqueueLock.unlock();
+		}
+
+		if (previousSize == 0) {
+			signalNotEmpty();// Signal a consumer thread to wake him up if it is sleeping
+		}
+		return InsertResult.INSERTED;
+	}
+
+	@Override
+	public boolean offer(String url) {
+		InsertResult result = insert(url);
+		if (result == InsertResult.QUEUE_FULL && overflowPolicy == OverflowPolicy.BLOCK) {
+			return false;
+		}
+		return result == InsertResult.INSERTED || (spillable(result) && spill(url));
+	}
+
+	/**
+	 * Whether a url that could not be inserted may wait in the overflow queue
+	 * 
+	 * @param result: the outcome of its insertion
+	 * @return true if the url was rejected for lack of room
+	 */
+	private static boolean spillable(InsertResult result) {
+		return result == InsertResult.QUEUE_FULL || result == InsertResult.DOMAIN_FULL;
+	}
+
+	@Override
+	public void put(String url) throws InterruptedException {
+		offer(url, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
 	}
 
 	@Override
 	public boolean offer(String url, long timeout, TimeUnit unit) throws InterruptedException {
-		return add(url);
+		long timeoutNanos = unit.toNanos(timeout);
+		while (true) {
+			InsertResult result = insert(url);
+			if (result != InsertResult.QUEUE_FULL || overflowPolicy == OverflowPolicy.SPILL) {
+				return result == InsertResult.INSERTED || (spillable(result) && spill(url));
+			}
+
+			fullLock.lockInterruptibly();
+			try {
+				if (queueSize.get() >= capacity) {
+					if (timeoutNanos <= 0) {
+						return false;
+					}
+					timeoutNanos = notFull.awaitNanos(timeoutNanos);// Wait for a consumer to make room
+				}
+			} finally {
+				fullLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Signals a producer waiting for room, only needed when the queue is bounded
+	 */
+	private void signalNotFull() {
+		if (capacity == Integer.MAX_VALUE) {
+			return;
+		}
+		fullLock.lock();
+		try {
+			notFull.signal();
+		} finally {
+			fullLock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the urls to the overflow queue, the urls that do not fit are
+	 * dropped
+	 * 
+	 * @param urls
+	 * @return true if all the urls have been spilled
+	 */
+	private boolean spill(String... urls) {
+		return spill(Arrays.asList(urls));
+	}
+
+	private boolean spill(List<String> urls) {
+		spillLock.lock();
+		try {
+			int room = Math.max(0, spillCapacity - spilledCount.get());
+			int spilled = Math.min(room, urls.size());
+			overflowStorage.addAll(spilledURLs, urls.subList(0, spilled));
+			spilledCount.getAndAdd(spilled);
+			if (spilledIndex != null) {
+				for (String url : urls.subList(0, spilled)) {
+					spilledIndex.add(url);
+				}
+			}
+			droppedCount.getAndAdd(urls.size() - spilled);
+			return spilled == urls.size();
+		} catch (IOException e) {
+			System.err.println("Could not spill urls to the overflow queue");
+			e.printStackTrace();
+			return false;
+		} finally {
+			spillLock.unlock();
+		}
 	}
 
 	/**
-	 * Assumes that the calling thread has the lock and that the current round queue
-	 * is not empty. Removes and return the head of url round if it exists or null
-	 * if not+> must verify this prior to calling the function
+	 * Moves spilled urls back to their subqueue if there is room for them, the
+	 * urls of domains that are still full are spilled again. Assumes that the
+	 * calling thread has the takeLock
+	 * 
+	 * @return true if at least one url has been moved back
+	 */
+	private boolean refillFromSpill() {
+		int n = Math.min(SPILL_REFILL_BATCH, Math.min(spilledCount.get(), capacity - queueSize.get()));
+		if (n <= 0) {
+			return false;
+		}
+
+		List<String> batch;
+		spillLock.lock();
+		try {
+			batch = spilledURLs.peek(n);
+		} catch (IOException e) {
+			System.err.println("Could not peek from the overflow queue");
+			e.printStackTrace();
+			return false;
+		} finally {
+			spillLock.unlock();
+		}
+
+		// Inserted before being removed from the overflow queue: a crash in between duplicates urls but loses none
+		List<String> stillFull = new ArrayList<>();
+		int moved = 0;
+		for (String url : batch) {
+			InsertResult result = insert(url);
+			if (result == InsertResult.INSERTED) {
+				moved++;
+			} else if (spillable(result)) {
+				stillFull.add(url);
+			}
+		}
+
+		spillLock.lock();
+		try {
+			spilledURLs.remove(batch.size());
+			spilledCount.getAndAdd(-batch.size());
+			if (spilledIndex != null) {
+				for (String url : batch) {
+					spilledIndex.remove(url);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Could not remove from the overflow queue");
+			e.printStackTrace();
+		} finally {
+			spillLock.unlock();
+		}
+		if (!stillFull.isEmpty()) {
+			spill(stillFull);
+		}
+		if (stillFull.size() > moved) {
+			refillBackoff = SPILL_REFILL_BACKOFF;// Avoid rewriting the same urls at every round
+		}
+		return moved > 0;
+	}
+
+	/**
+	 * Assumes that the calling thread has the takeLock and that the current round
+	 * queue is not empty. Removes and return the head of url round if it exists or
+	 * null if not+> must verify this prior to calling the function. Signals
+	 * another waiting consumer if urls are left.
 	 * 
 	 * @return the head of url round queue and decrements the size of the queue
 	 */
@@ -366,7 +1974,13 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 		try {
 			String url = urlsRound.peek();
 			urlsRound.remove();
-			queueSize.getAndDecrement();
+			if (roundIndex != null) {
+				roundIndex.remove(url);
+			}
+			if (queueSize.getAndDecrement() > 1) {
+				notEmpty.signal();// Cascade the signal to another waiting consumer
+			}
+			signalNotFull();
 
 			return url;
 		} catch (IOException e) {
@@ -377,125 +1991,213 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 
 	@Override
 	public String remove() {
-		lock.lock();
+		takeLock.lock();
 		try {
-			if (isEmpty()) {
+			if (!prepareRound()) {
 				System.err.println("Cannot remove from an empty queue");
 				throw new NoSuchElementException();
 			}
 
-			optionallyGenerateNewRound();
 			return retrieveFromRoundQueue();
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
 	@Override
 	public String poll() {
-		lock.lock();
+		takeLock.lock();
 		try {
-			if (isEmpty()) {
+			if (!prepareRound()) {
 				return null;
 			}
 
-			optionallyGenerateNewRound();
 			return retrieveFromRoundQueue();
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
 	@Override
 	public String poll(long timeout, TimeUnit unit) throws InterruptedException {
-		lock.lock();
+		takeLock.lock();
 
 		try {
 			long timeoutNanos = unit.toNanos(timeout);
-			while (isEmpty() && timeoutNanos > 0) {
-				timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+			while (!prepareRound() && timeoutNanos > 0) {
+				long waitNanos = Math.min(timeoutNanos, parkedWaitNanos());
+				timeoutNanos -= waitNanos - notEmpty.awaitNanos(waitNanos);
 			}
 
 			return poll();// Not a problem if using lock twice because Reentrant lock
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
+		}
+	}
+
+	@Override
+	public String take() throws InterruptedException {
+
+		takeLock.lock();
+		try {
+			while (!prepareRound()) {
+				try {
+					awaitNotEmpty();// Wait for a signal emitted by an adding function and free the lock
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+
+			return retrieveFromRoundQueue();
+
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a producer signals that the queue is not empty, or at most until
+	 * a parked subqueue may be unparked. Assumes that the calling thread has the
+	 * takeLock
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void awaitNotEmpty() throws InterruptedException {
+		long waitNanos = parkedWaitNanos();
+		if (waitNanos == Long.MAX_VALUE) {
+			notEmpty.await();
+		} else {
+			notEmpty.awaitNanos(waitNanos);
 		}
 	}
 
+	/**
+	 * Removes at most maxElements urls of distinct domains under a single
+	 * acquisition of the takeLock, waiting if necessary until at least one url is
+	 * available. The batch stops at the first url whose domain is already in it,
+	 * so it may span the end of a round but never holds two urls of a domain.
+	 */
 	@Override
-	public String take() throws InterruptedException {
+	public List<String> takeBatch(int maxElements) throws InterruptedException {
+		if (maxElements < 1) {
+			throw new IllegalArgumentException();
+		}
 
-		lock.lock();
+		List<String> batch = new ArrayList<>(maxElements);
+		Set<String> domains = new HashSet<>();
+		takeLock.lock();
 		try {
-			while (isEmpty()) {
+			while (!prepareRound()) {
 				try {
-					notEmpty.await();// Wait for a signal emitted by an adding function and free the lock
+					awaitNotEmpty();// Wait for a signal emitted by an adding function and free the lock
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
 			}
 
-			optionallyGenerateNewRound();
-			return retrieveFromRoundQueue();
+			while (batch.size() < maxElements && prepareRound()) {
+				if (retrieveBatchFromRoundQueue(batch, domains, maxElements) == 0) {
+					break;// The head of the round is a domain of the batch
+				}
+			}
+			return batch;
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Assumes that the calling thread has the takeLock and that the current round
+	 * queue is not empty. Moves the head urls of the round queue to the batch
+	 * until the batch is full, the round is exhausted or a url of a domain
+	 * already in the batch is met. The urls are removed from the round queue in
+	 * one operation.
+	 * 
+	 * @param batch:       the urls taken so far
+	 * @param domains:     the domains of the batch
+	 * @param maxElements: the max size of the batch
+	 * @return the number of urls moved
+	 */
+	private int retrieveBatchFromRoundQueue(List<String> batch, Set<String> domains, int maxElements) {
+		try {
+			List<String> head = urlsRound.peek(Math.min(maxElements - batch.size(), urlsRound.size()));
+			int count = 0;
+			for (String url : head) {
+				if (!domains.add(stringMapper(url))) {
+					break;
+				}
+				batch.add(url);
+				count++;
+			}
+			if (count == 0) {
+				return 0;
+			}
+
+			urlsRound.remove(count);
+			if (roundIndex != null) {
+				for (String url : head.subList(0, count)) {
+					roundIndex.remove(url);
+				}
+			}
+			if (queueSize.addAndGet(-count) > 0) {
+				notEmpty.signal();// Cascade the signal to another waiting consumer
+			}
+			signalNotFull();
+			return count;
+
+		} catch (IOException e) {
+			System.err.println("Could not peek or remove from urlRound queue");
+			throw new IllegalStateException();
 		}
 	}
 
 	/**
-	 * Assumes that the queue is not empty. Return the head of url round or null if
-	 * it does not exists.
+	 * Assumes that the calling thread has the takeLock and that the queue is not
+	 * empty. Return the head of url round or null if it does not exists.
 	 * 
 	 * @return the head of url round queue
 	 */
 	private String peekFromRoundQueue() {
 		assert (!isEmpty());// Sanity check
-		lock.lock();// No deadlock beacuse reentrant lock
 		try {
-			try {
-				return urlsRound.peek();
-			} catch (IOException e) {
-				System.err.println("Could not peek or remove from urlRound queue");
-				throw new IllegalStateException();
-			}
-		} finally {
-			lock.unlock();
+			return urlsRound.peek();
+		} catch (IOException e) {
+			System.err.println("Could not peek or remove from urlRound queue");
+			throw new IllegalStateException();
 		}
 	}
 
 	@Override
 	public String element() {
-		lock.lock();
+		takeLock.lock();
 		try {
-			if (isEmpty()) {
+			if (!prepareRound()) {
 				throw new NoSuchElementException();
 			}
 
-			optionallyGenerateNewRound();
 			return peekFromRoundQueue();
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
 	@Override
 	public String peek() {
-		lock.lock();
+		takeLock.lock();
 		try {
-			if (isEmpty()) {
+			if (!prepareRound()) {
 				return null;
 			}
 
-			optionallyGenerateNewRound();
 			return peekFromRoundQueue();
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
@@ -506,33 +2208,29 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 
 	/**
 	 * Returns the total amount of subqueues in this queue, empty subqueues are also
-	 * counted Notes: this count should correspond to the number of different
-	 * domains discovered
+	 * counted until the compaction retires them
 	 * 
 	 * @return the total number of subqueues in the queue
 	 */
 	public int subqueueCount() {
-		return domainToQueue.size();
+		return domainToQueue.size() + pendingRestore.size();
 	}
 	
 	/**
-	 * Returns the fraction of subqueues that are not empty at the time of the call
+	 * Returns the fraction of the discovered domains whose subqueue is not empty
+	 * at the time of the call: the subqueues of the active ring, plus the parked
+	 * subqueues that still hold urls out of the ring
+	 * 
 	 * @return the fraction of subqueues that are not empty
 	 */
 	public double subqueueUtilization() {
-		
-			if(domainToQueue.size()==0) {
-				return 1;
-			}
-			
-			int nonEmptyCount = 0;
-			for(ObjectQueue<String> subqueue: domainToQueue.values()) {
-				if(!subqueue.isEmpty()) {
-					nonEmptyCount++;
-				}
-			}
+		int domainCount = domainsDiscovered();
+		if (domainCount == 0) {
+			return 1;
+		}
 
-			return ((double)nonEmptyCount)/domainToQueue.size();
+		int nonEmptyCount = activeCount.get() + parkedBacklog.get();// A parked subqueue still in the ring is active
+		return ((double) nonEmptyCount) / domainCount;
 	}
 
 	@Override
@@ -549,7 +2247,8 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	}
 
 	/**
-	 * Return a list containing at most size elements of the queue
+	 * Return a list containing at most size elements of the queue. Assumes that
+	 * the calling thread holds all the locks
 	 * 
 	 * @param queue
 	 * @param size
@@ -557,28 +2256,23 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	 */
 	private List<String> queueToList(ObjectQueue<String> queue, int size) {
 		assert (size >= 0);
-		lock.lock();
 		try {
-			try {
-				return queue.peek(size);
-			} catch (IOException e) {
-				System.err.println("Cannot peek from a subqueue");
-				throw new IllegalStateException();
-			}
-		} finally {
-			lock.unlock();
+			return queue.peek(size);
+		} catch (IOException e) {
+			System.err.println("Cannot peek from a subqueue");
+			throw new IllegalStateException();
 		}
-
 	}
 
 	/**
-	 * Returns a list containing all the elements of the queue
+	 * Returns a list containing all the elements of the queue. Assumes that the
+	 * calling thread holds all the locks
 	 * 
 	 * @param queue
 	 * @return a list containing all the elements of the queue
 	 */
 	private List<String> queueToList(ObjectQueue<String> queue) {
-		return queueToList(queue, queue.size()); // No need for lock as it calls a method using locks
+		return queueToList(queue, queue.size());
 	}
 
 	/**
@@ -590,13 +2284,15 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	private List<ObjectQueue<String>> allQueues() {
 		List<ObjectQueue<String>> allQueues = new ArrayList();
 		allQueues.add(urlsRound);
-		allQueues.addAll(domainToQueue.values());
+		for (Subqueue subqueue : domainToQueue.values()) {
+			allQueues.add(subqueue.queue);
+		}
 		return allQueues;
 	}
 
 	@Override
 	public Object[] toArray() {
-		lock.lock();
+		fullyLock();
 
 		try {
 			int size = queueSize.get();
@@ -613,7 +2309,7 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 			}
 
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
 
 		return null;
@@ -623,7 +2319,7 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	// http://fuseyism.com/classpath/doc/java/util/concurrent/LinkedBlockingQueue-source.html
 	@Override
 	public <T> T[] toArray(T[] array) {
-		lock.lock();
+		fullyLock();
 
 		try {
 			int size = queueSize.get();
@@ -646,35 +2342,314 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 			}
 
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
 		return null;
 	}
 
 	@Override
 	public boolean addAll(Collection<? extends String> collection) {
-		lock.lock();
+		return addAll(collection, false);
+	}
+
+	/**
+	 * Adds the new links of a page with the next group commit. They were admitted
+	 * by withinBudget before being recorded as seen, so the budget of their
+	 * domain does not drop them at commit.
+	 */
+	@Override
+	public void addLinks(String referringURL, Collection<String> newURLs, Collection<String> links) {
+		addAll(newURLs, true);
+	}
+
+	/**
+	 * Adds the urls to the pending batch and waits until the batch is written and
+	 * synced, so that they can be recorded as seen. The committer thread writes
+	 * the batch COMMIT_WINDOW ms after its first url or once it holds
+	 * COMMIT_BATCH_SIZE urls, for all the producers waiting on it. Beyond
+	 * MAX_PENDING pending urls, the producers wait for the next commit. With the
+	 * BLOCK policy, the urls are admitted as the room of the queue allows and the
+	 * producer waits for room for the rest.
+	 * 
+	 * @param collection
+	 * @param admitted:   whether the urls were admitted by withinBudget, they
+	 *                    are then never dropped by the budget of their domain
+	 * @return false if the collection is empty
+	 */
+	private boolean addAll(Collection<? extends String> collection, boolean admitted) {
+		if (collection == null) {
+			throw new NullPointerException();
+		}
+
+		if (collection.isEmpty()) {
+			return false;
+		}
+
+		if (overflowPolicy != OverflowPolicy.BLOCK || capacity == Integer.MAX_VALUE) {
+			addPending(collection, admitted);
+			return true;
+		}
+		Iterator<? extends String> iterator = collection.iterator();
+		while (iterator.hasNext()) {
+			int room;
+			fullLock.lock();
+			try {
+				while ((room = capacity - queueSize.get() - pendingCount) <= 0) {
+					notFull.awaitUninterruptibly();// Backpressure on the producer
+				}
+			} finally {
+				fullLock.unlock();
+			}
+			List<String> admittedChunk = new ArrayList<>(Math.min(room, collection.size()));
+			while (iterator.hasNext() && admittedChunk.size() < room) {
+				admittedChunk.add(iterator.next());
+			}
+			addPending(admittedChunk, admitted);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the urls to the pending batch and waits until the batch is written and
+	 * synced
+	 * 
+	 * @param collection
+	 * @param admitted:   whether the urls were admitted by withinBudget
+	 */
+	private void addPending(Collection<? extends String> collection, boolean admitted) {
+		commitLock.lock();
+		try {
+			while (!closed && pendingCount > 0 && pendingCount + collection.size() > MAX_PENDING) {
+				commitDone.awaitUninterruptibly();// Backpressure until the pending batch is taken
+			}
+			if (closed) {
+				throw new IllegalStateException("The queue is closed");
+			}
+			for (String url : collection) {
+				if (url == null) {
+					throw new NullPointerException();
+				}
+				PendingURLs pending = pendingURLs.computeIfAbsent(stringMapper(url), domain -> new PendingURLs());
+				(admitted ? pending.admitted : pending.unchecked).add(url);
+				pendingIndex.add(url);
+				if (pendingCount++ == 0) {
+					pendingSince = System.nanoTime();
+					commitNeeded.signal();// Start the commit window
+				}
+			}
+			if (pendingCount >= commitBatchSize) {
+				commitNeeded.signal();// Do not wait for the end of the window
+			}
+
+			long batch = pendingBatch;
+			while (committedBatch < batch) {
+				commitDone.awaitUninterruptibly();
+			}
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the durability window of addAll: a pending batch is written at most
+	 * windowMillis ms after its first url was added or as soon as it holds
+	 * batchSize urls
+	 * 
+	 * @param windowMillis: max time in ms a url waits before being written
+	 * @param batchSize:    number of pending urls that triggers a commit
+	 */
+	public void setCommitWindow(long windowMillis, int batchSize) {
+		if (windowMillis < 0 || batchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		commitLock.lock();
+		try {
+			commitWindow = windowMillis;
+			commitBatchSize = batchSize;
+			commitNeeded.signal();
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks the committer thread until the pending batch must be written
+	 * 
+	 * @return false if the queue has been closed
+	 */
+	private boolean awaitCommit() {
+		commitLock.lock();
+		try {
+			while (!closed) {
+				if (pendingCount == 0) {
+					commitNeeded.awaitUninterruptibly();
+					continue;
+				}
+				long remaining = pendingSince + TimeUnit.MILLISECONDS.toNanos(commitWindow) - System.nanoTime();
+				if (pendingCount >= commitBatchSize || remaining <= 0) {
+					return true;
+				}
+				try {
+					commitNeeded.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					System.err.println("Committer thread interrupted while waiting for the commit window");
+				}
+			}
+			return false;
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the urls added with addAll that are still pending, each subqueue
+	 * receives its urls in a single write and the storage is synced once
+	 */
+	public void flush() {
+		flushLock.lock();
 		try {
-			if (collection == null) {
-				throw new NullPointerException();
+			Map<String, PendingURLs> batch;
+			long batchNumber;
+			commitLock.lock();
+			try {
+				if (pendingCount == 0) {
+					return;
+				}
+				batch = pendingURLs;
+				pendingURLs = new HashMap<>();
+				pendingCount = 0;
+				batchNumber = pendingBatch++;
+				commitDone.signalAll();// Room for the producers over MAX_PENDING
+			} finally {
+				commitLock.unlock();
+			}
+
+			try {
+				boolean wasEmpty = false;
+				for (Map.Entry<String, PendingURLs> entry : batch.entrySet()) {
+					if (commitToSubqueue(entry.getKey(), entry.getValue())) {
+						wasEmpty = true;
+					}
+				}
+
+				try {
+					storage.sync();
+				} catch (IOException e) {
+					System.err.println("Could not sync the subqueue storage");
+					e.printStackTrace();
+				}
+
+				if (wasEmpty) {
+					signalNotEmpty();// Signal a consumer thread to wake him up if it is sleeping
+				}
+			} finally {
+				commitLock.lock();
+				try {
+					for (PendingURLs pending : batch.values()) {// Now in their subqueue or spilled
+						for (String url : pending.admitted) {
+							pendingIndex.remove(url);
+						}
+						for (String url : pending.unchecked) {
+							pendingIndex.remove(url);
+						}
+					}
+					committedBatch = Math.max(committedBatch, batchNumber);// clear may have released it
+					commitDone.signalAll();// Wake up the producers of the batch
+				} finally {
+					commitLock.unlock();
+				}
 			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
 
-			if (collection.isEmpty()) {
+	/**
+	 * Writes a batch of urls of the same domain to its subqueue, the urls that do
+	 * not fit in the domain or in the queue, or that could not be written, are
+	 * spilled
+	 * 
+	 * @param domain
+	 * @param pending: the urls of the domain, in order
+	 * @return true if the queue was empty before the batch was added
+	 */
+	private boolean commitToSubqueue(String domain, PendingURLs pending) {
+		List<String> urls = pending.admitted;
+		List<String> overflow = null;
+		boolean wasEmpty = false;
+		restoreDomain(domain);// Its persisted urls must be loaded before the subqueue is used
+		Lock subqueueLock = subqueueLock(domain);
+		subqueueLock.lock();
+		try {
+			Subqueue subqueue = domainToQueue.get(domain);
+
+			DomainStatistics statistics = subqueue != null ? subqueue.statistics : retiredDomains.get(domain);
+			List<String> unchecked = pending.unchecked;
+			long allowed = Math.max(0, remainingEnqueues(domain, statistics) - urls.size());
+			List<String> overBudget = Collections.emptyList();
+			if (unchecked.size() > allowed) {// The urls over budget are dropped before touching the disk
+				overBudget = unchecked.subList((int) allowed, unchecked.size());
+				unchecked = unchecked.subList(0, (int) allowed);
+			}
+			if (!unchecked.isEmpty()) {
+				if (urls.isEmpty()) {
+					urls = unchecked;
+				} else {
+					urls = new ArrayList<>(urls);
+					urls.addAll(unchecked);
+				}
+			}
+			if (urls.isEmpty()) {
+				for (String url : overBudget) {
+					recordBudgetHit(statistics, url);
+				}
 				return false;
 			}
 
-			boolean changed = false;
-			for (String s : collection) {
-				if (add(s)) {
-					changed = true;
+			if (subqueue == null) {// This is a new domain=> create new queue
+				subqueue = newSubqueue(domain);
+				domainToQueue.put(domain, subqueue);
+			}
+			for (String url : overBudget) {
+				recordBudgetHit(subqueue.statistics, url);
+			}
+
+			int room = domainCapacity - subqueue.queue.size();
+			if (overflowPolicy == OverflowPolicy.SPILL) {// addAll already waited for room with the BLOCK policy
+				room = Math.min(room, capacity - queueSize.get());
+			}
+			room = Math.max(0, Math.min(room, urls.size()));
+			if (room < urls.size()) {
+				overflow = urls.subList(room, urls.size());
+			}
+
+			if (room > 0) {
+				storage.addAll(subqueue.queue, urls.subList(0, room));
+				subqueue.statistics.recordEnqueued(room);
+				if (subqueue.index != null) {
+					for (String url : urls.subList(0, room)) {
+						subqueue.index.add(url);
+					}
 				}
+				if (!subqueue.active) {// The domain rejoins the ring
+					activateOrPark(subqueue);
+				}
+				wasEmpty = queueSize.getAndAdd(room) == 0;
 			}
-			notEmpty.signalAll();
-			return changed;
+
+		} catch (IOException e) {
+			System.err.println("Could not add a batch of " + urls.size() + " urls to subqueue " + domain
+					+ ", spilling them");
+			e.printStackTrace();
+			overflow = urls;// They are already recorded as seen
 		} finally {
-			lock.unlock();
+			subqueueLock.unlock();
 		}
 
+		if (overflow != null) {
+			spill(overflow);
+		}
+		return wasEmpty;
 	}
 
 	/**
@@ -703,7 +2678,7 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 
 	@Override
 	public void clear() {
-		lock.lock();
+		fullyLock();
 		try {
 			try {
 				for (ObjectQueue<String> queue : allQueues()) {
@@ -715,90 +2690,236 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 				throw new IllegalStateException();
 			}
 
+			commitLock.lock();
+			try {
+				pendingURLs.clear();
+				pendingIndex.clear();
+				pendingCount = 0;
+				committedBatch = pendingBatch++;// The producers of the cleared batch return
+				commitDone.signalAll();
+			} finally {
+				commitLock.unlock();
+			}
+
+			spillLock.lock();
+			try {
+				spilledURLs.clear();
+				spilledCount.set(0);
+				spilledIndex = new FingerprintIndex();
+			} catch (IOException e) {
+				System.err.println("Could not clear the overflow queue");
+				throw new IllegalStateException();
+			} finally {
+				spillLock.unlock();
+			}
+
 			queueSize.set(0);
+			activeRing.clear();
+			parkedSubqueues.clear();
+			long now = System.nanoTime();
+			parkedBacklog.set(0);
+			for (Subqueue subqueue : domainToQueue.values()) {
+				subqueue.active = false;
+				subqueue.parked = false;
+				subqueue.inParkedBacklog = false;
+				subqueue.drainedSince = now;
+				subqueue.index = new FingerprintIndex();
+			}
+			roundIndex = new FingerprintIndex();
+			activeCount.set(0);
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
-
+		signalNotFull();
 	}
 
 	@Override
 	public void close() throws IOException {
-		lock.lock();
+		commitLock.lock();
+		try {
+			closed = true;
+			commitNeeded.signal();// Stops the committer thread
+		} finally {
+			commitLock.unlock();
+		}
+		flush();// Write the pending batch before closing the subqueues, waits for a running commit
+		compactionLock.lock();// Waits for a running compaction pass
 		try {
+			compactionClosed = true;
+			compactionStopped.signal();
+		} finally {
+			compactionLock.unlock();
+		}
+		restoreCancelled = true;// Not interrupted: an interrupt during a read would close the file channels
+		fullyLock();
+		try {
+			checkpoint();
 
 			for (ObjectQueue<String> queue : allQueues()) {
 				queue.close();
 			}
+			storage.close();
+			spilledURLs.close();
+			overflowStorage.close();
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
 	}
 
 	@Override
 	public int remainingCapacity() {
-		return Integer.MAX_VALUE;// There is no limit to capacity
+		if (capacity == Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;// There is no limit to capacity
+		}
+		return Math.max(0, capacity - queueSize.get());
+	}
+
+	/**
+	 * Returns the number of urls of the queue and of its overflow queue relative
+	 * to its capacity, above 1 when urls have been spilled. 0 if the queue is
+	 * unbounded
+	 */
+	@Override
+	public double pressure() {
+		if (capacity == Integer.MAX_VALUE) {
+			return 0;
+		}
+		return ((double) queueSize.get() + spilledCount.get()) / capacity;
+	}
+
+	/**
+	 * Returns the number of urls waiting in the overflow queue
+	 * 
+	 * @return the number of spilled urls
+	 */
+	public int spilledCount() {
+		return spilledCount.get();
+	}
+
+	/**
+	 * Returns the number of urls dropped because the overflow queue was full
+	 * 
+	 * @return the number of dropped urls
+	 */
+	public int droppedCount() {
+		return droppedCount.get();
 	}
 
 	/**
 	 * Can only remove the object if it is the head of the current round queue or of
-	 * one of the underlying domain subqueues
+	 * the subqueue of its domain
 	 */
 	@Override
 	public boolean remove(Object o) {
-		if (o == null) {
+		if (!(o instanceof String)) {
 			return false;
 		}
+		String url = (String) o;
+		String domain = stringMapper(url);
+		restoreDomain(domain);
 
-		lock.lock();
+		takeLock.lock();
 		try {
-			try {
-				for (ObjectQueue<String> queue : allQueues()) {
+			if (url.equals(urlsRound.peek())) {
+				urlsRound.remove();
+				if (roundIndex != null) {
+					roundIndex.remove(url);
+				}
+				queueSize.getAndDecrement();
+				signalNotFull();
+				return true;
+			}
 
-					if (o.equals(queue.peek())) {
-						queue.remove();
-						return true;
+			Lock subqueueLock = subqueueLock(domain);
+			subqueueLock.lock();
+			try {
+				Subqueue subqueue = domainToQueue.get(domain);
+				if (subqueue != null && url.equals(subqueue.queue.peek())) {
+					subqueue.queue.remove();
+					if (subqueue.index != null) {
+						subqueue.index.remove(url);
 					}
+					updateParkedBacklog(subqueue);
+					queueSize.getAndDecrement();
+					signalNotFull();
+					return true;
 				}
-			} catch (IOException e) {
-				System.err.println("Could not peek or remove from queue");
-				throw new IllegalStateException();
+			} finally {
+				subqueueLock.unlock();
 			}
-
 			return false;
 
+		} catch (IOException e) {
+			System.err.println("Could not peek or remove from queue");
+			throw new IllegalStateException();
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
+	/**
+	 * Answers without reading the queue files: looks the url up in the index of
+	 * the pending batch, then in the indexes of
+	 * the current round, of the subqueue of its domain and of the overflow queue.
+	 * A url is removed from an index only once it is in the next one, and the
+	 * takeLock is held during the last three lookups so that a url moving to the
+	 * current round or back from the overflow queue is not missed
+	 */
 	@Override
 	public boolean contains(Object o) {
-		if (o == null) {
+		if (!(o instanceof String)) {
 			return false;
 		}
-		lock.lock();
+		String url = (String) o;
+		long fingerprint = FingerprintIndex.fingerprint(url);
+		String domain = stringMapper(url);
+
+		commitLock.lock();
+		try {
+			if (pendingIndex.contains(fingerprint)) {
+				return true;
+			}
+		} finally {
+			commitLock.unlock();
+		}
 
+		restoreDomain(domain);
+		takeLock.lock();
 		try {
+			if (roundIndex().contains(fingerprint)) {
+				return true;
+			}
 
-			for (ObjectQueue<String> queue : allQueues()) {
-				List<String> urls = queueToList(queue);
-				if (urls.contains(o)) {
+			Lock subqueueLock = subqueueLock(domain);
+			subqueueLock.lock();
+			try {
+				Subqueue subqueue = domainToQueue.get(domain);
+				if (subqueue != null && index(subqueue).contains(fingerprint)) {
 					return true;
 				}
+			} finally {
+				subqueueLock.unlock();
 			}
-			return false;
 
+			spillLock.lock();
+			try {
+				return spilledIndex().contains(fingerprint);
+			} finally {
+				spillLock.unlock();
+			}
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
 	@Override
 	public int drainTo(Collection<? super String> collection) {
-		return drainTo(collection, queueSize.get());
+		return drainTo(collection, Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Removes at most maxElements urls in round order
+	 */
 	@Override
 	public int drainTo(Collection<? super String> collection, int maxElements) {
 		if (collection == null) {
@@ -809,32 +2930,18 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 			throw new IllegalArgumentException();
 		}
 
-		lock.lock();
-
-		int remainingSpace = maxElements;
+		takeLock.lock();
 		try {
-
-			for (ObjectQueue<String> queue : allQueues()) {
-				try {
-					int peekSize = Math.min(remainingSpace, queue.size());
-					collection.addAll(queue.peek(peekSize));
-					remainingSpace -= peekSize;
-					if (remainingSpace == 0) {
-						return maxElements;
-					}
-
-				} catch (IOException e) {
-					System.err.println("Could not peek or remove from queue");
-					e.printStackTrace();
-				}
+			int drained = 0;
+			while (drained < maxElements && prepareRound()) {
+				collection.add(retrieveFromRoundQueue());
+				drained++;
 			}
-
-			return maxElements - remainingSpace;
+			return drained;
 
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
-
 	}
 
 	/**
@@ -843,13 +2950,18 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	 * @throws IOException
 	 */
 	public List<String> toList() throws IOException {
-		List<String> list = new ArrayList<>();
+		fullyLock();
+		try {
+			List<String> list = new ArrayList<>();
 
-		for (ObjectQueue<String> queue : allQueues()) {
-			list.addAll(queueToList(queue));
-		}
+			for (ObjectQueue<String> queue : allQueues()) {
+				list.addAll(queueToList(queue));
+			}
 
-		return list;
+			return list;
+		} finally {
+			fullyUnlock();
+		}
 	}
 
 	/**
@@ -858,13 +2970,18 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	 * @throws IOException
 	 */
 	public Set<String> toSet() {
-		Set<String> set = new HashSet<>();
+		fullyLock();
+		try {
+			Set<String> set = new HashSet<>();
 
-		for (ObjectQueue<String> queue : allQueues()) {
-			set.addAll(queueToList(queue));
-		}
+			for (ObjectQueue<String> queue : allQueues()) {
+				set.addAll(queueToList(queue));
+			}
 
-		return set;
+			return set;
+		} finally {
+			fullyUnlock();
+		}
 	}
 	
 	
@@ -873,12 +2990,22 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 	 * @return the number of domains discovered
 	 */
 	public int domainsDiscovered() {
-		return domainToQueue.size();
+		return subqueueCount() + retiredDomains.size();
+	}
+
+	/**
+	 * Returns the number of domains whose drained subqueue has been deleted by
+	 * the compaction
+	 * 
+	 * @return the number of retired domains
+	 */
+	public int retiredCount() {
+		return retiredDomains.size();
 	}
 
 	@Override
 	public String toString() {
-		lock.lock();
+		fullyLock();
 		try {
 			StringBuilder sb = new StringBuilder();
 
@@ -886,9 +3013,9 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 
 			sb.append("CurrentRoundQueue:" + queueToList(urlsRound) + "\n");
 
-			for (Map.Entry<String, ObjectQueue<String>> entry : domainToQueue.entrySet()) {
+			for (Map.Entry<String, Subqueue> entry : domainToQueue.entrySet()) {
 
-				ObjectQueue<String> subqueue = entry.getValue();
+				ObjectQueue<String> subqueue = entry.getValue().queue;
 				List<String> subqueueList = queueToList(subqueue);
 
 				sb.append("Subqueue " + entry.getKey() + ":" + subqueueList + "\n");
@@ -896,7 +3023,7 @@ public class RoundRobinBlockingQueue implements BlockingQueue<String>, Closeable
 			}
 			return sb.toString();
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
 	}
 }
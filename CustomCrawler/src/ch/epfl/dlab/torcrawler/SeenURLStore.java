@@ -0,0 +1,109 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         The set of urls the crawler has already seen (enqueued or about to
+ *         be), shared amongst all the fetcher threads so that a url is
+ *         enqueued at most once. Implementations must be thread safe and must
+ *         not keep every url on the heap, so that the crawl is not bounded by
+ *         the memory of the JVM.
+ */
+public interface SeenURLStore extends Closeable {
+
+	public static final String DEFAULT_FOLDER_NAME = "data/seenUrls";
+
+	/**
+	 * Creates an empty store in the default folder IMPORTANT: the urls stored in
+	 * this folder by a previous crawl are deleted
+	 *
+	 * @return a new empty store
+	 */
+	static SeenURLStore create() {
+		return TieredSeenURLStore.create(DEFAULT_FOLDER_NAME);
+	}
+
+	/**
+	 * Restores the store persisted in the default folder by a previous crawl
+	 *
+	 * @return the restored store
+	 */
+	static SeenURLStore restore() {
+		return TieredSeenURLStore.restore(DEFAULT_FOLDER_NAME);
+	}
+
+	/**
+	 * Records the url as seen, atomically: if several threads add the same url,
+	 * exactly one of them gets true
+	 *
+	 * @param url
+	 * @return true if the url had never been seen
+	 */
+	default boolean addIfAbsent(String url) {
+		return addIfAbsent(FingerprintIndex.fingerprint(url));
+	}
+
+	/**
+	 * Records the url of the fingerprint as seen, so that a caller that looks
+	 * the url up before adding it computes its fingerprint once
+	 *
+	 * @param fingerprint: the fingerprint of the url (see
+	 *                     FingerprintIndex.fingerprint)
+	 * @return true if the url had never been seen
+	 */
+	boolean addIfAbsent(long fingerprint);
+
+	/**
+	 * Records the urls of the fingerprints as seen, in one pass: each
+	 * fingerprint is added atomically as by addIfAbsent. A fingerprint present
+	 * twice in the array is added once.
+	 *
+	 * @param fingerprints: the fingerprints of the urls (see
+	 *                      FingerprintIndex.fingerprint)
+	 * @return for each fingerprint, true if its url had never been seen
+	 */
+	default boolean[] addAllIfAbsent(long[] fingerprints) {
+		boolean[] added = new boolean[fingerprints.length];
+		for (int i = 0; i < fingerprints.length; ++i) {
+			added[i] = addIfAbsent(fingerprints[i]);
+		}
+		return added;
+	}
+
+	/**
+	 * Tells whether the url has been seen
+	 *
+	 * @param url
+	 * @return whether the url is in the store
+	 */
+	default boolean contains(String url) {
+		return contains(FingerprintIndex.fingerprint(url));
+	}
+
+	/**
+	 * Tells whether the url of the fingerprint has been seen
+	 *
+	 * @param fingerprint: the fingerprint of the url (see
+	 *                     FingerprintIndex.fingerprint)
+	 * @return whether the url is in the store
+	 */
+	boolean contains(long fingerprint);
+
+	/**
+	 * Returns the number of urls seen
+	 *
+	 * @return the number of urls in the store
+	 */
+	long size();
+
+	/**
+	 * Persists the urls that are not written on each operation, called
+	 * periodically by the PersistenceThread
+	 *
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException;
+}
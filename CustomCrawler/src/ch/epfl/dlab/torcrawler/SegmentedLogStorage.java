@@ -0,0 +1,1018 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.ObjectQueue.Converter;
+import com.squareup.tape2.QueueFile;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Subqueue storage where all the queues share a few append-only segment
+ *         files instead of having one file per queue. Every operation on a queue
+ *         is appended as a record to the active segment and each queue keeps in
+ *         memory the positions of its live elements (the per queue offset
+ *         index). When the active segment is full, a new one is started.
+ *
+ *         Records: [int length][int crc32][body] with body being one of
+ *         DEFINE(id, name), ADD(id, seq, url), REMOVE(id, headSeq),
+ *         DELETE(name), the url of
+ *         an ADD record being stored relative to the domain of its queue (see
+ *         DomainRelativeConverter). Queue ids are only valid inside the
+ *         segment that defines them so that each segment can be replayed and
+ *         deleted on its own. Elements of a queue are numbered by a sequence
+ *         number, a REMOVE record stores the sequence number of the new head of
+ *         the queue. A DELETE record forgets a queue and its older records, it
+ *         is only copied by the compactions while older segments still hold
+ *         records of the queue, and a queue created again with the same name
+ *         continues its sequence numbers.
+ *
+ *         A background thread compacts the sealed segments whose fraction of
+ *         live elements fell under COMPACTION_THRESHOLD: the live elements are
+ *         copied to the active segment and the old segment file is deleted.
+ *
+ *         The records are written under the storage lock but forced outside
+ *         of it: a thread forcing the active segment also forces the records
+ *         written by the others meanwhile, which return without an fsync (group
+ *         commit). Batches added with addAll are not forced until sync().
+ *
+ *         CAVEATS: - the storage is thread safe but uses a single lock, so the
+ *         writes to different queues are serialized - records corrupted by a
+ *         crash during a write are dropped at restore
+ */
+public final class SegmentedLogStorage implements SubqueueStorage {
+
+	public static final String SEGMENT_FILE_SUFFIX = ".segment";
+	public static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;// in bytes
+	public static final double COMPACTION_THRESHOLD = 0.5;// Fraction of live elements under which a segment is compacted
+	public static final int COMPACTION_INTERVAL = 30_000;// Time between two compaction passes in ms
+
+	private static final byte DEFINE = 1;
+	private static final byte ADD = 2;
+	private static final byte REMOVE = 3;
+	private static final byte DELETE = 4;
+	private static final int RECORD_HEADER_LENGTH = 8;// length + crc
+	private static final int ADD_PAYLOAD_OFFSET = 13;// type + id + seq
+
+	private final String folderName;
+	private final long maxSegmentSize;
+	private final Lock lock;
+	private final Lock syncLock;// Held while forcing the active segment, acquired before the lock
+	private final TreeMap<Integer, Segment> segments;// Segment number to segment
+	private final Map<String, LogQueue> queues;// Queue name to queue
+	private final Map<String, Long> deletedQueues;// Deleted queue name to its next sequence number, while segments hold its records
+	private Segment activeSegment;
+	private int nextQueueId;
+	private long writeCount;// Number of records written, guarded by the lock
+	private long syncedCount;// Number of records forced to disk, guarded by the syncLock
+	private final Thread compactor;
+	private final Lock compactionLock;// Held during a compaction pass
+	private final Condition compactionStopped;// Signaled on close
+	private boolean closed;// Guarded by the compactionLock, stops the compactor thread
+
+	/**
+	 * Opens the segmented log stored in the following folder and replays its
+	 * segments to rebuild the queues
+	 *
+	 * @param folderName: where the segments are stored
+	 * @throws IOException
+	 */
+	public SegmentedLogStorage(String folderName) throws IOException {
+		this(folderName, MAX_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the segmented log stored in the following folder and replays its
+	 * segments to rebuild the queues
+	 *
+	 * @param folderName:     where the segments are stored
+	 * @param maxSegmentSize: size in bytes above which a new segment is started
+	 * @throws IOException
+	 */
+	public SegmentedLogStorage(String folderName, long maxSegmentSize) throws IOException {
+		assert (folderName != null);
+		assert (maxSegmentSize > 0);
+
+		this.folderName = folderName;
+		this.maxSegmentSize = maxSegmentSize;
+		lock = new ReentrantLock();
+		syncLock = new ReentrantLock();
+		segments = new TreeMap<>();
+		queues = new HashMap<>();
+		deletedQueues = new HashMap<>();
+		nextQueueId = 0;
+		writeCount = 0;
+		syncedCount = 0;
+		compactionLock = new ReentrantLock();
+		compactionStopped = compactionLock.newCondition();
+		closed = false;
+		new File(folderName).mkdirs();
+
+		replay();
+		if (activeSegment == null) {
+			roll();
+		}
+
+		compactor = new Thread() {
+			@Override
+			public void run() {
+				while (awaitCompaction()) {
+					try {
+						compact();
+					} catch (IOException e) {
+						System.err.println("Could not compact the segmented log");
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * A segment file of the log, only the last one (active) can be written to
+	 */
+	private static final class Segment {
+		final int number;
+		final File file;
+		final FileChannel channel;
+		final BitSet definedIds;// Ids of the queues already defined in this segment
+		final Set<String> definedNames;// Names of the queues defined in this segment
+		long size;
+		int addCount;// Number of ADD records written in the segment
+		int liveCount;// Number of elements of the segment still referenced by a queue
+
+		Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.definedIds = new BitSet();
+			this.definedNames = new HashSet<>();
+			this.size = channel.size();
+		}
+	}
+
+	/**
+	 * Growable ring buffer of primitive longs
+	 */
+	private static final class LongRing {
+		private long[] elements = new long[4];
+		private int head = 0;
+		private int size = 0;
+
+		int size() {
+			return size;
+		}
+
+		long get(int i) {
+			return elements[(head + i) & (elements.length - 1)];
+		}
+
+		void set(int i, long value) {
+			elements[(head + i) & (elements.length - 1)] = value;
+		}
+
+		void add(long value) {
+			if (size == elements.length) {
+				long[] grown = new long[elements.length * 2];
+				for (int i = 0; i < size; ++i) {
+					grown[i] = get(i);
+				}
+				elements = grown;
+				head = 0;
+			}
+			elements[(head + size) & (elements.length - 1)] = value;
+			size++;
+		}
+
+		void removeFirst(int n) {
+			assert (n <= size);
+			head = (head + n) & (elements.length - 1);
+			size -= n;
+		}
+	}
+
+	/**
+	 * A queue whose elements are stored in the segments of the log
+	 */
+	private final class LogQueue extends ObjectQueue<String> {
+		final String name;
+		final int id;
+		final Converter<String> converter;
+		final LongRing positions;// Position of the ADD record of each element, ordered from head to tail
+		long headSeq;// Sequence number of the head element
+		long nextSeq;// Sequence number of the next added element
+
+		LogQueue(String name, int id) {
+			this.name = name;
+			this.id = id;
+			this.converter = new DomainRelativeConverter(name);
+			this.positions = new LongRing();
+		}
+
+		/**
+		 * The elements are not stored in a tape QueueFile
+		 */
+		@Override
+		public QueueFile file() {
+			return null;
+		}
+
+		@Override
+		public int size() {
+			lock.lock();
+			try {
+				return positions.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void add(String url) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			converter.toStream(url, bytes);
+
+			long written;
+			lock.lock();
+			try {
+				long position = appendAdd(this, nextSeq, bytes.toByteArray());
+				positions.add(position);
+				nextSeq++;
+				activeSegment.liveCount++;
+				written = writeCount;
+			} finally {
+				lock.unlock();
+			}
+			force(written);
+		}
+
+		@Override
+		public String peek() throws IOException {
+			lock.lock();
+			try {
+				if (positions.size() == 0) {
+					return null;
+				}
+				return converter.from(readPayload(positions.get(0)));
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void remove(int n) throws IOException {
+			long written;
+			lock.lock();
+			try {
+				if (n > positions.size()) {
+					throw new NoSuchElementException();
+				}
+				if (n == 0) {
+					return;
+				}
+				for (int i = 0; i < n; ++i) {
+					segments.get(segmentNumber(positions.get(i))).liveCount--;
+				}
+				positions.removeFirst(n);
+				headSeq += n;
+				appendRemove(this);
+				written = writeCount;
+			} finally {
+				lock.unlock();
+			}
+			force(written);
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				private int index = 0;
+
+				@Override
+				public boolean hasNext() {
+					return index < size();
+				}
+
+				@Override
+				public String next() {
+					lock.lock();
+					try {
+						if (index >= positions.size()) {
+							throw new NoSuchElementException();
+						}
+						return converter.from(readPayload(positions.get(index++)));
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					} finally {
+						lock.unlock();
+					}
+				}
+			};
+		}
+
+		/**
+		 * The segment files are shared, they are closed with the storage
+		 */
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String toString() {
+			return "LogQueue{name=" + name + ", size=" + size() + "}";
+		}
+	}
+
+	@Override
+	public ObjectQueue<String> createQueue(String name) throws IOException {
+		LogQueue queue;
+		long written;
+		lock.lock();
+		try {
+			queue = queues.get(name);
+			if (queue != null) {
+				queue.clear();// Erase the previous queue
+				return queue;
+			}
+
+			queue = new LogQueue(name, nextQueueId++);
+			queues.put(name, queue);
+			ensureDefined(queue);// Persist the existence of the queue even if it stays empty
+			Long nextSeq = deletedQueues.remove(name);
+			if (nextSeq != null) {// The records of the deleted queue must stay before the new head
+				queue.headSeq = nextSeq;
+				queue.nextSeq = nextSeq;
+				appendRemove(queue);
+			}
+			written = writeCount;
+		} finally {
+			lock.unlock();
+		}
+		force(written);
+		return queue;
+	}
+
+	/**
+	 * Forgets the empty queue and appends its DELETE record, so that its DEFINE
+	 * records are no longer copied by the compactions and a restore does not
+	 * rebuild it
+	 */
+	@Override
+	public void deleteQueue(ObjectQueue<String> queue) throws IOException {
+		if (!(queue instanceof LogQueue)) {
+			SubqueueStorage.super.deleteQueue(queue);
+			return;
+		}
+		LogQueue logQueue = (LogQueue) queue;
+
+		long written;
+		lock.lock();
+		try {
+			if (queues.get(logQueue.name) != logQueue) {
+				return;// Already deleted
+			}
+			if (logQueue.positions.size() > 0) {
+				throw new IllegalStateException("Queue " + logQueue.name + " is not empty");
+			}
+			queues.remove(logQueue.name);
+			deletedQueues.put(logQueue.name, logQueue.nextSeq);
+			appendDelete(logQueue.name);
+			written = writeCount;
+		} finally {
+			lock.unlock();
+		}
+		force(written);
+	}
+
+	/**
+	 * Appends the ADD records of the whole batch without forcing them to disk, the
+	 * next call to sync() forces all the batches at once
+	 */
+	@Override
+	public void addAll(ObjectQueue<String> queue, Collection<String> urls) throws IOException {
+		if (!(queue instanceof LogQueue)) {
+			SubqueueStorage.super.addAll(queue, urls);
+			return;
+		}
+		LogQueue logQueue = (LogQueue) queue;
+
+		List<byte[]> payloads = new ArrayList<>(urls.size());
+		for (String url : urls) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			logQueue.converter.toStream(url, bytes);
+			payloads.add(bytes.toByteArray());
+		}
+
+		lock.lock();
+		try {
+			for (byte[] payload : payloads) {
+				long position = appendAdd(logQueue, logQueue.nextSeq, payload);
+				logQueue.positions.add(position);
+				logQueue.nextSeq++;
+				activeSegment.liveCount++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		long written;
+		lock.lock();
+		try {
+			written = writeCount;
+		} finally {
+			lock.unlock();
+		}
+		force(written);
+	}
+
+	/**
+	 * Forces the active segment until the first target records written are on
+	 * disk, without holding the lock during the fsync. Returns at once if another
+	 * thread already forced them.
+	 *
+	 * @param target: number of records that must be on disk
+	 * @throws IOException
+	 */
+	private void force(long target) throws IOException {
+		syncLock.lock();
+		try {
+			if (syncedCount >= target) {
+				return;
+			}
+			long written;
+			Segment segment;
+			lock.lock();
+			try {
+				written = writeCount;
+				segment = activeSegment;
+			} finally {
+				lock.unlock();
+			}
+			segment.channel.force(false);// Sealed segments are forced when rolled
+			syncedCount = written;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	@Override
+	public ObjectQueue<String> restoreQueue(String name) {
+		lock.lock();
+		try {
+			return queues.get(name);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<String> queueNames() {
+		lock.lock();
+		try {
+			return new ArrayList<>(queues.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of segment files currently used by the log
+	 *
+	 * @return the number of segments
+	 */
+	public int segmentCount() {
+		lock.lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Compacts every sealed segment whose fraction of live elements is lower than
+	 * COMPACTION_THRESHOLD. The live elements are moved to the active segment and
+	 * the compacted segment files are deleted. Called periodically by the
+	 * background compactor.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		compactionLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			List<Segment> candidates = new ArrayList<>();
+			lock.lock();
+			try {
+				for (Segment segment : segments.values()) {
+					if (segment != activeSegment
+							&& (segment.addCount == 0 || segment.liveCount < COMPACTION_THRESHOLD * segment.addCount)) {
+						candidates.add(segment);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			for (Segment segment : candidates) {
+				compact(segment);
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks the compactor thread until the next compaction pass
+	 *
+	 * @return false if the storage has been closed
+	 */
+	private boolean awaitCompaction() {
+		compactionLock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(COMPACTION_INTERVAL);
+			while (!closed && remaining > 0) {
+				try {
+					remaining = compactionStopped.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					System.err.println("Compactor thread interrupted while waiting for the next pass");
+				}
+			}
+			return !closed;
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the live elements of a sealed segment to the active segment and
+	 * deletes the segment. The segment is scanned without holding the lock, the
+	 * lock is only held while an element is moved.
+	 *
+	 * @param segment: a sealed segment
+	 * @throws IOException
+	 */
+	private void compact(Segment segment) throws IOException {
+		Map<Integer, String> namesById = new HashMap<>();
+		Set<String> definedNames = new HashSet<>();
+		Set<String> removedNames = new HashSet<>();
+		Set<String> deletedNames = new HashSet<>();
+
+		long offset = 0;
+		while (offset < segment.size) {
+			ByteBuffer body = readRecord(segment, offset);
+			if (body == null) {
+				break;// Corrupted tail, nothing live can be there
+			}
+			long position = position(segment.number, offset);
+			offset += RECORD_HEADER_LENGTH + body.limit();
+
+			byte type = body.get(0);
+			int id = body.getInt(1);
+			if (type == DEFINE) {
+				String name = new String(body.array(), 5, body.limit() - 5, StandardCharsets.UTF_8);
+				namesById.put(id, name);
+				definedNames.add(name);
+			} else if (type == REMOVE) {
+				removedNames.add(namesById.get(id));
+			} else if (type == ADD) {
+				moveIfLive(namesById.get(id), body.getLong(5), position, body);
+			} else if (type == DELETE) {
+				deletedNames.add(new String(body.array(), 5, body.limit() - 5, StandardCharsets.UTF_8));
+			}
+		}
+
+		long written;
+		lock.lock();
+		try {
+			// Carry over the metadata of the segment before deleting it
+			for (String name : definedNames) {
+				LogQueue queue = queues.get(name);
+				if (queue != null) {
+					ensureDefined(queue);
+				}
+			}
+			for (String name : removedNames) {
+				LogQueue queue = queues.get(name);
+				if (queue != null) {
+					appendRemove(queue);
+				}
+			}
+			for (String name : deletedNames) {
+				if (queues.containsKey(name) || !deletedQueues.containsKey(name)) {
+					continue;// Created again, its REMOVE record hides the older records
+				}
+				if (definedElsewhere(name, segment)) {
+					appendDelete(name);
+				} else {
+					deletedQueues.remove(name);// No record of the queue is left
+				}
+			}
+			written = writeCount;
+		} finally {
+			lock.unlock();
+		}
+		force(written);// The moved elements must be on disk before their segment is deleted
+
+		syncLock.lock();// No fsync of the segment can be running while its channel is closed
+		lock.lock();
+		try {
+			assert (segment.liveCount == 0);
+			segments.remove(segment.number);
+			segment.channel.close();
+			segment.file.delete();
+		} finally {
+			lock.unlock();
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether a segment other than the following one holds records of the
+	 * queue. Assumes that the calling thread holds the lock
+	 */
+	private boolean definedElsewhere(String name, Segment segment) {
+		for (Segment other : segments.values()) {
+			if (other != segment && other.definedNames.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copies the element to the active segment if its queue still references it
+	 */
+	private void moveIfLive(String name, long seq, long position, ByteBuffer body) throws IOException {
+		lock.lock();
+		try {
+			LogQueue queue = queues.get(name);
+			if (queue == null || seq < queue.headSeq || seq - queue.headSeq >= queue.positions.size()) {
+				return;
+			}
+			int index = (int) (seq - queue.headSeq);
+			if (queue.positions.get(index) != position) {
+				return;// Dead copy of an element that has already been moved
+			}
+
+			byte[] payload = Arrays.copyOfRange(body.array(), ADD_PAYLOAD_OFFSET, body.limit());
+			long newPosition = appendAdd(queue, seq, payload);
+			queue.positions.set(index, newPosition);
+			activeSegment.liveCount++;
+			segments.get(segmentNumber(position)).liveCount--;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Rebuilds the queues and their index from the segment files of the folder
+	 *
+	 * @throws IOException
+	 */
+	private void replay() throws IOException {
+		String[] fileNames = new File(folderName).list();
+		if (fileNames == null) {
+			return;
+		}
+
+		for (String fileName : fileNames) {
+			if (fileName.endsWith(SEGMENT_FILE_SUFFIX)) {
+				int number = Integer.parseInt(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+				segments.put(number, new Segment(number, new File(folderName, fileName)));
+			}
+		}
+
+		Map<String, long[]> heads = new HashMap<>();// Queue name to {headSeq, maxSeq}
+		Map<String, LongRing> entries = new HashMap<>();// Queue name to (seq, position) pairs
+
+		for (Segment segment : segments.values()) {
+			Map<Integer, String> namesById = new HashMap<>();
+			long offset = 0;
+			while (offset < segment.size) {
+				ByteBuffer body = readRecord(segment, offset);
+				if (body == null) {
+					System.err.println("Dropping corrupted records at the end of segment " + segment.file);
+					segment.channel.truncate(offset);
+					segment.size = offset;
+					break;
+				}
+				long position = position(segment.number, offset);
+				offset += RECORD_HEADER_LENGTH + body.limit();
+
+				byte type = body.get(0);
+				int id = body.getInt(1);
+				if (type == DEFINE) {
+					String name = new String(body.array(), 5, body.limit() - 5, StandardCharsets.UTF_8);
+					namesById.put(id, name);
+					segment.definedNames.add(name);
+					heads.putIfAbsent(name, new long[] { 0, -1 });
+					entries.putIfAbsent(name, new LongRing());
+					deletedQueues.remove(name);
+					continue;
+				}
+				if (type == DELETE) {
+					String name = new String(body.array(), 5, body.limit() - 5, StandardCharsets.UTF_8);
+					long[] head = heads.remove(name);
+					entries.remove(name);
+					if (head != null) {
+						deletedQueues.put(name, Math.max(head[0], head[1] + 1));
+					}
+					continue;
+				}
+
+				String name = namesById.get(id);
+				if (name == null) {
+					continue;// Record of an undefined queue, should never happen
+				}
+				long[] head = heads.get(name);
+				long seq = body.getLong(5);
+				if (type == ADD) {
+					segment.addCount++;
+					entries.get(name).add(seq);
+					entries.get(name).add(position);
+					head[1] = Math.max(head[1], seq);
+				} else if (type == REMOVE) {
+					head[0] = Math.max(head[0], seq);
+				}
+			}
+		}
+
+		if (!segments.isEmpty()) {
+			activeSegment = segments.lastEntry().getValue();
+		}
+
+		List<LogQueue> queuesWithGaps = new ArrayList<>();
+		for (Map.Entry<String, long[]> entry : heads.entrySet()) {
+			LogQueue queue = new LogQueue(entry.getKey(), nextQueueId++);
+			long headSeq = entry.getValue()[0];
+			long maxSeq = entry.getValue()[1];
+			queue.headSeq = headSeq;
+			queue.nextSeq = Math.max(headSeq, maxSeq + 1);
+
+			// Place each element at its sequence number, later copies override older ones
+			long[] slots = new long[(int) Math.max(0, maxSeq - headSeq + 1)];
+			Arrays.fill(slots, -1);
+			LongRing pairs = entries.get(entry.getKey());
+			for (int i = 0; i < pairs.size(); i += 2) {
+				long seq = pairs.get(i);
+				if (seq >= headSeq) {
+					slots[(int) (seq - headSeq)] = pairs.get(i + 1);
+				}
+			}
+
+			boolean hasGap = false;
+			for (long position : slots) {
+				if (position == -1) {
+					hasGap = true;
+					continue;
+				}
+				queue.positions.add(position);
+				segments.get(segmentNumber(position)).liveCount++;
+			}
+			if (hasGap) {
+				queuesWithGaps.add(queue);
+			}
+			queues.put(queue.name, queue);
+		}
+
+		if (activeSegment != null) {
+			for (LogQueue queue : queuesWithGaps) {
+				renumber(queue);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the elements of a queue that lost some records with contiguous
+	 * sequence numbers, so that the position of an element can be found from its
+	 * sequence number
+	 *
+	 * @param queue
+	 * @throws IOException
+	 */
+	private void renumber(LogQueue queue) throws IOException {
+		System.err.println("Queue " + queue.name + " lost some elements, renumbering it");
+
+		LongRing oldPositions = new LongRing();
+		for (int i = 0; i < queue.positions.size(); ++i) {
+			oldPositions.add(queue.positions.get(i));
+		}
+		queue.positions.removeFirst(queue.positions.size());
+		queue.headSeq = queue.nextSeq;
+		appendRemove(queue);// Invalidate all the previous records of this queue
+
+		for (int i = 0; i < oldPositions.size(); ++i) {
+			long oldPosition = oldPositions.get(i);
+			queue.positions.add(appendAdd(queue, queue.nextSeq++, readPayload(oldPosition)));
+			activeSegment.liveCount++;
+			segments.get(segmentNumber(oldPosition)).liveCount--;
+		}
+		activeSegment.channel.force(false);
+	}
+
+	/**
+	 * Reads the body of the record at the following offset of the segment
+	 *
+	 * @return the body of the record or null if the record is incomplete or
+	 *         corrupted
+	 * @throws IOException
+	 */
+	private static ByteBuffer readRecord(Segment segment, long offset) throws IOException {
+		if (offset + RECORD_HEADER_LENGTH > segment.size) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+		readFully(segment.channel, header, offset);
+		int length = header.getInt(0);
+		int crc = header.getInt(4);
+		if (length < 5 || offset + RECORD_HEADER_LENGTH + length > segment.size) {
+			return null;
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(segment.channel, body, offset + RECORD_HEADER_LENGTH);
+		CRC32 checksum = new CRC32();
+		checksum.update(body.array(), 0, length);
+		if ((int) checksum.getValue() != crc) {
+			return null;
+		}
+		return body;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Returns the payload of the ADD record at the following position
+	 */
+	private byte[] readPayload(long position) throws IOException {
+		Segment segment = segments.get(segmentNumber(position));
+		ByteBuffer body = readRecord(segment, position & 0xFFFFFFFFL);
+		if (body == null) {
+			throw new IOException("Corrupted record in segment " + segment.file);
+		}
+		return Arrays.copyOfRange(body.array(), ADD_PAYLOAD_OFFSET, body.limit());
+	}
+
+	private long appendAdd(LogQueue queue, long seq, byte[] payload) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(ADD_PAYLOAD_OFFSET + payload.length);
+		body.put(ADD).putInt(0).putLong(seq).put(payload);
+		long position = append(queue, body);
+		activeSegment.addCount++;
+		return position;
+	}
+
+	private void appendRemove(LogQueue queue) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(ADD_PAYLOAD_OFFSET);
+		body.put(REMOVE).putInt(0).putLong(queue.headSeq);
+		append(queue, body);
+	}
+
+	/**
+	 * Appends a record of the following queue to the active segment, starting a
+	 * new segment if needed. The queue id is written in the record by this method.
+	 *
+	 * @return the position of the record
+	 */
+	private long append(LogQueue queue, ByteBuffer body) throws IOException {
+		if (activeSegment.size > 0 && activeSegment.size + RECORD_HEADER_LENGTH + body.capacity() > maxSegmentSize) {
+			roll();
+		}
+		ensureDefined(queue);
+		body.putInt(1, queue.id);
+		return write(body);
+	}
+
+	/**
+	 * Writes the DEFINE record of the queue in the active segment if it is not
+	 * already there
+	 */
+	private void ensureDefined(LogQueue queue) throws IOException {
+		if (activeSegment.definedIds.get(queue.id)) {
+			return;
+		}
+		byte[] name = queue.name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(5 + name.length);
+		body.put(DEFINE).putInt(queue.id).put(name);
+		write(body);
+		activeSegment.definedIds.set(queue.id);
+		activeSegment.definedNames.add(queue.name);
+	}
+
+	/**
+	 * Appends the DELETE record of the queue to the active segment, starting a
+	 * new segment if needed
+	 */
+	private void appendDelete(String name) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(5 + bytes.length);
+		body.put(DELETE).putInt(0).put(bytes);
+		if (activeSegment.size > 0 && activeSegment.size + RECORD_HEADER_LENGTH + body.capacity() > maxSegmentSize) {
+			roll();
+		}
+		write(body);
+	}
+
+	private long write(ByteBuffer body) throws IOException {
+		CRC32 checksum = new CRC32();
+		checksum.update(body.array(), 0, body.capacity());
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.capacity());
+		record.putInt(body.capacity()).putInt((int) checksum.getValue()).put(body.array());
+		record.flip();
+
+		long offset = activeSegment.size;
+		while (record.hasRemaining()) {
+			activeSegment.channel.write(record, offset + record.position());
+		}
+		activeSegment.size += record.limit();
+		writeCount++;
+		return position(activeSegment.number, offset);
+	}
+
+	/**
+	 * Seals the active segment and starts a new one
+	 */
+	private void roll() throws IOException {
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		if (activeSegment != null) {
+			activeSegment.channel.force(true);
+		}
+		activeSegment = new Segment(number, new File(folderName, String.format("%08d", number) + SEGMENT_FILE_SUFFIX));
+		segments.put(number, activeSegment);
+	}
+
+	private static long position(int segmentNumber, long offset) {
+		return ((long) segmentNumber << 32) | offset;
+	}
+
+	private static int segmentNumber(long position) {
+		return (int) (position >>> 32);
+	}
+
+	@Override
+	public void close() throws IOException {
+		compactionLock.lock();
+		try {
+			closed = true;
+			compactionStopped.signal();
+		} finally {
+			compactionLock.unlock();
+		}
+		try {
+			compactor.join();// Not interrupted: an interrupted write would close the channel of the active segment
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		syncLock.lock();
+		lock.lock();
+		try {
+			for (Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+		} finally {
+			lock.unlock();
+			syncLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import com.squareup.tape2.ObjectQueue;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Backend used by RoundRobinBlockingQueue to persist its subqueues. A
+ *         storage lives in a single folder and hands out named persistent
+ *         ObjectQueues, so that the queue algorithm does not depend on how
+ *         (and in how many files) the urls are stored on disk.
+ *
+ *         CAVEAT: the queues handed out by a storage are not thread safe, the
+ *         caller is responsible for the synchronization.
+ */
+public interface SubqueueStorage extends Closeable {
+
+	/**
+	 * The available storage backends
+	 */
+	enum Mode {
+		TAPE, // One tape QueueFile per subqueue
+		SEGMENTED_LOG, // All subqueues share a few append-only segment files
+		MAPPED // One memory-mapped MappedQueueFile per subqueue
+	}
+
+	/**
+	 * Opens the storage of the given mode in the following folder, the data
+	 * previously persisted in the folder is kept
+	 *
+	 * @param folder: where the subqueues are stored
+	 * @param mode:   the storage backend
+	 * @return the storage
+	 * @throws IOException
+	 */
+	static SubqueueStorage open(String folder, Mode mode) throws IOException {
+		switch (mode) {
+		case SEGMENTED_LOG:
+			return new SegmentedLogStorage(folder);
+		case MAPPED:
+			return new TapeSubqueueStorage(folder, TapeSubqueueStorage.MAX_OPEN_FILES, true);
+		case TAPE:
+		default:
+			return new TapeSubqueueStorage(folder);
+		}
+	}
+
+	/**
+	 * Opens the storage of the given mode in the following folder, optionally
+	 * with an in-memory tier over it, the data previously persisted in the folder
+	 * is kept
+	 *
+	 * @param folder: where the subqueues are stored
+	 * @param mode:   the storage backend
+	 * @param tiered: whether the queues are buffered in memory
+	 * @return the storage
+	 * @throws IOException
+	 */
+	static SubqueueStorage open(String folder, Mode mode, boolean tiered) throws IOException {
+		SubqueueStorage storage = open(folder, mode);
+		return tiered ? new TieredSubqueueStorage(folder, storage) : storage;
+	}
+
+	/**
+	 * Infers from the files present in the folder which storage was used to
+	 * persist a previous queue
+	 *
+	 * @param folder
+	 * @return the mode of the storage that persisted the folder, TAPE by default
+	 */
+	static Mode detect(String folder) {
+		String[] fileNames = new File(folder).list();
+		if (fileNames != null) {
+			for (String fileName : fileNames) {
+				if (fileName.endsWith(SegmentedLogStorage.SEGMENT_FILE_SUFFIX)) {
+					return Mode.SEGMENTED_LOG;
+				}
+				if (fileName.endsWith(TapeSubqueueStorage.MAPPED_QUEUE_FILE_SUFFIX)) {
+					return Mode.MAPPED;
+				}
+			}
+		}
+		return Mode.TAPE;
+	}
+
+	/**
+	 * Creates a new empty queue with the following name. IMPORTANT: if a queue with
+	 * the same name already exists, it will be erased
+	 *
+	 * @param name: the identifier of the queue
+	 * @return a new empty queue
+	 * @throws IOException
+	 */
+	ObjectQueue<String> createQueue(String name) throws IOException;
+
+	/**
+	 * Restores a previously persisted queue
+	 *
+	 * @param name: the identifier of the queue
+	 * @return the restored queue or null if no queue with this name exists
+	 * @throws IOException
+	 */
+	ObjectQueue<String> restoreQueue(String name) throws IOException;
+
+	/**
+	 * Returns the names of all the queues persisted in this storage
+	 *
+	 * @return the names of the persisted queues
+	 */
+	List<String> queueNames();
+
+	/**
+	 * Appends a batch of urls at the end of a queue of this storage. The batch is
+	 * only guaranteed to be on disk after the next call to sync(), so that a
+	 * storage can persist several batches with a single disk synchronization. By
+	 * default each url is added on its own.
+	 *
+	 * @param queue: a queue handed out by this storage
+	 * @param urls:  the urls to add, in order
+	 * @throws IOException
+	 */
+	default void addAll(ObjectQueue<String> queue, Collection<String> urls) throws IOException {
+		for (String url : urls) {
+			queue.add(url);
+		}
+	}
+
+	/**
+	 * Forces the batches added since the last call to disk. Nothing to do by
+	 * default, as every add is already synchronous.
+	 *
+	 * @throws IOException
+	 */
+	default void sync() throws IOException {
+	}
+
+	/**
+	 * Bounds the number of files this storage keeps open at once. Ignored by
+	 * default, for storages that only use a few files.
+	 *
+	 * @param maxOpenFiles: the max number of open files
+	 * @throws IOException
+	 */
+	default void setMaxOpenFiles(int maxOpenFiles) throws IOException {
+	}
+
+	/**
+	 * Removes an empty queue from this storage and releases its disk space, the
+	 * queue must not be used afterwards. By default the queue is only cleared,
+	 * for storages that reclaim the space of the removed elements on their own.
+	 *
+	 * @param queue: an empty queue handed out by this storage
+	 * @throws IOException
+	 */
+	default void deleteQueue(ObjectQueue<String> queue) throws IOException {
+		queue.clear();
+	}
+
+	/**
+	 * Gives back to the file system the space a queue no longer uses, for storages
+	 * whose files keep their high-water size. Nothing to do by default.
+	 *
+	 * @param queue: a queue handed out by this storage
+	 * @return true if disk space has been released
+	 * @throws IOException
+	 */
+	default boolean shrinkQueue(ObjectQueue<String> queue) throws IOException {
+		return false;
+	}
+}
@@ -0,0 +1,472 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.ObjectQueue.Converter;
+import com.squareup.tape2.QueueFile;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Subqueue storage that persists each queue in its own square/tape
+ *         QueueFile named after the queue (one .queue file per queue)
+ *
+ *         HANDLE POOL: a queue only opens its file when it is first read or
+ *         written, and at most maxOpenFiles files are open at once: when the
+ *         pool is full, the file of the least recently used queue is closed and
+ *         reopened on its next access. The size of each queue is kept in memory,
+ *         so that size() and isEmpty() never open a file.
+ *
+ *         SHRINKING: a tape file never gives back the space of the removed
+ *         elements while it is not empty. shrinkQueue rewrites a file that is
+ *         SHRINK_RATIO times larger than its content into a new file that is
+ *         atomically renamed over it, and deleteQueue removes the file of a
+ *         drained queue.
+ *
+ *         The urls are stored relative to the domain of their queue (see
+ *         DomainRelativeConverter), the files written with plain urls stay
+ *         readable and are converted when they are shrunk.
+ *
+ *         MAPPED FILES: a storage opened with mapped = true stores each queue in
+ *         a memory-mapped MappedQueueFile (one .mqueue file per queue) instead.
+ *         The files are only forced to disk by sync() and when they are closed
+ *         (EXPLICIT policy): a killed crawler loses no url, a power loss may
+ *         lose the urls added since the last group commit.
+ */
+public final class TapeSubqueueStorage implements SubqueueStorage {
+
+	public static final String QUEUE_FILE_SUFFIX = ".queue";
+	public static final String MAPPED_QUEUE_FILE_SUFFIX = ".mqueue";
+	public static final int MAX_OPEN_FILES = 1_024;// Default max number of queue files open at once
+	public static final long SHRINK_MIN_LENGTH = 1024 * 1024;// in bytes, smaller files are never rewritten
+	public static final double SHRINK_RATIO = 4;// A file this many times larger than its content is rewritten
+	private static final int FILE_HEADER_LENGTH = 32;// Header of a tape QueueFile
+	private static final int ELEMENT_HEADER_LENGTH = 4;// Length prefix of a tape QueueFile element
+
+	private final String folderName;
+	private final boolean mapped;// Whether the queues are stored in MappedQueueFiles
+	private final String suffix;
+	private final HandlePool pool;
+
+	/**
+	 * @param folderName: the folder where the queue files are stored
+	 */
+	public TapeSubqueueStorage(String folderName) {
+		this(folderName, MAX_OPEN_FILES);
+	}
+
+	/**
+	 * @param folderName:   the folder where the queue files are stored
+	 * @param maxOpenFiles: the max number of queue files open at once
+	 */
+	public TapeSubqueueStorage(String folderName, int maxOpenFiles) {
+		this(folderName, maxOpenFiles, false);
+	}
+
+	/**
+	 * @param folderName:   the folder where the queue files are stored
+	 * @param maxOpenFiles: the max number of queue files open at once
+	 * @param mapped:       whether the queues are stored in memory-mapped files
+	 *                      instead of tape files
+	 */
+	public TapeSubqueueStorage(String folderName, int maxOpenFiles, boolean mapped) {
+		assert (folderName != null);
+		this.folderName = folderName;
+		this.mapped = mapped;
+		this.suffix = mapped ? MAPPED_QUEUE_FILE_SUFFIX : QUEUE_FILE_SUFFIX;
+		this.pool = new HandlePool(maxOpenFiles);
+		new File(folderName).mkdirs();
+	}
+
+	/**
+	 * LRU pool of the open queue files, a queue in use is pinned and never closed
+	 * by the pool. Thread safe.
+	 */
+	private final class HandlePool {
+		private final LinkedHashMap<LazyQueue, LazyQueue> open;// Access ordered, guarded by this
+		private int maxOpenFiles;
+
+		HandlePool(int maxOpenFiles) {
+			if (maxOpenFiles < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.open = new LinkedHashMap<>(16, 0.75f, true);
+			this.maxOpenFiles = maxOpenFiles;
+		}
+
+		/**
+		 * Opens the file of the queue if needed and pins it until release
+		 */
+		synchronized ObjectQueue<String> acquire(LazyQueue queue) throws IOException {
+			if (queue.handle == null) {
+				queue.handle = openQueue(queue.file, queue.converter);
+			}
+			queue.pins++;
+			open.put(queue, queue);
+			evict();
+			return queue.handle;
+		}
+
+		synchronized void release(LazyQueue queue) {
+			queue.pins--;
+		}
+
+		/**
+		 * Closes the file of the queue and removes it from the pool, assumes that the
+		 * queue is not in use
+		 */
+		synchronized void close(LazyQueue queue) throws IOException {
+			open.remove(queue);
+			if (queue.handle != null) {
+				queue.handle.close();
+				queue.handle = null;
+			}
+		}
+
+		synchronized void setMaxOpenFiles(int maxOpenFiles) throws IOException {
+			if (maxOpenFiles < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.maxOpenFiles = maxOpenFiles;
+			evict();
+		}
+
+		synchronized int openCount() {
+			return open.size();
+		}
+
+		/**
+		 * Forces the mapped files written since the last call to disk, the files
+		 * closed in the meantime have been forced when they were closed
+		 */
+		synchronized void sync() throws IOException {
+			for (LazyQueue queue : open.keySet()) {
+				if (queue.dirty) {
+					queue.dirty = false;// Cleared first, so that a concurrent write is forced by the next call
+					((MappedObjectQueue<String>) queue.handle).mappedFile().sync();
+				}
+			}
+		}
+
+		/**
+		 * Closes the least recently used files that are not pinned until the pool
+		 * is within its cap
+		 */
+		private void evict() throws IOException {
+			Iterator<LazyQueue> iterator = open.keySet().iterator();
+			while (open.size() > maxOpenFiles && iterator.hasNext()) {
+				LazyQueue eldest = iterator.next();
+				if (eldest.pins == 0) {
+					iterator.remove();
+					eldest.handle.close();
+					eldest.handle = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A queue whose file is opened through the handle pool. Like the other
+	 * queues of the storages, it is not thread safe.
+	 */
+	private final class LazyQueue extends ObjectQueue<String> {
+		final File file;
+		final Converter<String> converter;// Stores the urls relative to the domain of the queue
+		ObjectQueue<String> handle;// Guarded by the pool, null when the file is closed
+		int pins;// Guarded by the pool, number of operations in progress
+		volatile boolean dirty;// Whether the mapped file has been written since the last sync
+		private int size;
+
+		LazyQueue(String name, File file, int size) {
+			this.file = file;
+			this.converter = new DomainRelativeConverter(name);
+			this.handle = null;
+			this.pins = 0;
+			this.size = size;
+		}
+
+		@Override
+		public QueueFile file() {
+			return null;// The file may be closed at any time by the pool
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void add(String url) throws IOException {
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				queue.add(url);
+				size++;
+				dirty = mapped;
+			} finally {
+				pool.release(this);
+			}
+		}
+
+		void addAll(Collection<String> urls) throws IOException {
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				for (String url : urls) {
+					queue.add(url);
+					size++;
+				}
+				dirty = mapped;
+			} finally {
+				pool.release(this);
+			}
+		}
+
+		@Override
+		public String peek() throws IOException {
+			if (size == 0) {
+				return null;
+			}
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				return queue.peek();
+			} finally {
+				pool.release(this);
+			}
+		}
+
+		@Override
+		public List<String> peek(int max) throws IOException {
+			if (size == 0) {
+				return new ArrayList<>();
+			}
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				return queue.peek(max);
+			} finally {
+				pool.release(this);
+			}
+		}
+
+		@Override
+		public void remove(int n) throws IOException {
+			if (n == 0) {
+				return;
+			}
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				queue.remove(n);
+				size -= n;
+				dirty = mapped;
+			} finally {
+				pool.release(this);
+			}
+		}
+
+		@Override
+		public void clear() throws IOException {
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				queue.clear();
+				size = 0;
+				dirty = mapped;
+			} finally {
+				pool.release(this);
+			}
+		}
+
+		/**
+		 * Iterates over a copy of the queue, as the file may be closed during the
+		 * iteration
+		 */
+		@Override
+		public Iterator<String> iterator() {
+			try {
+				return peek(size).iterator();
+			} catch (IOException e) {
+				System.err.println("Could not read the queue file " + file);
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			pool.close(this);
+		}
+
+		/**
+		 * Rewrites the file of the queue if it is much larger than its content, the
+		 * elements are streamed twice: once to measure them and once to copy them
+		 *
+		 * @return true if the file has been rewritten
+		 */
+		boolean shrink() throws IOException {
+			if (file.length() < SHRINK_MIN_LENGTH) {
+				return false;
+			}
+
+			File temporaryFile = new File(file.getPath() + ".tmp");
+			ObjectQueue<String> queue = pool.acquire(this);
+			try {
+				long usedBytes;
+				if (mapped) {
+					usedBytes = MappedQueueFile.HEADER_LENGTH
+							+ ((MappedObjectQueue<String>) queue).mappedFile().usedBytes();
+				} else {
+					usedBytes = FILE_HEADER_LENGTH;
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					for (String url : queue) {// Measured as stored, relative to the domain
+						bytes.reset();
+						converter.toStream(url, bytes);
+						usedBytes += ELEMENT_HEADER_LENGTH + bytes.size();
+					}
+				}
+				if (file.length() < SHRINK_RATIO * usedBytes) {
+					return false;
+				}
+
+				Files.deleteIfExists(temporaryFile.toPath());
+				try (ObjectQueue<String> copy = openQueue(temporaryFile, converter)) {
+					for (String url : queue) {
+						copy.add(url);
+					}
+				}
+			} finally {
+				pool.release(this);
+			}
+
+			pool.close(this);// Reopened on the next access, from the new file
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}
+	}
+
+	/**
+	 * Opens a queue file in the format of this storage, the file is created if it
+	 * does not exist
+	 *
+	 * @param file
+	 * @param converter
+	 * @return the queue stored in the file
+	 * @throws IOException
+	 */
+	private ObjectQueue<String> openQueue(File file, Converter<String> converter) throws IOException {
+		if (mapped) {
+			return new MappedObjectQueue<>(new MappedQueueFile(file, MappedQueueFile.SyncPolicy.EXPLICIT), converter);
+		}
+		return ObjectQueue.create(new QueueFile.Builder(file).build(), converter);
+	}
+
+	@Override
+	public ObjectQueue<String> createQueue(String name) throws IOException {
+		File file = new File(folderName, name + suffix);
+		Files.deleteIfExists(file.toPath());// To make sure we always create a new file
+		openQueue(file, new StringConverter()).close();
+		return new LazyQueue(name, file, 0);
+	}
+
+	/**
+	 * Reads the size of the queue from its file and closes it, the file is
+	 * reopened on the first access to the queue
+	 */
+	@Override
+	public ObjectQueue<String> restoreQueue(String name) throws IOException {
+		File file = new File(folderName, name + suffix);
+		if (!file.exists()) {
+			return null;
+		}
+		try (ObjectQueue<String> queue = openQueue(file, new StringConverter())) {
+			return new LazyQueue(name, file, queue.size());
+		}
+	}
+
+	@Override
+	public List<String> queueNames() {
+		List<String> names = new ArrayList<>();
+		String[] fileNames = new File(folderName).list();// All the files in the folder
+		if (fileNames == null) {
+			return names;
+		}
+
+		for (String fileName : fileNames) {
+			if (fileName.endsWith(suffix)) {
+				names.add(fileName.substring(0, fileName.length() - suffix.length()));// Remove suffix
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Appends the urls with a single acquisition of the file of the queue. A tape
+	 * file has no batch append and forces each url on its own, only mapped files
+	 * are forced once per batch by sync
+	 */
+	@Override
+	public void addAll(ObjectQueue<String> queue, Collection<String> urls) throws IOException {
+		if (queue instanceof LazyQueue) {
+			((LazyQueue) queue).addAll(urls);
+		} else {
+			SubqueueStorage.super.addAll(queue, urls);
+		}
+	}
+
+	/**
+	 * Forces the mapped files written since the last call, tape files are already
+	 * forced at each write
+	 */
+	@Override
+	public void sync() throws IOException {
+		if (mapped) {
+			pool.sync();
+		}
+	}
+
+	@Override
+	public void setMaxOpenFiles(int maxOpenFiles) throws IOException {
+		pool.setMaxOpenFiles(maxOpenFiles);
+	}
+
+	/**
+	 * Closes the file of the queue and deletes it
+	 */
+	@Override
+	public void deleteQueue(ObjectQueue<String> queue) throws IOException {
+		if (!(queue instanceof LazyQueue)) {
+			SubqueueStorage.super.deleteQueue(queue);
+			return;
+		}
+		LazyQueue lazyQueue = (LazyQueue) queue;
+		pool.close(lazyQueue);
+		Files.deleteIfExists(lazyQueue.file.toPath());
+	}
+
+	@Override
+	public boolean shrinkQueue(ObjectQueue<String> queue) throws IOException {
+		return queue instanceof LazyQueue && ((LazyQueue) queue).shrink();
+	}
+
+	/**
+	 * Returns the number of queue files currently open
+	 *
+	 * @return the number of open files
+	 */
+	public int openFileCount() {
+		return pool.openCount();
+	}
+
+	/**
+	 * Nothing to release, each queue closes its own file
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,733 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         SeenURLStore keeping the 64-bit fingerprints of the urls (see
+ *         FingerprintIndex.fingerprint) in two tiers, so that the heap it uses
+ *         is bounded whatever the number of urls:
+ *
+ *         HOT TIER: the fingerprints added recently are kept in memory in a
+ *         ConcurrentFingerprintSet. When it holds hotCapacity fingerprints,
+ *         the hot tier is sorted and flushed to disk as a new run in one
+ *         sequential write.
+ *
+ *         RUNS: a run is an immutable file of sorted fingerprints, memory-mapped
+ *         read-only and searched by dichotomy, so that the cold fingerprints
+ *         live in the page cache and not on the heap. When there are more than
+ *         MAX_RUNS runs, a background merger merges them into a single run,
+ *         dropping the duplicates.
+ *
+ *         PRE-FILTER: every fingerprint stored is also added to a BloomFilter
+ *         sized from the expected number of urls. A fingerprint the filter has
+ *         never seen is definitely new: it is added without looking up the hot
+ *         tier and the runs, only the possible duplicates fall through to the
+ *         exact lookups.
+ *
+ *         LOCKING: addIfAbsent looks the fingerprint up in the runs before
+ *         inserting it in the hot tier by compare-and-set, so that it is atomic.
+ *         The tiers are guarded by a read-write lock: the lookups share it, a
+ *         flush of the hot tier and the swap of the merged runs hold it
+ *         exclusively.
+ *
+ *         PERSISTENCE: the runs are on disk as soon as they are written. The
+ *         fingerprints of the hot tier are appended to LOG_FILE_NAME as they
+ *         are added, checkpoint only writes and syncs the tail of the log, so
+ *         that its cost is proportional to the urls added since the previous
+ *         one. A flush compacts the log into a run and truncates the log. The
+ *         filter is snapshotted to FILTER_FILE_NAME after a merge and on close,
+ *         outside the tier lock. Restore maps the runs, reads the filter
+ *         snapshot and replays the log. The filter file records the id of the
+ *         next run at the time of the snapshot, so that restore only adds to
+ *         the filter the runs written after it. The
+ *         filter is rebuilt from the runs if its file is missing. The urls added
+ *         since the last checkpoint are lost in case of crash.
+ *
+ *         CAVEATS: - two urls with the same fingerprint are confused, the
+ *         second one is never enqueued, with 64-bit fingerprints the
+ *         probability is negligible for the size of a crawl - the adds wait
+ *         while the hot tier is flushed - after a crash, a fingerprint may be
+ *         stored twice and counted twice by size until the runs are merged
+ */
+public final class TieredSeenURLStore implements SeenURLStore {
+
+	public static final int HOT_CAPACITY = 1 << 20;// Fingerprints kept in memory before being flushed to a run
+	public static final int MAX_RUNS = 8;// Number of runs above which the runs are merged
+	public static final String RUN_FILE_PREFIX = "run-";
+	public static final String RUN_FILE_SUFFIX = ".fp";
+	public static final String LOG_FILE_NAME = "hot.log";
+	public static final String FILTER_FILE_NAME = "filter.bloom";
+	public static final long EXPECTED_URLS = 10_000_000;// Number of urls the pre-filter is first sized for, it grows past it
+	public static final String TEMPORARY_SUFFIX = ".tmp";
+	public static final long MERGE_CHECK_INTERVAL = 1_000;// Time in ms between two checks of the number of runs
+	private static final int CHUNK_BITS = 27;// Runs are mapped in chunks of 2^27 fingerprints (1 GB)
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;// in bytes
+	private static final int LOG_BUFFER_SIZE = 1 << 16;// in bytes
+
+	private final File folder;
+	private BloomFilter filter;// Thread safe, replaced by restore before the store is shared
+	private final ConcurrentFingerprintSet hotTier;// Cleared under the write lock
+	private final FileChannel log;// Fingerprints of the hot tier, in the order of their add
+	private final ByteBuffer logBuffer;// Tail of the log not written yet, guarded by the logLock
+	private final ReentrantLock logLock;
+	private final ReentrantReadWriteLock tierLock;// Shared by the lookups, held exclusively to change the tiers
+	private volatile List<Run> runs;// Immutable, replaced as a whole under the write lock
+	private long nextRunId;// Guarded by the write lock
+	private volatile int hotCapacity;
+	private final ReentrantLock mergeLock;// Held during a merge and a filter snapshot, never acquired with other locks held
+	private final Condition mergeStopped;// Signaled on close
+	private boolean closed;// Guarded by the mergeLock, stops the merger thread
+
+	/**
+	 * An immutable file of sorted fingerprints, mapped in memory
+	 */
+	private static final class Run {
+		final File file;
+		final long id;// Position of the run in the order of creation
+		final long length;// Number of fingerprints
+		final LongBuffer[] chunks;
+
+		Run(File file, long id) throws IOException {
+			this.file = file;
+			this.id = id;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+				length = channel.size() / Long.BYTES;
+				int chunkCount = (int) ((length + (1L << CHUNK_BITS) - 1) >>> CHUNK_BITS);
+				chunks = new LongBuffer[chunkCount];
+				for (int i = 0; i < chunkCount; ++i) {
+					long start = (long) i << CHUNK_BITS;
+					long chunkLength = Math.min(1L << CHUNK_BITS, length - start);
+					chunks[i] = channel
+							.map(FileChannel.MapMode.READ_ONLY, start * Long.BYTES, chunkLength * Long.BYTES)
+							.asLongBuffer();// Stays valid once the channel is closed
+				}
+			}
+		}
+
+		long get(long i) {
+			return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & ((1L << CHUNK_BITS) - 1)));
+		}
+
+		boolean contains(long fingerprint) {
+			long low = 0;
+			long high = length - 1;
+			while (low <= high) {
+				long middle = (low + high) >>> 1;
+				long value = get(middle);
+				if (value < fingerprint) {
+					low = middle + 1;
+				} else if (value > fingerprint) {
+					high = middle - 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Writes fingerprints to a file, in one sequential write
+	 */
+	private static final class RunWriter implements AutoCloseable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long count;
+
+		RunWriter(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			count = 0;
+		}
+
+		void write(long fingerprint) throws IOException {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.putLong(fingerprint);
+			count++;
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				drain();
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens the store in the folder IMPORTANT: the files of the folder must have
+	 * been cleaned or checked by the caller
+	 *
+	 * @param folder:       where the runs are stored
+	 * @param expectedURLs: the number of urls the pre-filter is sized for
+	 * @throws IOException if the log cannot be opened
+	 */
+	private TieredSeenURLStore(File folder, long expectedURLs) throws IOException {
+		this.folder = folder;
+		filter = new BloomFilter(expectedURLs);
+		hotTier = new ConcurrentFingerprintSet();
+		log = FileChannel.open(new File(folder, LOG_FILE_NAME).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+		logLock = new ReentrantLock();
+		tierLock = new ReentrantReadWriteLock();
+		runs = Collections.emptyList();
+		nextRunId = 0;
+		hotCapacity = HOT_CAPACITY;
+		mergeLock = new ReentrantLock();
+		mergeStopped = mergeLock.newCondition();
+		closed = false;
+
+		Thread merger = new Thread() {
+			@Override
+			public void run() {
+				while (awaitMerge()) {
+					merge();
+				}
+			}
+		};
+		merger.setDaemon(true);
+		merger.start();
+	}
+
+	/**
+	 * Creates an empty store in the folder IMPORTANT: the fingerprint files
+	 * stored in this folder are deleted
+	 *
+	 * @param folder
+	 * @param expectedURLs: the number of urls the pre-filter is sized for
+	 * @return a new empty store
+	 */
+	public static TieredSeenURLStore create(String folder, long expectedURLs) {
+		File directory = new File(folder);
+		directory.mkdirs();
+		for (File file : listFiles(directory)) {
+			String name = file.getName();
+			if (name.endsWith(RUN_FILE_SUFFIX) || name.endsWith(TEMPORARY_SUFFIX) || name.equals(FILTER_FILE_NAME)
+					|| name.equals(LOG_FILE_NAME)) {
+				file.delete();
+			}
+		}
+		try {
+			return new TieredSeenURLStore(directory, expectedURLs);
+		} catch (IOException e) {
+			System.err.println("Could not create the seen urls store in " + folder);
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static TieredSeenURLStore create(String folder) {
+		return create(folder, EXPECTED_URLS);
+	}
+
+	/**
+	 * Restores the store persisted in the folder: maps its runs and replays its
+	 * log into the hot tier. An empty store is returned if the folder holds no
+	 * fingerprint.
+	 *
+	 * @param folder
+	 * @return the restored store
+	 */
+	public static TieredSeenURLStore restore(String folder) {
+		File directory = new File(folder);
+		directory.mkdirs();
+		List<Run> runs = new ArrayList<>();
+		long nextRunId = 0;
+		long storedCount = 0;
+		try {
+			for (File file : listFiles(directory)) {
+				String name = file.getName();
+				if (name.endsWith(TEMPORARY_SUFFIX)) {// Left by a flush or a merge that did not complete
+					file.delete();
+				} else if (name.startsWith(RUN_FILE_PREFIX) && name.endsWith(RUN_FILE_SUFFIX)) {
+					long id = Long.parseLong(
+							name.substring(RUN_FILE_PREFIX.length(), name.length() - RUN_FILE_SUFFIX.length()));
+					Run run = new Run(file, id);
+					runs.add(run);
+					storedCount += run.length;
+					nextRunId = Math.max(nextRunId, id + 1);
+				}
+			}
+			long[] logged = readLog(new File(directory, LOG_FILE_NAME));
+			storedCount += logged.length;
+
+			TieredSeenURLStore store = new TieredSeenURLStore(directory, Math.max(EXPECTED_URLS, 2 * storedCount));
+			store.runs = Collections.unmodifiableList(runs);
+			store.nextRunId = nextRunId;
+			long filteredRuns = store.restoreFilter();
+			for (Run run : runs) {
+				if (run.id >= filteredRuns) {// Written after the filter
+					for (long i = 0; i < run.length; ++i) {
+						store.filter.add(run.get(i));
+					}
+				}
+			}
+			for (long fingerprint : logged) {
+				store.hotTier.addIfAbsent(fingerprint);
+				store.filter.add(fingerprint);
+			}
+			return store;
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("Could not restore the seen urls from " + folder);
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the fingerprints of a log, the last fingerprint is truncated if it was
+	 * not completely written, so that the next appends stay aligned
+	 *
+	 * @return the fingerprints of the log, empty if there is no log
+	 */
+	private static long[] readLog(File file) throws IOException {
+		if (!file.exists()) {
+			return new long[0];
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long length = channel.size() / Long.BYTES;
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Log of the hot tier too long: " + length + " fingerprints");
+			}
+			long[] fingerprints = new long[(int) length];
+			if (length > 0) {
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, length * Long.BYTES).asLongBuffer().get(fingerprints);
+			}
+			if (channel.size() != length * Long.BYTES) {
+				System.err.println("Truncated the last fingerprint of the log, it was not completely written");
+				channel.truncate(length * Long.BYTES);
+			}
+			return fingerprints;
+		}
+	}
+
+	/**
+	 * Reads the last filter snapshot, the filter is left empty
+	 * if its file is missing or corrupted
+	 *
+	 * @return the id of the first run that is not in the filter read
+	 */
+	private long restoreFilter() {
+		File file = new File(folder, FILTER_FILE_NAME);
+		if (!file.exists()) {
+			return 0;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			long filteredRuns = input.readLong();
+			filter = BloomFilter.readFrom(input);
+			return filteredRuns;
+		} catch (IOException e) {
+			System.err.println("Could not read the filter of the seen urls, it is rebuilt from the runs");
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	private static File[] listFiles(File directory) {
+		File[] files = directory.listFiles();
+		return files != null ? files : new File[0];
+	}
+
+	/**
+	 * Sets the number of fingerprints kept in memory, the hot tier is flushed at
+	 * the next add if it holds more
+	 *
+	 * @param hotCapacity
+	 */
+	public void setHotCapacity(int hotCapacity) {
+		if (hotCapacity < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.hotCapacity = hotCapacity;
+	}
+
+	@Override
+	public boolean addIfAbsent(long fingerprint) {
+		return addAllIfAbsent(new long[] { fingerprint })[0];
+	}
+
+	/**
+	 * Adds the fingerprints holding the tier lock once, their log is appended
+	 * in one go and the hot tier is flushed at most once
+	 */
+	@Override
+	public boolean[] addAllIfAbsent(long[] fingerprints) {
+		boolean[] added = new boolean[fingerprints.length];
+		boolean flushNeeded;
+		tierLock.readLock().lock();
+		try {
+			for (int i = 0; i < fingerprints.length; ++i) {
+				long fingerprint = fingerprints[i];
+				boolean filtered = filter.mightContain(fingerprint);// Read before the add, a false negative is impossible
+				if (hotTier.addIfAbsent(fingerprint, value -> filtered && runsContain(value))) {
+					filter.add(fingerprint);
+					added[i] = true;
+				}
+			}
+			try {
+				append(fingerprints, added);
+			} catch (IOException e) {
+				System.err.println("Could not append to the log of the seen urls");
+				throw new IllegalStateException(e);
+			}
+			flushNeeded = hotTier.size() >= hotCapacity;
+		} finally {
+			tierLock.readLock().unlock();
+		}
+
+		if (flushNeeded) {
+			flush();
+		}
+		return added;
+	}
+
+	@Override
+	public boolean contains(long fingerprint) {
+		if (!filter.mightContain(fingerprint)) {
+			return false;
+		}
+		tierLock.readLock().lock();
+		try {
+			return hotTier.contains(fingerprint) || runsContain(fingerprint);
+		} finally {
+			tierLock.readLock().unlock();
+		}
+	}
+
+	private boolean runsContain(long fingerprint) {
+		for (Run run : runs) {
+			if (run.contains(fingerprint)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public long size() {
+		tierLock.readLock().lock();
+		try {
+			long size = hotTier.size();
+			for (Run run : runs) {
+				size += run.length;
+			}
+			return size;
+		} finally {
+			tierLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of run files
+	 *
+	 * @return the number of runs
+	 */
+	public int runCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Returns the sorted fingerprints of the hot tier. Assumes that the calling
+	 * thread holds the tier lock.
+	 *
+	 * @return the fingerprints of the hot tier
+	 */
+	private long[] sortedHotTier() {
+		long[] fingerprints = hotTier.toArray();
+		Arrays.sort(fingerprints);
+		return fingerprints;
+	}
+
+	/**
+	 * Writes fingerprints to a temporary file then moves it atomically to its
+	 * final name
+	 */
+	private void writeFile(File file, long[] fingerprints) throws IOException {
+		File temporary = new File(folder, file.getName() + TEMPORARY_SUFFIX);
+		try (RunWriter writer = new RunWriter(temporary)) {
+			for (long fingerprint : fingerprints) {
+				writer.write(fingerprint);
+			}
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private File runFile(long id) {
+		return new File(folder, RUN_FILE_PREFIX + id + RUN_FILE_SUFFIX);
+	}
+
+	/**
+	 * Appends the fingerprints added to the hot tier to the log, the log is
+	 * written when its buffer is full or on checkpoint
+	 *
+	 * @param fingerprints
+	 * @param added:        which of the fingerprints were added
+	 */
+	private void append(long[] fingerprints, boolean[] added) throws IOException {
+		logLock.lock();
+		try {
+			for (int i = 0; i < fingerprints.length; ++i) {
+				if (added[i]) {
+					if (!logBuffer.hasRemaining()) {
+						drainLog();
+					}
+					logBuffer.putLong(fingerprints[i]);
+				}
+			}
+		} finally {
+			logLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the buffered tail of the log. Assumes that the calling thread holds
+	 * the logLock.
+	 */
+	private void drainLog() throws IOException {
+		logBuffer.flip();
+		while (logBuffer.hasRemaining()) {
+			log.write(logBuffer);
+		}
+		logBuffer.clear();
+	}
+
+	/**
+	 * Writes the filter to FILTER_FILE_NAME, replaced atomically, without
+	 * blocking the adds. The fingerprints of the runs created before the
+	 * snapshot are already in the filter, the ones added during the write may or
+	 * may not be in it. Assumes that the calling thread holds the mergeLock.
+	 */
+	private void writeFilter() throws IOException {
+		long filteredRuns;
+		tierLock.readLock().lock();
+		try {
+			filteredRuns = nextRunId;// The runs created from now on are not covered by this filter
+		} finally {
+			tierLock.readLock().unlock();
+		}
+		File file = new File(folder, FILTER_FILE_NAME);
+		File temporary = new File(folder, FILTER_FILE_NAME + TEMPORARY_SUFFIX);
+		try (FileOutputStream stream = new FileOutputStream(temporary);
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, WRITE_BUFFER_SIZE))) {
+			output.writeLong(filteredRuns);
+			filter.writeTo(output);
+			output.flush();
+			stream.getFD().sync();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Flushes the hot tier to a new run if it is still full, then truncates the
+	 * log. The program should crash if the run cannot
+	 * be written.
+	 */
+	private void flush() {
+		tierLock.writeLock().lock();
+		try {
+			if (hotTier.size() < hotCapacity) {
+				return;// Flushed by another thread
+			}
+			File file = runFile(nextRunId++);
+			writeFile(file, sortedHotTier());
+			List<Run> newRuns = new ArrayList<>(runs);
+			newRuns.add(new Run(file, nextRunId - 1));
+			runs = Collections.unmodifiableList(newRuns);
+
+			hotTier.clear();
+			logLock.lock();
+			try {
+				logBuffer.clear();
+				log.truncate(0);// Its fingerprints are in the run
+			} finally {
+				logLock.unlock();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not flush the seen urls to a new run");
+			throw new IllegalStateException(e);
+		} finally {
+			tierLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Waits until there are too many runs or the store is closed
+	 *
+	 * @return false if the store is closed
+	 */
+	private boolean awaitMerge() {
+		mergeLock.lock();
+		try {
+			while (!closed && runs.size() <= MAX_RUNS) {
+				try {
+					mergeStopped.await(MERGE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			return !closed;
+		} finally {
+			mergeLock.unlock();
+		}
+	}
+
+	/**
+	 * Merges the current runs into a single run, without blocking the adds. The
+	 * runs flushed during the merge are kept beside the merged run, then the
+	 * filter is snapshotted. Called by the background merger.
+	 */
+	private void merge() {
+		mergeLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			List<Run> merged = runs;
+			if (merged.size() <= 1) {
+				return;
+			}
+
+			long id;
+			tierLock.writeLock().lock();
+			try {
+				id = nextRunId++;
+			} finally {
+				tierLock.writeLock().unlock();
+			}
+			File file = runFile(id);
+			File temporary = new File(folder, file.getName() + TEMPORARY_SUFFIX);
+			try (RunWriter writer = new RunWriter(temporary)) {
+				long[] positions = new long[merged.size()];
+				long previous = 0;
+				boolean first = true;
+				while (true) {
+					int smallest = -1;
+					for (int i = 0; i < merged.size(); ++i) {
+						if (positions[i] < merged.get(i).length && (smallest < 0
+								|| merged.get(i).get(positions[i]) < merged.get(smallest).get(positions[smallest]))) {
+							smallest = i;
+						}
+					}
+					if (smallest < 0) {
+						break;
+					}
+					long fingerprint = merged.get(smallest).get(positions[smallest]++);
+					if (first || fingerprint != previous) {// Drops the duplicates
+						writer.write(fingerprint);
+						previous = fingerprint;
+						first = false;
+					}
+				}
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			Run run = new Run(file, id);
+
+			tierLock.writeLock().lock();
+			try {
+				List<Run> newRuns = new ArrayList<>();
+				newRuns.add(run);
+				newRuns.addAll(runs.subList(merged.size(), runs.size()));// Flushed during the merge
+				runs = Collections.unmodifiableList(newRuns);
+			} finally {
+				tierLock.writeLock().unlock();
+			}
+			for (Run old : merged) {
+				old.file.delete();// The mapping stays readable by the lookups still running
+			}
+			System.out.println("Merged " + merged.size() + " runs of seen urls into " + run.length + " fingerprints");
+			writeFilter();
+		} catch (IOException e) {
+			System.err.println("Could not merge the runs of seen urls");
+			e.printStackTrace();
+		} finally {
+			mergeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the tail of the log and syncs it, the runs are already on disk and
+	 * restore adds the runs written after the filter snapshot to the filter
+	 */
+	@Override
+	public void checkpoint() throws IOException {
+		logLock.lock();
+		try {
+			drainLog();
+			log.force(false);
+		} finally {
+			logLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the pre-filter of the store
+	 *
+	 * @return the filter of the fingerprints stored
+	 */
+	public BloomFilter filter() {
+		return filter;
+	}
+
+	/**
+	 * Stops the merger, waiting for a running merge, snapshots the filter and
+	 * checkpoints the log
+	 */
+	@Override
+	public void close() throws IOException {
+		mergeLock.lock();
+		try {
+			closed = true;
+			mergeStopped.signal();
+			writeFilter();
+		} finally {
+			mergeLock.unlock();
+		}
+		checkpoint();
+		log.close();
+	}
+
+	@Override
+	public String toString() {
+		return "TieredSeenURLStore{folder=" + folder + ", runs=" + runs.size() + ", hotCount=" + hotTier.size() + "}";
+	}
+}
@@ -0,0 +1,779 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Subqueue storage adding an in-memory tier over another storage. Each
+ *         queue is split in three parts: an in-memory head buffer, the
+ *         persistent queue of the backing storage and an in-memory tail buffer.
+ *         Adds go to the tail buffer and removes are served by the head buffer,
+ *         so that the fast path does not touch the disk. A background thread
+ *         refills the head buffers of the queues consumed during the last pass
+ *         from the backing queues and flushes the tail buffers of the cold
+ *         queues (or of all the queues when the memory budget is almost used)
+ *         to the backing queues. When a backing queue is empty, its tail buffer
+ *         is simply moved to the head buffer.
+ *
+ *         MEMORY BUDGET: at most MEMORY_BUDGET urls are buffered, once the
+ *         budget is used the adds write through to the backing queue.
+ *
+ *         JOURNAL: every url that only lives in memory (added to a tail buffer
+ *         or moved from a backing queue to a head buffer) is appended to a
+ *         journal file as an ADD record, and a TAKE record is appended when it
+ *         leaves the buffers (taken or flushed to its backing queue). An add
+ *         syncs the journal before returning, the concurrent adds share the
+ *         fsync, and a batch of addAll is synced once by sync(). When the storage
+ *         is opened, the urls added and not taken are added back to their
+ *         backing queue, so that restore() finds every url that was not taken.
+ *         The journal is rewritten with the content of the buffers when it grows
+ *         too much and on close.
+ *
+ *         CAVEATS: - the delivery is at least once: after a crash, the urls
+ *         taken since the last sync of the journal are added again - the
+ *         restored urls of a head buffer are added at the end of their queue
+ */
+public final class TieredSubqueueStorage implements SubqueueStorage {
+
+	public static final String JOURNAL_FILE_NAME = "tiered.journal";
+	public static final int MEMORY_BUDGET = 100_000;// Max number of buffered urls
+	public static final int HEAD_SIZE = 32;// Number of urls prefetched at the head of a queue
+	public static final int TAIL_FLUSH_SIZE = 256;// Tail size above which a hot queue is flushed
+	public static final int TIERING_INTERVAL = 50;// Time between two passes of the background thread in ms
+	public static final double MEMORY_PRESSURE = 0.75;// Fraction of the budget above which every tail is flushed
+	public static final int JOURNAL_COMPACTION_MIN = 10_000;// Min number of records before the journal is rewritten
+
+	private final SubqueueStorage backingStorage;
+	private final Map<String, TieredQueue> queues;// Concurrent Map, queue name to queue
+	private final Set<TieredQueue> hotQueues;// Queues consumed from since the last pass
+	private final Set<TieredQueue> tailedQueues;// Queues whose tail buffer may not be empty, the only ones a pass tiers
+	private final AtomicInteger bufferedCount;// Number of urls in all the buffers
+	private final int memoryBudget;
+	private final Journal journal;
+	// Read locked to append to the journal, write locked to rewrite it. Always acquired before a queue monitor
+	private final ReadWriteLock journalLock;
+	private final Thread tierer;
+	private volatile boolean closed;
+
+	/**
+	 * Opens the tiered storage over the following backing storage, the urls left
+	 * in the journal of the folder are added back to their backing queue
+	 *
+	 * @param folderName:     where the journal is stored
+	 * @param backingStorage: the persistent storage of the subqueues
+	 * @throws IOException
+	 */
+	public TieredSubqueueStorage(String folderName, SubqueueStorage backingStorage) throws IOException {
+		this(folderName, backingStorage, MEMORY_BUDGET);
+	}
+
+	/**
+	 * Opens the tiered storage over the following backing storage, the urls left
+	 * in the journal of the folder are added back to their backing queue
+	 *
+	 * @param folderName:     where the journal is stored
+	 * @param backingStorage: the persistent storage of the subqueues
+	 * @param memoryBudget:   max number of buffered urls
+	 * @throws IOException
+	 */
+	public TieredSubqueueStorage(String folderName, SubqueueStorage backingStorage, int memoryBudget)
+			throws IOException {
+		assert (folderName != null);
+		assert (backingStorage != null);
+		assert (memoryBudget >= 0);
+
+		this.backingStorage = backingStorage;
+		this.memoryBudget = memoryBudget;
+		queues = new ConcurrentHashMap<>();
+		hotQueues = ConcurrentHashMap.newKeySet();
+		tailedQueues = ConcurrentHashMap.newKeySet();
+		bufferedCount = new AtomicInteger(0);
+		journalLock = new ReentrantReadWriteLock();
+		closed = false;
+
+		File journalFile = new File(folderName, JOURNAL_FILE_NAME);
+		recover(journalFile);
+		journal = new Journal(journalFile);
+
+		tierer = new Thread() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(TIERING_INTERVAL);
+						pass();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.err.println("Could not move urls between the memory and the disk");
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		tierer.setDaemon(true);
+		tierer.start();
+	}
+
+	/**
+	 * Returns whether the folder was persisted by a tiered storage
+	 *
+	 * @param folder
+	 * @return true if the folder contains a journal
+	 */
+	public static boolean isTiered(String folder) {
+		return new File(folder, JOURNAL_FILE_NAME).exists();
+	}
+
+	/**
+	 * Append-only file of (type, queue name, url) records. The appends and the
+	 * syncs must hold the read lock of the journalLock, a rewrite holds its write
+	 * lock
+	 */
+	private static final class Journal {
+		static final byte ADD = 1;// The url is buffered in memory
+		static final byte TAKE = 2;// The url left the buffers
+
+		final File file;
+		final Object syncLock;// Held while the file is synced, never acquired under the monitor of the journal
+		FileOutputStream fileStream;
+		DataOutputStream out;
+		int recordCount;// Number of records of the file
+		long appendedCount;// Number of records appended since the journal was opened
+		long syncedCount;// Number of appended records on disk, guarded by the syncLock
+
+		Journal(File file) throws IOException {
+			this.file = file;
+			syncLock = new Object();
+			open();
+			recordCount = 0;
+			appendedCount = 0;
+			syncedCount = 0;
+		}
+
+		private void open() throws IOException {
+			fileStream = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fileStream));
+		}
+
+		/**
+		 * @return the number of the record, to be passed to sync
+		 */
+		synchronized long append(byte type, String name, String url) throws IOException {
+			out.writeByte(type);
+			out.writeUTF(name);
+			out.writeUTF(url);
+			recordCount++;
+			return ++appendedCount;
+		}
+
+		/**
+		 * Forces the records appended so far to disk
+		 */
+		void sync() throws IOException {
+			long target;
+			synchronized (this) {
+				target = appendedCount;
+			}
+			sync(target);
+		}
+
+		/**
+		 * Forces the records up to the following one to disk, the appends are not
+		 * blocked while the disk is synced. Returns at once if another thread
+		 * already synced them (group commit).
+		 */
+		void sync(long target) throws IOException {
+			synchronized (syncLock) {
+				if (syncedCount >= target) {
+					return;
+				}
+				FileOutputStream synced;
+				long flushed;
+				synchronized (this) {
+					out.flush();
+					synced = fileStream;
+					flushed = appendedCount;
+				}
+				synced.getFD().sync();
+				syncedCount = flushed;
+			}
+		}
+
+		/**
+		 * Atomically replaces the journal by a journal only containing the following
+		 * records. Assumes that no other thread appends to the journal
+		 */
+		void rewrite(Map<String, List<String>> records) throws IOException {
+			File rewritten = new File(file.getPath() + ".tmp");
+			int count = 0;
+			try (FileOutputStream rewrittenStream = new FileOutputStream(rewritten);
+					DataOutputStream rewrittenOut = new DataOutputStream(new BufferedOutputStream(rewrittenStream))) {
+				for (Map.Entry<String, List<String>> entry : records.entrySet()) {
+					for (String url : entry.getValue()) {
+						rewrittenOut.writeByte(ADD);
+						rewrittenOut.writeUTF(entry.getKey());
+						rewrittenOut.writeUTF(url);
+						count++;
+					}
+				}
+				rewrittenOut.flush();
+				rewrittenStream.getFD().sync();
+			}
+
+			close();
+			Files.move(rewritten.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			open();
+			recordCount = count;
+			synchronized (syncLock) {
+				syncedCount = appendedCount;// The rewritten records are on disk
+			}
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+
+		/**
+		 * Reads the records of a journal file, a record torn by a crash ends the
+		 * journal
+		 *
+		 * @return queue name to urls added and not taken, in journal order
+		 */
+		static Map<String, List<String>> read(File file) throws IOException {
+			// Url to number of ADD records not taken yet, so that a TAKE is replayed in
+			// constant time
+			Map<String, Map<String, Integer>> counts = new LinkedHashMap<>();
+			if (file.exists()) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+					while (true) {
+						byte type = in.readByte();
+						String name = in.readUTF();
+						String url = in.readUTF();
+						if (type == ADD) {
+							counts.computeIfAbsent(name, key -> new LinkedHashMap<>()).merge(url, 1, Integer::sum);
+						} else if (type == TAKE && counts.containsKey(name)) {// Always appended after the ADD record of the url
+							counts.get(name).computeIfPresent(url, (key, count) -> count > 1 ? count - 1 : null);
+						}
+					}
+				} catch (EOFException | UTFDataFormatException e) {
+					// End of the journal
+				}
+			}
+
+			Map<String, List<String>> records = new LinkedHashMap<>();
+			for (Map.Entry<String, Map<String, Integer>> entry : counts.entrySet()) {
+				if (entry.getValue().isEmpty()) {
+					continue;
+				}
+				List<String> urls = new ArrayList<>();
+				entry.getValue().forEach((url, count) -> {
+					for (int i = 0; i < count; ++i) {
+						urls.add(url);
+					}
+				});
+				records.put(entry.getKey(), urls);
+			}
+			return records;
+		}
+	}
+
+	/**
+	 * A queue made of a head buffer, a backing queue and a tail buffer, in this
+	 * order. The buffers and the backing queue are guarded by the monitor of the
+	 * queue
+	 */
+	private final class TieredQueue extends ObjectQueue<String> {
+		final String name;
+		final ObjectQueue<String> backing;
+		final ArrayDeque<String> head;
+		final ArrayDeque<String> tail;
+		int backingRemovals;// Number of removes served by the backing queue, detects concurrent refills
+
+		TieredQueue(String name, ObjectQueue<String> backing) {
+			this.name = name;
+			this.backing = backing;
+			this.head = new ArrayDeque<>();
+			this.tail = new ArrayDeque<>();
+			this.backingRemovals = 0;
+		}
+
+		/**
+		 * The elements are not only stored in a tape QueueFile
+		 */
+		@Override
+		public QueueFile file() {
+			return null;
+		}
+
+		@Override
+		public synchronized int size() {
+			return head.size() + backing.size() + tail.size();
+		}
+
+		@Override
+		public void add(String url) throws IOException {
+			journalLock.readLock().lock();
+			try {
+				journal.sync(append(Collections.singletonList(url)));// Grouped with the concurrent adds
+			} finally {
+				journalLock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Appends the urls to the tail buffer and to the journal without syncing
+		 * it, the urls beyond the memory budget are written through to the backing
+		 * queue. Assumes that the calling thread holds the read lock of the
+		 * journalLock
+		 *
+		 * @return the number of the last journal record to sync, 0 if none
+		 */
+		synchronized long append(Collection<String> urls) throws IOException {
+			long record = 0;
+			Iterator<String> iterator = urls.iterator();
+			while (iterator.hasNext() && bufferedCount.get() < memoryBudget) {
+				String url = iterator.next();
+				record = journal.append(Journal.ADD, name, url);
+				tail.add(url);
+				bufferedCount.getAndIncrement();
+			}
+			if (!tail.isEmpty()) {
+				tailedQueues.add(this);
+			}
+			if (iterator.hasNext()) {// Write through
+				flushTail();
+				List<String> through = new ArrayList<>();
+				iterator.forEachRemaining(through::add);
+				backingStorage.addAll(backing, through);
+				backingStorage.sync();
+			}
+			return record;
+		}
+
+		@Override
+		public synchronized String peek() throws IOException {
+			if (!head.isEmpty()) {
+				return head.peekFirst();
+			}
+			if (!backing.isEmpty()) {
+				return backing.peek();// Slow path: the head buffer has not been refilled yet
+			}
+			return tail.peekFirst();
+		}
+
+		@Override
+		public void remove(int n) throws IOException {
+			journalLock.readLock().lock();
+			try {
+				synchronized (this) {
+					if (n > size()) {
+						throw new NoSuchElementException();
+					}
+					hotQueues.add(this);
+
+					int fromHead = Math.min(n, head.size());
+					for (int i = 0; i < fromHead; ++i) {
+						journal.append(Journal.TAKE, name, head.pollFirst());
+					}
+					bufferedCount.getAndAdd(-fromHead);
+					n -= fromHead;
+
+					int fromBacking = Math.min(n, backing.size());
+					if (fromBacking > 0) {
+						backing.remove(fromBacking);
+						backingRemovals++;
+						n -= fromBacking;
+					}
+
+					for (int i = 0; i < n; ++i) {
+						journal.append(Journal.TAKE, name, tail.pollFirst());
+					}
+					bufferedCount.getAndAdd(-n);
+				}
+			} finally {
+				journalLock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public synchronized Iterator<String> iterator() {
+			List<String> urls = new ArrayList<>(size());
+			urls.addAll(head);
+			try {
+				urls.addAll(backing.asList());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			urls.addAll(tail);
+			return Collections.unmodifiableList(urls).iterator();
+		}
+
+		/**
+		 * The backing queues are closed with the storage
+		 */
+		@Override
+		public void close() {
+		}
+
+		/**
+		 * Writes the tail buffer at the end of the backing queue. Assumes that the
+		 * calling thread holds the read lock of the journalLock and the monitor of
+		 * the queue
+		 */
+		void flushTail() throws IOException {
+			if (tail.isEmpty()) {
+				return;
+			}
+			backingStorage.addAll(backing, tail);
+			backingStorage.sync();
+			for (String url : tail) {
+				journal.append(Journal.TAKE, name, url);// Persisted by the backing queue
+			}
+			bufferedCount.getAndAdd(-tail.size());
+			tail.clear();
+		}
+
+		/**
+		 * Moves the tail buffer to the head buffer if the backing queue is empty,
+		 * otherwise flushes it if the queue is cold, if the tail is large or if the
+		 * memory is under pressure. Assumes that the calling thread holds the read
+		 * lock of the journalLock
+		 */
+		synchronized void tier(boolean hot, boolean pressure) throws IOException {
+			if (tail.isEmpty()) {
+				return;
+			}
+			if (pressure || (!backing.isEmpty() && (!hot || tail.size() >= TAIL_FLUSH_SIZE))) {
+				flushTail();
+			} else if (backing.isEmpty()) {
+				head.addAll(tail);// Already journaled, nothing to write
+				tail.clear();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "TieredQueue{name=" + name + ", size=" + size() + "}";
+		}
+	}
+
+	/**
+	 * Urls journaled to refill a head buffer, not yet removed from the backing
+	 * queue
+	 */
+	private static final class Refill {
+		final TieredQueue queue;
+		final List<String> urls;
+		final int backingRemovals;
+
+		Refill(TieredQueue queue, List<String> urls, int backingRemovals) {
+			this.queue = queue;
+			this.urls = urls;
+			this.backingRemovals = backingRemovals;
+		}
+	}
+
+	/**
+	 * One pass of the background thread: syncs the journal, flushes or moves the
+	 * tail buffers, refills the head buffers of the hot queues and rewrites the
+	 * journal if needed. Only the queues with a tail buffer and the hot queues are
+	 * visited, so that the idle queues are never locked
+	 *
+	 * @throws IOException
+	 */
+	private void pass() throws IOException {
+		Set<TieredQueue> hot = new HashSet<>(hotQueues);
+		hotQueues.removeAll(hot);
+		boolean pressure = bufferedCount.get() > MEMORY_PRESSURE * memoryBudget;
+
+		// The refilled urls are journaled and synced before being removed from the
+		// backing queues, so that a crash cannot lose them
+		List<Refill> refills = new ArrayList<>();
+		journalLock.readLock().lock();
+		try {
+			for (Iterator<TieredQueue> iterator = tailedQueues.iterator(); iterator.hasNext();) {
+				TieredQueue queue = iterator.next();
+				synchronized (queue) {
+					queue.tier(hot.contains(queue), pressure);
+					if (queue.tail.isEmpty()) {
+						iterator.remove();// Added back by the next append, under the monitor
+					}
+				}
+			}
+
+			for (TieredQueue queue : hot) {
+				synchronized (queue) {
+					int n = Math.min(HEAD_SIZE - queue.head.size(), queue.backing.size());
+					n = Math.min(n, memoryBudget - bufferedCount.get());
+					if (n <= 0) {
+						continue;
+					}
+					List<String> urls = queue.backing.peek(n);
+					for (String url : urls) {
+						journal.append(Journal.ADD, queue.name, url);
+					}
+					refills.add(new Refill(queue, urls, queue.backingRemovals));
+				}
+			}
+			journal.sync();
+
+			for (Refill refill : refills) {
+				synchronized (refill.queue) {
+					if (refill.queue.backingRemovals != refill.backingRemovals) {
+						for (String url : refill.urls) {
+							journal.append(Journal.TAKE, refill.queue.name, url);// Consumed in the meantime
+						}
+						continue;
+					}
+					refill.queue.backing.remove(refill.urls.size());
+					refill.queue.head.addAll(refill.urls);
+					bufferedCount.getAndAdd(refill.urls.size());
+				}
+			}
+		} finally {
+			journalLock.readLock().unlock();
+		}
+
+		if (journal.recordCount > Math.max(JOURNAL_COMPACTION_MIN, 2 * bufferedCount.get())) {
+			rewriteJournal();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the content of the buffers
+	 *
+	 * @throws IOException
+	 */
+	private void rewriteJournal() throws IOException {
+		journalLock.writeLock().lock();
+		try {
+			Map<String, List<String>> records = new HashMap<>();
+			for (TieredQueue queue : queues.values()) {
+				synchronized (queue) {
+					if (!queue.head.isEmpty() || !queue.tail.isEmpty()) {
+						List<String> urls = new ArrayList<>(queue.head);
+						urls.addAll(queue.tail);
+						records.put(queue.name, urls);
+					}
+				}
+			}
+			journal.rewrite(records);
+		} finally {
+			journalLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the urls left in the journal back to their backing queue
+	 *
+	 * @param journalFile
+	 * @throws IOException
+	 */
+	private void recover(File journalFile) throws IOException {
+		Map<String, List<String>> records = Journal.read(journalFile);
+		if (records.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<String, List<String>> entry : records.entrySet()) {
+			ObjectQueue<String> queue = backingStorage.restoreQueue(entry.getKey());
+			if (queue == null) {
+				queue = backingStorage.createQueue(entry.getKey());
+			}
+			backingStorage.addAll(queue, entry.getValue());
+		}
+		backingStorage.sync();
+		Files.delete(journalFile.toPath());
+	}
+
+	/**
+	 * Appends the urls to the tail buffer without syncing the journal, the next
+	 * call to sync() syncs all the batches at once
+	 */
+	@Override
+	public void addAll(ObjectQueue<String> queue, Collection<String> urls) throws IOException {
+		if (!(queue instanceof TieredQueue)) {
+			SubqueueStorage.super.addAll(queue, urls);
+			return;
+		}
+		journalLock.readLock().lock();
+		try {
+			((TieredQueue) queue).append(urls);
+		} finally {
+			journalLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Syncs the journal, the urls written through are already forced by the
+	 * backing storage
+	 */
+	@Override
+	public void sync() throws IOException {
+		journalLock.readLock().lock();
+		try {
+			journal.sync();
+		} finally {
+			journalLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates the queue, the buffered urls of a queue of the same name are
+	 * dropped and taken in the journal, so that they are not recovered
+	 */
+	@Override
+	public ObjectQueue<String> createQueue(String name) throws IOException {
+		TieredQueue queue = new TieredQueue(name, backingStorage.createQueue(name));
+		TieredQueue previous = queues.put(name, queue);
+		if (previous != null) {
+			journalLock.readLock().lock();
+			try {
+				synchronized (previous) {
+					for (String url : previous.head) {
+						journal.append(Journal.TAKE, name, url);
+					}
+					for (String url : previous.tail) {
+						journal.append(Journal.TAKE, name, url);
+					}
+					bufferedCount.getAndAdd(-previous.head.size() - previous.tail.size());
+					previous.head.clear();
+					previous.tail.clear();
+					hotQueues.remove(previous);
+					tailedQueues.remove(previous);
+				}
+			} finally {
+				journalLock.readLock().unlock();
+			}
+		}
+		return queue;
+	}
+
+	@Override
+	public ObjectQueue<String> restoreQueue(String name) throws IOException {
+		TieredQueue queue = queues.get(name);
+		if (queue != null) {
+			return queue;
+		}
+		ObjectQueue<String> backing = backingStorage.restoreQueue(name);
+		if (backing == null) {
+			return null;
+		}
+		queue = new TieredQueue(name, backing);
+		TieredQueue previous = queues.putIfAbsent(name, queue);
+		return previous == null ? queue : previous;
+	}
+
+	@Override
+	public List<String> queueNames() {
+		return backingStorage.queueNames();
+	}
+
+	@Override
+	public void setMaxOpenFiles(int maxOpenFiles) throws IOException {
+		backingStorage.setMaxOpenFiles(maxOpenFiles);
+	}
+
+	/**
+	 * Forgets the queue, whose buffers are empty, and deletes its backing queue
+	 */
+	@Override
+	public void deleteQueue(ObjectQueue<String> queue) throws IOException {
+		if (!(queue instanceof TieredQueue)) {
+			SubqueueStorage.super.deleteQueue(queue);
+			return;
+		}
+		TieredQueue tieredQueue = (TieredQueue) queue;
+		synchronized (tieredQueue) {
+			assert (tieredQueue.size() == 0);
+			queues.remove(tieredQueue.name, tieredQueue);
+			hotQueues.remove(tieredQueue);
+			tailedQueues.remove(tieredQueue);
+			backingStorage.deleteQueue(tieredQueue.backing);
+		}
+	}
+
+	@Override
+	public boolean shrinkQueue(ObjectQueue<String> queue) throws IOException {
+		if (!(queue instanceof TieredQueue)) {
+			return false;
+		}
+		TieredQueue tieredQueue = (TieredQueue) queue;
+		synchronized (tieredQueue) {
+			return backingStorage.shrinkQueue(tieredQueue.backing);
+		}
+	}
+
+	/**
+	 * Returns the number of urls currently buffered in memory
+	 *
+	 * @return the number of buffered urls
+	 */
+	public int bufferedCount() {
+		return bufferedCount.get();
+	}
+
+	/**
+	 * Flushes the tail buffers and rewrites the journal with the head buffers,
+	 * then closes the backing storage
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			tierer.join();// Not interrupted: an interrupted write would close the file channels of the backing storage
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		journalLock.readLock().lock();
+		try {
+			for (TieredQueue queue : queues.values()) {
+				synchronized (queue) {
+					queue.flushTail();
+				}
+			}
+		} finally {
+			journalLock.readLock().unlock();
+		}
+		rewriteJournal();
+		journal.close();
+
+		for (TieredQueue queue : queues.values()) {
+			queue.backing.close();
+		}
+		backingStorage.close();
+	}
+}
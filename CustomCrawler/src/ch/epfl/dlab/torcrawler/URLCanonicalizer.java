@@ -0,0 +1,455 @@
+package ch.epfl.dlab.torcrawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Antoine Masanet
+ *
+ *         Static class that rewrites the urls found on the pages to a canonical
+ *         form, before they are filtered and deduplicated, so that the
+ *         spellings of the same page are seen and enqueued once:
+ *
+ *         - the white space around the url is trimmed, the inner white space is
+ *         encoded as %20 - the scheme and the host are lowercased, the default
+ *         port of the scheme is removed - the fragment is removed - an empty
+ *         path becomes "/", the duplicate slashes and the dot-segments of the
+ *         path are removed - the hex digits of the percent-encodings are
+ *         uppercased - the empty query parameters, the session parameters and
+ *         the parameters stripped for the domain are removed, the others are
+ *         sorted by name, the parameters with the same name keep their order
+ *
+ *         The url is scanned once and rebuilt in a single StringBuilder, the
+ *         query parameters are sorted by their positions, without splitting
+ *         the url into strings.
+ *
+ *         STRIPPED PARAMETERS: read from json, domain to parameter names, the
+ *         names under DEFAULT_DOMAIN are stripped from every domain, beside the
+ *         SESSION_PARAMETERS: {"*": ["ref"], "forum.onion": ["sort"]}. The
+ *         names are compared ignoring case.
+ *
+ *         STATISTICS: the number of urls canonicalized, of urls rewritten, of
+ *         each kind of rewrite and of duplicate urls removed since the crawler
+ *         started. A duplicate is removed when distinct spellings of the links
+ *         of a page collapse to the same canonical url, the spellings found on
+ *         different pages are collapsed by the seen url store.
+ *
+ *         CAVEATS: - only the urls with an authority (scheme://) are rewritten
+ *         besides their white space - parameters are only stripped by name, a
+ *         parameter whose value changes the page must not be stripped
+ */
+public final class URLCanonicalizer {
+
+	public static final String DEFAULT_DOMAIN = "*";// Key of the parameters stripped from every domain
+	public static final List<String> SESSION_PARAMETERS = Collections.unmodifiableList(Arrays.asList("jsessionid",
+			"phpsessid", "aspsessionid", "sessionid", "session_id", "sid", "cfid", "cftoken", "utm_source",
+			"utm_medium", "utm_campaign", "utm_term", "utm_content"));
+
+	/**
+	 * The kinds of rewrite, counted by the statistics
+	 */
+	public enum Rewrite {
+		WHITESPACE, SCHEME_CASE, HOST_CASE, DEFAULT_PORT, EMPTY_PATH, DUPLICATE_SLASHES, DOT_SEGMENTS,
+		ENCODING_CASE, FRAGMENT, EMPTY_PARAMETERS, STRIPPED_PARAMETERS, PARAMETER_ORDER
+	}
+
+	private static final LongAdder canonicalized = new LongAdder();
+	private static final LongAdder rewritten = new LongAdder();
+	private static final LongAdder duplicatesRemoved = new LongAdder();
+	private static final LongAdder[] rewrites = new LongAdder[Rewrite.values().length];
+	static {
+		for (int i = 0; i < rewrites.length; ++i) {
+			rewrites[i] = new LongAdder();
+		}
+	}
+	private static volatile Map<String, List<String>> strippedParameters = Collections.emptyMap();// Replaced as a whole
+
+	private URLCanonicalizer() {
+	}
+
+	/**
+	 * Sets the query parameters stripped from the urls of each domain
+	 *
+	 * @param parameters: domain to parameter names, DEFAULT_DOMAIN for every
+	 *                    domain
+	 */
+	public static void setStrippedParameters(Map<String, ? extends Collection<String>> parameters) {
+		Map<String, List<String>> copy = new HashMap<>();
+		for (Map.Entry<String, ? extends Collection<String>> entry : parameters.entrySet()) {
+			copy.put(entry.getKey().toLowerCase(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+		}
+		strippedParameters = copy;
+	}
+
+	/**
+	 * Returns the canonical form of the url
+	 *
+	 * @param url
+	 * @return the canonical url, the url itself if it is already canonical
+	 */
+	public static String canonicalize(String url) {
+		if (url == null) {
+			return null;
+		}
+		canonicalized.increment();
+		int[] applied = new int[1];// Bit set of the Rewrites applied
+		String trimmed = url.trim();
+		String canonical = trimmed;
+		if (trimmed.length() != url.length()) {
+			applied[0] |= bit(Rewrite.WHITESPACE);
+		}
+		int schemeEnd = trimmed.indexOf("://");
+		if (schemeEnd > 0) {
+			canonical = rebuild(trimmed, schemeEnd, applied);
+		} else if (hasWhitespace(trimmed)) {
+			StringBuilder builder = new StringBuilder(trimmed.length() + 8);
+			appendEncoded(builder, trimmed, 0, trimmed.length(), applied);
+			canonical = builder.toString();
+		}
+
+		if (applied[0] == 0) {
+			return url;
+		}
+		rewritten.increment();
+		for (Rewrite rewrite : Rewrite.values()) {
+			if ((applied[0] & bit(rewrite)) != 0) {
+				rewrites[rewrite.ordinal()].increment();
+			}
+		}
+		return canonical;
+	}
+
+	/**
+	 * Returns the canonical forms of the links of a page, counting the distinct
+	 * spellings that collapse to the same canonical url
+	 *
+	 * @param urls: the distinct links of a page
+	 * @return the distinct canonical urls
+	 */
+	public static Set<String> canonicalizeAll(Set<String> urls) {
+		Set<String> canonical = new HashSet<>();
+		for (String url : urls) {
+			canonical.add(canonicalize(url));
+		}
+		duplicatesRemoved.add(urls.size() - canonical.size());
+		return canonical;
+	}
+
+	private static int bit(Rewrite rewrite) {
+		return 1 << rewrite.ordinal();
+	}
+
+	private static boolean hasWhitespace(String string) {
+		for (int i = 0; i < string.length(); ++i) {
+			if (Character.isWhitespace(string.charAt(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Rebuilds a url that has an authority, recording the rewrites applied
+	 */
+	private static String rebuild(String url, int schemeEnd, int[] applied) {
+		StringBuilder builder = new StringBuilder(url.length() + 1);
+		for (int i = 0; i < schemeEnd; ++i) {
+			char c = url.charAt(i);
+			char lower = Character.toLowerCase(c);
+			if (lower != c) {
+				applied[0] |= bit(Rewrite.SCHEME_CASE);
+			}
+			builder.append(lower);
+		}
+		builder.append("://");
+
+		int authorityStart = schemeEnd + 3;
+		int end = url.indexOf('#', authorityStart);
+		if (end >= 0) {
+			applied[0] |= bit(Rewrite.FRAGMENT);
+		} else {
+			end = url.length();
+		}
+		int queryStart = url.indexOf('?', authorityStart);
+		if (queryStart >= end) {
+			queryStart = -1;
+		}
+		int pathEnd = queryStart >= 0 ? queryStart : end;
+		int pathStart = url.indexOf('/', authorityStart);
+		if (pathStart < 0 || pathStart > pathEnd) {
+			pathStart = pathEnd;
+		}
+
+		String domain = appendAuthority(builder, url, authorityStart, pathStart, builder.substring(0, schemeEnd),
+				applied);
+		appendPath(builder, url, pathStart, pathEnd, applied);
+		if (queryStart >= 0) {
+			appendQuery(builder, url, queryStart + 1, end, domain, applied);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Appends the authority with its host lowercased and without the default
+	 * port of the scheme
+	 *
+	 * @return the domain of the host, as keyed in the stripped parameters
+	 */
+	private static String appendAuthority(StringBuilder builder, String url, int start, int end, String scheme,
+			int[] applied) {
+		int hostStart = url.lastIndexOf('@', end - 1) + 1;
+		if (hostStart <= start) {
+			hostStart = start;
+		}
+		int portStart = url.lastIndexOf(':', end - 1);
+		if (portStart < hostStart || url.lastIndexOf(']', end - 1) > portStart) {// No port or an IPv6 address
+			portStart = end;
+		}
+		appendEncoded(builder, url, start, hostStart, applied);// User info
+
+		int domainStart = builder.length();
+		for (int i = hostStart; i < portStart; ++i) {
+			char c = url.charAt(i);
+			char lower = Character.toLowerCase(c);
+			if (lower != c) {
+				applied[0] |= bit(Rewrite.HOST_CASE);
+			}
+			builder.append(lower);
+		}
+		String domain = null;
+		if (!strippedParameters.isEmpty()) {
+			domain = builder.substring(domainStart);
+			if (domain.startsWith("www.")) {
+				domain = domain.substring(4);
+			}
+		}
+
+		if (portStart < end) {
+			boolean defaultPort = portStart + 1 == end
+					|| (scheme.equals("http") && url.regionMatches(portStart + 1, "80", 0, 2) && end - portStart == 3)
+					|| (scheme.equals("https") && url.regionMatches(portStart + 1, "443", 0, 3) && end - portStart == 4);
+			if (defaultPort) {
+				applied[0] |= bit(Rewrite.DEFAULT_PORT);
+			} else {
+				builder.append(url, portStart, end);
+			}
+		}
+		return domain;
+	}
+
+	/**
+	 * Appends the path without its duplicate slashes and its dot-segments, an
+	 * empty path is appended as "/"
+	 */
+	private static void appendPath(StringBuilder builder, String url, int start, int end, int[] applied) {
+		int pathStart = builder.length();
+		int i = start;
+		while (i < end) {// At a '/'
+			int segmentStart = i + 1;
+			int segmentEnd = url.indexOf('/', segmentStart);
+			if (segmentEnd < 0 || segmentEnd > end) {
+				segmentEnd = end;
+			}
+			int length = segmentEnd - segmentStart;
+			boolean last = segmentEnd == end;
+			if (length == 0 && !last) {
+				applied[0] |= bit(Rewrite.DUPLICATE_SLASHES);
+			} else if (length == 1 && url.charAt(segmentStart) == '.') {
+				applied[0] |= bit(Rewrite.DOT_SEGMENTS);
+				if (last) {
+					builder.append('/');
+				}
+			} else if (length == 2 && url.startsWith("..", segmentStart)) {
+				applied[0] |= bit(Rewrite.DOT_SEGMENTS);
+				int parent = builder.lastIndexOf("/");
+				builder.setLength(Math.max(parent, pathStart));
+				if (last) {
+					builder.append('/');
+				}
+			} else {
+				builder.append('/');
+				appendEncoded(builder, url, segmentStart, segmentEnd, applied);
+			}
+			i = segmentEnd;
+		}
+		if (builder.length() == pathStart) {
+			if (start == end) {
+				applied[0] |= bit(Rewrite.EMPTY_PATH);
+			}
+			builder.append('/');
+		}
+	}
+
+	/**
+	 * Appends the query without its empty and stripped parameters, the others
+	 * sorted by name
+	 */
+	private static void appendQuery(StringBuilder builder, String url, int start, int end, String domain,
+			int[] applied) {
+		List<String> domainParameters = domain == null ? null : strippedParameters.get(domain);
+		List<String> defaultParameters = domain == null ? null : strippedParameters.get(DEFAULT_DOMAIN);
+
+		int count = 0;
+		for (int i = start; i < end; ++i) {
+			if (url.charAt(i) == '&') {
+				count++;
+			}
+		}
+		int[] starts = new int[count + 1];
+		int[] ends = new int[count + 1];
+		count = 0;
+		int i = start;
+		while (i <= end) {
+			int parameterEnd = url.indexOf('&', i);
+			if (parameterEnd < 0 || parameterEnd > end) {
+				parameterEnd = end;
+			}
+			if (parameterEnd == i) {
+				applied[0] |= bit(Rewrite.EMPTY_PARAMETERS);
+			} else if (stripped(url, i, nameEnd(url, i, parameterEnd), domainParameters, defaultParameters)) {
+				applied[0] |= bit(Rewrite.STRIPPED_PARAMETERS);
+			} else {
+				starts[count] = i;
+				ends[count] = parameterEnd;
+				count++;
+			}
+			i = parameterEnd + 1;
+		}
+
+		for (int j = 1; j < count; ++j) {// Stable insertion sort by name
+			int parameterStart = starts[j];
+			int parameterEnd = ends[j];
+			int k = j - 1;
+			while (k >= 0 && compareNames(url, starts[k], ends[k], parameterStart, parameterEnd) > 0) {
+				starts[k + 1] = starts[k];
+				ends[k + 1] = ends[k];
+				k--;
+			}
+			if (k != j - 1) {
+				applied[0] |= bit(Rewrite.PARAMETER_ORDER);
+			}
+			starts[k + 1] = parameterStart;
+			ends[k + 1] = parameterEnd;
+		}
+
+		for (int j = 0; j < count; ++j) {
+			builder.append(j == 0 ? '?' : '&');
+			appendEncoded(builder, url, starts[j], ends[j], applied);
+		}
+	}
+
+	private static int nameEnd(String url, int start, int end) {
+		int equals = url.indexOf('=', start);
+		return equals < 0 || equals > end ? end : equals;
+	}
+
+	private static int compareNames(String url, int start1, int end1, int start2, int end2) {
+		int nameEnd1 = nameEnd(url, start1, end1);
+		int nameEnd2 = nameEnd(url, start2, end2);
+		int length = Math.min(nameEnd1 - start1, nameEnd2 - start2);
+		for (int i = 0; i < length; ++i) {
+			int difference = url.charAt(start1 + i) - url.charAt(start2 + i);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return (nameEnd1 - start1) - (nameEnd2 - start2);
+	}
+
+	private static boolean stripped(String url, int start, int end, List<String> domainParameters,
+			List<String> defaultParameters) {
+		return matches(url, start, end, SESSION_PARAMETERS) || matches(url, start, end, domainParameters)
+				|| matches(url, start, end, defaultParameters);
+	}
+
+	private static boolean matches(String url, int start, int end, List<String> names) {
+		if (names == null) {
+			return false;
+		}
+		for (String name : names) {
+			if (name.length() == end - start && url.regionMatches(true, start, name, 0, name.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Appends the characters, the white space encoded as %20 and the hex digits
+	 * of the percent-encodings uppercased
+	 */
+	private static void appendEncoded(StringBuilder builder, String url, int start, int end, int[] applied) {
+		for (int i = start; i < end; ++i) {
+			char c = url.charAt(i);
+			if (Character.isWhitespace(c)) {
+				applied[0] |= bit(Rewrite.WHITESPACE);
+				builder.append("%20");
+			} else if (c == '%' && i + 2 < end && isHex(url.charAt(i + 1)) && isHex(url.charAt(i + 2))) {
+				char high = Character.toUpperCase(url.charAt(i + 1));
+				char low = Character.toUpperCase(url.charAt(i + 2));
+				if (high != url.charAt(i + 1) || low != url.charAt(i + 2)) {
+					applied[0] |= bit(Rewrite.ENCODING_CASE);
+				}
+				builder.append('%').append(high).append(low);
+				i += 2;
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/**
+	 * Returns the number of urls canonicalized since the crawler started
+	 *
+	 * @return the number of urls canonicalized
+	 */
+	public static long canonicalizedCount() {
+		return canonicalized.sum();
+	}
+
+	/**
+	 * Returns the number of urls that were not canonical, each of them would have
+	 * been a distinct url for the dedup
+	 *
+	 * @return the number of urls rewritten
+	 */
+	public static long rewrittenCount() {
+		return rewritten.sum();
+	}
+
+	/**
+	 * Returns the number of links that canonicalizeAll collapsed into another
+	 * spelling of the same url
+	 *
+	 * @return the number of duplicate urls removed
+	 */
+	public static long duplicatesRemovedCount() {
+		return duplicatesRemoved.sum();
+	}
+
+	/**
+	 * Returns the number of urls each kind of rewrite was applied to
+	 *
+	 * @return rewrite to number of urls
+	 */
+	public static Map<Rewrite, Long> rewriteCounts() {
+		Map<Rewrite, Long> counts = new EnumMap<>(Rewrite.class);
+		for (Rewrite rewrite : Rewrite.values()) {
+			counts.put(rewrite, rewrites[rewrite.ordinal()].sum());
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,118 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.BestFirstBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class BestFirstBlockingQueueTest {
+
+	private static BestFirstBlockingQueue newQueue() throws IOException {
+		String folder = Files.createTempDirectory("bestFirstQueue").toString();
+		return BestFirstBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+	}
+
+	@Test
+	void urlsOfNeverFetchedDomainsComeFirst() throws IOException, InterruptedException {
+		BestFirstBlockingQueue queue = newQueue();
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");
+		queue.add("http://b.onion/1");
+
+		assertEquals("http://a.onion/1", queue.take());
+		assertEquals("http://b.onion/1", queue.take());// a.onion has been fetched, b.onion has not
+		assertEquals("http://a.onion/2", queue.take());
+		assertTrue(queue.isEmpty());
+
+		queue.close();
+	}
+
+	@Test
+	void referringDomainsRaiseTheScore() throws IOException, InterruptedException {
+		BestFirstBlockingQueue queue = newQueue();
+		queue.add("http://seed.onion/");
+		assertEquals("http://seed.onion/", queue.take());
+		queue.addLinks("http://seed.onion/", Arrays.asList("http://a.onion/", "http://b.onion/"),
+				Arrays.asList("http://a.onion/", "http://b.onion/"));
+
+		queue.add("http://c.onion/");// A page of c.onion links twice to b.onion
+		queue.addLinks("http://c.onion/", Collections.emptyList(), Arrays.asList("http://b.onion/"));
+		queue.addLinks("http://c.onion/", Collections.emptyList(), Arrays.asList("http://b.onion/"));// Same domain
+
+		assertEquals("http://b.onion/", queue.take());// 2 referring domains
+		assertEquals("http://a.onion/", queue.take());// 1 referring domain
+		assertEquals("http://c.onion/", queue.take());// Depth 0 but no referring domain
+		assertNull(queue.poll());
+
+		queue.close();
+	}
+
+	@Test
+	void peekReturnsTheUrlTakeReturns() throws IOException, InterruptedException {
+		BestFirstBlockingQueue queue = newQueue();
+		queue.add("http://seed.onion/");
+		queue.add("http://a.onion/1");
+		assertEquals("http://seed.onion/", queue.peek());
+		assertEquals("http://seed.onion/", queue.take());
+		queue.addLinks("http://seed.onion/", Arrays.asList("http://b.onion/"), Arrays.asList("http://b.onion/"));
+		queue.add("http://c.onion/");
+		queue.addLinks("http://c.onion/", Collections.emptyList(), Arrays.asList("http://b.onion/"));// Stale copy
+
+		assertEquals("http://b.onion/", queue.peek());
+		assertEquals("http://b.onion/", queue.take());
+		assertEquals("http://a.onion/1", queue.peek());
+		assertEquals("http://a.onion/1", queue.take());
+		queue.add("http://a.onion/2");
+		assertEquals("http://c.onion/", queue.peek());// a.onion has been fetched
+		assertEquals("http://c.onion/", queue.take());
+		assertEquals("http://a.onion/2", queue.peek());
+		assertEquals("http://a.onion/2", queue.take());
+		assertNull(queue.peek());
+
+		queue.close();
+	}
+
+	@Test
+	void linksOfNearDuplicatePagesComeLast() throws IOException, InterruptedException {
+		BestFirstBlockingQueue queue = newQueue();
+		queue.add("http://seed.onion/");
+		queue.add("http://mirror.onion/");
+		assertEquals("http://seed.onion/", queue.take());
+		assertEquals("http://mirror.onion/", queue.take());
+		queue.addLinks("http://seed.onion/", Arrays.asList("http://a.onion/"), Arrays.asList("http://a.onion/"));
+		queue.addDuplicateLinks("http://mirror.onion/", Arrays.asList("http://b.onion/"),
+				Arrays.asList("http://a.onion/", "http://b.onion/"));
+
+		assertEquals("http://a.onion/", queue.take());// The mirror is not counted as a referring domain
+		assertEquals("http://b.onion/", queue.take());// Max depth and no referring domain
+
+		queue.close();
+	}
+
+	@Test
+	void restoredQueueKeepsTheScores() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("bestFirstQueue").toString();
+		BestFirstBlockingQueue queue = BestFirstBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.add("http://seed.onion/");
+		queue.take();
+		queue.addLinks("http://seed.onion/", Arrays.asList("http://a.onion/", "http://b.onion/"),
+				Arrays.asList("http://a.onion/", "http://b.onion/"));
+		queue.addLinks("http://other.onion/", Collections.emptyList(), Arrays.asList("http://b.onion/"));
+		queue.close();
+
+		BestFirstBlockingQueue restored = BestFirstBlockingQueue.restore(folder);
+		assertEquals(2, restored.size());
+		assertEquals(3, restored.domainsDiscovered());
+		assertEquals("http://b.onion/", restored.take());
+		assertEquals("http://a.onion/", restored.take());
+
+		restored.close();
+	}
+}
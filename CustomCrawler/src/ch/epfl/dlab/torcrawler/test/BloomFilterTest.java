@@ -0,0 +1,81 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.BloomFilter;
+import ch.epfl.dlab.torcrawler.FingerprintIndex;
+
+class BloomFilterTest {
+
+	private static long fingerprint(int i) {
+		return FingerprintIndex.fingerprint("http://domain" + (i % 97) + ".onion/page/" + i);
+	}
+
+	private static double falsePositiveRate(BloomFilter filter, int from, int count) {
+		int falsePositives = 0;
+		for (int i = from; i < from + count; ++i) {
+			if (filter.mightContain(fingerprint(i))) {
+				falsePositives++;
+			}
+		}
+		return (double) falsePositives / count;
+	}
+
+	@Test
+	void addedFingerprintsAreNeverMissed() {
+		BloomFilter filter = new BloomFilter(100_000);
+		for (int i = 0; i < 100_000; ++i) {
+			filter.add(fingerprint(i));
+		}
+		for (int i = 0; i < 100_000; ++i) {
+			assertTrue(filter.mightContain(fingerprint(i)));
+		}
+		assertTrue(falsePositiveRate(filter, 100_000, 100_000) < 2 * BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	@Test
+	void filterGrowsPastItsExpectedSize() {
+		BloomFilter filter = new BloomFilter(1_000);
+		long initialSize = filter.sizeInBytes();
+		for (int i = 0; i < 50_000; ++i) {
+			filter.add(fingerprint(i));
+		}
+		assertTrue(filter.sizeInBytes() > 10 * initialSize);
+		for (int i = 0; i < 50_000; ++i) {
+			assertTrue(filter.mightContain(fingerprint(i)));
+		}
+		assertTrue(falsePositiveRate(filter, 50_000, 100_000) < 2 * BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	@Test
+	void filterCanBeWrittenAndRead() throws IOException {
+		BloomFilter filter = new BloomFilter(1_000);
+		for (int i = 0; i < 5_000; ++i) {
+			filter.add(fingerprint(i));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		filter.writeTo(new DataOutputStream(bytes));
+
+		BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(filter.count(), read.count());
+		assertEquals(filter.sizeInBytes(), read.sizeInBytes());
+		for (int i = 0; i < 10_000; ++i) {
+			assertEquals(filter.mightContain(fingerprint(i)), read.mightContain(fingerprint(i)));
+		}
+		boolean rejected = false;
+		try {
+			BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[16])));
+		} catch (IOException e) {
+			rejected = true;
+		}
+		assertTrue(rejected);
+	}
+}
@@ -0,0 +1,99 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+import ch.epfl.dlab.torcrawler.ConcurrentFingerprintSet;
+import ch.epfl.dlab.torcrawler.FingerprintIndex;
+
+/**
+ * Benchmark of ConcurrentFingerprintSet against the ConcurrentHashMap key set
+ * of urls the crawler used to keep: URL_COUNT distinct urls are added by
+ * THREAD_COUNT threads, each url twice so that half of the adds are
+ * duplicates, then the add throughput and the heap retained by each set are
+ * printed. The fingerprint of a url is computed in the timed loop. The time
+ * to write the fingerprint set to disk is printed last.
+ *
+ * Run with a large heap, e.g. -Xmx8g for the default 10M urls.
+ *
+ * Usage: ConcurrentFingerprintSetBenchmark [urlCount] [threadCount]
+ */
+public final class ConcurrentFingerprintSetBenchmark {
+
+	private static final int URL_COUNT = 10_000_000;
+	private static final int THREAD_COUNT = 8;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int urlCount = args.length > 0 ? Integer.parseInt(args[0]) : URL_COUNT;
+		int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : THREAD_COUNT;
+
+		System.out.println("set\tsize\tadds/s\theap bytes/url");
+		Set<String> urls = ConcurrentHashMap.newKeySet();
+		benchmark("ConcurrentHashMap.newKeySet", urls::add, urls::size, urlCount, threadCount);
+		urls = null;
+
+		ConcurrentFingerprintSet fingerprints = new ConcurrentFingerprintSet();
+		benchmark("ConcurrentFingerprintSet", url -> fingerprints.addIfAbsent(FingerprintIndex.fingerprint(url)),
+				fingerprints::size, urlCount, threadCount);
+
+		File file = new File(Files.createTempDirectory("fingerprintBenchmark").toFile(), "fingerprints");
+		long start = System.nanoTime();
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+			fingerprints.writeTo(output);
+		}
+		System.out.println("Snapshot of " + fingerprints.size() + " fingerprints: "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms, " + file.length() + " bytes");
+		file.delete();
+	}
+
+	private static String url(int i) {
+		return "http://" + Integer.toHexString(i % 10_007) + "abcdefghijklmnop.onion/page/" + i + "?ref=index";
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Adds every url twice from the threads, the set is kept reachable through
+	 * size until its heap has been measured
+	 */
+	private static void benchmark(String name, Predicate<String> add, IntSupplier size, int urlCount,
+			int threadCount) throws InterruptedException {
+		long heapBefore = usedHeap();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; ++t) {
+			int first = t;
+			threads.add(new Thread(() -> {
+				for (int i = first; i < 2 * urlCount; i += threadCount) {
+					add.test(url(i % urlCount));
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		long heap = usedHeap() - heapBefore;
+		System.out.println(
+				name + "\t" + size.getAsInt() + "\t" + (long) (2.0 * urlCount * 1e9 / elapsed) + "\t" + heap / urlCount);
+	}
+}
@@ -0,0 +1,88 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.ConcurrentFingerprintSet;
+import ch.epfl.dlab.torcrawler.FingerprintIndex;
+
+class ConcurrentFingerprintSetTest {
+
+	private static long fingerprint(int i) {
+		return FingerprintIndex.fingerprint("http://domain" + (i % 97) + ".onion/page/" + i);
+	}
+
+	@Test
+	void setGrowsAndKeepsEveryFingerprint() {
+		ConcurrentFingerprintSet set = new ConcurrentFingerprintSet();
+		long initialSize = set.sizeInBytes();
+		for (int i = 0; i < 200_000; ++i) {
+			assertTrue(set.addIfAbsent(fingerprint(i)));
+			assertFalse(set.addIfAbsent(fingerprint(i)));
+		}
+		assertEquals(200_000, set.size());
+		assertTrue(set.sizeInBytes() > initialSize);
+		for (int i = 0; i < 200_000; ++i) {
+			assertTrue(set.contains(fingerprint(i)));
+		}
+		assertFalse(set.contains(fingerprint(200_000)));
+		assertFalse(set.addIfAbsent(fingerprint(200_000), fingerprint -> true));
+		assertFalse(set.contains(fingerprint(200_000)));
+
+		set.clear();
+		assertEquals(0, set.size());
+		assertFalse(set.contains(fingerprint(0)));
+	}
+
+	@Test
+	void concurrentAddsAcceptEachFingerprintOnce() throws InterruptedException {
+		ConcurrentFingerprintSet set = new ConcurrentFingerprintSet();
+		AtomicInteger accepted = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; ++t) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 100_000; ++i) {
+					if (set.addIfAbsent(fingerprint(i))) {
+						accepted.incrementAndGet();
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(100_000, accepted.get());
+		assertEquals(100_000, set.size());
+		assertEquals(100_000, set.toArray().length);
+	}
+
+	@Test
+	void setCanBeWrittenAndRead() throws IOException {
+		ConcurrentFingerprintSet set = new ConcurrentFingerprintSet();
+		for (int i = 0; i < 10_000; ++i) {
+			set.addIfAbsent(fingerprint(i));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		set.writeTo(new DataOutputStream(bytes));
+
+		ConcurrentFingerprintSet read = ConcurrentFingerprintSet
+				.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		long[] expected = set.toArray();
+		long[] actual = read.toArray();
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		assertTrue(Arrays.equals(expected, actual));
+	}
+}
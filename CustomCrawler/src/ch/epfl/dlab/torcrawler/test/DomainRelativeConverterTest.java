@@ -0,0 +1,64 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+
+import ch.epfl.dlab.torcrawler.DomainRelativeConverter;
+import ch.epfl.dlab.torcrawler.StringConverter;
+import ch.epfl.dlab.torcrawler.TapeSubqueueStorage;
+
+class DomainRelativeConverterTest {
+
+	private static final String DOMAIN = "abcdefghijklmnopqrstuvwxyz234567abcdefghijklmnopqrstuvwx.onion";
+
+	private static byte[] encode(DomainRelativeConverter converter, String url) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		converter.toStream(url, bytes);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	void urlsAreRestoredExactly() throws IOException {
+		DomainRelativeConverter converter = new DomainRelativeConverter(DOMAIN);
+		List<String> urls = Arrays.asList("http://" + DOMAIN, "http://" + DOMAIN + "/", "https://" + DOMAIN + "/a?b=c",
+				"http://www." + DOMAIN + "/forum/viewtopic.php?t=1", "https://www." + DOMAIN + ":8080/\u00e9",
+				"http://" + DOMAIN.toUpperCase() + "/page", "http://other.onion/page", "ftp://" + DOMAIN + "/file");
+		for (String url : urls) {
+			assertEquals(url, converter.from(encode(converter, url)));
+		}
+	}
+
+	@Test
+	void urlsOfTheDomainOnlyStoreTheirPath() throws IOException {
+		DomainRelativeConverter converter = new DomainRelativeConverter(DOMAIN);
+		assertEquals(2 + "/index.php".length(), encode(converter, "http://" + DOMAIN + "/index.php").length);
+		assertEquals("http://other.onion/".length(), encode(converter, "http://other.onion/").length);
+	}
+
+	@Test
+	void plainQueueFilesStayReadable() throws IOException {
+		String folder = Files.createTempDirectory("converter").toString();
+		File file = new File(folder, DOMAIN + TapeSubqueueStorage.QUEUE_FILE_SUFFIX);
+		try (ObjectQueue<String> plain = ObjectQueue.create(new QueueFile.Builder(file).build(),
+				new StringConverter())) {
+			plain.add("http://" + DOMAIN + "/1");
+		}
+
+		TapeSubqueueStorage storage = new TapeSubqueueStorage(folder);
+		ObjectQueue<String> queue = storage.restoreQueue(DOMAIN);
+		queue.add("http://" + DOMAIN + "/2");
+		assertEquals(Arrays.asList("http://" + DOMAIN + "/1", "http://" + DOMAIN + "/2"), queue.asList());
+		queue.close();
+	}
+}
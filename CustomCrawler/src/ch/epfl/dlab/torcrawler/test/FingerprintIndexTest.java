@@ -0,0 +1,118 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.BlockingObjectQueue;
+import ch.epfl.dlab.torcrawler.FingerprintIndex;
+import ch.epfl.dlab.torcrawler.MappedQueueFile;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue.OverflowPolicy;
+import ch.epfl.dlab.torcrawler.StringConverter;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class FingerprintIndexTest {
+
+	@Test
+	void indexBehavesAsACountingSet() {
+		FingerprintIndex index = new FingerprintIndex();
+		Map<String, Integer> counts = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100_000; ++i) {
+			String url = "http://domain.onion/" + random.nextInt(2_000);
+			if (random.nextInt(3) == 0) {
+				index.remove(url);
+				counts.computeIfPresent(url, (key, count) -> count > 1 ? count - 1 : null);
+			} else {
+				index.add(url);
+				counts.merge(url, 1, Integer::sum);
+			}
+		}
+
+		int size = 0;
+		for (int i = 0; i < 2_000; ++i) {
+			String url = "http://domain.onion/" + i;
+			assertEquals(counts.containsKey(url), index.contains(url));
+			size += counts.getOrDefault(url, 0);
+		}
+		assertEquals(size, index.size());
+	}
+
+	@Test
+	void containsFollowsTheQueueAcrossARestore() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("index").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");
+		queue.add("http://b.onion/1");
+		assertTrue(queue.contains("http://a.onion/2"));
+		assertFalse(queue.contains("http://c.onion/1"));
+
+		assertEquals("http://a.onion/1", queue.take());// Moves a.onion/1 and b.onion/1 to the current round
+		assertFalse(queue.contains("http://a.onion/1"));
+		assertTrue(queue.contains("http://b.onion/1"));
+		assertTrue(queue.remove("http://b.onion/1"));
+		assertFalse(queue.contains("http://b.onion/1"));
+		queue.close();
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		assertTrue(restored.contains("http://a.onion/2"));
+		assertFalse(restored.contains("http://b.onion/1"));
+		restored.add("http://b.onion/2");
+		assertTrue(restored.contains("http://b.onion/2"));
+		assertEquals("http://a.onion/2", restored.take());
+		assertEquals("http://b.onion/2", restored.take());
+		assertFalse(restored.contains("http://a.onion/2"));
+		assertFalse(restored.contains("http://b.onion/2"));
+		restored.close();
+	}
+
+	@Test
+	void containsFindsThePendingAndSpilledUrls() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("index").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.SEGMENTED_LOG);
+		queue.setCapacity(Integer.MAX_VALUE, 1, OverflowPolicy.SPILL);
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");// Spilled, its domain is full
+		assertEquals(1, queue.spilledCount());
+		assertTrue(queue.contains("http://a.onion/2"));
+
+		queue.setCommitWindow(60_000, 1_000);
+		Thread producer = new Thread(() -> queue.addAll(Arrays.asList("http://b.onion/1")));
+		producer.start();
+		while (producer.getState() != Thread.State.WAITING) {
+			Thread.sleep(10);// Waiting for the end of the window
+		}
+		assertTrue(queue.contains("http://b.onion/1"));
+		queue.flush();
+		producer.join(5_000);
+		assertTrue(queue.contains("http://b.onion/1"));
+		queue.close();
+	}
+
+	@Test
+	void elementsRemovedThroughTheIteratorLeaveTheIndex() throws IOException, InterruptedException {
+		File file = new File(Files.createTempDirectory("index").toFile(), "queue");
+		BlockingObjectQueue<String> queue = BlockingObjectQueue.create(new MappedQueueFile(file),
+				new StringConverter());
+		queue.put("http://a.onion/1");
+		queue.put("http://a.onion/2");
+
+		Iterator<String> iterator = queue.iterator();
+		assertEquals("http://a.onion/1", iterator.next());
+		iterator.remove();
+		assertFalse(queue.contains("http://a.onion/1"));
+		assertTrue(queue.contains("http://a.onion/2"));
+		queue.close();
+	}
+}
@@ -0,0 +1,71 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.CrawlerStatistics;
+import ch.epfl.dlab.torcrawler.LinkEnqueuer;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+import ch.epfl.dlab.torcrawler.TieredSeenURLStore;
+
+class LinkEnqueuerTest {
+
+	private static Set<String> page(int first, int count) {
+		Set<String> links = new HashSet<>();
+		for (int i = first; i < first + count; ++i) {
+			links.add("http://domain" + (i % 13) + ".onion/page/" + i);
+		}
+		return links;
+	}
+
+	@Test
+	void overlappingPagesEnqueueEachUrlOnce() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue
+				.create(Files.createTempDirectory("enqueuer").toString(), SubqueueStorage.Mode.TAPE);
+		queue.setCommitWindow(10, 1_000);
+		TieredSeenURLStore store = TieredSeenURLStore.create(Files.createTempDirectory("seen").toString());
+		store.setHotCapacity(100);
+		CrawlerStatistics.initialize(queue, 1);
+		int discoveredBefore = CrawlerStatistics.getInstance().getValidUrlsDiscovered();
+
+		AtomicInteger enqueued = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; ++t) {
+			LinkEnqueuer enqueuer = new LinkEnqueuer(store, queue);
+			threads.add(new Thread(() -> {
+				for (int page = 0; page < 50; ++page) {
+					enqueued.addAndGet(enqueuer.enqueue("http://referrer.onion/", page(page * 10, 30)).size());
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int distinct = 50 * 10 + 20;
+		assertEquals(distinct, enqueued.get());
+		assertEquals(distinct, CrawlerStatistics.getInstance().getValidUrlsDiscovered() - discoveredBefore);
+		Set<String> taken = new HashSet<>();
+		String url;
+		while ((url = queue.poll(1, TimeUnit.SECONDS)) != null) {
+			assertTrue(taken.add(url));
+		}
+		assertEquals(distinct, taken.size());
+		assertTrue(new LinkEnqueuer(store, queue).enqueue("http://referrer.onion/", page(0, 30)).isEmpty());
+
+		queue.close();
+		store.close();
+	}
+}
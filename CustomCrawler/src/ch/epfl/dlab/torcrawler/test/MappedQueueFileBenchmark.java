@@ -0,0 +1,192 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.squareup.tape2.QueueFile;
+
+import ch.epfl.dlab.torcrawler.MappedQueueFile;
+
+/**
+ * Benchmark of MappedQueueFile against the tape QueueFile: OPERATION_COUNT
+ * urls are added then peeked and removed one by one and the add/remove
+ * throughputs are printed, for tape and for both sync policies of the mapped
+ * file.
+ *
+ * Recovery: a writer JVM adds numbered records to a mapped file (removing the
+ * head every third add) and prints the number of each committed add, it is
+ * killed with SIGKILL after a delay that varies between the runs. The file is then reopened and must
+ * hold consecutive numbers ending at or after the last printed one.
+ *
+ * Usage: MappedQueueFileBenchmark [operationCount] [recoveryRuns]
+ */
+public final class MappedQueueFileBenchmark {
+
+	private static final int OPERATION_COUNT = 20_000;
+	private static final int RECOVERY_RUNS = 10;
+	private static final int MAX_KILL_DELAY = 2_000;// in ms
+
+	private interface Queue {
+		void add(byte[] bytes) throws IOException;
+
+		byte[] peek() throws IOException;
+
+		void remove() throws IOException;
+
+		void close() throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 3 && args[0].equals("writer")) {
+			write(new File(args[1]), MappedQueueFile.SyncPolicy.valueOf(args[2]));
+			return;
+		}
+		int operationCount = args.length > 0 ? Integer.parseInt(args[0]) : OPERATION_COUNT;
+		int recoveryRuns = args.length > 1 ? Integer.parseInt(args[1]) : RECOVERY_RUNS;
+
+		System.out.println("file\tadds/s\tremoves/s");
+		benchmark("tape", operationCount);
+		for (MappedQueueFile.SyncPolicy policy : MappedQueueFile.SyncPolicy.values()) {
+			benchmark(policy.name(), operationCount);
+		}
+
+		for (MappedQueueFile.SyncPolicy policy : MappedQueueFile.SyncPolicy.values()) {
+			int recovered = 0;
+			for (int run = 0; run < recoveryRuns; ++run) {
+				if (killAndRecover(policy, run)) {
+					recovered++;
+				}
+			}
+			System.out.println(
+					"Recovery after kill -9 (" + policy + "): " + recovered + "/" + recoveryRuns + " runs consistent");
+		}
+	}
+
+	private static Queue open(String name, File file) throws IOException {
+		if (name.equals("tape")) {
+			QueueFile queueFile = new QueueFile.Builder(file).build();
+			return new Queue() {
+				@Override
+				public void add(byte[] bytes) throws IOException {
+					queueFile.add(bytes);
+				}
+
+				@Override
+				public byte[] peek() throws IOException {
+					return queueFile.peek();
+				}
+
+				@Override
+				public void remove() throws IOException {
+					queueFile.remove();
+				}
+
+				@Override
+				public void close() throws IOException {
+					queueFile.close();
+				}
+			};
+		}
+		MappedQueueFile queueFile = new MappedQueueFile(file, MappedQueueFile.SyncPolicy.valueOf(name));
+		return new Queue() {
+			@Override
+			public void add(byte[] bytes) throws IOException {
+				queueFile.add(bytes);
+			}
+
+			@Override
+			public byte[] peek() {
+				return queueFile.peek();
+			}
+
+			@Override
+			public void remove() throws IOException {
+				queueFile.remove();
+			}
+
+			@Override
+			public void close() throws IOException {
+				queueFile.close();
+			}
+		};
+	}
+
+	private static void benchmark(String name, int operationCount) throws IOException {
+		File file = new File(Files.createTempDirectory("mappedBenchmark").toFile(), "benchmark");
+		Queue queue = open(name, file);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < operationCount; ++i) {
+			queue.add(("http://domain" + (i % 1_000) + ".onion/page/" + i).getBytes(StandardCharsets.UTF_8));
+		}
+		double addSeconds = (System.nanoTime() - start) / 1e9;
+
+		start = System.nanoTime();
+		for (int i = 0; i < operationCount; ++i) {
+			queue.peek();
+			queue.remove();
+		}
+		double removeSeconds = (System.nanoTime() - start) / 1e9;
+		queue.close();
+
+		System.out.println(name + "\t" + (long) (operationCount / addSeconds) + "\t"
+				+ (long) (operationCount / removeSeconds));
+	}
+
+	/**
+	 * Adds numbered records until the process is killed
+	 */
+	private static void write(File file, MappedQueueFile.SyncPolicy policy) throws IOException {
+		MappedQueueFile queueFile = new MappedQueueFile(file, policy);
+		for (long i = 0;; ++i) {
+			queueFile.add(Long.toString(i).getBytes(StandardCharsets.UTF_8));
+			if (i % 3 == 2) {
+				queueFile.remove();
+			}
+			System.out.println(i);
+		}
+	}
+
+	/**
+	 * Kills a writer after a delay and checks the records left in its file
+	 *
+	 * @return whether the file holds consecutive numbers up to the last
+	 *         acknowledged one
+	 */
+	private static boolean killAndRecover(MappedQueueFile.SyncPolicy policy, int run)
+			throws IOException, InterruptedException {
+		File file = new File(Files.createTempDirectory("mappedRecovery").toFile(), "recovery");
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process writer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				MappedQueueFileBenchmark.class.getName(), "writer", file.getPath(), policy.name()).start();
+
+		long acknowledged = -1;
+		long killTime = System.currentTimeMillis() + 200 + (run * 7919L) % MAX_KILL_DELAY;
+		try (BufferedReader output = new BufferedReader(
+				new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while (System.currentTimeMillis() < killTime && (line = output.readLine()) != null) {
+				acknowledged = Long.parseLong(line);
+			}
+			writer.destroyForcibly();// SIGKILL
+			writer.waitFor();
+		}
+
+		try (MappedQueueFile queueFile = new MappedQueueFile(file)) {
+			long previous = -1;
+			for (byte[] bytes : queueFile) {
+				long number = Long.parseLong(new String(bytes, StandardCharsets.UTF_8));
+				if (previous >= 0 && number != previous + 1) {
+					return false;
+				}
+				previous = number;
+			}
+			return previous >= acknowledged;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.BlockingObjectQueue;
+import ch.epfl.dlab.torcrawler.MappedQueueFile;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.StringConverter;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class MappedQueueFileTest {
+
+	private static File newFile() throws IOException {
+		return new File(Files.createTempDirectory("mapped").toFile(), "test.mqueue");
+	}
+
+	private static List<String> contents(MappedQueueFile queueFile) {
+		List<String> contents = new ArrayList<>();
+		for (byte[] bytes : queueFile) {
+			contents.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return contents;
+	}
+
+	private static void flipByte(File file, long position) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(position);
+			int value = raf.read();
+			raf.seek(position);
+			raf.write(value ^ 0xff);
+		}
+	}
+
+	@Test
+	void ringWrapsAndGrowsAcrossReopens() throws IOException {
+		File file = newFile();
+		MappedQueueFile queueFile = new MappedQueueFile(file, MappedQueueFile.SyncPolicy.EXPLICIT);
+		ArrayDeque<String> expected = new ArrayDeque<>();
+		Random random = new Random(42);
+		char[] padding = new char[300];
+		Arrays.fill(padding, 'x');
+
+		for (int i = 0; i < 20_000; ++i) {
+			int operation = random.nextInt(100);
+			if (operation < 60) {
+				String element = i + new String(padding, 0, random.nextInt(padding.length));
+				queueFile.add(element.getBytes(StandardCharsets.UTF_8));
+				expected.add(element);
+			} else if (operation < 98) {
+				int n = Math.min(expected.size(), random.nextInt(3));
+				queueFile.remove(n);
+				for (int j = 0; j < n; ++j) {
+					expected.poll();
+				}
+			} else if (operation == 98) {
+				queueFile.close();
+				queueFile = new MappedQueueFile(file, MappedQueueFile.SyncPolicy.EXPLICIT);
+			} else if (random.nextInt(10) == 0) {
+				queueFile.clear();
+				expected.clear();
+			}
+			assertEquals(expected.size(), queueFile.size());
+			if (!expected.isEmpty()) {
+				assertEquals(expected.peek(), new String(queueFile.peek(), StandardCharsets.UTF_8));
+			}
+		}
+		assertEquals(new ArrayList<>(expected), contents(queueFile));
+		queueFile.close();
+	}
+
+	@Test
+	void corruptedRecordsAreDropped() throws IOException {
+		File file = newFile();
+		try (MappedQueueFile queueFile = new MappedQueueFile(file)) {
+			for (String element : Arrays.asList("a", "b", "c")) {
+				queueFile.add(element.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		// Records of 1 byte are stored one after the other after the header
+		flipByte(file, MappedQueueFile.HEADER_LENGTH + 2 * (MappedQueueFile.RECORD_HEADER_LENGTH + 1)
+				+ MappedQueueFile.RECORD_HEADER_LENGTH);
+
+		try (MappedQueueFile queueFile = new MappedQueueFile(file)) {
+			assertEquals(Arrays.asList("a", "b"), contents(queueFile));
+			queueFile.add("d".getBytes(StandardCharsets.UTF_8));
+			assertEquals(Arrays.asList("a", "b", "d"), contents(queueFile));
+		}
+	}
+
+	@Test
+	void tornHeaderFallsBackToThePreviousOperation() throws IOException {
+		File file = newFile();
+		try (MappedQueueFile queueFile = new MappedQueueFile(file)) {
+			queueFile.add("a".getBytes(StandardCharsets.UTF_8));
+			queueFile.add("b".getBytes(StandardCharsets.UTF_8));// Third header, written to the second slot
+		}
+		flipByte(file, MappedQueueFile.HEADER_LENGTH / 2 + 28);// Count of the second slot
+
+		try (MappedQueueFile queueFile = new MappedQueueFile(file)) {
+			assertEquals(Arrays.asList("a"), contents(queueFile));
+		}
+	}
+
+	@Test
+	void queuesCanBeStoredInMappedFiles() throws IOException, InterruptedException {
+		File file = newFile();
+		BlockingObjectQueue<String> blockingQueue = BlockingObjectQueue.create(new MappedQueueFile(file),
+				new StringConverter());
+		blockingQueue.put("http://a.onion/1");
+		blockingQueue.put("http://a.onion/2");
+		assertTrue(blockingQueue.contains("http://a.onion/2"));
+		assertEquals("http://a.onion/1", blockingQueue.take());
+		blockingQueue.close();
+		blockingQueue = BlockingObjectQueue.create(new MappedQueueFile(file), new StringConverter());
+		assertEquals("http://a.onion/2", blockingQueue.take());
+		blockingQueue.close();
+
+		String folder = Files.createTempDirectory("mapped").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.MAPPED);
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");
+		queue.add("http://b.onion/1");
+		assertEquals("http://a.onion/1", queue.take());
+		queue.close();
+
+		assertEquals(SubqueueStorage.Mode.MAPPED, SubqueueStorage.detect(folder));
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		assertEquals(2, restored.size());
+		assertEquals("http://b.onion/1", restored.take());
+		assertEquals("http://a.onion/2", restored.take());
+		restored.close();
+	}
+}
@@ -0,0 +1,51 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.NearDuplicateIndex;
+
+class NearDuplicateIndexTest {
+
+	private static String text(long seed, int words) {
+		Random random = new Random(seed);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < words; ++i) {
+			text.append("word").append(random.nextInt(5_000)).append(i % 7 == 0 ? ". " : " ");
+		}
+		return text.toString();
+	}
+
+	@Test
+	void mirrorsAndSlightEditsAreFlagged() {
+		NearDuplicateIndex index = new NearDuplicateIndex();
+		String page = text(1, 500);
+		assertFalse(index.checkAndAdd(page));
+		assertTrue(index.checkAndAdd(page));
+		assertTrue(index.checkAndAdd(page.toUpperCase() + "\n"));// Case and spacing are ignored
+		assertTrue(index.checkAndAdd(page.replaceFirst("word\\d+", "changed")));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	void distinctPagesAreNotFlagged() {
+		NearDuplicateIndex index = new NearDuplicateIndex();
+		for (int seed = 0; seed < 1_000; ++seed) {
+			assertFalse(index.checkAndAdd(text(seed, 300)));
+		}
+		assertEquals(1_000, index.size());
+	}
+
+	@Test
+	void shortPagesAreNeverFlagged() {
+		NearDuplicateIndex index = new NearDuplicateIndex();
+		String page = text(1, NearDuplicateIndex.MIN_WORDS - 1);
+		assertEquals(NearDuplicateIndex.NO_SIMHASH, NearDuplicateIndex.simHash(page));
+		assertFalse(index.checkAndAdd(page));
+		assertFalse(index.checkAndAdd(page));
+		assertEquals(0, index.size());
+	}
+}
@@ -0,0 +1,76 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.Fetcher;
+import ch.epfl.dlab.torcrawler.PolitenessBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class PolitenessBlockingQueueTest {
+
+	private static final long MIN_DELAY = 200;// in ms
+
+	private static PolitenessBlockingQueue newQueue() throws IOException {
+		String folder = Files.createTempDirectory("politenessQueue").toString();
+		return PolitenessBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE, MIN_DELAY);
+	}
+
+	@Test
+	void domainIsNotFetchedBeforeItsDelay() throws IOException, InterruptedException {
+		PolitenessBlockingQueue queue = newQueue();
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");
+		queue.add("http://b.onion/1");
+
+		String first = queue.take();
+		String second = queue.take();
+		assertNotEquals(Fetcher.getDomain(first), Fetcher.getDomain(second));
+		assertNull(queue.poll());// a.onion is not eligible yet
+		assertEquals(1, queue.size());
+
+		long start = System.nanoTime();
+		assertEquals("http://a.onion/2", queue.take());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= MIN_DELAY / 2);
+		assertTrue(queue.isEmpty());
+
+		queue.close();
+	}
+
+	@Test
+	void slowDomainsWaitLonger() throws IOException, InterruptedException {
+		PolitenessBlockingQueue queue = newQueue();
+		queue.add("http://slow.onion/1");
+		queue.add("http://slow.onion/2");
+		queue.reportFetch("http://slow.onion/0", 1_000, true);
+
+		queue.take();
+		assertNull(queue.poll(2 * MIN_DELAY, TimeUnit.MILLISECONDS));// The delay is 2*1000ms
+		assertEquals("http://slow.onion/2", queue.poll(3, TimeUnit.SECONDS));
+
+		queue.close();
+	}
+
+	@Test
+	void restoredQueueContainsTheSameUrls() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("politenessQueue").toString();
+		PolitenessBlockingQueue queue = PolitenessBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE, MIN_DELAY);
+		queue.add("http://a.onion/1");
+		queue.add("http://b.onion/1");
+		queue.add("http://b.onion/2");
+		queue.take();
+		queue.close();
+
+		PolitenessBlockingQueue restored = PolitenessBlockingQueue.restore(folder, MIN_DELAY);
+		assertEquals(2, restored.size());
+		assertEquals(2, restored.domainsDiscovered());
+		assertNotNull(restored.poll());// Restored domains are eligible at once
+
+		restored.close();
+	}
+}
@@ -0,0 +1,77 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.Fetcher;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueBatchTest {
+
+	private static RoundRobinBlockingQueue newQueue() throws IOException {
+		String folder = Files.createTempDirectory("batchQueue").toString();
+		return RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+	}
+
+	@Test
+	void batchesHoldDistinctDomains() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = newQueue();
+		for (int i = 0; i < 3; ++i) {
+			queue.add("http://a.onion/" + i);
+			queue.add("http://b.onion/" + i);
+			queue.add("http://c.onion/" + i);
+		}
+
+		int taken = 0;
+		while (!queue.isEmpty()) {
+			List<String> batch = queue.takeBatch(5);
+			Set<String> domains = new HashSet<>();
+			for (String url : batch) {
+				assertTrue(domains.add(Fetcher.getDomain(url)));
+			}
+			taken += batch.size();
+		}
+		assertEquals(9, taken);
+
+		queue.close();
+	}
+
+	@Test
+	void batchIsLimitedToTheRequestedSize() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = newQueue();
+		for (int i = 0; i < 10; ++i) {
+			queue.add("http://domain" + i + ".onion/");
+		}
+
+		assertEquals(4, queue.takeBatch(4).size());
+		assertEquals(6, queue.size());
+
+		queue.close();
+	}
+
+	@Test
+	void drainToRemovesTheUrls() throws IOException {
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");
+		queue.add("http://b.onion/1");
+
+		List<String> drained = new ArrayList<>();
+		assertEquals(2, queue.drainTo(drained, 2));
+		assertEquals(1, queue.size());
+		assertEquals(1, queue.drainTo(drained));
+		assertTrue(queue.isEmpty());
+		assertEquals(3, new HashSet<>(drained).size());
+
+		queue.close();
+	}
+}
@@ -0,0 +1,110 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+/**
+ * Contention benchmark of RoundRobinBlockingQueue: for a growing number of
+ * threads, as many producers as consumers put and take urls spread over
+ * DOMAIN_COUNT domains during RUN_TIME ms and the put/take throughputs are
+ * printed. With a batch size, producers enqueue their urls with addAll
+ * (group commit) instead of put and consumers take their urls with takeBatch.
+ * With "tiered", the subqueues are buffered in memory.
+ *
+ * Usage: RoundRobinBlockingQueueBenchmark [TAPE|SEGMENTED_LOG] [batchSize] [tiered]
+ */
+public final class RoundRobinBlockingQueueBenchmark {
+
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+	private static final int DOMAIN_COUNT = 1_000;
+	private static final int RUN_TIME = 5_000;// in ms
+
+	private static volatile boolean running;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		SubqueueStorage.Mode mode = args.length > 0 ? SubqueueStorage.Mode.valueOf(args[0])
+				: SubqueueStorage.Mode.TAPE;
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		boolean tiered = args.length > 2 && args[2].equals("tiered");
+
+		System.out.println("Storage: " + mode + (tiered ? " (tiered)" : "") + ", batch size: " + batchSize);
+		System.out.println("threads\tputs/s\ttakes/s");
+		for (int threadCount : THREAD_COUNTS) {
+			String folder = Files.createTempDirectory("roundRobinBenchmark").toString();
+			RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, mode, tiered);
+			AtomicLong puts = new AtomicLong();
+			AtomicLong takes = new AtomicLong();
+
+			List<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < threadCount; ++i) {
+				final int id = i;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						long n = 0;
+						List<String> batch = new ArrayList<>();
+						while (running) {
+							String url = "http://domain" + ((n * threadCount + id) % DOMAIN_COUNT) + ".onion/" + n;
+							n++;
+							if (batchSize > 1) {
+								batch.add(url);
+								if (batch.size() == batchSize) {
+									queue.addAll(batch);
+									puts.addAndGet(batch.size());
+									batch.clear();
+								}
+								continue;
+							}
+							try {
+								queue.put(url);
+							} catch (InterruptedException e) {
+								return;
+							}
+							puts.incrementAndGet();
+						}
+					}
+				});
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						while (running) {
+							try {
+								if (batchSize > 1) {
+									takes.addAndGet(queue.takeBatch(batchSize).size());
+								} else if (queue.poll(10, TimeUnit.MILLISECONDS) != null) {
+									takes.incrementAndGet();
+								}
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+				});
+			}
+
+			running = true;
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			Thread.sleep(RUN_TIME);
+			running = false;
+			for (int i = 0; i < threadCount; ++i) {// Wakes up the consumers blocked in takeBatch
+				queue.add("http://stop" + i + ".onion/");
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			queue.close();
+
+			double seconds = RUN_TIME / 1000.0;
+			System.out.println(threadCount + "\t" + (long) (puts.get() / seconds) + "\t" + (long) (takes.get() / seconds));
+		}
+	}
+}
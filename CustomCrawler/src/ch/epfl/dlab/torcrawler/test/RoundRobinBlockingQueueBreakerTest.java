@@ -0,0 +1,119 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+
+class RoundRobinBlockingQueueBreakerTest {
+
+	private static RoundRobinBlockingQueue queueWith(String... urls) throws IOException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(Files.createTempDirectory("breaker").toString());
+		for (String url : urls) {
+			queue.add(url);
+		}
+		return queue;
+	}
+
+	private static void reportFailures(RoundRobinBlockingQueue queue, String url, int times) {
+		for (int i = 0; i < times; ++i) {
+			queue.reportFetch(url, 100_000, false);
+		}
+	}
+
+	@Test
+	void failingDomainIsParkedThenProbed() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = queueWith("http://dead.onion/1", "http://alive.onion/1", "http://dead.onion/2",
+				"http://alive.onion/2", "http://dead.onion/3", "http://alive.onion/3", "http://alive.onion/4");
+		queue.setCircuitBreaker(3, 200, 10_000);
+
+		assertEquals("http://dead.onion/1", queue.take());
+		assertEquals("http://alive.onion/1", queue.take());
+		reportFailures(queue, "http://dead.onion/1", 3);
+		assertEquals(1, queue.parkedCount());
+
+		assertEquals("http://alive.onion/2", queue.take());
+		assertEquals("http://alive.onion/3", queue.take());
+		assertEquals(3, queue.size());
+
+		Thread.sleep(300);
+		assertEquals("http://alive.onion/4", queue.take());
+		assertEquals("http://dead.onion/2", queue.take());// The probe
+		assertNull(queue.poll());// Parked until the probe is reported
+		assertEquals(1, queue.size());
+
+		queue.reportFetch("http://dead.onion/2", 500, true);
+		assertEquals(0, queue.parkedCount());
+		assertEquals("http://dead.onion/3", queue.poll());
+		queue.close();
+	}
+
+	@Test
+	void failedProbeDoublesTheBackoff() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = queueWith("http://dead.onion/1", "http://dead.onion/2", "http://dead.onion/3");
+		queue.setCircuitBreaker(1, 200, 10_000);
+		queue.setWeighted(true);
+
+		assertEquals("http://dead.onion/1", queue.take());
+		reportFailures(queue, "http://dead.onion/1", 1);
+		assertNull(queue.poll());
+
+		assertEquals("http://dead.onion/2", queue.poll(5, TimeUnit.SECONDS));// Probed once the backoff elapsed
+		long start = System.nanoTime();
+		reportFailures(queue, "http://dead.onion/2", 1);
+		assertEquals("http://dead.onion/3", queue.poll(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+		queue.close();
+	}
+
+	@Test
+	void parkedDomainsWithUrlsCountInTheUtilization() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = queueWith("http://dead.onion/1", "http://alive.onion/1", "http://dead.onion/2",
+				"http://alive.onion/2");
+		queue.setCircuitBreaker(3, 200, 10_000);
+
+		assertEquals("http://dead.onion/1", queue.take());
+		assertEquals("http://alive.onion/1", queue.take());
+		reportFailures(queue, "http://dead.onion/1", 3);
+		assertEquals(1.0, queue.subqueueUtilization());
+
+		assertEquals("http://alive.onion/2", queue.take());// Out of the ring but still holds a url
+		assertEquals(0.5, queue.subqueueUtilization());
+
+		Thread.sleep(300);
+		assertEquals("http://dead.onion/2", queue.take());// The probe
+		assertEquals(0.0, queue.subqueueUtilization());
+		queue.close();
+	}
+
+	@Test
+	void parkedDomainsStayParkedAfterARestore() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("breaker").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder);
+		queue.setCircuitBreaker(2, 60_000, 60_000);
+		queue.add("http://dead.onion/1");
+		queue.add("http://dead.onion/2");
+		queue.add("http://alive.onion/1");
+		assertEquals("http://dead.onion/1", queue.take());
+		reportFailures(queue, "http://dead.onion/1", 2);
+		queue.close();
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		restored.awaitRestore();
+		assertEquals("http://alive.onion/1", restored.take());
+		assertNull(restored.poll());
+		assertEquals(1, restored.size());
+		assertEquals(1, restored.parkedCount());
+
+		restored.add("http://dead.onion/3");
+		assertNull(restored.poll());
+		restored.reportFetch("http://dead.onion/0", 500, true);
+		assertEquals("http://dead.onion/2", restored.poll());
+		restored.close();
+	}
+}
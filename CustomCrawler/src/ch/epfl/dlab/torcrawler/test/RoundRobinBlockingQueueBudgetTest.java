@@ -0,0 +1,109 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.CrawlBudget;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueBudgetTest {
+
+	private static Map<String, CrawlBudget> budgets(CrawlBudget defaultBudget) {
+		Map<String, CrawlBudget> budgets = new HashMap<>();
+		budgets.put(CrawlBudget.DEFAULT_DOMAIN, defaultBudget);
+		return budgets;
+	}
+
+	@Test
+	void urlsOverTheEnqueueBudgetAreDropped() throws IOException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue
+				.create(Files.createTempDirectory("budget").toString(), SubqueueStorage.Mode.TAPE);
+		Map<String, CrawlBudget> budgets = budgets(new CrawlBudget(2, CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED));
+		budgets.put("wiki.onion", CrawlBudget.NONE);
+		queue.setBudgets(budgets);
+
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(i < 2, queue.add("http://forum.onion/" + i));
+			assertTrue(queue.add("http://wiki.onion/" + i));
+		}
+		List<String> batch = new ArrayList<>();
+		for (int i = 0; i < 5; ++i) {
+			batch.add("http://market.onion/" + i);
+		}
+		queue.addAll(batch);
+		queue.flush();
+
+		assertEquals(9, queue.size());
+		assertFalse(queue.withinBudget("http://forum.onion/new"));
+		assertTrue(queue.withinBudget("http://wiki.onion/new"));
+		Map<String, Long> hits = queue.budgetHits();
+		assertEquals(2, hits.size());
+		assertEquals(4, (long) hits.get("forum.onion"));
+		assertEquals(3, (long) hits.get("market.onion"));
+		queue.close();
+	}
+
+	@Test
+	void aRediscoveredUrlIsCountedAsOneBudgetHit() throws IOException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue
+				.create(Files.createTempDirectory("budget").toString(), SubqueueStorage.Mode.TAPE);
+		queue.setBudgets(budgets(new CrawlBudget(1, CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED)));
+		assertTrue(queue.add("http://forum.onion/0"));
+
+		for (int i = 0; i < 3; ++i) {// Found again on other pages, never recorded as seen
+			assertFalse(queue.withinBudget("http://forum.onion/1"));
+			assertFalse(queue.add("http://forum.onion/1"));
+		}
+		assertFalse(queue.withinBudget("http://forum.onion/2"));
+		assertEquals(2, (long) queue.budgetHits().get("forum.onion"));
+		queue.close();
+	}
+
+		@Test
+	void fetchAndStorageBudgetsStopTheAdds() throws IOException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue
+				.create(Files.createTempDirectory("budget").toString(), SubqueueStorage.Mode.TAPE);
+		Map<String, CrawlBudget> budgets = budgets(CrawlBudget.NONE);
+		budgets.put("a.onion", new CrawlBudget(CrawlBudget.UNLIMITED, 1, CrawlBudget.UNLIMITED));
+		budgets.put("b.onion", new CrawlBudget(CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED, 100));
+		queue.setBudgets(budgets);
+
+		assertTrue(queue.add("http://a.onion/1"));
+		assertTrue(queue.add("http://b.onion/1"));
+		queue.reportFetch("http://a.onion/1", 100, true);
+		queue.reportStored("http://b.onion/1", 150);
+
+		assertFalse(queue.add("http://a.onion/2"));
+		assertFalse(queue.add("http://b.onion/2"));
+		assertTrue(queue.add("http://c.onion/1"));
+		assertEquals(3, queue.size());
+		queue.close();
+	}
+
+	@Test
+	void budgetUsageSurvivesARestore() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("budget").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.setBudgets(budgets(new CrawlBudget(2, CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED)));
+		queue.add("http://a.onion/1");
+		queue.add("http://a.onion/2");
+		queue.take();
+		queue.close();
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		restored.setBudgets(budgets(new CrawlBudget(2, CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED)));
+		assertFalse(restored.add("http://a.onion/3"));
+		assertTrue(restored.add("http://b.onion/1"));
+		assertEquals(2, restored.size());
+		restored.close();
+	}
+}
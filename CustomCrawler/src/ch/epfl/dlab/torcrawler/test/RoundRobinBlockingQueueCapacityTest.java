@@ -0,0 +1,150 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+
+import ch.epfl.dlab.torcrawler.FrontierConfig;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue.OverflowPolicy;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueCapacityTest {
+
+	private static RoundRobinBlockingQueue newQueue() throws IOException {
+		String folder = Files.createTempDirectory("capacity").toString();
+		return RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+	}
+
+	@Test
+	void offerHonoursItsTimeoutWhenTheQueueIsFull() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.setCapacity(2, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+
+		assertTrue(queue.offer("http://a.onion/1"));
+		assertTrue(queue.offer("http://b.onion/1"));
+		assertEquals(0, queue.remainingCapacity());
+		assertFalse(queue.offer("http://c.onion/1"));
+
+		long start = System.nanoTime();
+		assertFalse(queue.offer("http://c.onion/1", 100, TimeUnit.MILLISECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+		assertEquals(1.0, queue.pressure());
+		queue.close();
+	}
+
+	@Test
+	void putBlocksUntilAConsumerMakesRoom() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.setCapacity(1, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+		queue.put("http://a.onion/1");
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.put("http://b.onion/1");
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());// Blocked
+
+		assertEquals("http://a.onion/1", queue.take());
+		producer.join(5_000);
+		assertFalse(producer.isAlive());
+		assertEquals("http://b.onion/1", queue.take());
+		queue.close();
+	}
+
+	@Test
+	void blockedAddAllIsAdmittedAsRoomIsMadeWithoutSpilling() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.setCapacity(3, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				queue.addAll(Arrays.asList("http://a.onion/1", "http://b.onion/1", "http://c.onion/1",
+						"http://d.onion/1", "http://e.onion/1"));
+			}
+		};
+		producer.start();
+		producer.join(300);
+		assertTrue(producer.isAlive());// Waits for room for the last 2 urls
+		assertEquals(3, queue.size());
+		assertEquals(0, queue.spilledCount());
+
+		Set<String> taken = new HashSet<>();
+		for (int i = 0; i < 5; ++i) {
+			taken.add(queue.take());
+		}
+		producer.join(5_000);
+		assertFalse(producer.isAlive());
+		assertEquals(5, taken.size());
+		assertEquals(0, queue.spilledCount());
+		queue.close();
+	}
+
+		@Test
+	void fullDomainsAreSpilledAndMovedBack() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.setCapacity(Integer.MAX_VALUE, 2, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 5; ++i) {
+			queue.put("http://a.onion/" + i);
+		}
+		assertEquals(2, queue.size());
+		assertEquals(3, queue.spilledCount());
+
+		Set<String> taken = new HashSet<>();
+		for (int i = 0; i < 5; ++i) {
+			taken.add(queue.poll(1, TimeUnit.SECONDS));
+		}
+		assertEquals(5, taken.size());
+		assertEquals(0, queue.spilledCount());
+		queue.close();
+	}
+
+	@Test
+	void spillPolicyDropsWhatTheOverflowCannotHold() throws IOException {
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.setCapacity(1, Integer.MAX_VALUE, OverflowPolicy.SPILL);
+		queue.setSpillCapacity(1);
+
+		assertTrue(queue.offer("http://a.onion/1"));
+		assertTrue(queue.offer("http://b.onion/1"));// Spilled
+		assertFalse(queue.offer("http://c.onion/1"));// Dropped
+		assertEquals(1, queue.spilledCount());
+		assertEquals(1, queue.droppedCount());
+		assertEquals(2.0, queue.pressure());
+		queue.close();
+	}
+
+	@Test
+	void limitsAreReadFromTheLaunchOptions() throws IOException {
+		FrontierConfig config = new Gson().fromJson("{\"capacity\": 2, \"domainCapacity\": 1, \"overflowPolicy\": \"SPILL\"}",
+				FrontierConfig.class);
+		assertEquals(FrontierConfig.DEFAULT_STORAGE, config.getStorage());
+		assertEquals(RoundRobinBlockingQueue.SPILL_CAPACITY, config.getSpillCapacity());
+
+		RoundRobinBlockingQueue queue = newQueue();
+		queue.setLimits(config);
+		assertTrue(queue.offer("http://a.onion/1"));
+		assertTrue(queue.offer("http://a.onion/2"));// Spilled, its domain is full
+		assertEquals(1, queue.spilledCount());
+		assertEquals(1, queue.remainingCapacity());
+		queue.close();
+	}
+}
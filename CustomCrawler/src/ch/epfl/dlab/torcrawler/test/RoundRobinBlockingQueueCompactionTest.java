@@ -0,0 +1,82 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueCompactionTest {
+
+	private static File queueFile(String folder, String domain) {
+		return new File(folder, domain + RoundRobinBlockingQueue.SUBQUEUE_FILE_SUFFIX);
+	}
+
+	@Test
+	void drainedSubqueuesAreDeletedButStillCounted() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("compaction").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.setCompaction(RoundRobinBlockingQueue.COMPACTION_INTERVAL, 0);
+		queue.add("http://a.onion/1");
+		queue.add("http://b.onion/1");
+		queue.add("http://b.onion/2");
+		queue.take();
+		queue.take();
+
+		queue.compact();
+		assertFalse(queueFile(folder, "a.onion").exists());// Drained
+		assertTrue(queueFile(folder, "b.onion").exists());// Still holds a url
+		assertEquals(2, queue.domainsDiscovered());
+		assertEquals(1, queue.retiredCount());
+
+		queue.add("http://a.onion/2");
+		assertEquals(0, queue.retiredCount());
+		assertEquals(2, queue.domainsDiscovered());
+		assertEquals(2, queue.size());
+		queue.close();
+	}
+
+	@Test
+	void subqueuesAreKeptDuringTheGracePeriod() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("compaction").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.add("http://a.onion/1");
+		queue.take();
+
+		queue.compact();
+		assertTrue(queueFile(folder, "a.onion").exists());
+		assertEquals(0, queue.retiredCount());
+		queue.close();
+	}
+
+	@Test
+	void retiredDomainsAreCountedAfterARestore() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("compaction").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.setCompaction(RoundRobinBlockingQueue.COMPACTION_INTERVAL, 0);
+		for (int i = 0; i < 10; ++i) {
+			queue.add("http://domain" + i + ".onion/1");
+			if (i >= 5) {
+				queue.add("http://domain" + i + ".onion/2");
+			}
+		}
+		for (int i = 0; i < 10; ++i) {// The first round drains the domains with a single url
+			queue.take();
+		}
+		queue.compact();
+		assertEquals(5, queue.retiredCount());
+		queue.close();
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		restored.awaitRestore();
+		assertEquals(10, restored.domainsDiscovered());
+		assertEquals(5, restored.retiredCount());
+		assertEquals(5, restored.size());
+		restored.close();
+	}
+}
@@ -0,0 +1,100 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueGroupCommitTest {
+
+	private static String newFolder() throws IOException {
+		return Files.createTempDirectory("groupCommit").toString();
+	}
+
+	@Test
+	void pendingBatchIsCommittedWhenTheWindowElapses() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(newFolder(), SubqueueStorage.Mode.SEGMENTED_LOG);
+		queue.setCommitWindow(100, 1_000);
+
+		long start = System.nanoTime();
+		queue.addAll(Arrays.asList("http://a.onion/1", "http://b.onion/1", "http://a.onion/2"));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));// Waited for the window
+		assertEquals(3, queue.size());// Written before addAll returns
+
+		Set<String> taken = new HashSet<>();
+		for (int i = 0; i < 3; ++i) {
+			String url = queue.poll(5, TimeUnit.SECONDS);
+			assertNotNull(url);
+			taken.add(url);
+		}
+		assertEquals(new HashSet<>(Arrays.asList("http://a.onion/1", "http://b.onion/1", "http://a.onion/2")), taken);
+		queue.close();
+	}
+
+	@Test
+	void fullBatchIsCommittedBeforeTheWindowElapses() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(newFolder(), SubqueueStorage.Mode.TAPE);
+		queue.setCommitWindow(60_000, 10);
+
+		List<String> urls = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			urls.add("http://domain" + (i % 3) + ".onion/" + i);
+		}
+		queue.addAll(urls);
+
+		assertNotNull(queue.poll(5, TimeUnit.SECONDS));
+		assertEquals(9, queue.size());
+		queue.close();
+	}
+
+	@Test
+	void closeCommitsThePendingBatch() throws IOException, InterruptedException {
+		String folder = newFolder();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.SEGMENTED_LOG);
+		queue.setCommitWindow(60_000, 1_000);
+		Thread producer = new Thread(
+				() -> queue.addAll(Arrays.asList("http://a.onion/1", "http://a.onion/2", "http://b.onion/1")));
+		producer.start();
+		while (producer.getState() != Thread.State.WAITING) {
+			Thread.sleep(10);// Waiting for the end of the window
+		}
+		assertEquals(0, queue.size());
+		queue.close();
+		producer.join(5_000);
+		assertFalse(producer.isAlive());
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		assertEquals(3, restored.size());
+		assertEquals("http://a.onion/1", restored.poll());
+		restored.close();
+	}
+
+	@Test
+	void producersWaitWhileTheQueueIsFull() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(newFolder(), SubqueueStorage.Mode.SEGMENTED_LOG);
+		queue.setCommitWindow(0, 1_000);
+		queue.setCapacity(2, Integer.MAX_VALUE, RoundRobinBlockingQueue.OverflowPolicy.BLOCK);
+		queue.addAll(Arrays.asList("http://a.onion/1", "http://b.onion/1"));
+
+		Thread producer = new Thread(() -> queue.addAll(Arrays.asList("http://c.onion/1")));
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());// Blocked until a url is taken
+		assertNotNull(queue.poll(5, TimeUnit.SECONDS));
+		producer.join(5_000);
+		assertFalse(producer.isAlive());
+		assertEquals(2, queue.size());
+		queue.close();
+	}
+}
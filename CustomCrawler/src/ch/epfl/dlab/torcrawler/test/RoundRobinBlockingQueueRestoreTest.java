@@ -0,0 +1,70 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueRestoreTest {
+
+	private static final int DOMAIN_COUNT = RoundRobinBlockingQueue.RESTORE_FIRST_SLICE * 3;
+
+	private static String persistQueue(Set<String> added) throws IOException {
+		String folder = Files.createTempDirectory("restoreQueue").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		for (int i = 0; i < DOMAIN_COUNT; ++i) {
+			String url = "http://domain" + i + ".onion/0";
+			queue.add(url);
+			added.add(url);
+		}
+		queue.close();
+		return folder;
+	}
+
+	@Test
+	void allDomainsAreLoadedInTheBackground() throws IOException, InterruptedException {
+		Set<String> added = new HashSet<>();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.restore(persistQueue(added));
+		assertTrue(queue.size() >= RoundRobinBlockingQueue.RESTORE_FIRST_SLICE);
+
+		queue.awaitRestore();
+		assertEquals(1, queue.restoreProgress());
+		assertEquals(DOMAIN_COUNT, queue.size());
+		assertEquals(DOMAIN_COUNT, queue.domainsDiscovered());
+
+		Set<String> taken = new HashSet<>();
+		while (!queue.isEmpty()) {
+			taken.add(queue.take());
+		}
+		assertEquals(added, taken);
+
+		queue.close();
+	}
+
+	@Test
+	void urlsAddedDuringTheRestoreKeepThePersistedOnes() throws IOException, InterruptedException {
+		Set<String> added = new HashSet<>();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.restore(persistQueue(added));
+		for (int i = DOMAIN_COUNT - 1; i >= 0; --i) {
+			String url = "http://domain" + i + ".onion/1";
+			queue.add(url);
+			added.add(url);
+		}
+
+		Set<String> taken = new HashSet<>();
+		while (taken.size() < added.size()) {
+			taken.add(queue.take());
+		}
+		assertEquals(added, taken);
+		assertTrue(queue.isEmpty());
+
+		queue.close();
+	}
+}
@@ -2,13 +2,12 @@ package ch.epfl.dlab.torcrawler.test;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
 import ch.epfl.dlab.torcrawler.PersistenceThread;
+import ch.epfl.dlab.torcrawler.SeenURLStore;
 
 /**
  * IMPORTANT: for the tests to pass, one must change the stringMapper of RoundRobinBlockingQueue
@@ -245,7 +244,7 @@ public final class RoundRobinBlockingQueueTest {
 			
 			
 			List<ConsumerThread> consumers = new ArrayList<>();
-			Set<String> discoveredUrls = new HashSet<>();
+			SeenURLStore discoveredUrls = SeenURLStore.create();
 
 			for (int i = 1; i < 11; ++i) {
 				consumers.add(new ConsumerThread(i,queue));
@@ -256,7 +255,7 @@ public final class RoundRobinBlockingQueueTest {
 				consumer.start();
 			}
 			
-			new PersistenceThread(discoveredUrls).start();
+			new PersistenceThread(discoveredUrls, queue).start();
 			
 			try {
 				Thread.sleep(120_000);//Run test for 2 min
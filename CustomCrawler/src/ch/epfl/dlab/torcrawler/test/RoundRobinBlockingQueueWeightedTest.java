@@ -0,0 +1,73 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.Fetcher;
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+
+class RoundRobinBlockingQueueWeightedTest {
+
+	private static void fill(RoundRobinBlockingQueue queue) {
+		for (int i = 0; i < 20; ++i) {
+			queue.add("http://fast.onion/" + i);
+			queue.add("http://slow.onion/" + i);
+		}
+		queue.reportFetch("http://fast.onion/", 100, true);// Quantum of MAX_QUANTUM urls per round
+		queue.reportFetch("http://slow.onion/", 4_000, true);// One url every 4 rounds
+	}
+
+	private static int countFast(RoundRobinBlockingQueue queue, int takes) throws InterruptedException {
+		int fast = 0;
+		for (int i = 0; i < takes; ++i) {
+			if (Fetcher.getDomain(queue.take()).equals("fast.onion")) {
+				fast++;
+			}
+		}
+		return fast;
+	}
+
+	@Test
+	void uniformRoundsIgnoreTheResponsiveness() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue
+				.create(Files.createTempDirectory("weightedQueue").toString(), SubqueueStorage.Mode.TAPE);
+		fill(queue);
+
+		assertEquals(6, countFast(queue, 12));
+
+		queue.close();
+	}
+
+	@Test
+	void responsiveDomainsGetMoreUrlsPerRound() throws IOException, InterruptedException {
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue
+				.create(Files.createTempDirectory("weightedQueue").toString(), SubqueueStorage.Mode.TAPE);
+		fill(queue);
+		queue.setWeighted(true);
+
+		assertEquals(12, countFast(queue, 12));// 3 rounds of 4 fast urls
+		assertEquals(4, countFast(queue, 5));// The slow domain has earned a url at the 4th round
+		assertEquals(40 - 17, queue.size());
+
+		queue.close();
+	}
+
+	@Test
+	void restoredQueueKeepsTheWeights() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("weightedQueue").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		fill(queue);
+		queue.close();
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		restored.setWeighted(true);
+		assertEquals(8, countFast(restored, 8));
+
+		restored.close();
+	}
+}
@@ -0,0 +1,156 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.squareup.tape2.ObjectQueue;
+
+import ch.epfl.dlab.torcrawler.SegmentedLogStorage;
+
+class SegmentedLogStorageTest {
+
+	private static String newFolder() throws IOException {
+		return Files.createTempDirectory("segmentedLog").toString();
+	}
+
+	@Test
+	void queuesAreFifoAndIndependent() throws IOException {
+		SegmentedLogStorage storage = new SegmentedLogStorage(newFolder());
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		ObjectQueue<String> b = storage.createQueue("b.onion");
+		a.add("http://a.onion/1");
+		b.add("http://b.onion/1");
+		a.add("http://a.onion/2");
+
+		assertEquals(2, a.size());
+		assertEquals(1, b.size());
+		assertEquals("http://a.onion/1", a.peek());
+		a.remove();
+		assertEquals("http://a.onion/2", a.peek());
+		assertEquals(Arrays.asList("http://b.onion/1"), b.peek(10));
+
+		storage.close();
+	}
+
+	@Test
+	void restoredStorageContainsTheSameQueues() throws IOException {
+		String folder = newFolder();
+		SegmentedLogStorage storage = new SegmentedLogStorage(folder);
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		storage.createQueue("empty.onion");
+		for (int i = 0; i < 10; ++i) {
+			a.add("http://a.onion/" + i);
+		}
+		a.remove(3);
+		storage.close();
+
+		SegmentedLogStorage restored = new SegmentedLogStorage(folder);
+		assertTrue(restored.queueNames().contains("empty.onion"));
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(7, restoredA.size());
+		assertEquals("http://a.onion/3", restoredA.peek());
+		assertEquals(0, restored.restoreQueue("empty.onion").size());
+		assertNull(restored.restoreQueue("unknown.onion"));
+		restored.close();
+	}
+
+	@Test
+	void compactionDeletesDeadSegmentsAndKeepsLiveElements() throws IOException {
+		String folder = newFolder();
+		SegmentedLogStorage storage = new SegmentedLogStorage(folder, 512);
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		ObjectQueue<String> b = storage.createQueue("b.onion");
+		for (int i = 0; i < 100; ++i) {
+			a.add("http://a.onion/" + i);
+			b.add("http://b.onion/" + i);
+		}
+		a.remove(100);
+		b.remove(90);
+
+		int segmentsBefore = storage.segmentCount();
+		storage.compact();
+		assertTrue(storage.segmentCount() < segmentsBefore);
+		assertEquals(storage.segmentCount(), new File(folder).list().length);
+		assertEquals(10, b.size());
+		assertEquals("http://b.onion/90", b.peek());
+		storage.close();
+
+		SegmentedLogStorage restored = new SegmentedLogStorage(folder, 512);
+		assertEquals(0, restored.restoreQueue("a.onion").size());
+		ObjectQueue<String> restoredB = restored.restoreQueue("b.onion");
+		assertEquals(10, restoredB.size());
+		assertEquals("http://b.onion/90", restoredB.peek());
+		restored.close();
+	}
+
+	@Test
+	void batchesAreAppendedInOrderAndRestored() throws IOException {
+		String folder = newFolder();
+		SegmentedLogStorage storage = new SegmentedLogStorage(folder, 512);
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		a.add("http://a.onion/0");
+		List<String> batch = new ArrayList<>();
+		for (int i = 1; i < 50; ++i) {
+			batch.add("http://a.onion/" + i);
+		}
+		storage.addAll(a, batch);
+		storage.sync();
+
+		assertEquals(50, a.size());
+		assertEquals("http://a.onion/0", a.peek());
+		a.remove(10);
+		assertEquals("http://a.onion/10", a.peek());
+		storage.close();
+
+		SegmentedLogStorage restored = new SegmentedLogStorage(folder, 512);
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(40, restoredA.size());
+		assertEquals("http://a.onion/10", restoredA.peek());
+		restored.close();
+	}
+
+	@Test
+	void deletedQueuesAreForgottenAndCanBeCreatedAgain() throws IOException {
+		String folder = newFolder();
+		SegmentedLogStorage storage = new SegmentedLogStorage(folder, 512);
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		for (int i = 0; i < 20; ++i) {
+			a.add("http://a.onion/" + i);
+		}
+		ObjectQueue<String> b = storage.createQueue("b.onion");
+		for (int i = 0; i < 20; ++i) {
+			b.add("http://b.onion/" + i);
+		}
+		a.remove(20);
+		storage.deleteQueue(a);
+		assertFalse(storage.queueNames().contains("a.onion"));
+		storage.compact();
+		storage.close();
+
+		SegmentedLogStorage restored = new SegmentedLogStorage(folder, 512);
+		assertNull(restored.restoreQueue("a.onion"));
+		assertEquals(20, restored.restoreQueue("b.onion").size());
+		ObjectQueue<String> newA = restored.createQueue("a.onion");
+		newA.add("http://a.onion/new");
+		restored.close();
+
+		restored = new SegmentedLogStorage(folder, 512);
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(1, restoredA.size());
+		assertEquals("http://a.onion/new", restoredA.peek());
+		restored.close();
+	}
+}
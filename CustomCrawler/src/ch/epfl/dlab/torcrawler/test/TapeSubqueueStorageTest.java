@@ -0,0 +1,122 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.squareup.tape2.ObjectQueue;
+
+import ch.epfl.dlab.torcrawler.RoundRobinBlockingQueue;
+import ch.epfl.dlab.torcrawler.SubqueueStorage;
+import ch.epfl.dlab.torcrawler.TapeSubqueueStorage;
+
+class TapeSubqueueStorageTest {
+
+	@Test
+	void openFilesAreBoundedByThePool() throws IOException {
+		TapeSubqueueStorage storage = new TapeSubqueueStorage(Files.createTempDirectory("tapeStorage").toString(), 2);
+		List<ObjectQueue<String>> queues = new ArrayList<>();
+		for (int i = 0; i < 5; ++i) {
+			ObjectQueue<String> queue = storage.createQueue("domain" + i);
+			queue.add("http://domain" + i + ".onion/1");
+			storage.addAll(queue, Arrays.asList("http://domain" + i + ".onion/2", "http://domain" + i + ".onion/3"));
+			queues.add(queue);
+			assertTrue(storage.openFileCount() <= 2);
+		}
+
+		for (int i = 0; i < 5; ++i) {
+			ObjectQueue<String> queue = queues.get(i);
+			assertEquals(3, queue.size());
+			assertEquals("http://domain" + i + ".onion/1", queue.peek());
+			queue.remove();
+			assertEquals(Arrays.asList("http://domain" + i + ".onion/2", "http://domain" + i + ".onion/3"),
+					queue.asList());
+			assertTrue(storage.openFileCount() <= 2);
+		}
+
+		for (ObjectQueue<String> queue : queues) {
+			queue.close();
+		}
+		assertEquals(0, storage.openFileCount());
+	}
+
+	@Test
+	void restoredQueuesAreOpenedLazily() throws IOException {
+		String folder = Files.createTempDirectory("tapeStorage").toString();
+		TapeSubqueueStorage storage = new TapeSubqueueStorage(folder);
+		for (int i = 0; i < 3; ++i) {
+			ObjectQueue<String> queue = storage.createQueue("domain" + i);
+			for (int j = 0; j <= i; ++j) {
+				queue.add("http://domain" + i + ".onion/" + j);
+			}
+			queue.close();
+		}
+
+		TapeSubqueueStorage restored = new TapeSubqueueStorage(folder);
+		for (int i = 0; i < 3; ++i) {
+			ObjectQueue<String> queue = restored.restoreQueue("domain" + i);
+			assertEquals(i + 1, queue.size());
+			assertFalse(queue.isEmpty());
+		}
+		assertEquals(0, restored.openFileCount());// Sizes are known without opening the files
+	}
+
+	@Test
+	void roundRobinQueueWorksWithFewOpenFiles() throws IOException, InterruptedException {
+		String folder = Files.createTempDirectory("tapeStorage").toString();
+		RoundRobinBlockingQueue queue = RoundRobinBlockingQueue.create(folder, SubqueueStorage.Mode.TAPE);
+		queue.setMaxOpenFiles(3);
+		Set<String> added = new HashSet<>();
+		for (int i = 0; i < 50; ++i) {
+			String url = "http://domain" + (i % 10) + ".onion/" + i;
+			queue.add(url);
+			added.add(url);
+		}
+		queue.close();
+
+		RoundRobinBlockingQueue restored = RoundRobinBlockingQueue.restore(folder);
+		restored.setMaxOpenFiles(3);
+		Set<String> taken = new HashSet<>();
+		while (!restored.isEmpty()) {
+			taken.add(restored.take());
+		}
+		assertEquals(added, taken);
+
+		restored.close();
+	}
+
+	@Test
+	void oversizedFilesAreShrunkAndDrainedFilesDeleted() throws IOException {
+		String folder = Files.createTempDirectory("tapeStorage").toString();
+		TapeSubqueueStorage storage = new TapeSubqueueStorage(folder);
+		ObjectQueue<String> queue = storage.createQueue("domain");
+		List<String> urls = new ArrayList<>();
+		for (int i = 0; i < 50_000; ++i) {
+			urls.add("http://domain.onion/page" + i);
+		}
+		storage.addAll(queue, urls);
+		File file = new File(folder, "domain" + TapeSubqueueStorage.QUEUE_FILE_SUFFIX);
+		long highWater = file.length();
+		assertTrue(highWater >= TapeSubqueueStorage.SHRINK_MIN_LENGTH);
+		assertFalse(storage.shrinkQueue(queue));// Still full
+
+		queue.remove(urls.size() - 10);
+		assertTrue(storage.shrinkQueue(queue));
+		assertTrue(file.length() < highWater / TapeSubqueueStorage.SHRINK_RATIO);
+		assertEquals(urls.subList(urls.size() - 10, urls.size()), queue.asList());
+
+		queue.clear();
+		storage.deleteQueue(queue);
+		assertFalse(file.exists());
+		assertFalse(storage.queueNames().contains("domain"));
+	}
+}
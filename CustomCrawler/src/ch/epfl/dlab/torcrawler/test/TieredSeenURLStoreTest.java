@@ -0,0 +1,136 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.FingerprintIndex;
+import ch.epfl.dlab.torcrawler.TieredSeenURLStore;
+
+class TieredSeenURLStoreTest {
+
+	private static String url(int i) {
+		return "http://domain" + (i % 97) + ".onion/page/" + i;
+	}
+
+	@Test
+	void addIfAbsentIsExactAcrossTheTiers() throws IOException {
+		TieredSeenURLStore store = TieredSeenURLStore.create(Files.createTempDirectory("seen").toString());
+		store.setHotCapacity(100);
+
+		for (int i = 0; i < 1_000; ++i) {
+			assertTrue(store.addIfAbsent(url(i)));
+			assertFalse(store.addIfAbsent(url(i)));
+		}
+		assertTrue(store.runCount() > 0);
+		for (int i = 0; i < 1_000; ++i) {
+			assertTrue(store.contains(url(i)));
+			assertFalse(store.addIfAbsent(url(i)));
+		}
+		assertFalse(store.contains(url(1_000)));
+		assertEquals(1_000, store.size());
+		store.close();
+	}
+
+	@Test
+	void runsAreMergedInTheBackground() throws IOException, InterruptedException {
+		TieredSeenURLStore store = TieredSeenURLStore.create(Files.createTempDirectory("seen").toString());
+		store.setHotCapacity(10);
+		for (int i = 0; i < 200; ++i) {
+			store.addIfAbsent(url(i));
+		}
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (store.runCount() > TieredSeenURLStore.MAX_RUNS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue(store.runCount() <= TieredSeenURLStore.MAX_RUNS);
+		for (int i = 0; i < 200; ++i) {
+			assertTrue(store.contains(url(i)));
+		}
+		assertEquals(200, store.size());
+		store.close();
+	}
+
+	@Test
+	void storeSurvivesARestore() throws IOException {
+		String folder = Files.createTempDirectory("seen").toString();
+		TieredSeenURLStore store = TieredSeenURLStore.create(folder);
+		store.setHotCapacity(64);
+		for (int i = 0; i < 100; ++i) {
+			store.addIfAbsent(url(i));
+		}
+		store.close();
+
+		TieredSeenURLStore restored = TieredSeenURLStore.restore(folder);
+		assertEquals(100, restored.size());
+		for (int i = 0; i < 100; ++i) {
+			assertFalse(restored.addIfAbsent(url(i)));
+		}
+		assertTrue(restored.addIfAbsent(url(100)));
+		restored.close();
+
+		assertEquals(0, TieredSeenURLStore.create(folder).size());
+	}
+
+	@Test
+	void checkpointedLogIsReplayedOnRestore() throws IOException {
+		String folder = Files.createTempDirectory("seen").toString();
+		TieredSeenURLStore store = TieredSeenURLStore.create(folder, 1_000);
+		store.setHotCapacity(25);
+		for (int i = 0; i < 110; ++i) {
+			store.addIfAbsent(url(i));
+		}
+		store.checkpoint();
+		assertEquals(4, store.runCount());
+		assertEquals(10 * Long.BYTES, new File(folder, TieredSeenURLStore.LOG_FILE_NAME).length());
+		assertFalse(new File(folder, TieredSeenURLStore.FILTER_FILE_NAME).exists());// Not snapshotted by the flushes
+
+		TieredSeenURLStore restored = TieredSeenURLStore.restore(folder);// Not closed, as after a crash
+		assertEquals(110, restored.size());
+		for (int i = 0; i < 110; ++i) {
+			assertTrue(restored.filter().mightContain(FingerprintIndex.fingerprint(url(i))));
+			assertFalse(restored.addIfAbsent(url(i)));
+		}
+		assertTrue(restored.addIfAbsent(url(110)));
+		restored.close();
+
+		new File(folder, TieredSeenURLStore.FILTER_FILE_NAME).delete();
+		restored = TieredSeenURLStore.restore(folder);
+		for (int i = 0; i < 111; ++i) {
+			assertTrue(restored.contains(url(i)));
+		}
+		assertFalse(restored.contains(url(111)));
+		restored.close();
+	}
+
+	@Test
+	void concurrentAddsAcceptEachUrlOnce() throws IOException, InterruptedException {
+		TieredSeenURLStore store = TieredSeenURLStore.create(Files.createTempDirectory("seen").toString());
+		store.setHotCapacity(1_000);
+		AtomicInteger accepted = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; ++t) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 10_000; ++i) {
+					if (store.addIfAbsent(url(i))) {
+						accepted.incrementAndGet();
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(10_000, accepted.get());
+		store.close();
+	}
+}
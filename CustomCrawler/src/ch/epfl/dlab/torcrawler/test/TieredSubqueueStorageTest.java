@@ -0,0 +1,127 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.squareup.tape2.ObjectQueue;
+
+import ch.epfl.dlab.torcrawler.TapeSubqueueStorage;
+import ch.epfl.dlab.torcrawler.TieredSubqueueStorage;
+
+class TieredSubqueueStorageTest {
+
+	private static String newFolder() throws IOException {
+		return Files.createTempDirectory("tieredStorage").toString();
+	}
+
+	@Test
+	void queuesStayFifoAcrossTheTiers() throws IOException, InterruptedException {
+		String folder = newFolder();
+		TieredSubqueueStorage storage = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder), 10);
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		for (int i = 0; i < 30; ++i) {// More than the memory budget: some urls are written through
+			a.add("http://a.onion/" + i);
+		}
+		assertTrue(storage.bufferedCount() <= 10);
+
+		List<String> taken = new ArrayList<>();
+		while (!a.isEmpty()) {
+			taken.add(a.peek());
+			a.remove();
+			if (taken.size() % 5 == 0) {
+				Thread.sleep(2 * TieredSubqueueStorage.TIERING_INTERVAL);// Let the head buffer be refilled
+			}
+		}
+		for (int i = 0; i < 30; ++i) {
+			assertEquals("http://a.onion/" + i, taken.get(i));
+		}
+		storage.close();
+	}
+
+	@Test
+	void closedStorageIsRestoredWithTheSameUrls() throws IOException, InterruptedException {
+		String folder = newFolder();
+		TieredSubqueueStorage storage = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		for (int i = 0; i < 10; ++i) {
+			a.add("http://a.onion/" + i);
+		}
+		a.remove(3);
+		storage.close();
+
+		TieredSubqueueStorage restored = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(7, restoredA.size());
+		assertEquals("http://a.onion/3", restoredA.peek());
+		restored.close();
+	}
+
+	@Test
+	void journaledUrlsSurviveACrash() throws IOException, InterruptedException {
+		String folder = newFolder();
+		TieredSubqueueStorage storage = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		for (int i = 0; i < 10; ++i) {
+			a.add("http://a.onion/" + i);
+		}
+		assertEquals(0, new TapeSubqueueStorage(folder).restoreQueue("a.onion").size());// Only in memory, journaled
+
+		// The first storage is never closed, as after a crash
+		TieredSubqueueStorage restored = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(10, restoredA.size());
+		assertEquals("http://a.onion/0", restoredA.peek());
+		restored.close();
+	}
+
+	@Test
+	void takenUrlsAreNotReplayedAfterACrash() throws IOException {
+		String folder = newFolder();
+		TieredSubqueueStorage storage = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		for (int i = 0; i < 10; ++i) {
+			a.add("http://a.onion/" + i);
+		}
+		a.remove(4);
+		storage.sync();// As the next add or pass would
+
+		// The first storage is never closed, as after a crash
+		TieredSubqueueStorage restored = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(6, restoredA.size());
+		assertEquals("http://a.onion/4", restoredA.peek());
+		restored.close();
+	}
+
+	@Test
+	void replacedQueueIsNotRecoveredWithItsOldUrls() throws IOException {
+		String folder = newFolder();
+		TieredSubqueueStorage storage = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+
+		ObjectQueue<String> a = storage.createQueue("a.onion");
+		for (int i = 0; i < 5; ++i) {
+			a.add("http://a.onion/" + i);
+		}
+		a = storage.createQueue("a.onion");
+		assertEquals(0, storage.bufferedCount());
+		a.add("http://a.onion/0");// Added again to the new queue
+		a.add("http://a.onion/5");
+
+		// The first storage is never closed, as after a crash
+		TieredSubqueueStorage restored = new TieredSubqueueStorage(folder, new TapeSubqueueStorage(folder));
+		ObjectQueue<String> restoredA = restored.restoreQueue("a.onion");
+		assertEquals(2, restoredA.size());
+		assertEquals("http://a.onion/0", restoredA.peek());
+		restored.close();
+	}
+}
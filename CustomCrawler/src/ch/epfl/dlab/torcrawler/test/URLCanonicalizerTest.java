@@ -0,0 +1,103 @@
+package ch.epfl.dlab.torcrawler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import ch.epfl.dlab.torcrawler.URLCanonicalizer;
+import ch.epfl.dlab.torcrawler.URLCanonicalizer.Rewrite;
+
+class URLCanonicalizerTest {
+
+	@Test
+	void canonicalUrlIsReturnedAsIs() {
+		String url = "http://abcdef.onion/forum/index.php?a=1&b=2";
+		assertTrue(url == URLCanonicalizer.canonicalize(url));
+		assertNull(URLCanonicalizer.canonicalize(null));
+	}
+
+	@Test
+	void schemeHostPortAndFragmentAreCanonicalized() {
+		assertEquals("http://abcdef.onion/", URLCanonicalizer.canonicalize("  HTTP://AbcDef.onion:80#top "));
+		assertEquals("https://abcdef.onion/a", URLCanonicalizer.canonicalize("https://abcdef.onion:443/a"));
+		assertEquals("http://abcdef.onion:8080/a", URLCanonicalizer.canonicalize("http://abcdef.onion:8080/a"));
+		assertEquals("http://user@abcdef.onion/", URLCanonicalizer.canonicalize("http://user@ABCDEF.onion:/"));
+		assertEquals("http://abcdef.onion/a%20b", URLCanonicalizer.canonicalize("http://abcdef.onion/a b"));
+		assertEquals("mailto:a%20b@c.onion", URLCanonicalizer.canonicalize(" mailto:a b@c.onion"));
+		assertEquals("http://[::1]/a", URLCanonicalizer.canonicalize("http://[::1]/a"));
+		assertEquals("http://[::1]:8080/a", URLCanonicalizer.canonicalize("http://[::1]:8080/a"));
+		assertEquals("http://abcdef.onion/a?b=]", URLCanonicalizer.canonicalize("http://abcdef.onion:80/a?b=]"));
+	}
+
+	@Test
+	void pathIsCanonicalized() {
+		assertEquals("http://a.onion/b/c/", URLCanonicalizer.canonicalize("http://a.onion//b///c/"));
+		assertEquals("http://a.onion/a/c", URLCanonicalizer.canonicalize("http://a.onion/a/./b/../c"));
+		assertEquals("http://a.onion/", URLCanonicalizer.canonicalize("http://a.onion/a/./.."));
+		assertEquals("http://a.onion/b", URLCanonicalizer.canonicalize("http://a.onion/../../b"));
+		assertEquals("http://a.onion/a/", URLCanonicalizer.canonicalize("http://a.onion/a/b/.."));
+		assertEquals("http://a.onion/%C3%A9?q=%2F", URLCanonicalizer.canonicalize("http://a.onion/%c3%a9?q=%2f"));
+		assertEquals("http://a.onion/100%", URLCanonicalizer.canonicalize("http://a.onion/100%"));
+	}
+
+	@Test
+	void queryIsCanonicalized() {
+		assertEquals("http://a.onion/?a=1&b=2&b=1", URLCanonicalizer.canonicalize("http://a.onion/?b=2&a=1&&b=1"));
+		assertEquals("http://a.onion/p", URLCanonicalizer.canonicalize("http://a.onion/p?"));
+		assertEquals("http://a.onion/p?id=3",
+				URLCanonicalizer.canonicalize("http://a.onion/p?PHPSESSID=f00&id=3&utm_source=x#c"));
+		assertEquals("http://a.onion/p", URLCanonicalizer.canonicalize("http://a.onion/p#x?b=1"));
+	}
+
+	@Test
+	void strippedParametersApplyToTheirDomain() {
+		Map<String, List<String>> parameters = new HashMap<>();
+		parameters.put(URLCanonicalizer.DEFAULT_DOMAIN, Arrays.asList("ref"));
+		parameters.put("forum.onion", Arrays.asList("Sort"));
+		URLCanonicalizer.setStrippedParameters(parameters);
+		try {
+			assertEquals("http://www.forum.onion/t?id=1",
+					URLCanonicalizer.canonicalize("http://www.forum.onion/t?sort=asc&id=1&ref=home"));
+			assertEquals("http://other.onion/t?id=1&sort=asc",
+					URLCanonicalizer.canonicalize("http://other.onion/t?sort=asc&id=1&ref=home"));
+		} finally {
+			URLCanonicalizer.setStrippedParameters(Collections.emptyMap());
+		}
+	}
+
+	@Test
+	void rewritesAreCounted() {
+		long canonicalized = URLCanonicalizer.canonicalizedCount();
+		long rewritten = URLCanonicalizer.rewrittenCount();
+		Map<Rewrite, Long> counts = URLCanonicalizer.rewriteCounts();
+
+		URLCanonicalizer.canonicalize("http://a.onion/");
+		URLCanonicalizer.canonicalize("http://a.onion/#top");
+		URLCanonicalizer.canonicalize("http://A.onion/?b=1&a=1");
+
+		assertTrue(URLCanonicalizer.canonicalizedCount() >= canonicalized + 3);
+		assertTrue(URLCanonicalizer.rewrittenCount() >= rewritten + 2);
+		Map<Rewrite, Long> after = URLCanonicalizer.rewriteCounts();
+		assertTrue(after.get(Rewrite.FRAGMENT) >= counts.get(Rewrite.FRAGMENT) + 1);
+		assertTrue(after.get(Rewrite.HOST_CASE) >= counts.get(Rewrite.HOST_CASE) + 1);
+		assertTrue(after.get(Rewrite.PARAMETER_ORDER) >= counts.get(Rewrite.PARAMETER_ORDER) + 1);
+	}
+
+	@Test
+	void duplicatesRemovedAreCounted() {
+		long removed = URLCanonicalizer.duplicatesRemovedCount();
+		Set<String> links = URLCanonicalizer.canonicalizeAll(new HashSet<>(Arrays.asList("http://a.onion/p",
+				"http://A.onion/p", "http://a.onion:80/p#top", "http://a.onion/q")));
+
+		assertEquals(new HashSet<>(Arrays.asList("http://a.onion/p", "http://a.onion/q")), links);
+		assertTrue(URLCanonicalizer.duplicatesRemovedCount() >= removed + 2);
+	}
+}